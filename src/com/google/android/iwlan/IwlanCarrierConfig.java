@@ -0,0 +1,188 @@
+/*
+ * Copyright 2024 The Android Open Source Project
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package com.google.android.iwlan;
+
+import android.content.Context;
+import android.os.PersistableBundle;
+import android.support.annotation.NonNull;
+import android.support.annotation.Nullable;
+import android.telephony.CarrierConfigManager;
+import android.util.Log;
+
+import com.android.internal.annotations.VisibleForTesting;
+
+import java.util.Map;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.atomic.AtomicLong;
+
+/**
+ * Immutable snapshot of the carrier config of one slot.
+ *
+ * <p>A snapshot is loaded from {@link CarrierConfigManager} when the carrier config of the slot
+ * changes and replaces the previous one atomically, so readers never see a half-updated config
+ * and no longer pay a subscription lookup and a binder call per key. Snapshots are kept per slot
+ * and only served while the slot still has the subscription they were loaded for. Every snapshot
+ * carries a version that increases with each reload; objects derived from carrier config can be
+ * cached against it.
+ */
+public final class IwlanCarrierConfig {
+    private static final String TAG = IwlanCarrierConfig.class.getSimpleName();
+
+    private static final Map<Integer, IwlanCarrierConfig> sSnapshots = new ConcurrentHashMap<>();
+    private static final AtomicLong sNextVersion = new AtomicLong(1);
+
+    private final int mSlotId;
+    private final int mSubId;
+    private final long mVersion;
+    @Nullable private final PersistableBundle mBundle;
+    @Nullable private final PersistableBundle mDefaults;
+
+    private IwlanCarrierConfig(
+            int slotId,
+            int subId,
+            long version,
+            @Nullable PersistableBundle bundle,
+            @Nullable PersistableBundle defaults) {
+        mSlotId = slotId;
+        mSubId = subId;
+        mVersion = version;
+        mBundle = bundle;
+        mDefaults = defaults;
+    }
+
+    /**
+     * Reloads the carrier config of the slot and publishes it as the current snapshot.
+     *
+     * @return the new snapshot, or null if the carrier config service is unavailable
+     */
+    @Nullable
+    public static IwlanCarrierConfig reload(@NonNull Context context, int slotId) {
+        CarrierConfigManager carrierConfigManager =
+                context.getSystemService(CarrierConfigManager.class);
+        if (carrierConfigManager == null) {
+            Log.w(TAG, "Carrier config manager is null, dropping snapshot for slot " + slotId);
+            sSnapshots.remove(slotId);
+            return null;
+        }
+
+        int subId = IwlanHelper.getSubId(context, slotId);
+        PersistableBundle bundle = carrierConfigManager.getConfigForSubId(subId);
+        IwlanCarrierConfig snapshot =
+                new IwlanCarrierConfig(
+                        slotId,
+                        subId,
+                        sNextVersion.getAndIncrement(),
+                        bundle != null ? new PersistableBundle(bundle) : null,
+                        CarrierConfigManager.getDefaultConfig());
+        sSnapshots.put(slotId, snapshot);
+        Log.d(TAG, "Loaded carrier config for slot " + slotId + " version " + snapshot.mVersion);
+        return snapshot;
+    }
+
+    /**
+     * Returns the current snapshot of the slot, or null if none has been loaded for the active
+     * subscription of the slot yet. Callers then fall back to querying {@link
+     * CarrierConfigManager} directly.
+     */
+    @Nullable
+    public static IwlanCarrierConfig get(@NonNull Context context, int slotId) {
+        IwlanCarrierConfig snapshot = sSnapshots.get(slotId);
+        if (snapshot == null || snapshot.mSubId != IwlanHelper.getSubId(context, slotId)) {
+            return null;
+        }
+        return snapshot;
+    }
+
+    @VisibleForTesting
+    static void resetAll() {
+        sSnapshots.clear();
+    }
+
+    public int getSlotId() {
+        return mSlotId;
+    }
+
+    /** Returns the subscription id the snapshot was loaded for. */
+    public int getSubId() {
+        return mSubId;
+    }
+
+    public long getVersion() {
+        return mVersion;
+    }
+
+    /** Returns whether the snapshot holds a carrier config, rather than only the defaults. */
+    public boolean hasCarrierConfig() {
+        return mBundle != null;
+    }
+
+    /**
+     * Returns the carrier value of the key, or the platform default if the carrier does not set
+     * it.
+     */
+    @SuppressWarnings("unchecked")
+    public <T> T get(String key) {
+        Object value = mBundle != null ? mBundle.get(key) : null;
+        if (value == null) {
+            if (mDefaults == null) {
+                throw new IllegalStateException("Default config is null for: " + key);
+            }
+            value = mDefaults.get(key);
+        }
+        return (T) value;
+    }
+
+    public int getInt(String key) {
+        return this.<Integer>get(key);
+    }
+
+    public long getLong(String key) {
+        return this.<Long>get(key);
+    }
+
+    public boolean getBoolean(String key) {
+        return this.<Boolean>get(key);
+    }
+
+    @Nullable
+    public String getString(String key) {
+        return get(key);
+    }
+
+    @Nullable
+    public int[] getIntArray(String key) {
+        return get(key);
+    }
+
+    @Nullable
+    public String[] getStringArray(String key) {
+        return get(key);
+    }
+
+    @Override
+    public String toString() {
+        return "IwlanCarrierConfig{slot="
+                + mSlotId
+                + " subId="
+                + mSubId
+                + " version="
+                + mVersion
+                + " loaded="
+                + hasCarrierConfig()
+                + "}";
+    }
+}
@@ -32,6 +32,7 @@ import android.net.TransportInfo;
 import android.net.vcn.VcnTransportInfo;
 import android.net.wifi.WifiInfo;
 import android.net.wifi.WifiManager;
+import android.os.Build;
 import android.os.Handler;
 import android.os.HandlerThread;
 import android.os.IBinder;
@@ -62,6 +63,7 @@ import com.android.internal.annotations.VisibleForTesting;
 
 import com.google.android.iwlan.TunnelMetricsInterface.OnClosedMetrics;
 import com.google.android.iwlan.TunnelMetricsInterface.OnOpenedMetrics;
+import com.google.android.iwlan.epdg.EpdgPrefetchScheduler;
 import com.google.android.iwlan.epdg.EpdgSelector;
 import com.google.android.iwlan.epdg.EpdgTunnelManager;
 import com.google.android.iwlan.epdg.TunnelLinkProperties;
@@ -89,6 +91,12 @@ public class IwlanDataService extends DataService {
     private static final String TAG = IwlanDataService.class.getSimpleName();
 
     private static final String CONTEXT_ATTRIBUTION_TAG = "IWLAN";
+
+    // dumpsys arguments that start and stop recording the answers to ePDG DNS queries. The
+    // queried names encode the cell the device is in, so they are only honored on debuggable
+    // builds.
+    private static final String DUMP_ARG_START_DNS_RECORDING = "--start-epdg-dns-recording";
+    private static final String DUMP_ARG_STOP_DNS_RECORDING = "--stop-epdg-dns-recording";
     private static Context mContext;
     private IwlanNetworkMonitorCallback mNetworkMonitorCallback;
     private static boolean sNetworkConnected = false;
@@ -155,6 +163,7 @@ public class IwlanDataService extends DataService {
         @Override
         public void onLost(@NonNull Network network) {
             Log.d(TAG, "onLost: " + network);
+            IwlanNetworkAddresses.remove(network);
             IwlanDataService.setConnectedDataSub(INVALID_SUB_ID);
             IwlanDataService.setNetworkConnected(false, network, Transport.UNSPECIFIED_NETWORK);
         }
@@ -169,6 +178,7 @@ public class IwlanDataService extends DataService {
                 Log.d(TAG, "Ignore LinkProperties changes for unused Network.");
                 return;
             }
+            IwlanNetworkAddresses.update(network, linkProperties);
 
             if (!linkProperties.equals(sLinkProperties)) {
                 for (IwlanDataServiceProvider dp : sIwlanDataServiceProviders.values()) {
@@ -221,8 +231,8 @@ public class IwlanDataService extends DataService {
         private boolean mWfcEnabled = false;
         private boolean mCarrierConfigReady = false;
         private final EpdgSelector mEpdgSelector;
+        private final EpdgPrefetchScheduler mPrefetchScheduler;
         private final IwlanDataTunnelStats mTunnelStats;
-        private CellInfo mCellInfo = null;
         private int mCallState = TelephonyManager.CALL_STATE_IDLE;
         private long mProcessingStartTime = 0;
 
@@ -586,6 +596,22 @@ public class IwlanDataService extends DataService {
             mIwlanTunnelCallback = new IwlanTunnelCallback(this);
             mIwlanTunnelMetrics = new IwlanTunnelMetricsImpl(this, getIwlanDataServiceHandler());
             mEpdgSelector = EpdgSelector.getSelectorInstance(mContext, slotIndex);
+            mPrefetchScheduler =
+                    new EpdgPrefetchScheduler(
+                            slotIndex,
+                            mEpdgSelector,
+                            getIwlanDataServiceHandler(),
+                            new EpdgPrefetchScheduler.Prefetcher() {
+                                @Override
+                                public boolean prefetch(int reason) {
+                                    return scheduledPrefetch(reason);
+                                }
+
+                                @Override
+                                public boolean isBringupInProgress() {
+                                    return isTunnelBringupInProgress();
+                                }
+                            });
             mCalendar = Calendar.getInstance();
             mTunnelStats = new IwlanDataTunnelStats();
 
@@ -598,6 +624,8 @@ public class IwlanDataService extends DataService {
             events.add(IwlanEventListener.CROSS_SIM_CALLING_ENABLE_EVENT);
             events.add(IwlanEventListener.CELLINFO_CHANGED_EVENT);
             events.add(IwlanEventListener.CALL_STATE_CHANGED_EVENT);
+            events.add(IwlanEventListener.WIFI_AP_CHANGED_EVENT);
+            events.add(IwlanEventListener.ROAMING_STATE_CHANGED_EVENT);
             IwlanEventListener.getInstance(mContext, slotIndex)
                     .addEventListener(events, getIwlanDataServiceHandler());
         }
@@ -985,46 +1013,63 @@ public class IwlanDataService extends DataService {
             }
         }
 
-        private boolean isRegisteredCellInfoChanged(List<CellInfo> cellInfoList) {
-            for (CellInfo cellInfo : cellInfoList) {
-                if (!cellInfo.isRegistered()) {
-                    continue;
-                }
-
-                if (mCellInfo == null || mCellInfo != cellInfo) {
-                    mCellInfo = cellInfo;
-                    Log.d(TAG, " Update cached cellinfo");
+        private boolean isTunnelBringupInProgress() {
+            for (TunnelState tunnelState : mTunnelStateForApn.values()) {
+                if (tunnelState.getState() == TunnelState.TUNNEL_IN_BRINGUP) {
                     return true;
                 }
             }
             return false;
         }
 
-        private void dnsPrefetchCheck() {
+        private boolean isPrefetchAllowed() {
             boolean networkConnected =
                     mIwlanDataService.isNetworkConnected(
                             isActiveDataOnOtherSub(getSlotIndex()),
                             IwlanHelper.isCrossSimCallingEnabled(mContext, getSlotIndex()));
+            return networkConnected && mCarrierConfigReady && mWfcEnabled;
+        }
+
+        private void dnsPrefetchCheck() {
+            dnsPrefetchCheck(EpdgPrefetchScheduler.REASON_NETWORK_CHANGED);
+        }
+
+        private void dnsPrefetchCheck(@EpdgPrefetchScheduler.PrefetchReason int reason) {
             /* Check if we need to do prefecting */
-            if (networkConnected
-                    && mCarrierConfigReady
-                    && mWfcEnabled
-                    && mTunnelStateForApn.isEmpty()) {
+            if (isPrefetchAllowed() && mTunnelStateForApn.isEmpty()) {
+                prefetchEpdgServerList(mIwlanDataService.sNetwork, reason);
+            }
+        }
 
-                // Get roaming status
-                TelephonyManager telephonyManager =
-                        mContext.getSystemService(TelephonyManager.class);
-                telephonyManager =
-                        telephonyManager.createForSubscriptionId(
-                                IwlanHelper.getSubId(mContext, getSlotIndex()));
-                boolean isRoaming = telephonyManager.isNetworkRoaming();
-                Log.d(TAG, "Trigger EPDG prefetch. Roaming=" + isRoaming);
+        /**
+         * Runs a prefetch decided by {@link #mPrefetchScheduler}. Unlike the prefetches above, it
+         * also runs while tunnels are up, so that the candidates stay fresh for the next bringup or
+         * handover. The scheduler holds it back while a tunnel is being brought up.
+         */
+        private boolean scheduledPrefetch(@EpdgPrefetchScheduler.PrefetchReason int reason) {
+            if (!isPrefetchAllowed()) {
+                return false;
+            }
+            prefetchEpdgServerList(mIwlanDataService.sNetwork, reason);
+            return true;
+        }
 
-                prefetchEpdgServerList(mIwlanDataService.sNetwork, isRoaming);
+        private boolean isNetworkRoaming() {
+            IwlanTelephonyState telephonyState = IwlanTelephonyState.get(getSlotIndex());
+            if (telephonyState != null) {
+                return telephonyState.isNetworkRoaming();
             }
+            TelephonyManager telephonyManager = mContext.getSystemService(TelephonyManager.class);
+            telephonyManager =
+                    telephonyManager.createForSubscriptionId(
+                            IwlanHelper.getSubId(mContext, getSlotIndex()));
+            return telephonyManager.isNetworkRoaming();
         }
 
-        private void prefetchEpdgServerList(Network network, boolean isRoaming) {
+        private void prefetchEpdgServerList(
+                Network network, @EpdgPrefetchScheduler.PrefetchReason int reason) {
+            boolean isRoaming = isNetworkRoaming();
+            Log.d(TAG, "Trigger EPDG prefetch. Roaming=" + isRoaming);
             mEpdgSelector.getValidatedServerList(
                     0,
                     EpdgSelector.PROTO_FILTER_IPV4V6,
@@ -1041,14 +1086,22 @@ public class IwlanDataService extends DataService {
                     true,
                     network,
                     null);
+            mPrefetchScheduler.onPrefetched(network, reason);
         }
 
         private int getCurrentCellularRat() {
-            TelephonyManager telephonyManager = mContext.getSystemService(TelephonyManager.class);
-            telephonyManager =
-                    telephonyManager.createForSubscriptionId(
-                            IwlanHelper.getSubId(mContext, getSlotIndex()));
-            List<CellInfo> cellInfoList = telephonyManager.getAllCellInfo();
+            List<CellInfo> cellInfoList;
+            IwlanTelephonyState telephonyState = IwlanTelephonyState.get(getSlotIndex());
+            if (telephonyState != null) {
+                cellInfoList = telephonyState.getRegisteredCellInfos();
+            } else {
+                TelephonyManager telephonyManager =
+                        mContext.getSystemService(TelephonyManager.class);
+                telephonyManager =
+                        telephonyManager.createForSubscriptionId(
+                                IwlanHelper.getSubId(mContext, getSlotIndex()));
+                cellInfoList = telephonyManager.getAllCellInfo();
+            }
             if (cellInfoList == null) {
                 Log.e(TAG, "cellInfoList is NULL");
                 return 0;
@@ -1098,6 +1151,7 @@ public class IwlanDataService extends DataService {
         public void close() {
             // TODO: call epdgtunnelmanager.releaseInstance or equivalent
             mIwlanDataService.removeDataServiceProvider(this);
+            mPrefetchScheduler.cancel();
             IwlanEventListener iwlanEventListener =
                     IwlanEventListener.getInstance(mContext, getSlotIndex());
             iwlanEventListener.removeEventListener(getIwlanDataServiceHandler());
@@ -1129,6 +1183,8 @@ public class IwlanDataService extends DataService {
             }
             pw.println(mTunnelStats);
             EpdgTunnelManager.getInstance(mContext, getSlotIndex()).dump(pw);
+            mEpdgSelector.dump(pw);
+            mPrefetchScheduler.dump(pw);
             ErrorPolicyManager.getInstance(mContext, getSlotIndex()).dump(pw);
             pw.println("-------------------------------------");
         }
@@ -1334,7 +1390,9 @@ public class IwlanDataService extends DataService {
                             (IwlanDataServiceProvider) getDataServiceProvider(msg.arg1);
 
                     iwlanDataServiceProvider.mCarrierConfigReady = true;
-                    iwlanDataServiceProvider.dnsPrefetchCheck();
+                    iwlanDataServiceProvider.mEpdgSelector.onCarrierConfigChanged();
+                    iwlanDataServiceProvider.dnsPrefetchCheck(
+                            EpdgPrefetchScheduler.REASON_CARRIER_CONFIG_CHANGED);
                     break;
 
                 case IwlanEventListener.CARRIER_CONFIG_UNKNOWN_CARRIER_EVENT:
@@ -1349,7 +1407,8 @@ public class IwlanDataService extends DataService {
                             (IwlanDataServiceProvider) getDataServiceProvider(msg.arg1);
 
                     iwlanDataServiceProvider.mWfcEnabled = true;
-                    iwlanDataServiceProvider.dnsPrefetchCheck();
+                    iwlanDataServiceProvider.dnsPrefetchCheck(
+                            EpdgPrefetchScheduler.REASON_WFC_ENABLED);
                     break;
 
                 case IwlanEventListener.WIFI_CALLING_DISABLE_EVENT:
@@ -1371,7 +1430,8 @@ public class IwlanDataService extends DataService {
                             (IwlanDataServiceProvider) getDataServiceProvider(msg.arg1);
 
                     if (cellInfolist != null
-                            && iwlanDataServiceProvider.isRegisteredCellInfoChanged(cellInfolist)) {
+                            && iwlanDataServiceProvider.mPrefetchScheduler.onCellInfoChanged(
+                                    cellInfolist)) {
                         int[] addrResolutionMethods =
                                 IwlanHelper.getConfig(
                                         CarrierConfigManager.Iwlan
@@ -1381,7 +1441,8 @@ public class IwlanDataService extends DataService {
                         for (int addrResolutionMethod : addrResolutionMethods) {
                             if (addrResolutionMethod
                                     == CarrierConfigManager.Iwlan.EPDG_ADDRESS_CELLULAR_LOC) {
-                                iwlanDataServiceProvider.dnsPrefetchCheck();
+                                iwlanDataServiceProvider.mPrefetchScheduler.requestPrefetch(
+                                        EpdgPrefetchScheduler.REASON_CELL_LOCATION_CHANGED);
                             }
                         }
                     }
@@ -1394,6 +1455,22 @@ public class IwlanDataService extends DataService {
                     iwlanDataServiceProvider.mCallState = msg.arg2;
                     break;
 
+                case IwlanEventListener.WIFI_AP_CHANGED_EVENT:
+                    iwlanDataServiceProvider =
+                            (IwlanDataServiceProvider) getDataServiceProvider(msg.arg1);
+
+                    iwlanDataServiceProvider.mPrefetchScheduler.requestPrefetch(
+                            EpdgPrefetchScheduler.REASON_WIFI_AP_CHANGED);
+                    break;
+
+                case IwlanEventListener.ROAMING_STATE_CHANGED_EVENT:
+                    iwlanDataServiceProvider =
+                            (IwlanDataServiceProvider) getDataServiceProvider(msg.arg1);
+
+                    iwlanDataServiceProvider.mPrefetchScheduler.requestPrefetch(
+                            EpdgPrefetchScheduler.REASON_ROAMING_CHANGED);
+                    break;
+
                 case EVENT_SETUP_DATA_CALL:
                     SetupDataCallData setupDataCallData = (SetupDataCallData) msg.obj;
                     int accessNetworkType = setupDataCallData.mAccessNetworkType;
@@ -1862,6 +1939,10 @@ public class IwlanDataService extends DataService {
         if (!network.equals(sNetwork)) {
             Log.e(TAG, "System default network changed from: " + sNetwork + " TO: " + network);
             hasNetworkChanged = true;
+            // onLost is not called for a default network that is replaced.
+            if (sNetwork != null) {
+                IwlanNetworkAddresses.remove(sNetwork);
+            }
         }
 
         if (transport != sDefaultDataTransport) {
@@ -1906,6 +1987,7 @@ public class IwlanDataService extends DataService {
                         mContext.getSystemService(ConnectivityManager.class);
                 LinkProperties linkProperties = connectivityManager.getLinkProperties(network);
                 sLinkProperties = linkProperties;
+                IwlanNetworkAddresses.update(network, linkProperties);
                 for (IwlanDataServiceProvider dp : sIwlanDataServiceProviders.values()) {
                     dp.dnsPrefetchCheck();
                     dp.updateNetwork(sNetwork, linkProperties);
@@ -2056,6 +2138,10 @@ public class IwlanDataService extends DataService {
                 return "EVENT_TUNNEL_CLOSED_METRICS";
             case IwlanEventListener.CALL_STATE_CHANGED_EVENT:
                 return "CALL_STATE_CHANGED_EVENT";
+            case IwlanEventListener.WIFI_AP_CHANGED_EVENT:
+                return "WIFI_AP_CHANGED_EVENT";
+            case IwlanEventListener.ROAMING_STATE_CHANGED_EVENT:
+                return "ROAMING_STATE_CHANGED_EVENT";
             default:
                 return "Unknown(" + event + ")";
         }
@@ -2090,6 +2176,19 @@ public class IwlanDataService extends DataService {
 
     @Override
     public void dump(FileDescriptor fd, PrintWriter pw, String[] args) {
+        if (args != null
+                && args.length > 0
+                && (DUMP_ARG_START_DNS_RECORDING.equals(args[0])
+                        || DUMP_ARG_STOP_DNS_RECORDING.equals(args[0]))) {
+            if (!Build.IS_DEBUGGABLE) {
+                pw.println("ePDG DNS recording is only available on debuggable builds");
+                return;
+            }
+            boolean enabled = DUMP_ARG_START_DNS_RECORDING.equals(args[0]);
+            EpdgSelector.setDnsRecordingEnabled(this, enabled);
+            pw.println((enabled ? "Started" : "Stopped") + " ePDG DNS recording");
+            return;
+        }
         String transport = "UNSPECIFIED";
         if (sDefaultDataTransport == Transport.MOBILE) {
             transport = "CELLULAR";
@@ -2097,6 +2196,7 @@ public class IwlanDataService extends DataService {
             transport = "WIFI";
         }
         pw.println("Default transport: " + transport);
+        EpdgSelector.dumpDnsScheduler(pw);
         for (IwlanDataServiceProvider provider : sIwlanDataServiceProviders.values()) {
             pw.println();
             provider.dump(fd, pw, args);
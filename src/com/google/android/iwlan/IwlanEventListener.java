@@ -30,6 +30,7 @@ import android.support.annotation.IntDef;
 import android.support.annotation.NonNull;
 import android.telephony.CarrierConfigManager;
 import android.telephony.CellInfo;
+import android.telephony.ServiceState;
 import android.telephony.SubscriptionManager;
 import android.telephony.TelephonyCallback;
 import android.telephony.TelephonyManager;
@@ -89,6 +90,9 @@ public class IwlanEventListener {
     /** On Call state changed */
     public static final int CALL_STATE_CHANGED_EVENT = 12;
 
+    /** On network roaming state changed */
+    public static final int ROAMING_STATE_CHANGED_EVENT = 13;
+
     /* Events used and handled by IwlanDataService internally */
     public static final int DATA_SERVICE_INTERNAL_EVENT_BASE = 100;
 
@@ -107,7 +111,8 @@ public class IwlanEventListener {
         CROSS_SIM_CALLING_DISABLE_EVENT,
         CARRIER_CONFIG_UNKNOWN_CARRIER_EVENT,
         CELLINFO_CHANGED_EVENT,
-        CALL_STATE_CHANGED_EVENT
+        CALL_STATE_CHANGED_EVENT,
+        ROAMING_STATE_CHANGED_EVENT
     })
     @interface IwlanEventType {}
 
@@ -149,10 +154,22 @@ public class IwlanEventListener {
     }
 
     private class RadioInfoTelephonyCallback extends TelephonyCallback
-            implements TelephonyCallback.CellInfoListener, TelephonyCallback.CallStateListener {
+            implements TelephonyCallback.CellInfoListener,
+                    TelephonyCallback.CallStateListener,
+                    TelephonyCallback.ServiceStateListener {
+        // The subscription the callback is registered for.
+        private final int mCallbackSubId;
+        // Null until the first service state is received.
+        private Boolean mIsNetworkRoaming;
+
+        RadioInfoTelephonyCallback(int subId) {
+            mCallbackSubId = subId;
+        }
+
         @Override
         public void onCellInfoChanged(List<CellInfo> arrayCi) {
             Log.d(LOG_TAG, "Cellinfo changed");
+            IwlanTelephonyState.onCellInfoChanged(mSlotId, mCallbackSubId, arrayCi);
 
             for (Map.Entry<Integer, IwlanEventListener> entry : mInstances.entrySet()) {
                 IwlanEventListener instance = entry.getValue();
@@ -175,6 +192,22 @@ public class IwlanEventListener {
                 }
             }
         }
+
+        @Override
+        public void onServiceStateChanged(@NonNull ServiceState serviceState) {
+            IwlanTelephonyState.onServiceStateChanged(
+                    mSlotId,
+                    mCallbackSubId,
+                    serviceState.getOperatorNumeric(),
+                    serviceState.getRoaming());
+
+            boolean isNetworkRoaming = serviceState.getRoaming();
+            if (mIsNetworkRoaming != null && mIsNetworkRoaming != isNetworkRoaming) {
+                Log.d(SUB_TAG, "Roaming state changed to " + isNetworkRoaming);
+                updateHandlers(ROAMING_STATE_CHANGED_EVENT);
+            }
+            mIsNetworkRoaming = isNetworkRoaming;
+        }
     }
 
     /**
@@ -389,6 +422,13 @@ public class IwlanEventListener {
 
     private void onCarrierConfigChanged(int carrierId) {
         Log.d(SUB_TAG, "onCarrierConfigChanged");
+        // Publish the new snapshots before any handler is told the config changed. The
+        // subscription may have changed too, and the carrier config is loaded for it.
+        Context dataServiceContext = IwlanDataService.getContext();
+        if (dataServiceContext != null) {
+            IwlanTelephonyState.reload(dataServiceContext, mSlotId);
+            IwlanCarrierConfig.reload(dataServiceContext, mSlotId);
+        }
         int subId = IwlanHelper.getSubId(mContext, mSlotId);
         if (subId != mSubId) {
             unregisterContentObserver();
@@ -495,10 +535,10 @@ public class IwlanEventListener {
     void registerTelephonyCallback() {
         Log.d(SUB_TAG, "registerTelephonyCallback");
         TelephonyManager telephonyManager = mContext.getSystemService(TelephonyManager.class);
+        int subId = IwlanHelper.getSubId(mContext, mSlotId);
         telephonyManager =
-                Objects.requireNonNull(telephonyManager)
-                        .createForSubscriptionId(IwlanHelper.getSubId(mContext, mSlotId));
-        mTelephonyCallback = new RadioInfoTelephonyCallback();
+                Objects.requireNonNull(telephonyManager).createForSubscriptionId(subId);
+        mTelephonyCallback = new RadioInfoTelephonyCallback(subId);
         telephonyManager.registerTelephonyCallback(Runnable::run, mTelephonyCallback);
     }
 
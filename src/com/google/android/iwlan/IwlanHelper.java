@@ -21,10 +21,6 @@ import android.content.Context;
 import android.content.SharedPreferences;
 import android.location.Country;
 import android.location.CountryDetector;
-import android.net.ConnectivityManager;
-import android.net.IpPrefix;
-import android.net.LinkAddress;
-import android.net.LinkProperties;
 import android.net.Network;
 import android.os.PersistableBundle;
 import android.os.SystemClock;
@@ -41,7 +37,6 @@ import java.net.Inet4Address;
 import java.net.Inet6Address;
 import java.net.InetAddress;
 import java.nio.charset.StandardCharsets;
-import java.util.ArrayList;
 import java.util.List;
 
 public class IwlanHelper {
@@ -49,7 +44,6 @@ public class IwlanHelper {
     private static final String TAG = IwlanHelper.class.getSimpleName();
     private static CountryDetector mCountryDetector;
     private static final String LAST_KNOWN_COUNTRY_CODE_KEY = "last_known_country_code";
-    private static IpPrefix mNat64Prefix = new IpPrefix("64:ff9b::/96");
 
     public static String getNai(Context context, int slotId, byte[] nextReauthId) {
         if (nextReauthId != null) {
@@ -82,6 +76,11 @@ public class IwlanHelper {
     }
 
     public static int getSubId(Context context, int slotId) {
+        IwlanTelephonyState telephonyState = IwlanTelephonyState.get(slotId);
+        if (telephonyState != null) {
+            return telephonyState.getSubId();
+        }
+
         int subid = SubscriptionManager.INVALID_SUBSCRIPTION_ID;
 
         try {
@@ -93,6 +92,11 @@ public class IwlanHelper {
     }
 
     public static int getCarrierId(Context context, int slotId) {
+        IwlanTelephonyState telephonyState = IwlanTelephonyState.get(slotId);
+        if (telephonyState != null) {
+            return telephonyState.getCarrierId();
+        }
+
         TelephonyManager tm = context.getSystemService(TelephonyManager.class);
         tm = tm.createForSubscriptionId(IwlanHelper.getSubId(context, slotId));
         return tm.getSimCarrierId();
@@ -112,35 +116,7 @@ public class IwlanHelper {
 
     // Retrieves all IP addresses for this Network, including stacked IPv4 link addresses.
     public static List<InetAddress> getAllAddressesForNetwork(Network network, Context context) {
-        ConnectivityManager connectivityManager =
-                context.getSystemService(ConnectivityManager.class);
-        List<InetAddress> gatewayList = new ArrayList<>();
-        if (network != null) {
-            LinkProperties linkProperties = connectivityManager.getLinkProperties(network);
-            if (linkProperties != null) {
-                for (LinkAddress linkAddr : linkProperties.getAllLinkAddresses()) {
-                    InetAddress inetAddr = linkAddr.getAddress();
-                    // skip linklocal and loopback addresses
-                    if (!inetAddr.isLoopbackAddress() && !inetAddr.isLinkLocalAddress()) {
-                        gatewayList.add(inetAddr);
-                    }
-                }
-                if (linkProperties.getNat64Prefix() != null) {
-                    mNat64Prefix = linkProperties.getNat64Prefix();
-                }
-            }
-        }
-        return gatewayList;
-    }
-
-    /**
-     * The method is to check if this IP address is an IPv4-embedded IPv6 address(Pref64::/n).
-     *
-     * @param ipAddress IP address
-     * @return True if it is an IPv4-embedded IPv6 addres, otherwise false.
-     */
-    public static boolean isIpv4EmbeddedIpv6Address(@NonNull InetAddress ipAddress) {
-        return (ipAddress instanceof Inet6Address) && mNat64Prefix.contains(ipAddress);
+        return IwlanNetworkAddresses.getOrLoad(context, network).getAddresses();
     }
 
     public static boolean hasIpv6Address(List<InetAddress> localAddresses) {
@@ -186,6 +162,11 @@ public class IwlanHelper {
     }
 
     public static <T> T getConfig(String key, Context context, int slotId) {
+        IwlanCarrierConfig carrierConfig = IwlanCarrierConfig.get(context, slotId);
+        if (carrierConfig != null) {
+            return carrierConfig.get(key);
+        }
+
         CarrierConfigManager carrierConfigManager =
                 context.getSystemService(CarrierConfigManager.class);
         if (carrierConfigManager == null) {
@@ -299,7 +280,7 @@ public class IwlanHelper {
         }
     }
 
-    static long elapsedRealtime() {
+    public static long elapsedRealtime() {
         /*Returns milliseconds since boot, including time spent in sleep.*/
         return SystemClock.elapsedRealtime();
     }
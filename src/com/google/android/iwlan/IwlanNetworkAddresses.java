@@ -0,0 +1,165 @@
+/*
+ * Copyright 2024 The Android Open Source Project
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package com.google.android.iwlan;
+
+import android.content.Context;
+import android.net.ConnectivityManager;
+import android.net.IpPrefix;
+import android.net.LinkAddress;
+import android.net.LinkProperties;
+import android.net.Network;
+import android.support.annotation.NonNull;
+import android.support.annotation.Nullable;
+
+import com.android.internal.annotations.VisibleForTesting;
+
+import java.net.Inet6Address;
+import java.net.InetAddress;
+import java.util.ArrayList;
+import java.util.List;
+import java.util.Map;
+import java.util.concurrent.ConcurrentHashMap;
+
+/**
+ * Immutable snapshot of the local addresses and NAT64 prefix of one network.
+ *
+ * <p>Snapshots are published from the link properties the data service network callback already
+ * receives, so asking whether a network has IPv4 or IPv6 connectivity needs no ConnectivityManager
+ * IPC. Only the system default network is published, and its snapshot is dropped once it is lost
+ * or replaced. Other networks are loaded on demand and not cached.
+ */
+public final class IwlanNetworkAddresses {
+    /** The Well-Known Prefix of RFC 6052, used when the network does not advertise a prefix. */
+    private static final IpPrefix WELL_KNOWN_NAT64_PREFIX = new IpPrefix("64:ff9b::/96");
+
+    private static final IwlanNetworkAddresses EMPTY =
+            new IwlanNetworkAddresses(List.of(), null /* nat64Prefix */);
+
+    private static final Map<Network, IwlanNetworkAddresses> sSnapshots =
+            new ConcurrentHashMap<>();
+
+    private final List<InetAddress> mAddresses;
+    private final boolean mHasIpv4Address;
+    private final boolean mHasIpv6Address;
+    @Nullable private final IpPrefix mNat64Prefix;
+
+    private IwlanNetworkAddresses(List<InetAddress> addresses, @Nullable IpPrefix nat64Prefix) {
+        mAddresses = addresses;
+        mHasIpv4Address = IwlanHelper.hasIpv4Address(addresses);
+        mHasIpv6Address = IwlanHelper.hasIpv6Address(addresses);
+        mNat64Prefix = nat64Prefix;
+    }
+
+    private static IwlanNetworkAddresses fromLinkProperties(
+            @Nullable LinkProperties linkProperties) {
+        if (linkProperties == null) {
+            return EMPTY;
+        }
+        List<InetAddress> addresses = new ArrayList<>();
+        for (LinkAddress linkAddr : linkProperties.getAllLinkAddresses()) {
+            InetAddress inetAddr = linkAddr.getAddress();
+            // skip linklocal and loopback addresses
+            if (!inetAddr.isLoopbackAddress() && !inetAddr.isLinkLocalAddress()) {
+                addresses.add(inetAddr);
+            }
+        }
+        return new IwlanNetworkAddresses(List.copyOf(addresses), linkProperties.getNat64Prefix());
+    }
+
+    /**
+     * Publishes the addresses of the network from its link properties, or drops them if the link
+     * properties are null.
+     */
+    public static void update(@NonNull Network network, @Nullable LinkProperties linkProperties) {
+        if (linkProperties == null) {
+            sSnapshots.remove(network);
+        } else {
+            sSnapshots.put(network, fromLinkProperties(linkProperties));
+        }
+    }
+
+    /** Drops the addresses of a network that is gone. */
+    public static void remove(@NonNull Network network) {
+        sSnapshots.remove(network);
+    }
+
+    /** Returns the published addresses of the network, or null if none were published. */
+    @Nullable
+    public static IwlanNetworkAddresses get(@Nullable Network network) {
+        return network != null ? sSnapshots.get(network) : null;
+    }
+
+    /**
+     * Returns the published addresses of the network, or queries ConnectivityManager for them if
+     * none were published. Returns an empty snapshot for a null network.
+     */
+    public static IwlanNetworkAddresses getOrLoad(
+            @NonNull Context context, @Nullable Network network) {
+        if (network == null) {
+            return EMPTY;
+        }
+        IwlanNetworkAddresses addresses = sSnapshots.get(network);
+        if (addresses != null) {
+            return addresses;
+        }
+        ConnectivityManager connectivityManager =
+                context.getSystemService(ConnectivityManager.class);
+        return fromLinkProperties(connectivityManager.getLinkProperties(network));
+    }
+
+    /**
+     * Returns whether the address is an IPv4-embedded IPv6 address of the NAT64 prefix of the
+     * network, or of the Well-Known Prefix if the network has not advertised one.
+     */
+    public static boolean isIpv4EmbeddedIpv6Address(
+            @NonNull InetAddress ipAddress, @Nullable Network network) {
+        if (!(ipAddress instanceof Inet6Address)) {
+            return false;
+        }
+        IwlanNetworkAddresses addresses = get(network);
+        IpPrefix nat64Prefix = addresses != null ? addresses.mNat64Prefix : null;
+        return (nat64Prefix != null ? nat64Prefix : WELL_KNOWN_NAT64_PREFIX).contains(ipAddress);
+    }
+
+    @VisibleForTesting
+    static void resetAll() {
+        sSnapshots.clear();
+    }
+
+    /** Returns the local addresses, without link-local and loopback addresses. */
+    public List<InetAddress> getAddresses() {
+        return mAddresses;
+    }
+
+    public boolean hasIpv4Address() {
+        return mHasIpv4Address;
+    }
+
+    public boolean hasIpv6Address() {
+        return mHasIpv6Address;
+    }
+
+    @Nullable
+    public IpPrefix getNat64Prefix() {
+        return mNat64Prefix;
+    }
+
+    @Override
+    public String toString() {
+        return "IwlanNetworkAddresses{" + mAddresses + " nat64Prefix=" + mNat64Prefix + "}";
+    }
+}
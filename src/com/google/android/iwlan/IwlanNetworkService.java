@@ -213,6 +213,11 @@ public class IwlanNetworkService extends NetworkService {
 
         @VisibleForTesting
         void subscriptionChanged() {
+            // Publish the state of the new subscription before it is read on the bringup path.
+            Context dataServiceContext = IwlanDataService.getContext();
+            if (dataServiceContext != null) {
+                IwlanTelephonyState.reload(dataServiceContext, getSlotIndex());
+            }
             boolean subActive =
                     getSubscriptionManager()
                                     .getActiveSubscriptionInfoForSimSlotIndex(getSlotIndex())
@@ -0,0 +1,294 @@
+/*
+ * Copyright 2024 The Android Open Source Project
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package com.google.android.iwlan;
+
+import android.content.Context;
+import android.support.annotation.NonNull;
+import android.support.annotation.Nullable;
+import android.telephony.CellInfo;
+import android.telephony.SubscriptionInfo;
+import android.telephony.SubscriptionManager;
+import android.telephony.TelephonyManager;
+import android.text.TextUtils;
+import android.util.Log;
+
+import com.android.internal.annotations.VisibleForTesting;
+
+import java.util.ArrayList;
+import java.util.List;
+import java.util.Map;
+import java.util.concurrent.ConcurrentHashMap;
+
+/**
+ * Immutable snapshot of the subscription and registration state of one slot.
+ *
+ * <p>The snapshot is loaded when the subscription or its carrier config changes, and its
+ * registration fields are refreshed from the telephony callbacks IwlanEventListener already
+ * receives, so reading them on the bringup and ePDG selection paths needs no telephony IPC.
+ * Snapshots are kept per slot and only served while the slot still has the subscription they
+ * were loaded for. Until then, {@link #get} returns null and callers query telephony directly.
+ */
+public final class IwlanTelephonyState {
+    private static final String TAG = IwlanTelephonyState.class.getSimpleName();
+
+    private static final Map<Integer, IwlanTelephonyState> sStates = new ConcurrentHashMap<>();
+
+    private final int mSlotId;
+    private final int mSubId;
+    private final int mCarrierId;
+    @Nullable private final String mSimPlmn;
+    @Nullable private final String mSimCountryIso;
+    @Nullable private final String mRegisteredPlmn;
+    private final List<String> mEhplmns;
+    private final boolean mIsNetworkRoaming;
+    private final List<CellInfo> mRegisteredCellInfos;
+
+    private IwlanTelephonyState(
+            int slotId,
+            int subId,
+            int carrierId,
+            @Nullable String simPlmn,
+            @Nullable String simCountryIso,
+            @Nullable String registeredPlmn,
+            List<String> ehplmns,
+            boolean isNetworkRoaming,
+            List<CellInfo> registeredCellInfos) {
+        mSlotId = slotId;
+        mSubId = subId;
+        mCarrierId = carrierId;
+        mSimPlmn = simPlmn;
+        mSimCountryIso = simCountryIso;
+        mRegisteredPlmn = registeredPlmn;
+        mEhplmns = ehplmns;
+        mIsNetworkRoaming = isNetworkRoaming;
+        mRegisteredCellInfos = registeredCellInfos;
+    }
+
+    /**
+     * Reloads the state of the slot from telephony and publishes it.
+     *
+     * @return the new snapshot, or null if the telephony services are unavailable
+     */
+    @Nullable
+    public static IwlanTelephonyState reload(@NonNull Context context, int slotId) {
+        SubscriptionManager subscriptionManager =
+                context.getSystemService(SubscriptionManager.class);
+        TelephonyManager telephonyManager = context.getSystemService(TelephonyManager.class);
+        if (subscriptionManager == null || telephonyManager == null) {
+            Log.w(TAG, "Telephony services unavailable, dropping state for slot " + slotId);
+            sStates.remove(slotId);
+            return null;
+        }
+
+        SubscriptionInfo subInfo =
+                subscriptionManager.getActiveSubscriptionInfoForSimSlotIndex(slotId);
+        IwlanTelephonyState state;
+        if (subInfo == null) {
+            state =
+                    new IwlanTelephonyState(
+                            slotId,
+                            SubscriptionManager.INVALID_SUBSCRIPTION_ID,
+                            TelephonyManager.UNKNOWN_CARRIER_ID,
+                            null /* simPlmn */,
+                            null /* simCountryIso */,
+                            null /* registeredPlmn */,
+                            List.of(),
+                            false /* isNetworkRoaming */,
+                            List.of());
+        } else {
+            telephonyManager =
+                    telephonyManager.createForSubscriptionId(subInfo.getSubscriptionId());
+            if (telephonyManager == null) {
+                Log.w(TAG, "TelephonyManager is NULL, dropping state for slot " + slotId);
+                sStates.remove(slotId);
+                return null;
+            }
+            List<String> ehplmns = telephonyManager.getEquivalentHomePlmns();
+            state =
+                    new IwlanTelephonyState(
+                            slotId,
+                            subInfo.getSubscriptionId(),
+                            telephonyManager.getSimCarrierId(),
+                            toSimPlmn(subInfo),
+                            telephonyManager.getSimCountryIso(),
+                            toRegisteredPlmn(telephonyManager.getNetworkOperator()),
+                            ehplmns != null ? List.copyOf(ehplmns) : List.of(),
+                            telephonyManager.isNetworkRoaming(),
+                            filterRegistered(telephonyManager.getAllCellInfo()));
+        }
+        sStates.put(slotId, state);
+        Log.d(TAG, "Loaded " + state);
+        return state;
+    }
+
+    /**
+     * Returns the current state of the slot, or null if none has been loaded for the active
+     * subscription of the slot yet.
+     */
+    @Nullable
+    public static IwlanTelephonyState get(int slotId) {
+        IwlanTelephonyState state = sStates.get(slotId);
+        // The subscription id of a slot is cached by SubscriptionManager, so this needs no IPC.
+        if (state == null || state.mSubId != SubscriptionManager.getSubscriptionId(slotId)) {
+            return null;
+        }
+        return state;
+    }
+
+    /**
+     * Replaces the registered cells of the current state, if one is loaded for the subscription
+     * the cells were reported for.
+     */
+    static void onCellInfoChanged(int slotId, int subId, @Nullable List<CellInfo> cellInfos) {
+        sStates.computeIfPresent(
+                slotId,
+                (slot, state) ->
+                        state.mSubId != subId
+                                ? state
+                                : new IwlanTelephonyState(
+                                        state.mSlotId,
+                                        state.mSubId,
+                                        state.mCarrierId,
+                                        state.mSimPlmn,
+                                        state.mSimCountryIso,
+                                        state.mRegisteredPlmn,
+                                        state.mEhplmns,
+                                        state.mIsNetworkRoaming,
+                                        filterRegistered(cellInfos)));
+    }
+
+    /**
+     * Replaces the registered PLMN and roaming state of the current state, if one is loaded for
+     * the subscription the service state was reported for.
+     */
+    static void onServiceStateChanged(
+            int slotId, int subId, @Nullable String operatorNumeric, boolean isNetworkRoaming) {
+        sStates.computeIfPresent(
+                slotId,
+                (slot, state) ->
+                        state.mSubId != subId
+                                ? state
+                                : new IwlanTelephonyState(
+                                        state.mSlotId,
+                                        state.mSubId,
+                                        state.mCarrierId,
+                                        state.mSimPlmn,
+                                        state.mSimCountryIso,
+                                        toRegisteredPlmn(operatorNumeric),
+                                        state.mEhplmns,
+                                        isNetworkRoaming,
+                                        state.mRegisteredCellInfos));
+    }
+
+    @VisibleForTesting
+    static void resetAll() {
+        sStates.clear();
+    }
+
+    /**
+     * Returns the MCC and MNC of the IMSI of the subscription, or null if either is not known.
+     */
+    @Nullable
+    public static String toSimPlmn(@NonNull SubscriptionInfo subInfo) {
+        String mcc = subInfo.getMccString();
+        String mnc = subInfo.getMncString();
+        if (mcc == null || mnc == null) {
+            return null;
+        }
+        return mcc + mnc;
+    }
+
+    @Nullable
+    private static String toRegisteredPlmn(@Nullable String operatorNumeric) {
+        return TextUtils.isEmpty(operatorNumeric) ? null : operatorNumeric;
+    }
+
+    private static List<CellInfo> filterRegistered(@Nullable List<CellInfo> cellInfos) {
+        if (cellInfos == null) {
+            return List.of();
+        }
+        List<CellInfo> registeredCellInfos = new ArrayList<>();
+        for (CellInfo cellInfo : cellInfos) {
+            if (cellInfo != null && cellInfo.isRegistered()) {
+                registeredCellInfos.add(cellInfo);
+            }
+        }
+        return List.copyOf(registeredCellInfos);
+    }
+
+    public int getSlotId() {
+        return mSlotId;
+    }
+
+    /** Returns the active subscription id, or INVALID_SUBSCRIPTION_ID if the SIM isn't ready. */
+    public int getSubId() {
+        return mSubId;
+    }
+
+    public int getCarrierId() {
+        return mCarrierId;
+    }
+
+    /** Returns the MCC and MNC of the IMSI, or null if they are not known. */
+    @Nullable
+    public String getSimPlmn() {
+        return mSimPlmn;
+    }
+
+    @Nullable
+    public String getSimCountryIso() {
+        return mSimCountryIso;
+    }
+
+    /** Returns the PLMN the slot is registered with, or null if it is not registered. */
+    @Nullable
+    public String getRegisteredPlmn() {
+        return mRegisteredPlmn;
+    }
+
+    public List<String> getEhplmns() {
+        return mEhplmns;
+    }
+
+    public boolean isNetworkRoaming() {
+        return mIsNetworkRoaming;
+    }
+
+    /** Returns the registered cells, in cell info order. */
+    public List<CellInfo> getRegisteredCellInfos() {
+        return mRegisteredCellInfos;
+    }
+
+    @Override
+    public String toString() {
+        return "IwlanTelephonyState{slot="
+                + mSlotId
+                + " subId="
+                + mSubId
+                + " carrierId="
+                + mCarrierId
+                + " simPlmn="
+                + mSimPlmn
+                + " registeredPlmn="
+                + mRegisteredPlmn
+                + " roaming="
+                + mIsNetworkRoaming
+                + " registeredCells="
+                + mRegisteredCellInfos.size()
+                + "}";
+    }
+}
@@ -0,0 +1,183 @@
+/*
+ * Copyright 2024 The Android Open Source Project
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package com.google.android.iwlan.epdg;
+
+import android.annotation.CallbackExecutor;
+import android.annotation.NonNull;
+import android.annotation.Nullable;
+import android.net.DnsResolver;
+import android.net.DnsResolver.DnsException;
+import android.net.Network;
+import android.net.ParseException;
+import android.os.CancellationSignal;
+import android.util.Log;
+
+import com.android.net.module.util.DnsPacket;
+
+import java.net.InetAddress;
+import java.net.UnknownHostException;
+import java.util.ArrayList;
+import java.util.List;
+import java.util.concurrent.Executor;
+import java.util.concurrent.TimeUnit;
+
+/**
+ * A utility wrapper around android.net.DnsResolver that queries for A or AAAA DNS Resource
+ * Records, and returns in the user callback the addresses along with how long they may be cached.
+ *
+ * <p>DnsResolver#query does not surface the TTL of the answer records, so the raw answer is parsed
+ * here instead.
+ */
+final class AddressDnsResolver {
+    private static final String TAG = "AddressDnsResolver";
+
+    private static final int QUERY_TYPE_CNAME = 5;
+
+    /** The addresses in the answer to an A or AAAA query. */
+    static class AddressAnswer {
+        @NonNull public final List<InetAddress> mAddresses;
+        // The lowest TTL of the answer records, including the CNAME records leading to the
+        // addresses. Zero if the answer holds no address.
+        public final long mTtlMs;
+
+        AddressAnswer(@NonNull List<InetAddress> addresses, long ttlMs) {
+            mAddresses = addresses;
+            mTtlMs = ttlMs;
+        }
+    }
+
+    static class AddressResponse extends DnsPacket {
+        private final int mQueryType;
+
+        AddressResponse(@NonNull byte[] data) throws ParseException {
+            super(data);
+            if (!mHeader.isResponse()) {
+                throw new ParseException("Not an answer packet");
+            }
+            int numQueries = mHeader.getRecordCount(QDSECTION);
+            // Expects exactly one query in query section.
+            if (numQueries != 1) {
+                throw new ParseException("Unexpected query count: " + numQueries);
+            }
+            mQueryType = mRecords[QDSECTION].get(0).nsType;
+            if (mQueryType != DnsResolver.TYPE_A && mQueryType != DnsResolver.TYPE_AAAA) {
+                throw new ParseException("Unexpected query type: " + mQueryType);
+            }
+        }
+
+        public @NonNull AddressAnswer parseAddresses() throws ParseException {
+            final List<InetAddress> addresses = new ArrayList<>();
+            if (mHeader.getRecordCount(ANSECTION) == 0) return new AddressAnswer(addresses, 0);
+
+            long ttlSec = Long.MAX_VALUE;
+            for (final DnsRecord ansSec : mRecords[ANSECTION]) {
+                final int nsType = ansSec.nsType;
+                // Like DnsResolver#query, records of other types are skipped.
+                if (nsType != mQueryType) {
+                    if (nsType == QUERY_TYPE_CNAME) {
+                        ttlSec = Math.min(ttlSec, ansSec.ttl);
+                    }
+                    continue;
+                }
+                final byte[] rr = ansSec.getRR();
+                final int expectedLength = (nsType == DnsResolver.TYPE_A) ? 4 : 16;
+                if (rr.length != expectedLength) {
+                    throw new ParseException("Unexpected address length: " + rr.length);
+                }
+                try {
+                    addresses.add(InetAddress.getByAddress(rr));
+                } catch (UnknownHostException e) {
+                    throw new ParseException("Parsing address record data failed with cause", e);
+                }
+                ttlSec = Math.min(ttlSec, ansSec.ttl);
+            }
+            if (addresses.isEmpty()) return new AddressAnswer(addresses, 0);
+            return new AddressAnswer(addresses, TimeUnit.SECONDS.toMillis(ttlSec));
+        }
+    }
+
+    /**
+     * A decorator for DnsResolver.Callback that parses the raw answer of an A or AAAA query and
+     * passes the addresses up to the user callback.
+     */
+    static class AddressAnswerAccumulator implements DnsResolver.Callback<byte[]> {
+        private static final String TAG = "AddressAnswerAccum";
+
+        private final DnsResolver.Callback<AddressAnswer> mUserCallback;
+
+        AddressAnswerAccumulator(@NonNull DnsResolver.Callback<AddressAnswer> callback) {
+            mUserCallback = callback;
+        }
+
+        @Override
+        public void onAnswer(@NonNull byte[] answer, int rcode) {
+            final AddressAnswer result;
+            try {
+                result = new AddressResponse(answer).parseAddresses();
+            } catch (DnsPacket.ParseException e) {
+                // Convert the com.android.net.module.util.DnsPacket.ParseException to an
+                // android.net.ParseException, as NaptrDnsResolver does.
+                final ParseException pe = new ParseException(e.reason, e.getCause());
+                pe.setStackTrace(e.getStackTrace());
+                Log.e(TAG, "ParseException", pe);
+                mUserCallback.onError(new DnsException(DnsResolver.ERROR_PARSE, pe));
+                return;
+            }
+            mUserCallback.onAnswer(result, rcode);
+        }
+
+        @Override
+        public void onError(@NonNull DnsException error) {
+            Log.e(TAG, "onError: " + error);
+            mUserCallback.onError(error);
+        }
+    }
+
+    /**
+     * Send an A or AAAA DNS query on the specified network. The answer will be provided
+     * asynchronously on the passed executor, through the provided {@link DnsResolver.Callback}.
+     *
+     * @param network {@link Network} specifying which network to query on. {@code null} for query
+     *     on default network.
+     * @param domain domain name to query.
+     * @param nsType {@link DnsResolver#TYPE_A} or {@link DnsResolver#TYPE_AAAA}.
+     * @param cancellationSignal used by the caller to signal if the query should be cancelled. May
+     *     be {@code null}.
+     * @param callback a {@link DnsResolver.Callback} which will be called on the executor to
+     *     notify the caller of the result of dns query.
+     */
+    public static void query(
+            @Nullable Network network,
+            @NonNull String domain,
+            int nsType,
+            @NonNull @CallbackExecutor Executor executor,
+            @Nullable CancellationSignal cancellationSignal,
+            @NonNull DnsResolver.Callback<AddressAnswer> callback) {
+        EpdgDnsQueryCoalescer.getInstance()
+                .rawQuery(
+                        network,
+                        domain,
+                        DnsResolver.CLASS_IN,
+                        nsType,
+                        DnsResolver.FLAG_EMPTY,
+                        executor,
+                        cancellationSignal,
+                        new AddressAnswerAccumulator(callback));
+    }
+
+    private AddressDnsResolver() {}
+}
@@ -0,0 +1,393 @@
+/*
+ * Copyright 2024 The Android Open Source Project
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package com.google.android.iwlan.epdg;
+
+import android.net.Network;
+import android.support.annotation.IntDef;
+import android.support.annotation.NonNull;
+import android.support.annotation.Nullable;
+
+import com.android.internal.annotations.VisibleForTesting;
+
+import com.google.android.iwlan.IwlanHelper;
+
+import java.io.PrintWriter;
+import java.net.InetAddress;
+import java.util.LinkedHashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.Objects;
+import java.util.Set;
+import java.util.concurrent.TimeUnit;
+
+/**
+ * An in-process cache of ePDG candidate addresses resolved by {@link EpdgSelector}, shared by the
+ * selectors of all slots.
+ *
+ * <p>Entries are keyed by the domain name, the {@link Network} the query was made on, the DNS
+ * query type and whether the lookup was made for an emergency session. Entries expire with the TTL
+ * of the DNS records they were resolved from. Once an entry expires it is still served for a
+ * fraction of that TTL, during which the caller is expected to refresh it in the background
+ * (stale-while-revalidate). Shortly before an entry expires, the next lookup also
+ * refreshes it, so that an entry in use is normally replaced before it goes stale.
+ *
+ * <p>Lookups that returned NXDOMAIN, an empty answer or timed out are remembered separately for a
+ * short time, so that domain names the carrier never provisioned are not queried on every
+ * selection.
+ */
+final class EpdgAddressCache {
+    private static final String TAG = "EpdgAddressCache";
+
+    static final long MAX_TTL_MS = TimeUnit.HOURS.toMillis(1);
+
+    // How long an expired entry may still be served while it is being refreshed, as a fraction of
+    // its TTL, so that an operator lowering the TTL ahead of a renumbering is not undone by the
+    // stale window.
+    static final int STALE_TTL_DIVISOR = 2;
+
+    // How long before its expiry an entry is refreshed ahead. Capped at half of the TTL of the
+    // entry, so that short-lived answers are not refreshed on almost every lookup.
+    static final long REFRESH_AHEAD_MS = TimeUnit.SECONDS.toMillis(30);
+
+    static final int MAX_ENTRIES = 128;
+
+    private static EpdgAddressCache sInstance;
+
+    // Query type used in keys for lookups that ask DnsResolver for both A and AAAA records.
+    static final int QUERY_TYPE_UNSPECIFIED = -1;
+
+    // Negative answers are only trusted for a short time, so that newly provisioned names and
+    // networks recovering from packet loss are picked up quickly.
+    static final long NEGATIVE_TTL_MS = TimeUnit.MINUTES.toMillis(5);
+    static final long TIMEOUT_NEGATIVE_TTL_MS = TimeUnit.MINUTES.toMillis(1);
+
+    static final int NEGATIVE_REASON_NXDOMAIN = 0;
+    static final int NEGATIVE_REASON_EMPTY = 1;
+    static final int NEGATIVE_REASON_TIMEOUT = 2;
+
+    @IntDef({NEGATIVE_REASON_NXDOMAIN, NEGATIVE_REASON_EMPTY, NEGATIVE_REASON_TIMEOUT})
+    @interface NegativeReason {}
+
+    // DNS response code for a non-existent domain, RFC 1035 section 4.1.1.
+    static final int RCODE_NXDOMAIN = 3;
+
+    static final class Key {
+        final String mDomainName;
+        final Network mNetwork;
+        final int mQueryType;
+        final boolean mIsEmergency;
+
+        Key(String domainName, Network network, int queryType, boolean isEmergency) {
+            mDomainName = domainName;
+            mNetwork = network;
+            mQueryType = queryType;
+            mIsEmergency = isEmergency;
+        }
+
+        @Override
+        public boolean equals(Object o) {
+            if (this == o) {
+                return true;
+            }
+            if (!(o instanceof Key)) {
+                return false;
+            }
+            Key that = (Key) o;
+            return mQueryType == that.mQueryType
+                    && mIsEmergency == that.mIsEmergency
+                    && Objects.equals(mDomainName, that.mDomainName)
+                    && Objects.equals(mNetwork, that.mNetwork);
+        }
+
+        @Override
+        public int hashCode() {
+            return Objects.hash(mDomainName, mNetwork, mQueryType, mIsEmergency);
+        }
+
+        @Override
+        public String toString() {
+            return mDomainName
+                    + " network: "
+                    + mNetwork
+                    + " type: "
+                    + mQueryType
+                    + (mIsEmergency ? " (SOS)" : "");
+        }
+    }
+
+    /** The result of a cache lookup. */
+    static final class Lookup {
+        @NonNull final List<InetAddress> mAddresses;
+        final boolean mIsStale;
+        // True if the caller is the first to see this entry stale, or about to expire, and should
+        // refresh it.
+        final boolean mShouldRefresh;
+
+        private Lookup(List<InetAddress> addresses, boolean isStale, boolean shouldRefresh) {
+            mAddresses = addresses;
+            mIsStale = isStale;
+            mShouldRefresh = shouldRefresh;
+        }
+    }
+
+    private static final class Entry {
+        final List<InetAddress> mAddresses;
+        final long mRefreshTime;
+        final long mExpiryTime;
+        final long mStaleExpiryTime;
+        boolean mIsRefreshing;
+
+        Entry(
+                List<InetAddress> addresses,
+                long refreshTime,
+                long expiryTime,
+                long staleExpiryTime) {
+            mAddresses = addresses;
+            mRefreshTime = refreshTime;
+            mExpiryTime = expiryTime;
+            mStaleExpiryTime = staleExpiryTime;
+        }
+    }
+
+    // Access ordered, so that the least recently used entry is evicted first.
+    private final LinkedHashMap<Key, Entry> mEntries =
+            new LinkedHashMap<>(16, 0.75f, true) {
+                @Override
+                protected boolean removeEldestEntry(Map.Entry<Key, Entry> eldest) {
+                    return size() > MAX_ENTRIES;
+                }
+            };
+
+    private static final class NegativeEntry {
+        @NegativeReason final int mReason;
+        final long mExpiryTime;
+
+        NegativeEntry(@NegativeReason int reason, long expiryTime) {
+            mReason = reason;
+            mExpiryTime = expiryTime;
+        }
+    }
+
+    private final LinkedHashMap<Key, NegativeEntry> mNegativeEntries =
+            new LinkedHashMap<>(16, 0.75f, true) {
+                @Override
+                protected boolean removeEldestEntry(Map.Entry<Key, NegativeEntry> eldest) {
+                    return size() > MAX_ENTRIES;
+                }
+            };
+
+    private long mHits;
+    private long mStaleHits;
+    private long mRefreshAheads;
+    private long mMisses;
+    private long mExpired;
+    private long mNegativeHits;
+    private final long[] mNegativeEntriesByReason = new long[NEGATIVE_REASON_TIMEOUT + 1];
+
+    static synchronized EpdgAddressCache getInstance() {
+        if (sInstance == null) {
+            sInstance = new EpdgAddressCache();
+        }
+        return sInstance;
+    }
+
+    @VisibleForTesting
+    static synchronized void resetInstance() {
+        sInstance = null;
+    }
+
+    /**
+     * Looks up the addresses cached for this key.
+     *
+     * @return the cached addresses, or {@code null} if there is no usable entry.
+     */
+    @Nullable
+    synchronized Lookup get(@NonNull Key key) {
+        Entry entry = mEntries.get(key);
+        if (entry == null) {
+            mMisses++;
+            return null;
+        }
+
+        long now = IwlanHelper.elapsedRealtime();
+        if (now < entry.mRefreshTime) {
+            mHits++;
+            return new Lookup(entry.mAddresses, false, false);
+        }
+
+        if (now < entry.mExpiryTime) {
+            mHits++;
+            boolean shouldRefresh = !entry.mIsRefreshing;
+            if (shouldRefresh) {
+                mRefreshAheads++;
+            }
+            entry.mIsRefreshing = true;
+            return new Lookup(entry.mAddresses, false, shouldRefresh);
+        }
+
+        if (now >= entry.mStaleExpiryTime) {
+            mEntries.remove(key);
+            mExpired++;
+            mMisses++;
+            return null;
+        }
+
+        mStaleHits++;
+        boolean shouldRefresh = !entry.mIsRefreshing;
+        entry.mIsRefreshing = true;
+        return new Lookup(entry.mAddresses, true, shouldRefresh);
+    }
+
+    /**
+     * Stores the addresses resolved for this key.
+     *
+     * @param ttlMillis the lifetime of the answer, usually the TTL of its records, capped at
+     *     {@link #MAX_TTL_MS}.
+     */
+    synchronized void put(@NonNull Key key, @NonNull List<InetAddress> addresses, long ttlMillis) {
+        if (addresses.isEmpty()) {
+            return;
+        }
+        long ttl = Math.min(Math.max(ttlMillis, 0), MAX_TTL_MS);
+        long expiryTime = IwlanHelper.elapsedRealtime() + ttl;
+        long refreshTime = expiryTime - Math.min(REFRESH_AHEAD_MS, ttl / 2);
+        long staleExpiryTime = expiryTime + ttl / STALE_TTL_DIVISOR;
+        mEntries.put(
+                key, new Entry(List.copyOf(addresses), refreshTime, expiryTime, staleExpiryTime));
+        mNegativeEntries.remove(key);
+    }
+
+    /**
+     * Returns the earliest time at which one of the given entries resolved on this network should
+     * be refreshed, or {@link Long#MAX_VALUE} if none of them is waiting for a refresh. The time
+     * may be in the past if an entry is already stale.
+     *
+     * @param keys the entries the caller looked up. The cache is shared by all slots, so entries
+     *     only looked up by the selector of another slot are left to that selector.
+     * @param notBefore entries that were due before this time are skipped. A caller that looked
+     *     up every entry it still uses at this time passes it, so that entries it no longer uses
+     *     are left to expire.
+     */
+    synchronized long getNextRefreshTime(
+            @Nullable Network network, @NonNull Set<Key> keys, long notBefore) {
+        long nextRefreshTime = Long.MAX_VALUE;
+        long now = IwlanHelper.elapsedRealtime();
+        for (Map.Entry<Key, Entry> mapEntry : mEntries.entrySet()) {
+            Entry entry = mapEntry.getValue();
+            if (!Objects.equals(mapEntry.getKey().mNetwork, network)
+                    || !keys.contains(mapEntry.getKey())
+                    || entry.mIsRefreshing
+                    || entry.mRefreshTime < notBefore
+                    || now >= entry.mStaleExpiryTime) {
+                continue;
+            }
+            nextRefreshTime = Math.min(nextRefreshTime, entry.mRefreshTime);
+        }
+        return nextRefreshTime;
+    }
+
+    /** Records that the lookup for this key did not produce any address. */
+    synchronized void putNegative(@NonNull Key key, @NegativeReason int reason) {
+        long ttl = (reason == NEGATIVE_REASON_TIMEOUT) ? TIMEOUT_NEGATIVE_TTL_MS : NEGATIVE_TTL_MS;
+        mNegativeEntries.put(key, new NegativeEntry(reason, IwlanHelper.elapsedRealtime() + ttl));
+        mNegativeEntriesByReason[reason]++;
+    }
+
+    /** Returns true if the lookup for this key recently failed and should not be retried yet. */
+    synchronized boolean isKnownNegative(@NonNull Key key) {
+        NegativeEntry entry = mNegativeEntries.get(key);
+        if (entry == null) {
+            return false;
+        }
+        if (IwlanHelper.elapsedRealtime() >= entry.mExpiryTime) {
+            mNegativeEntries.remove(key);
+            return false;
+        }
+        mNegativeHits++;
+        return true;
+    }
+
+    /** Forgets that the lookup for this key failed, as it has since produced an answer. */
+    synchronized void removeNegative(@NonNull Key key) {
+        mNegativeEntries.remove(key);
+    }
+
+    /** Allows a later lookup to retry the refresh of a stale entry after a failed refresh. */
+    synchronized void onRefreshFailed(@NonNull Key key) {
+        Entry entry = mEntries.get(key);
+        if (entry != null) {
+            entry.mIsRefreshing = false;
+        }
+    }
+
+    synchronized void clear() {
+        mEntries.clear();
+        mNegativeEntries.clear();
+    }
+
+    synchronized int size() {
+        return mEntries.size();
+    }
+
+    synchronized void dump(PrintWriter pw) {
+        pw.println(
+                "Address cache: entries: "
+                        + mEntries.size()
+                        + " hits: "
+                        + mHits
+                        + " stale hits: "
+                        + mStaleHits
+                        + " refreshed ahead: "
+                        + mRefreshAheads
+                        + " misses: "
+                        + mMisses
+                        + " expired: "
+                        + mExpired);
+        long now = IwlanHelper.elapsedRealtime();
+        for (Map.Entry<Key, Entry> entry : mEntries.entrySet()) {
+            pw.println(
+                    "  "
+                            + entry.getKey()
+                            + " -> "
+                            + entry.getValue().mAddresses
+                            + " expires in: "
+                            + (entry.getValue().mExpiryTime - now)
+                            + "ms");
+        }
+        pw.println(
+                "Negative cache: entries: "
+                        + mNegativeEntries.size()
+                        + " hits: "
+                        + mNegativeHits
+                        + " nxdomain: "
+                        + mNegativeEntriesByReason[NEGATIVE_REASON_NXDOMAIN]
+                        + " empty: "
+                        + mNegativeEntriesByReason[NEGATIVE_REASON_EMPTY]
+                        + " timeout: "
+                        + mNegativeEntriesByReason[NEGATIVE_REASON_TIMEOUT]);
+        for (Map.Entry<Key, NegativeEntry> entry : mNegativeEntries.entrySet()) {
+            pw.println(
+                    "  "
+                            + entry.getKey()
+                            + " reason: "
+                            + entry.getValue().mReason
+                            + " expires in: "
+                            + (entry.getValue().mExpiryTime - now)
+                            + "ms");
+        }
+    }
+}
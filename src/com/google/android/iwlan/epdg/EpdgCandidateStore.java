@@ -0,0 +1,389 @@
+/*
+ * Copyright 2024 The Android Open Source Project
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package com.google.android.iwlan.epdg;
+
+import android.content.Context;
+import android.support.annotation.NonNull;
+import android.support.annotation.Nullable;
+import android.util.AtomicFile;
+import android.util.Log;
+
+import com.android.internal.annotations.VisibleForTesting;
+
+import java.io.ByteArrayInputStream;
+import java.io.ByteArrayOutputStream;
+import java.io.DataInputStream;
+import java.io.DataOutputStream;
+import java.io.File;
+import java.io.FileNotFoundException;
+import java.io.FileOutputStream;
+import java.io.IOException;
+import java.io.PrintWriter;
+import java.net.InetAddress;
+import java.net.UnknownHostException;
+import java.util.ArrayList;
+import java.util.LinkedHashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.Objects;
+import java.util.concurrent.Executor;
+import java.util.concurrent.LinkedBlockingQueue;
+import java.util.concurrent.ThreadPoolExecutor;
+import java.util.concurrent.TimeUnit;
+
+/**
+ * Keeps the last validated ePDG candidate list of a slot on disk, so that the first tunnel
+ * bringup after boot or a process restart can start before ePDG selection completes.
+ *
+ * <p>Entries are keyed by carrier ID, PLMN, country and whether the list was selected for an
+ * emergency session. Each entry also remembers the candidate that last completed a child SA, which
+ * is returned first. The file is versioned; a file written in another version is discarded.
+ *
+ * <p>The lists are dropped when the ePDG configuration of the carrier changes. They are kept
+ * across the carrier config broadcast sent on every boot, when the configuration is unchanged.
+ */
+final class EpdgCandidateStore {
+    private static final String TAG = "EpdgCandidateStore";
+
+    private static final String FILE_NAME_PREFIX = "epdg_candidates_slot";
+    @VisibleForTesting static final int VERSION = 1;
+
+    private static final int MAX_ENTRIES = 8;
+    private static final int MAX_ADDRESSES_PER_ENTRY = 32;
+    // A list is only used to get the first bringup started, while a fresh selection runs, so it
+    // may be fairly old. Wall clock time is used, as entries must outlive a reboot.
+    @VisibleForTesting static final long MAX_AGE_MS = TimeUnit.DAYS.toMillis(7);
+
+    static final class Key {
+        final int mCarrierId;
+        @NonNull final String mPlmn;
+        @NonNull final String mCountry;
+        final boolean mIsEmergency;
+
+        Key(int carrierId, @NonNull String plmn, @NonNull String country, boolean isEmergency) {
+            mCarrierId = carrierId;
+            mPlmn = plmn;
+            mCountry = country;
+            mIsEmergency = isEmergency;
+        }
+
+        @Override
+        public boolean equals(Object o) {
+            if (this == o) {
+                return true;
+            }
+            if (!(o instanceof Key)) {
+                return false;
+            }
+            Key that = (Key) o;
+            return mCarrierId == that.mCarrierId
+                    && mIsEmergency == that.mIsEmergency
+                    && mPlmn.equals(that.mPlmn)
+                    && mCountry.equals(that.mCountry);
+        }
+
+        @Override
+        public int hashCode() {
+            return Objects.hash(mCarrierId, mPlmn, mCountry, mIsEmergency);
+        }
+
+        @Override
+        public String toString() {
+            return "carrierId: "
+                    + mCarrierId
+                    + " plmn: "
+                    + mPlmn
+                    + " country: "
+                    + mCountry
+                    + (mIsEmergency ? " (SOS)" : "");
+        }
+    }
+
+    private static final class Entry {
+        final List<InetAddress> mAddresses;
+        @Nullable InetAddress mConnectedAddress;
+        final long mSavedTime;
+
+        Entry(List<InetAddress> addresses, @Nullable InetAddress connectedAddress, long savedTime) {
+            mAddresses = addresses;
+            mConnectedAddress = connectedAddress;
+            mSavedTime = savedTime;
+        }
+    }
+
+    @Nullable private final AtomicFile mFile;
+    private final Executor mWriteExecutor;
+
+    // Access ordered, so that the least recently used entry is evicted first.
+    private final LinkedHashMap<Key, Entry> mEntries =
+            new LinkedHashMap<>(16, 0.75f, true) {
+                @Override
+                protected boolean removeEldestEntry(Map.Entry<Key, Entry> eldest) {
+                    return size() > MAX_ENTRIES;
+                }
+            };
+
+    // Identifies the carrier configuration the stored lists were selected with.
+    private int mConfigHash;
+    private boolean mIsLoaded;
+    private long mHits;
+    private long mMisses;
+
+    /** Creates the store of a slot, or a store that is never persisted if storage is missing. */
+    static EpdgCandidateStore create(@NonNull Context context, int slotId) {
+        // IWLAN is direct boot aware, the list must be readable before the user unlocks.
+        Context storageContext = context.createDeviceProtectedStorageContext();
+        File filesDir = (storageContext != null) ? storageContext.getFilesDir() : null;
+        File file = (filesDir != null) ? new File(filesDir, FILE_NAME_PREFIX + slotId) : null;
+        ThreadPoolExecutor writeExecutor =
+                new ThreadPoolExecutor(
+                        1, 1, 60L, TimeUnit.SECONDS, new LinkedBlockingQueue<Runnable>());
+        writeExecutor.allowCoreThreadTimeOut(true);
+        return new EpdgCandidateStore(file, writeExecutor);
+    }
+
+    @VisibleForTesting
+    EpdgCandidateStore(@Nullable File file, @NonNull Executor writeExecutor) {
+        mFile = (file != null) ? new AtomicFile(file) : null;
+        mWriteExecutor = writeExecutor;
+    }
+
+    /**
+     * Returns the candidates stored for this key, with the candidate that last completed a child
+     * SA first.
+     *
+     * @return the stored candidates, or {@code null} if there is no usable entry.
+     */
+    @Nullable
+    synchronized List<InetAddress> get(@NonNull Key key) {
+        loadIfNeeded();
+        Entry entry = mEntries.get(key);
+        if (entry == null) {
+            mMisses++;
+            return null;
+        }
+        if (isExpired(entry)) {
+            mEntries.remove(key);
+            mMisses++;
+            return null;
+        }
+        mHits++;
+        List<InetAddress> addresses = new ArrayList<>(entry.mAddresses);
+        if (entry.mConnectedAddress != null && addresses.remove(entry.mConnectedAddress)) {
+            addresses.add(0, entry.mConnectedAddress);
+        }
+        return addresses;
+    }
+
+    /** Stores the candidates of a completed selection. */
+    synchronized void put(@NonNull Key key, @NonNull List<InetAddress> addresses) {
+        if (addresses.isEmpty()) {
+            return;
+        }
+        loadIfNeeded();
+        List<InetAddress> storedAddresses =
+                List.copyOf(
+                        addresses.subList(0, Math.min(addresses.size(), MAX_ADDRESSES_PER_ENTRY)));
+        Entry entry = mEntries.get(key);
+        if (entry != null && entry.mAddresses.equals(storedAddresses)) {
+            return;
+        }
+        InetAddress connectedAddress = (entry != null) ? entry.mConnectedAddress : null;
+        if (connectedAddress != null && !storedAddresses.contains(connectedAddress)) {
+            connectedAddress = null;
+        }
+        mEntries.put(
+                key, new Entry(storedAddresses, connectedAddress, System.currentTimeMillis()));
+        scheduleWrite();
+    }
+
+    /** Records that a child SA was established with this ePDG. */
+    synchronized void onConnected(@NonNull InetAddress address) {
+        loadIfNeeded();
+        boolean isChanged = false;
+        for (Entry entry : mEntries.values()) {
+            if (entry.mAddresses.contains(address) && !address.equals(entry.mConnectedAddress)) {
+                entry.mConnectedAddress = address;
+                isChanged = true;
+            }
+        }
+        if (isChanged) {
+            scheduleWrite();
+        }
+    }
+
+    /**
+     * Drops every stored list if the carrier configuration changed since they were stored.
+     *
+     * @param configHash a hash of the carrier configuration used by ePDG selection.
+     */
+    synchronized void onCarrierConfigChanged(int configHash) {
+        loadIfNeeded();
+        if (configHash == mConfigHash) {
+            return;
+        }
+        Log.d(TAG, "ePDG configuration changed, dropping " + mEntries.size() + " stored lists");
+        mEntries.clear();
+        mConfigHash = configHash;
+        scheduleWrite();
+    }
+
+    /** Returns true if the lists are written to disk. */
+    boolean isPersisted() {
+        return mFile != null;
+    }
+
+    private boolean isExpired(Entry entry) {
+        long age = System.currentTimeMillis() - entry.mSavedTime;
+        return age < 0 || age >= MAX_AGE_MS;
+    }
+
+    private void loadIfNeeded() {
+        if (mIsLoaded) {
+            return;
+        }
+        mIsLoaded = true;
+        if (mFile == null) {
+            return;
+        }
+        try {
+            readEntries(new DataInputStream(new ByteArrayInputStream(mFile.readFully())));
+        } catch (FileNotFoundException e) {
+            // Nothing stored yet.
+        } catch (IOException e) {
+            Log.w(TAG, "Discarding unreadable candidate store: " + e);
+            mEntries.clear();
+        }
+    }
+
+    private void readEntries(DataInputStream in) throws IOException {
+        int version = in.readInt();
+        if (version != VERSION) {
+            Log.d(TAG, "Discarding candidate store of version " + version);
+            return;
+        }
+        mConfigHash = in.readInt();
+        int numEntries = in.readInt();
+        for (int i = 0; i < numEntries; i++) {
+            Key key = new Key(in.readInt(), in.readUTF(), in.readUTF(), in.readBoolean());
+            long savedTime = in.readLong();
+            int connectedIndex = in.readInt();
+            int numAddresses = in.readInt();
+            if (numAddresses < 0 || numAddresses > MAX_ADDRESSES_PER_ENTRY) {
+                throw new IOException("Invalid number of addresses: " + numAddresses);
+            }
+            List<InetAddress> addresses = new ArrayList<>();
+            for (int j = 0; j < numAddresses; j++) {
+                byte[] address = new byte[in.readUnsignedByte()];
+                in.readFully(address);
+                try {
+                    addresses.add(InetAddress.getByAddress(address));
+                } catch (UnknownHostException e) {
+                    throw new IOException("Invalid address length: " + address.length);
+                }
+            }
+            InetAddress connectedAddress =
+                    (connectedIndex >= 0 && connectedIndex < addresses.size())
+                            ? addresses.get(connectedIndex)
+                            : null;
+            Entry entry = new Entry(addresses, connectedAddress, savedTime);
+            if (!addresses.isEmpty() && !isExpired(entry)) {
+                mEntries.put(key, entry);
+            }
+        }
+    }
+
+    private void scheduleWrite() {
+        if (mFile == null) {
+            return;
+        }
+        final byte[] data;
+        try {
+            data = writeEntries();
+        } catch (IOException e) {
+            Log.e(TAG, "Failed to serialize candidate store: " + e);
+            return;
+        }
+        // Writes run in order on a single thread, so the last snapshot always wins.
+        mWriteExecutor.execute(() -> writeFile(data));
+    }
+
+    private byte[] writeEntries() throws IOException {
+        ByteArrayOutputStream bytes = new ByteArrayOutputStream();
+        DataOutputStream out = new DataOutputStream(bytes);
+        out.writeInt(VERSION);
+        out.writeInt(mConfigHash);
+        out.writeInt(mEntries.size());
+        for (Map.Entry<Key, Entry> mapEntry : mEntries.entrySet()) {
+            Key key = mapEntry.getKey();
+            Entry entry = mapEntry.getValue();
+            out.writeInt(key.mCarrierId);
+            out.writeUTF(key.mPlmn);
+            out.writeUTF(key.mCountry);
+            out.writeBoolean(key.mIsEmergency);
+            out.writeLong(entry.mSavedTime);
+            out.writeInt(
+                    (entry.mConnectedAddress != null)
+                            ? entry.mAddresses.indexOf(entry.mConnectedAddress)
+                            : -1);
+            out.writeInt(entry.mAddresses.size());
+            for (InetAddress address : entry.mAddresses) {
+                byte[] rawAddress = address.getAddress();
+                out.writeByte(rawAddress.length);
+                out.write(rawAddress);
+            }
+        }
+        out.flush();
+        return bytes.toByteArray();
+    }
+
+    private void writeFile(byte[] data) {
+        FileOutputStream out = null;
+        try {
+            out = mFile.startWrite();
+            out.write(data);
+            mFile.finishWrite(out);
+        } catch (IOException e) {
+            Log.e(TAG, "Failed to write candidate store: " + e);
+            if (out != null) {
+                mFile.failWrite(out);
+            }
+        }
+    }
+
+    synchronized void dump(PrintWriter pw) {
+        pw.println(
+                "Candidate store: entries: "
+                        + mEntries.size()
+                        + " hits: "
+                        + mHits
+                        + " misses: "
+                        + mMisses
+                        + " config hash: "
+                        + mConfigHash
+                        + (mFile == null ? " (not persisted)" : ""));
+        for (Map.Entry<Key, Entry> entry : mEntries.entrySet()) {
+            pw.println(
+                    "  "
+                            + entry.getKey()
+                            + " -> "
+                            + entry.getValue().mAddresses
+                            + " connected: "
+                            + entry.getValue().mConnectedAddress);
+        }
+    }
+}
@@ -0,0 +1,148 @@
+/*
+ * Copyright 2024 The Android Open Source Project
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package com.google.android.iwlan.epdg;
+
+import android.annotation.CallbackExecutor;
+import android.net.DnsResolver;
+import android.net.Network;
+import android.os.CancellationSignal;
+import android.support.annotation.NonNull;
+import android.support.annotation.Nullable;
+
+import com.android.internal.annotations.VisibleForTesting;
+
+import java.net.InetAddress;
+import java.util.List;
+import java.util.concurrent.Executor;
+
+/**
+ * The DNS queries made by ePDG selection.
+ *
+ * <p>Every ePDG DNS query goes through the backend returned by {@link #getInstance}, which is
+ * {@link DnsResolver} by default. Other backends record the answers of the platform resolver
+ * ({@link EpdgDnsRecordingBackend}) or serve recorded answers without a network ({@link
+ * EpdgDnsReplayBackend}), so that selection can be measured and tested against real answers.
+ *
+ * <p>The methods have the semantics of the {@link DnsResolver} methods of the same name.
+ */
+interface EpdgDnsBackend {
+    /** Queries the A and AAAA records of the domain. */
+    void query(
+            @Nullable Network network,
+            @NonNull String domain,
+            int flags,
+            @NonNull @CallbackExecutor Executor executor,
+            @Nullable CancellationSignal cancellationSignal,
+            @NonNull DnsResolver.Callback<List<InetAddress>> callback);
+
+    /** Queries the A or AAAA records of the domain. */
+    void query(
+            @Nullable Network network,
+            @NonNull String domain,
+            int nsType,
+            int flags,
+            @NonNull @CallbackExecutor Executor executor,
+            @Nullable CancellationSignal cancellationSignal,
+            @NonNull DnsResolver.Callback<List<InetAddress>> callback);
+
+    /** Queries records of any type, and returns the answer undecoded. */
+    void rawQuery(
+            @Nullable Network network,
+            @NonNull String domain,
+            int nsClass,
+            int nsType,
+            int flags,
+            @NonNull @CallbackExecutor Executor executor,
+            @Nullable CancellationSignal cancellationSignal,
+            @NonNull DnsResolver.Callback<? super byte[]> callback);
+
+    /** Returns the backend ePDG selection queries. */
+    static EpdgDnsBackend getInstance() {
+        EpdgDnsBackend backend = Holder.sInstance;
+        return (backend != null) ? backend : Platform.INSTANCE;
+    }
+
+    /** Makes ePDG selection query the backend, or the platform resolver if it is null. */
+    @VisibleForTesting
+    static void setInstance(@Nullable EpdgDnsBackend backend) {
+        Holder.sInstance = backend;
+    }
+
+    /** Holds the backend set with {@link #setInstance}. */
+    final class Holder {
+        @Nullable private static volatile EpdgDnsBackend sInstance;
+
+        private Holder() {}
+    }
+
+    /**
+     * Queries {@link DnsResolver}. The resolver is looked up on every query rather than kept, as
+     * tests replace it.
+     */
+    final class Platform implements EpdgDnsBackend {
+        static final Platform INSTANCE = new Platform();
+
+        private Platform() {}
+
+        @Override
+        public void query(
+                @Nullable Network network,
+                @NonNull String domain,
+                int flags,
+                @NonNull Executor executor,
+                @Nullable CancellationSignal cancellationSignal,
+                @NonNull DnsResolver.Callback<List<InetAddress>> callback) {
+            DnsResolver.getInstance()
+                    .query(network, domain, flags, executor, cancellationSignal, callback);
+        }
+
+        @Override
+        public void query(
+                @Nullable Network network,
+                @NonNull String domain,
+                int nsType,
+                int flags,
+                @NonNull Executor executor,
+                @Nullable CancellationSignal cancellationSignal,
+                @NonNull DnsResolver.Callback<List<InetAddress>> callback) {
+            DnsResolver.getInstance()
+                    .query(network, domain, nsType, flags, executor, cancellationSignal, callback);
+        }
+
+        @Override
+        public void rawQuery(
+                @Nullable Network network,
+                @NonNull String domain,
+                int nsClass,
+                int nsType,
+                int flags,
+                @NonNull Executor executor,
+                @Nullable CancellationSignal cancellationSignal,
+                @NonNull DnsResolver.Callback<? super byte[]> callback) {
+            DnsResolver.getInstance()
+                    .rawQuery(
+                            network,
+                            domain,
+                            nsClass,
+                            nsType,
+                            flags,
+                            executor,
+                            cancellationSignal,
+                            callback);
+        }
+    }
+}
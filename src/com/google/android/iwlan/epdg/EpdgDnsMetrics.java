@@ -0,0 +1,317 @@
+/*
+ * Copyright 2024 The Android Open Source Project
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package com.google.android.iwlan.epdg;
+
+import android.net.DnsResolver;
+import android.support.annotation.IntDef;
+import android.telephony.CarrierConfigManager;
+
+import com.android.internal.annotations.VisibleForTesting;
+
+import java.io.PrintWriter;
+import java.util.ArrayDeque;
+import java.util.Map;
+import java.util.TreeMap;
+
+/**
+ * Latency and outcome statistics of the DNS queries made by {@link EpdgSelector} for one slot.
+ *
+ * <p>Every query is recorded with the ePDG address resolution method that issued it, the class of
+ * the domain name, the query type, the response code and the number of answers. Latencies are
+ * kept in log-bucketed histograms per resolution method, from which percentiles are reported in
+ * the dump. The most recent queries are also kept individually.
+ */
+final class EpdgDnsMetrics {
+    // Bucket 0 counts latencies below 1ms, bucket i those in [2^(i-1), 2^i) ms, and the last
+    // bucket everything from 2^(NUM_BUCKETS-2) ms (about 32s) on.
+    @VisibleForTesting static final int NUM_BUCKETS = 17;
+
+    private static final int MAX_RECENT_QUERIES = 32;
+
+    static final int FQDN_CLASS_CUSTOM = 0;
+    static final int FQDN_CLASS_OPERATOR = 1;
+    static final int FQDN_CLASS_TRACKING_AREA = 2;
+    static final int FQDN_CLASS_VISITED_COUNTRY = 3;
+
+    @IntDef({
+        FQDN_CLASS_CUSTOM,
+        FQDN_CLASS_OPERATOR,
+        FQDN_CLASS_TRACKING_AREA,
+        FQDN_CLASS_VISITED_COUNTRY
+    })
+    @interface FqdnClass {}
+
+    static final int OUTCOME_ANSWER = 0;
+    static final int OUTCOME_EMPTY = 1;
+    static final int OUTCOME_NXDOMAIN = 2;
+    static final int OUTCOME_ERROR = 3;
+    private static final int NUM_OUTCOMES = 4;
+
+    @IntDef({OUTCOME_ANSWER, OUTCOME_EMPTY, OUTCOME_NXDOMAIN, OUTCOME_ERROR})
+    @interface Outcome {}
+
+    private static final String OPERATOR_FQDN_SUFFIX = ".pub.3gppnetwork.org";
+    private static final String VISITED_COUNTRY_FQDN_SUFFIX =
+            ".visited-country.pub.3gppnetwork.org";
+
+    /** A histogram of latencies in log2-sized millisecond buckets. */
+    @VisibleForTesting
+    static final class Histogram {
+        private final long[] mCounts = new long[NUM_BUCKETS];
+        private long mTotal;
+
+        static int getBucket(long latencyMs) {
+            if (latencyMs < 1) {
+                return 0;
+            }
+            int bucket = 64 - Long.numberOfLeadingZeros(latencyMs);
+            return Math.min(bucket, NUM_BUCKETS - 1);
+        }
+
+        void add(long latencyMs) {
+            mCounts[getBucket(latencyMs)]++;
+            mTotal++;
+        }
+
+        long getTotal() {
+            return mTotal;
+        }
+
+        /**
+         * Returns the upper bound in ms of the bucket that holds the given percentile, or -1 if
+         * nothing was recorded. Latencies in the last bucket are reported as its lower bound.
+         */
+        long getPercentileMs(int percentile) {
+            if (mTotal == 0) {
+                return -1;
+            }
+            long rank = (mTotal * percentile + 99) / 100;
+            long count = 0;
+            for (int bucket = 0; bucket < NUM_BUCKETS - 1; bucket++) {
+                count += mCounts[bucket];
+                if (count >= rank) {
+                    return 1L << bucket;
+                }
+            }
+            return 1L << (NUM_BUCKETS - 2);
+        }
+    }
+
+    private static final class MethodStats {
+        final Histogram mLatency = new Histogram();
+        final long[] mOutcomes = new long[NUM_OUTCOMES];
+    }
+
+    // Keyed by the CarrierConfigManager.Iwlan.EPDG_ADDRESS_* resolution method.
+    private final Map<Integer, MethodStats> mMethodStats = new TreeMap<>();
+    private final ArrayDeque<String> mRecentQueries = new ArrayDeque<>();
+
+    @FqdnClass
+    static int getFqdnClass(String domainName) {
+        if (domainName.endsWith(VISITED_COUNTRY_FQDN_SUFFIX)) {
+            return FQDN_CLASS_VISITED_COUNTRY;
+        }
+        if (!domainName.endsWith(OPERATOR_FQDN_SUFFIX)) {
+            return FQDN_CLASS_CUSTOM;
+        }
+        if (domainName.startsWith("tac-lb") || domainName.startsWith("lac")) {
+            return FQDN_CLASS_TRACKING_AREA;
+        }
+        return FQDN_CLASS_OPERATOR;
+    }
+
+    /**
+     * Records a DNS query that returned an answer.
+     *
+     * @param resolutionMethod The CarrierConfigManager.Iwlan.EPDG_ADDRESS_* method that issued the
+     *     query.
+     * @param domainName The domain name that was queried.
+     * @param queryType The DNS query type, or {@link EpdgAddressCache#QUERY_TYPE_UNSPECIFIED} if
+     *     both A and AAAA records were queried.
+     * @param rcode The DNS response code.
+     * @param numAnswers The number of records in the answer.
+     * @param latencyMs The time from sending the query to receiving the answer.
+     */
+    synchronized void onAnswer(
+            int resolutionMethod,
+            String domainName,
+            int queryType,
+            int rcode,
+            int numAnswers,
+            long latencyMs) {
+        int outcome;
+        if (numAnswers > 0) {
+            outcome = OUTCOME_ANSWER;
+        } else if (rcode == EpdgAddressCache.RCODE_NXDOMAIN) {
+            outcome = OUTCOME_NXDOMAIN;
+        } else {
+            outcome = OUTCOME_EMPTY;
+        }
+        record(resolutionMethod, domainName, queryType, outcome, rcode, numAnswers, latencyMs);
+    }
+
+    /**
+     * Records a DNS query that failed with a {@link DnsResolver.DnsException}.
+     *
+     * @param errorCode The {@link DnsResolver.DnsException#code} of the failure.
+     */
+    synchronized void onError(
+            int resolutionMethod, String domainName, int queryType, int errorCode, long latencyMs) {
+        record(resolutionMethod, domainName, queryType, OUTCOME_ERROR, errorCode, 0, latencyMs);
+    }
+
+    private void record(
+            int resolutionMethod,
+            String domainName,
+            int queryType,
+            @Outcome int outcome,
+            int code,
+            int numAnswers,
+            long latencyMs) {
+        MethodStats stats = mMethodStats.computeIfAbsent(resolutionMethod, k -> new MethodStats());
+        stats.mLatency.add(latencyMs);
+        stats.mOutcomes[outcome]++;
+
+        if (mRecentQueries.size() == MAX_RECENT_QUERIES) {
+            mRecentQueries.removeFirst();
+        }
+        mRecentQueries.addLast(
+                resolutionMethodToString(resolutionMethod)
+                        + " "
+                        + fqdnClassToString(getFqdnClass(domainName))
+                        + " "
+                        + domainName
+                        + " type: "
+                        + queryTypeToString(queryType)
+                        + " "
+                        + outcomeToString(outcome)
+                        + " code: "
+                        + code
+                        + " answers: "
+                        + numAnswers
+                        + " latency: "
+                        + latencyMs
+                        + "ms");
+    }
+
+    /**
+     * Returns the given latency percentile of a resolution method, rounded up to its histogram
+     * bucket, or -1 if the method made no queries.
+     */
+    @VisibleForTesting
+    synchronized long getLatencyPercentileMs(int resolutionMethod, int percentile) {
+        MethodStats stats = mMethodStats.get(resolutionMethod);
+        return (stats == null) ? -1 : stats.mLatency.getPercentileMs(percentile);
+    }
+
+    @VisibleForTesting
+    synchronized long getNumQueries(int resolutionMethod, @Outcome int outcome) {
+        MethodStats stats = mMethodStats.get(resolutionMethod);
+        return (stats == null) ? 0 : stats.mOutcomes[outcome];
+    }
+
+    static String resolutionMethodToString(int resolutionMethod) {
+        switch (resolutionMethod) {
+            case CarrierConfigManager.Iwlan.EPDG_ADDRESS_STATIC:
+                return "STATIC";
+            case CarrierConfigManager.Iwlan.EPDG_ADDRESS_PLMN:
+                return "PLMN";
+            case CarrierConfigManager.Iwlan.EPDG_ADDRESS_PCO:
+                return "PCO";
+            case CarrierConfigManager.Iwlan.EPDG_ADDRESS_CELLULAR_LOC:
+                return "CELLULAR_LOC";
+            case CarrierConfigManager.Iwlan.EPDG_ADDRESS_VISITED_COUNTRY:
+                return "VISITED_COUNTRY";
+            default:
+                return "UNKNOWN(" + resolutionMethod + ")";
+        }
+    }
+
+    private static String fqdnClassToString(@FqdnClass int fqdnClass) {
+        switch (fqdnClass) {
+            case FQDN_CLASS_OPERATOR:
+                return "OPERATOR";
+            case FQDN_CLASS_TRACKING_AREA:
+                return "TRACKING_AREA";
+            case FQDN_CLASS_VISITED_COUNTRY:
+                return "VISITED_COUNTRY";
+            default:
+                return "CUSTOM";
+        }
+    }
+
+    private static String queryTypeToString(int queryType) {
+        switch (queryType) {
+            case DnsResolver.TYPE_A:
+                return "A";
+            case DnsResolver.TYPE_AAAA:
+                return "AAAA";
+            case NaptrDnsResolver.QUERY_TYPE_NAPTR:
+                return "NAPTR";
+            case SrvDnsResolver.QUERY_TYPE_SRV:
+                return "SRV";
+            case EpdgAddressCache.QUERY_TYPE_UNSPECIFIED:
+                return "A/AAAA";
+            default:
+                return Integer.toString(queryType);
+        }
+    }
+
+    private static String outcomeToString(@Outcome int outcome) {
+        switch (outcome) {
+            case OUTCOME_ANSWER:
+                return "ANSWER";
+            case OUTCOME_EMPTY:
+                return "EMPTY";
+            case OUTCOME_NXDOMAIN:
+                return "NXDOMAIN";
+            default:
+                return "ERROR";
+        }
+    }
+
+    synchronized void dump(PrintWriter pw) {
+        pw.println("DNS queries by resolution method:");
+        for (Map.Entry<Integer, MethodStats> entry : mMethodStats.entrySet()) {
+            MethodStats stats = entry.getValue();
+            pw.println(
+                    "  "
+                            + resolutionMethodToString(entry.getKey())
+                            + ": queries: "
+                            + stats.mLatency.getTotal()
+                            + " answered: "
+                            + stats.mOutcomes[OUTCOME_ANSWER]
+                            + " empty: "
+                            + stats.mOutcomes[OUTCOME_EMPTY]
+                            + " nxdomain: "
+                            + stats.mOutcomes[OUTCOME_NXDOMAIN]
+                            + " error: "
+                            + stats.mOutcomes[OUTCOME_ERROR]
+                            + " p50: "
+                            + stats.mLatency.getPercentileMs(50)
+                            + "ms p90: "
+                            + stats.mLatency.getPercentileMs(90)
+                            + "ms p99: "
+                            + stats.mLatency.getPercentileMs(99)
+                            + "ms");
+        }
+        pw.println("Recent DNS queries:");
+        for (String query : mRecentQueries) {
+            pw.println("  " + query);
+        }
+    }
+}
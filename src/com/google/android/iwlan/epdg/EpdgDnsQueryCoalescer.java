@@ -0,0 +1,327 @@
+/*
+ * Copyright 2024 The Android Open Source Project
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package com.google.android.iwlan.epdg;
+
+import android.net.DnsResolver;
+import android.net.Network;
+import android.os.CancellationSignal;
+import android.support.annotation.NonNull;
+import android.support.annotation.Nullable;
+
+import com.android.internal.annotations.VisibleForTesting;
+
+import java.io.PrintWriter;
+import java.net.InetAddress;
+import java.util.ArrayList;
+import java.util.HashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.Objects;
+import java.util.concurrent.Executor;
+import java.util.function.UnaryOperator;
+
+/**
+ * Shares DNS queries between the selectors of all slots.
+ *
+ * <p>On dual-SIM devices the slots often resolve the same domain names over the same {@link
+ * Network}, for instance when both SIM cards belong to the same carrier, or share an EHPLMN or the
+ * visited country. A query made while an identical one is in flight waits for the answer of that
+ * query instead of being sent again. Each caller gets its own copy of the answer on its own
+ * executor, and cancelling a query only stops the shared query once every caller waiting for it
+ * has cancelled.
+ *
+ * <p>Queries are sent to the backend returned by {@link EpdgDnsBackend#getInstance}.
+ */
+final class EpdgDnsQueryCoalescer implements EpdgDnsBackend {
+    private static EpdgDnsQueryCoalescer sInstance;
+
+    private static final class Key {
+        @Nullable final Network mNetwork;
+        @NonNull final String mDomain;
+        final int mNsClass;
+        final int mNsType;
+        final int mFlags;
+        final boolean mIsRawQuery;
+
+        Key(
+                @Nullable Network network,
+                @NonNull String domain,
+                int nsClass,
+                int nsType,
+                int flags,
+                boolean isRawQuery) {
+            mNetwork = network;
+            mDomain = domain;
+            mNsClass = nsClass;
+            mNsType = nsType;
+            mFlags = flags;
+            mIsRawQuery = isRawQuery;
+        }
+
+        @Override
+        public boolean equals(Object o) {
+            if (this == o) {
+                return true;
+            }
+            if (!(o instanceof Key)) {
+                return false;
+            }
+            Key that = (Key) o;
+            return mNsClass == that.mNsClass
+                    && mNsType == that.mNsType
+                    && mFlags == that.mFlags
+                    && mIsRawQuery == that.mIsRawQuery
+                    && mDomain.equals(that.mDomain)
+                    && Objects.equals(mNetwork, that.mNetwork);
+        }
+
+        @Override
+        public int hashCode() {
+            return Objects.hash(mNetwork, mDomain, mNsClass, mNsType, mFlags, mIsRawQuery);
+        }
+    }
+
+    /** Sends a query to the backend. */
+    private interface QueryStarter<T> {
+        void start(
+                @NonNull EpdgDnsBackend backend,
+                @NonNull CancellationSignal cancellationSignal,
+                @NonNull DnsResolver.Callback<T> callback);
+    }
+
+    private static final class Waiter<T> {
+        @NonNull final Executor mExecutor;
+        @Nullable final CancellationSignal mCancellationSignal;
+        @NonNull final DnsResolver.Callback<? super T> mCallback;
+
+        Waiter(
+                @NonNull Executor executor,
+                @Nullable CancellationSignal cancellationSignal,
+                @NonNull DnsResolver.Callback<? super T> callback) {
+            mExecutor = executor;
+            mCancellationSignal = cancellationSignal;
+            mCallback = callback;
+        }
+
+        boolean isCancelled() {
+            return mCancellationSignal != null && mCancellationSignal.isCanceled();
+        }
+    }
+
+    /** A query sent to the backend, and the callers waiting for its answer. */
+    private final class SharedQuery<T> implements DnsResolver.Callback<T> {
+        @NonNull final Key mKey;
+        @NonNull final UnaryOperator<T> mCopier;
+        final CancellationSignal mCancellationSignal = new CancellationSignal();
+        // Guarded by mLock.
+        final List<Waiter<T>> mWaiters = new ArrayList<>();
+
+        SharedQuery(@NonNull Key key, @NonNull UnaryOperator<T> copier) {
+            mKey = key;
+            mCopier = copier;
+        }
+
+        @Override
+        public void onAnswer(@NonNull T answer, int rcode) {
+            for (Waiter<T> waiter : finish()) {
+                final T copy = mCopier.apply(answer);
+                waiter.mExecutor.execute(
+                        () -> {
+                            if (!waiter.isCancelled()) {
+                                waiter.mCallback.onAnswer(copy, rcode);
+                            }
+                        });
+            }
+        }
+
+        @Override
+        public void onError(@NonNull DnsResolver.DnsException error) {
+            for (Waiter<T> waiter : finish()) {
+                waiter.mExecutor.execute(
+                        () -> {
+                            if (!waiter.isCancelled()) {
+                                waiter.mCallback.onError(error);
+                            }
+                        });
+            }
+        }
+
+        private List<Waiter<T>> finish() {
+            synchronized (mLock) {
+                mQueries.remove(mKey, this);
+                List<Waiter<T>> waiters = new ArrayList<>(mWaiters);
+                mWaiters.clear();
+                return waiters;
+            }
+        }
+    }
+
+    private final Object mLock = new Object();
+    private final Map<Key, SharedQuery<?>> mQueries = new HashMap<>();
+    private long mNumSentQueries;
+    private long mNumSharedQueries;
+
+    static synchronized EpdgDnsQueryCoalescer getInstance() {
+        if (sInstance == null) {
+            sInstance = new EpdgDnsQueryCoalescer();
+        }
+        return sInstance;
+    }
+
+    @VisibleForTesting
+    static synchronized void resetInstance() {
+        sInstance = null;
+    }
+
+    @VisibleForTesting
+    EpdgDnsQueryCoalescer() {}
+
+    @Override
+    public void query(
+            @Nullable Network network,
+            @NonNull String domain,
+            int flags,
+            @NonNull Executor executor,
+            @Nullable CancellationSignal cancellationSignal,
+            @NonNull DnsResolver.Callback<List<InetAddress>> callback) {
+        submit(
+                new Key(
+                        network,
+                        domain,
+                        0 /* nsClass */,
+                        EpdgAddressCache.QUERY_TYPE_UNSPECIFIED,
+                        flags,
+                        false /* isRawQuery */),
+                ArrayList::new,
+                (backend, signal, cb) ->
+                        backend.query(network, domain, flags, Runnable::run, signal, cb),
+                executor,
+                cancellationSignal,
+                callback);
+    }
+
+    @Override
+    public void query(
+            @Nullable Network network,
+            @NonNull String domain,
+            int nsType,
+            int flags,
+            @NonNull Executor executor,
+            @Nullable CancellationSignal cancellationSignal,
+            @NonNull DnsResolver.Callback<List<InetAddress>> callback) {
+        submit(
+                new Key(network, domain, 0 /* nsClass */, nsType, flags, false /* isRawQuery */),
+                ArrayList::new,
+                (backend, signal, cb) ->
+                        backend.query(network, domain, nsType, flags, Runnable::run, signal, cb),
+                executor,
+                cancellationSignal,
+                callback);
+    }
+
+    @Override
+    public void rawQuery(
+            @Nullable Network network,
+            @NonNull String domain,
+            int nsClass,
+            int nsType,
+            int flags,
+            @NonNull Executor executor,
+            @Nullable CancellationSignal cancellationSignal,
+            @NonNull DnsResolver.Callback<? super byte[]> callback) {
+        submit(
+                new Key(network, domain, nsClass, nsType, flags, true /* isRawQuery */),
+                byte[]::clone,
+                (backend, signal, cb) ->
+                        backend.rawQuery(
+                                network,
+                                domain,
+                                nsClass,
+                                nsType,
+                                flags,
+                                Runnable::run,
+                                signal,
+                                cb),
+                executor,
+                cancellationSignal,
+                callback);
+    }
+
+    @SuppressWarnings("unchecked")
+    private <T> void submit(
+            @NonNull Key key,
+            @NonNull UnaryOperator<T> copier,
+            @NonNull QueryStarter<T> starter,
+            @NonNull Executor executor,
+            @Nullable CancellationSignal cancellationSignal,
+            @NonNull DnsResolver.Callback<? super T> callback) {
+        if (cancellationSignal != null && cancellationSignal.isCanceled()) {
+            return;
+        }
+        final Waiter<T> waiter = new Waiter<>(executor, cancellationSignal, callback);
+        final SharedQuery<T> query;
+        final boolean isNewQuery;
+        synchronized (mLock) {
+            SharedQuery<T> inFlight = (SharedQuery<T>) mQueries.get(key);
+            isNewQuery = (inFlight == null);
+            if (isNewQuery) {
+                query = new SharedQuery<>(key, copier);
+                mQueries.put(key, query);
+                mNumSentQueries++;
+            } else {
+                query = inFlight;
+                mNumSharedQueries++;
+            }
+            query.mWaiters.add(waiter);
+        }
+        if (cancellationSignal != null) {
+            cancellationSignal.setOnCancelListener(() -> onWaiterCancelled(query, waiter));
+        }
+        if (isNewQuery) {
+            starter.start(EpdgDnsBackend.getInstance(), query.mCancellationSignal, query);
+        }
+    }
+
+    private <T> void onWaiterCancelled(SharedQuery<T> query, Waiter<T> waiter) {
+        synchronized (mLock) {
+            if (!query.mWaiters.remove(waiter) || !query.mWaiters.isEmpty()) {
+                return;
+            }
+            mQueries.remove(query.mKey, query);
+        }
+        query.mCancellationSignal.cancel();
+    }
+
+    @VisibleForTesting
+    long getNumSharedQueries() {
+        synchronized (mLock) {
+            return mNumSharedQueries;
+        }
+    }
+
+    void dump(PrintWriter pw) {
+        synchronized (mLock) {
+            pw.println(
+                    "Shared DNS queries: in flight: "
+                            + mQueries.size()
+                            + " sent: "
+                            + mNumSentQueries
+                            + " shared: "
+                            + mNumSharedQueries);
+        }
+    }
+}
@@ -0,0 +1,457 @@
+/*
+ * Copyright 2024 The Android Open Source Project
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package com.google.android.iwlan.epdg;
+
+import android.net.DnsResolver;
+import android.net.Network;
+import android.os.CancellationSignal;
+import android.support.annotation.NonNull;
+import android.support.annotation.Nullable;
+import android.util.AtomicFile;
+import android.util.Log;
+
+import com.android.internal.annotations.VisibleForTesting;
+
+import com.google.android.iwlan.IwlanHelper;
+
+import java.io.ByteArrayOutputStream;
+import java.io.DataInputStream;
+import java.io.DataOutputStream;
+import java.io.File;
+import java.io.FileOutputStream;
+import java.io.IOException;
+import java.io.InputStream;
+import java.io.PrintWriter;
+import java.net.InetAddress;
+import java.net.UnknownHostException;
+import java.util.ArrayList;
+import java.util.List;
+import java.util.concurrent.Executor;
+import java.util.concurrent.ScheduledExecutorService;
+import java.util.concurrent.ScheduledFuture;
+import java.util.concurrent.ScheduledThreadPoolExecutor;
+import java.util.concurrent.TimeUnit;
+
+/**
+ * A {@link EpdgDnsBackend} that records the answers of another backend, and how long they took, to
+ * a file that {@link EpdgDnsReplayBackend} can serve.
+ *
+ * <p>Queries are recorded without their network, as network handles do not outlive the process.
+ * Cancelled queries are not recorded, and at most {@link #MAX_ADDRESSES_PER_RECORD} addresses of
+ * an answer are kept. Recording stops by itself after {@link #MAX_RECORDS} queries or {@link
+ * #MAX_DURATION_MS}, whichever comes first.
+ *
+ * <p>The file is written on a background thread, at most once every {@link #WRITE_DELAY_MS} and
+ * when the recording is stopped, so that answers are not held up by the serialization.
+ */
+final class EpdgDnsRecordingBackend implements EpdgDnsBackend {
+    private static final String TAG = "EpdgDnsRecordingBackend";
+
+    @VisibleForTesting static final int VERSION = 1;
+    @VisibleForTesting static final int MAX_RECORDS = 1024;
+    private static final int MAX_RAW_ANSWER_LENGTH = 65535;
+    @VisibleForTesting static final int MAX_ADDRESSES_PER_RECORD = 64;
+    @VisibleForTesting static final long WRITE_DELAY_MS = TimeUnit.SECONDS.toMillis(10);
+    private static final long MAX_DURATION_MS = TimeUnit.MINUTES.toMillis(30);
+
+    /** One recorded query and its outcome. */
+    static final class Record {
+        @NonNull final String mDomain;
+        // The requested record type, or EpdgAddressCache.QUERY_TYPE_UNSPECIFIED for A and AAAA.
+        final int mNsType;
+        final boolean mIsRawQuery;
+        final long mLatencyMs;
+        final boolean mIsError;
+        // The rcode of an answer, or the DnsException code of an error.
+        final int mCode;
+        @NonNull final List<InetAddress> mAddresses;
+        @Nullable final byte[] mRawAnswer;
+
+        Record(
+                @NonNull String domain,
+                int nsType,
+                boolean isRawQuery,
+                long latencyMs,
+                boolean isError,
+                int code,
+                @NonNull List<InetAddress> addresses,
+                @Nullable byte[] rawAnswer) {
+            mDomain = domain;
+            mNsType = nsType;
+            mIsRawQuery = isRawQuery;
+            mLatencyMs = latencyMs;
+            mIsError = isError;
+            mCode = code;
+            mAddresses = addresses;
+            mRawAnswer = rawAnswer;
+        }
+
+        static Record forAnswer(
+                @NonNull String domain,
+                int nsType,
+                long latencyMs,
+                @NonNull List<InetAddress> answer,
+                int rcode) {
+            // Longer answers would be rejected when the file is read back.
+            List<InetAddress> addresses =
+                    answer.size() > MAX_ADDRESSES_PER_RECORD
+                            ? answer.subList(0, MAX_ADDRESSES_PER_RECORD)
+                            : answer;
+            return new Record(
+                    domain, nsType, false, latencyMs, false, rcode, List.copyOf(addresses), null);
+        }
+
+        static Record forRawAnswer(
+                @NonNull String domain, int nsType, long latencyMs, byte[] answer, int rcode) {
+            return new Record(
+                    domain, nsType, true, latencyMs, false, rcode, List.of(), answer.clone());
+        }
+
+        static Record forError(
+                @NonNull String domain,
+                int nsType,
+                boolean isRawQuery,
+                long latencyMs,
+                int errorCode) {
+            return new Record(
+                    domain, nsType, isRawQuery, latencyMs, true, errorCode, List.of(), null);
+        }
+
+        long getLatencyMs() {
+            return mLatencyMs;
+        }
+
+        @Override
+        public String toString() {
+            return mDomain
+                    + " type: "
+                    + mNsType
+                    + (mIsRawQuery ? " raw" : "")
+                    + (mIsError ? " error: " : " rcode: ")
+                    + mCode
+                    + " in "
+                    + mLatencyMs
+                    + "ms";
+        }
+    }
+
+    private final EpdgDnsBackend mDelegate;
+    @Nullable private final AtomicFile mFile;
+    private final ScheduledExecutorService mWriteExecutor;
+    @Nullable private final Runnable mOnStopped;
+    private final ScheduledFuture<?> mTimeLimit;
+
+    private final List<Record> mRecords = new ArrayList<>();
+    @Nullable private ScheduledFuture<?> mPendingWrite;
+    private boolean mIsStopped;
+
+    /**
+     * Creates a backend that records the queries of the platform resolver to the file.
+     *
+     * @param onStopped Run once the recording has stopped, including when it stops by itself.
+     */
+    static EpdgDnsRecordingBackend create(@NonNull File file, @NonNull Runnable onStopped) {
+        ScheduledThreadPoolExecutor writeExecutor = new ScheduledThreadPoolExecutor(1);
+        writeExecutor.setKeepAliveTime(60L, TimeUnit.SECONDS);
+        writeExecutor.allowCoreThreadTimeOut(true);
+        return new EpdgDnsRecordingBackend(
+                EpdgDnsBackend.Platform.INSTANCE, file, writeExecutor, onStopped);
+    }
+
+    @VisibleForTesting
+    EpdgDnsRecordingBackend(
+            @NonNull EpdgDnsBackend delegate,
+            @Nullable File file,
+            @NonNull ScheduledExecutorService writeExecutor,
+            @Nullable Runnable onStopped) {
+        mDelegate = delegate;
+        mFile = (file != null) ? new AtomicFile(file) : null;
+        mWriteExecutor = writeExecutor;
+        mOnStopped = onStopped;
+        mTimeLimit = writeExecutor.schedule(this::stop, MAX_DURATION_MS, TimeUnit.MILLISECONDS);
+    }
+
+    @Override
+    public void query(
+            @Nullable Network network,
+            @NonNull String domain,
+            int flags,
+            @NonNull Executor executor,
+            @Nullable CancellationSignal cancellationSignal,
+            @NonNull DnsResolver.Callback<List<InetAddress>> callback) {
+        mDelegate.query(
+                network,
+                domain,
+                flags,
+                executor,
+                cancellationSignal,
+                recordAddresses(domain, EpdgAddressCache.QUERY_TYPE_UNSPECIFIED, callback));
+    }
+
+    @Override
+    public void query(
+            @Nullable Network network,
+            @NonNull String domain,
+            int nsType,
+            int flags,
+            @NonNull Executor executor,
+            @Nullable CancellationSignal cancellationSignal,
+            @NonNull DnsResolver.Callback<List<InetAddress>> callback) {
+        mDelegate.query(
+                network,
+                domain,
+                nsType,
+                flags,
+                executor,
+                cancellationSignal,
+                recordAddresses(domain, nsType, callback));
+    }
+
+    @Override
+    public void rawQuery(
+            @Nullable Network network,
+            @NonNull String domain,
+            int nsClass,
+            int nsType,
+            int flags,
+            @NonNull Executor executor,
+            @Nullable CancellationSignal cancellationSignal,
+            @NonNull DnsResolver.Callback<? super byte[]> callback) {
+        final long startTime = IwlanHelper.elapsedRealtime();
+        mDelegate.rawQuery(
+                network,
+                domain,
+                nsClass,
+                nsType,
+                flags,
+                executor,
+                cancellationSignal,
+                new DnsResolver.Callback<byte[]>() {
+                    @Override
+                    public void onAnswer(@NonNull byte[] answer, int rcode) {
+                        long latencyMs = IwlanHelper.elapsedRealtime() - startTime;
+                        if (answer.length <= MAX_RAW_ANSWER_LENGTH) {
+                            add(Record.forRawAnswer(domain, nsType, latencyMs, answer, rcode));
+                        }
+                        callback.onAnswer(answer, rcode);
+                    }
+
+                    @Override
+                    public void onError(@NonNull DnsResolver.DnsException error) {
+                        long latencyMs = IwlanHelper.elapsedRealtime() - startTime;
+                        add(Record.forError(domain, nsType, true, latencyMs, error.code));
+                        callback.onError(error);
+                    }
+                });
+    }
+
+    private DnsResolver.Callback<List<InetAddress>> recordAddresses(
+            String domain, int nsType, DnsResolver.Callback<List<InetAddress>> callback) {
+        final long startTime = IwlanHelper.elapsedRealtime();
+        return new DnsResolver.Callback<List<InetAddress>>() {
+            @Override
+            public void onAnswer(@NonNull List<InetAddress> answer, int rcode) {
+                long latencyMs = IwlanHelper.elapsedRealtime() - startTime;
+                add(Record.forAnswer(domain, nsType, latencyMs, answer, rcode));
+                callback.onAnswer(answer, rcode);
+            }
+
+            @Override
+            public void onError(@NonNull DnsResolver.DnsException error) {
+                long latencyMs = IwlanHelper.elapsedRealtime() - startTime;
+                add(Record.forError(domain, nsType, false, latencyMs, error.code));
+                callback.onError(error);
+            }
+        };
+    }
+
+    private void add(Record record) {
+        synchronized (this) {
+            // Records can still arrive while the recording is being stopped.
+            if (mIsStopped || mRecords.size() >= MAX_RECORDS) {
+                return;
+            }
+            mRecords.add(record);
+            // The records that arrive until the write runs are written with it.
+            if (mFile != null && mPendingWrite == null) {
+                mPendingWrite =
+                        mWriteExecutor.schedule(
+                                this::writeFile, WRITE_DELAY_MS, TimeUnit.MILLISECONDS);
+            }
+            if (mRecords.size() < MAX_RECORDS) {
+                return;
+            }
+        }
+        Log.d(TAG, "Recorded " + MAX_RECORDS + " queries, stopping");
+        stop();
+    }
+
+    /** Returns the queries recorded so far. */
+    synchronized List<Record> getRecords() {
+        return List.copyOf(mRecords);
+    }
+
+    synchronized boolean isStopped() {
+        return mIsStopped;
+    }
+
+    /**
+     * Stops recording, and writes the queries recorded since the last write. Queries are still
+     * passed on to the delegate, without being recorded.
+     */
+    void stop() {
+        synchronized (this) {
+            if (mIsStopped) {
+                return;
+            }
+            mIsStopped = true;
+            mTimeLimit.cancel(false /* mayInterruptIfRunning */);
+            if (mPendingWrite != null) {
+                mPendingWrite.cancel(false /* mayInterruptIfRunning */);
+                mWriteExecutor.execute(this::writeFile);
+            }
+        }
+        mWriteExecutor.shutdown();
+        if (mOnStopped != null) {
+            mOnStopped.run();
+        }
+    }
+
+    private void writeFile() {
+        final List<Record> records;
+        synchronized (this) {
+            mPendingWrite = null;
+            records = new ArrayList<>(mRecords);
+        }
+        final byte[] data;
+        try {
+            ByteArrayOutputStream bytes = new ByteArrayOutputStream();
+            writeRecords(records, new DataOutputStream(bytes));
+            data = bytes.toByteArray();
+        } catch (IOException e) {
+            Log.e(TAG, "Failed to serialize DNS recording: " + e);
+            return;
+        }
+
+        FileOutputStream out = null;
+        try {
+            out = mFile.startWrite();
+            out.write(data);
+            mFile.finishWrite(out);
+        } catch (IOException e) {
+            Log.e(TAG, "Failed to write DNS recording: " + e);
+            if (out != null) {
+                mFile.failWrite(out);
+            }
+        }
+    }
+
+    @VisibleForTesting
+    static void writeRecords(List<Record> records, DataOutputStream out) throws IOException {
+        out.writeInt(VERSION);
+        out.writeInt(records.size());
+        for (Record record : records) {
+            out.writeUTF(record.mDomain);
+            out.writeInt(record.mNsType);
+            out.writeBoolean(record.mIsRawQuery);
+            out.writeLong(record.mLatencyMs);
+            out.writeBoolean(record.mIsError);
+            out.writeInt(record.mCode);
+            out.writeInt(record.mAddresses.size());
+            for (InetAddress address : record.mAddresses) {
+                byte[] rawAddress = address.getAddress();
+                out.writeByte(rawAddress.length);
+                out.write(rawAddress);
+            }
+            if (record.mRawAnswer != null) {
+                out.writeInt(record.mRawAnswer.length);
+                out.write(record.mRawAnswer);
+            } else {
+                out.writeInt(-1);
+            }
+        }
+        out.flush();
+    }
+
+    /**
+     * Reads the queries recorded to a file.
+     *
+     * @throws IOException if the file cannot be read, or was written in another version.
+     */
+    static List<Record> readRecords(@NonNull InputStream stream) throws IOException {
+        DataInputStream in = new DataInputStream(stream);
+        int version = in.readInt();
+        if (version != VERSION) {
+            throw new IOException("Unsupported DNS recording version: " + version);
+        }
+        int numRecords = in.readInt();
+        if (numRecords < 0 || numRecords > MAX_RECORDS) {
+            throw new IOException("Invalid number of records: " + numRecords);
+        }
+        List<Record> records = new ArrayList<>();
+        for (int i = 0; i < numRecords; i++) {
+            String domain = in.readUTF();
+            int nsType = in.readInt();
+            boolean isRawQuery = in.readBoolean();
+            long latencyMs = in.readLong();
+            boolean isError = in.readBoolean();
+            int code = in.readInt();
+            int numAddresses = in.readInt();
+            if (numAddresses < 0 || numAddresses > MAX_ADDRESSES_PER_RECORD) {
+                throw new IOException("Invalid number of addresses: " + numAddresses);
+            }
+            List<InetAddress> addresses = new ArrayList<>();
+            for (int j = 0; j < numAddresses; j++) {
+                byte[] address = new byte[in.readUnsignedByte()];
+                in.readFully(address);
+                try {
+                    addresses.add(InetAddress.getByAddress(address));
+                } catch (UnknownHostException e) {
+                    throw new IOException("Invalid address length: " + address.length);
+                }
+            }
+            int rawAnswerLength = in.readInt();
+            if (rawAnswerLength > MAX_RAW_ANSWER_LENGTH) {
+                throw new IOException("Invalid answer length: " + rawAnswerLength);
+            }
+            byte[] rawAnswer = null;
+            if (rawAnswerLength >= 0) {
+                rawAnswer = new byte[rawAnswerLength];
+                in.readFully(rawAnswer);
+            }
+            records.add(
+                    new Record(
+                            domain,
+                            nsType,
+                            isRawQuery,
+                            latencyMs,
+                            isError,
+                            code,
+                            List.copyOf(addresses),
+                            rawAnswer));
+        }
+        return records;
+    }
+
+    synchronized void dump(PrintWriter pw) {
+        pw.println(
+                "DNS recording: records: "
+                        + mRecords.size()
+                        + (mIsStopped ? " (stopped)" : "")
+                        + (mFile == null ? " (not persisted)" : " to " + mFile.getBaseFile()));
+    }
+}
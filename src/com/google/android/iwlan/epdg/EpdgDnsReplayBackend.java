@@ -0,0 +1,249 @@
+/*
+ * Copyright 2024 The Android Open Source Project
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package com.google.android.iwlan.epdg;
+
+import android.net.DnsResolver;
+import android.net.Network;
+import android.os.CancellationSignal;
+import android.support.annotation.NonNull;
+import android.support.annotation.Nullable;
+
+import com.android.internal.annotations.VisibleForTesting;
+
+import com.google.android.iwlan.epdg.EpdgDnsRecordingBackend.Record;
+
+import java.io.File;
+import java.io.FileInputStream;
+import java.io.IOException;
+import java.io.InputStream;
+import java.net.InetAddress;
+import java.util.ArrayList;
+import java.util.HashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.Objects;
+import java.util.Random;
+import java.util.concurrent.Executor;
+import java.util.concurrent.ScheduledExecutorService;
+import java.util.concurrent.ScheduledFuture;
+import java.util.concurrent.ScheduledThreadPoolExecutor;
+import java.util.concurrent.TimeUnit;
+
+/**
+ * A {@link EpdgDnsBackend} that serves the answers recorded by {@link EpdgDnsRecordingBackend},
+ * without a network.
+ *
+ * <p>Answers are delayed by their recorded latency, or by a synthetic one from a {@link
+ * LatencyModel}. A name queried more than once gets its recorded answers in turn, starting over
+ * after the last one. Names that were not recorded get an empty NXDOMAIN answer, or a {@link
+ * DnsResolver#ERROR_SYSTEM} error for raw queries. Cancelled queries are never answered, as with
+ * {@link DnsResolver}.
+ *
+ * <p>Replay still needs the {@code android.*} classes of the backend interface and of the selector,
+ * such as {@link Network} and {@link CancellationSignal}, so it runs in device tests rather than on
+ * the host JVM. It only spares those tests the network.
+ */
+final class EpdgDnsReplayBackend implements EpdgDnsBackend {
+    private static final int RCODE_NXDOMAIN = 3;
+
+    /** Decides how long the answer to a query takes. */
+    interface LatencyModel {
+        /** Returns the latency of this recorded answer, in milliseconds. */
+        long getLatencyMs(@NonNull Record record);
+    }
+
+    /** Answers take as long as when they were recorded. */
+    static final LatencyModel RECORDED_LATENCY = Record::getLatencyMs;
+
+    /** Every answer takes the same time. */
+    static LatencyModel fixedLatency(long latencyMs) {
+        return record -> latencyMs;
+    }
+
+    /** Answer latencies are spread uniformly between the two bounds. */
+    static LatencyModel uniformLatency(
+            long minLatencyMs, long maxLatencyMs, @NonNull Random random) {
+        return record ->
+                minLatencyMs + (long) (random.nextDouble() * (maxLatencyMs - minLatencyMs));
+    }
+
+    private static final class Key {
+        @NonNull final String mDomain;
+        final int mNsType;
+        final boolean mIsRawQuery;
+
+        Key(@NonNull String domain, int nsType, boolean isRawQuery) {
+            mDomain = domain;
+            mNsType = nsType;
+            mIsRawQuery = isRawQuery;
+        }
+
+        @Override
+        public boolean equals(Object o) {
+            if (this == o) {
+                return true;
+            }
+            if (!(o instanceof Key)) {
+                return false;
+            }
+            Key that = (Key) o;
+            return mNsType == that.mNsType
+                    && mIsRawQuery == that.mIsRawQuery
+                    && mDomain.equals(that.mDomain);
+        }
+
+        @Override
+        public int hashCode() {
+            return Objects.hash(mDomain, mNsType, mIsRawQuery);
+        }
+    }
+
+    private final Map<Key, List<Record>> mRecords = new HashMap<>();
+    private final Map<Key, Integer> mNextRecordIndexes = new HashMap<>();
+    private final LatencyModel mLatencyModel;
+    private final ScheduledExecutorService mTimer;
+
+    /** Creates a backend that replays the file written by {@link EpdgDnsRecordingBackend}. */
+    static EpdgDnsReplayBackend fromFile(@NonNull File file, @NonNull LatencyModel latencyModel)
+            throws IOException {
+        try (InputStream in = new FileInputStream(file)) {
+            return new EpdgDnsReplayBackend(
+                    EpdgDnsRecordingBackend.readRecords(in),
+                    latencyModel,
+                    new ScheduledThreadPoolExecutor(1));
+        }
+    }
+
+    @VisibleForTesting
+    EpdgDnsReplayBackend(
+            @NonNull List<Record> records,
+            @NonNull LatencyModel latencyModel,
+            @NonNull ScheduledExecutorService timer) {
+        for (Record record : records) {
+            mRecords.computeIfAbsent(
+                            new Key(record.mDomain, record.mNsType, record.mIsRawQuery),
+                            k -> new ArrayList<>())
+                    .add(record);
+        }
+        mLatencyModel = latencyModel;
+        mTimer = timer;
+    }
+
+    @Override
+    public void query(
+            @Nullable Network network,
+            @NonNull String domain,
+            int flags,
+            @NonNull Executor executor,
+            @Nullable CancellationSignal cancellationSignal,
+            @NonNull DnsResolver.Callback<List<InetAddress>> callback) {
+        query(
+                network,
+                domain,
+                EpdgAddressCache.QUERY_TYPE_UNSPECIFIED,
+                flags,
+                executor,
+                cancellationSignal,
+                callback);
+    }
+
+    @Override
+    public void query(
+            @Nullable Network network,
+            @NonNull String domain,
+            int nsType,
+            int flags,
+            @NonNull Executor executor,
+            @Nullable CancellationSignal cancellationSignal,
+            @NonNull DnsResolver.Callback<List<InetAddress>> callback) {
+        Record record = nextRecord(new Key(domain, nsType, false /* isRawQuery */));
+        long latencyMs = 0;
+        Runnable answer;
+        if (record == null) {
+            answer = () -> callback.onAnswer(List.of(), RCODE_NXDOMAIN);
+        } else if (record.mIsError) {
+            latencyMs = mLatencyModel.getLatencyMs(record);
+            answer = () -> callback.onError(new DnsResolver.DnsException(record.mCode, null));
+        } else {
+            latencyMs = mLatencyModel.getLatencyMs(record);
+            answer = () -> callback.onAnswer(record.mAddresses, record.mCode);
+        }
+        schedule(answer, latencyMs, executor, cancellationSignal);
+    }
+
+    @Override
+    public void rawQuery(
+            @Nullable Network network,
+            @NonNull String domain,
+            int nsClass,
+            int nsType,
+            int flags,
+            @NonNull Executor executor,
+            @Nullable CancellationSignal cancellationSignal,
+            @NonNull DnsResolver.Callback<? super byte[]> callback) {
+        Record record = nextRecord(new Key(domain, nsType, true /* isRawQuery */));
+        long latencyMs = 0;
+        Runnable answer;
+        if (record == null) {
+            answer =
+                    () ->
+                            callback.onError(
+                                    new DnsResolver.DnsException(
+                                            DnsResolver.ERROR_SYSTEM, null /* cause */));
+        } else if (record.mIsError || record.mRawAnswer == null) {
+            latencyMs = mLatencyModel.getLatencyMs(record);
+            answer = () -> callback.onError(new DnsResolver.DnsException(record.mCode, null));
+        } else {
+            latencyMs = mLatencyModel.getLatencyMs(record);
+            answer = () -> callback.onAnswer(record.mRawAnswer.clone(), record.mCode);
+        }
+        schedule(answer, latencyMs, executor, cancellationSignal);
+    }
+
+    @Nullable
+    private synchronized Record nextRecord(Key key) {
+        List<Record> records = mRecords.get(key);
+        if (records == null) {
+            return null;
+        }
+        int index = mNextRecordIndexes.getOrDefault(key, 0);
+        mNextRecordIndexes.put(key, (index + 1) % records.size());
+        return records.get(index);
+    }
+
+    private void schedule(
+            Runnable answer,
+            long latencyMs,
+            Executor executor,
+            @Nullable CancellationSignal cancellationSignal) {
+        if (cancellationSignal != null && cancellationSignal.isCanceled()) {
+            return;
+        }
+        ScheduledFuture<?> future =
+                mTimer.schedule(
+                        () -> {
+                            if (cancellationSignal == null || !cancellationSignal.isCanceled()) {
+                                executor.execute(answer);
+                            }
+                        },
+                        Math.max(0, latencyMs),
+                        TimeUnit.MILLISECONDS);
+        if (cancellationSignal != null) {
+            cancellationSignal.setOnCancelListener(() -> future.cancel(false));
+        }
+    }
+}
@@ -0,0 +1,465 @@
+/*
+ * Copyright 2024 The Android Open Source Project
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package com.google.android.iwlan.epdg;
+
+import android.support.annotation.IntDef;
+import android.support.annotation.NonNull;
+import android.support.annotation.Nullable;
+import android.util.Log;
+
+import com.android.internal.annotations.VisibleForTesting;
+
+import com.google.android.iwlan.IwlanHelper;
+
+import java.io.PrintWriter;
+import java.util.ArrayDeque;
+import java.util.HashMap;
+import java.util.Map;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.Executor;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Future;
+import java.util.concurrent.FutureTask;
+import java.util.concurrent.LinkedBlockingQueue;
+import java.util.concurrent.SynchronousQueue;
+import java.util.concurrent.ThreadPoolExecutor;
+import java.util.concurrent.TimeUnit;
+
+/**
+ * Schedules the ePDG selections of all slots on a shared, bounded set of threads.
+ *
+ * <p>Selections are queued per task class and per slot. Emergency selections are dispatched
+ * first, then selections for tunnel bring-up, then prefetches. Within a task class, slots with
+ * queued selections take turns. When every thread is busy selections wait in their queue, and are
+ * only rejected once {@link #MAX_QUEUED_TASKS} selections are already waiting.
+ *
+ * <p>Emergency selections have {@link #RESERVED_SOS_TASKS} threads of their own on top of the
+ * shared ones, are never rejected, and run their address resolution methods and get their DNS
+ * answers on separate threads, so that a burst of bringups or prefetches cannot delay an emergency
+ * call.
+ *
+ * <p>The scheduler also owns the executor on which DnsResolver answers are delivered and the
+ * executor that runs the address resolution methods of a selection, so that their thread count
+ * does not grow with the number of slots.
+ */
+final class EpdgDnsScheduler {
+    private static final String TAG = "EpdgDnsScheduler";
+
+    static final int TASK_CLASS_SOS = 0;
+    static final int TASK_CLASS_BRINGUP = 1;
+    static final int TASK_CLASS_PREFETCH = 2;
+    private static final int NUM_TASK_CLASSES = 3;
+
+    @IntDef({TASK_CLASS_SOS, TASK_CLASS_BRINGUP, TASK_CLASS_PREFETCH})
+    @interface TaskClass {}
+
+    // One each for prefetch and tunnel bringup, on each of two slots.
+    @VisibleForTesting static final int MAX_CONCURRENT_TASKS = 4;
+    // Threads only emergency selections may use, in addition to MAX_CONCURRENT_TASKS.
+    @VisibleForTesting static final int RESERVED_SOS_TASKS = 1;
+    // Selections are deduplicated per slot, so this is only reached under a burst of bringups.
+    @VisibleForTesting static final int MAX_QUEUED_TASKS = 64;
+    // Up to 4 concurrent methods for each of 2 concurrent selections.
+    @VisibleForTesting static final int MAX_RESOLUTION_METHOD_THREADS = 8;
+    // All 5 methods for each of 2 concurrent emergency selections, one per slot.
+    private static final int MAX_SOS_RESOLUTION_METHOD_THREADS = 10;
+
+    private static EpdgDnsScheduler sInstance;
+
+    private final Object mLock = new Object();
+    private final int mMaxConcurrentTasks;
+    private final int mNumReservedSosTasks;
+    private final Executor mTaskExecutor;
+
+    // DNS answers only complete futures, so a single thread delivers them for every slot. Answers
+    // to emergency selections have their own thread.
+    private final ThreadPoolExecutor mDnsCallbackExecutor;
+    private final ThreadPoolExecutor mSosDnsCallbackExecutor;
+
+    // Runs the address resolution methods of a selection concurrently. This is separate from
+    // mDnsCallbackExecutor, on which DNS answers are delivered to the blocked methods. When all
+    // threads are busy, the method runs on the selection thread instead. The methods of emergency
+    // selections have their own threads.
+    private final ThreadPoolExecutor mResolutionMethodExecutor;
+    private final ThreadPoolExecutor mSosResolutionMethodExecutor;
+
+    private final TaskQueue[] mTaskQueues = new TaskQueue[NUM_TASK_CLASSES];
+    private int mNumRunningTasks;
+    private int mNumQueuedTasks;
+    private int mMaxNumQueuedTasks;
+    private long mNumRejectedTasks;
+
+    private static final class Task {
+        final int mSlotId;
+        @TaskClass int mTaskClass;
+        final FutureTask<Void> mFuture;
+        final long mEnqueueTime;
+
+        Task(int slotId, @TaskClass int taskClass, FutureTask<Void> future, long enqueueTime) {
+            mSlotId = slotId;
+            mTaskClass = taskClass;
+            mFuture = future;
+            mEnqueueTime = enqueueTime;
+        }
+    }
+
+    /** The queued tasks of one task class, and the statistics of that class. */
+    private static final class TaskQueue {
+        // Slots with queued tasks, in the order they take turns.
+        final ArrayDeque<Integer> mSlotTurns = new ArrayDeque<>();
+        final Map<Integer, ArrayDeque<Task>> mTasksBySlot = new HashMap<>();
+        int mSize;
+
+        long mNumSubmitted;
+        long mNumStarted;
+        long mNumCompleted;
+        long mNumCancelled;
+        int mMaxSize;
+        long mTotalWaitMs;
+        long mMaxWaitMs;
+
+        void add(Task task) {
+            ArrayDeque<Task> slotTasks =
+                    mTasksBySlot.computeIfAbsent(task.mSlotId, k -> new ArrayDeque<>());
+            if (slotTasks.isEmpty()) {
+                mSlotTurns.add(task.mSlotId);
+            }
+            slotTasks.add(task);
+            mSize++;
+            mMaxSize = Math.max(mMaxSize, mSize);
+        }
+
+        @Nullable
+        Task poll() {
+            Integer slotId = mSlotTurns.poll();
+            if (slotId == null) {
+                return null;
+            }
+            ArrayDeque<Task> slotTasks = mTasksBySlot.get(slotId);
+            Task task = slotTasks.poll();
+            if (!slotTasks.isEmpty()) {
+                mSlotTurns.add(slotId);
+            }
+            mSize--;
+            return task;
+        }
+
+        boolean remove(Task task) {
+            ArrayDeque<Task> slotTasks = mTasksBySlot.get(task.mSlotId);
+            if (slotTasks == null || !slotTasks.remove(task)) {
+                return false;
+            }
+            if (slotTasks.isEmpty()) {
+                mSlotTurns.remove(task.mSlotId);
+            }
+            mSize--;
+            return true;
+        }
+
+        @Nullable
+        Task find(Future<?> future) {
+            for (ArrayDeque<Task> slotTasks : mTasksBySlot.values()) {
+                for (Task task : slotTasks) {
+                    if (task.mFuture == future) {
+                        return task;
+                    }
+                }
+            }
+            return null;
+        }
+    }
+
+    static synchronized EpdgDnsScheduler getInstance() {
+        if (sInstance == null) {
+            sInstance = new EpdgDnsScheduler();
+        }
+        return sInstance;
+    }
+
+    @VisibleForTesting
+    static synchronized void resetInstance() {
+        sInstance = null;
+    }
+
+    private EpdgDnsScheduler() {
+        this(
+                MAX_CONCURRENT_TASKS,
+                RESERVED_SOS_TASKS,
+                createTaskExecutor(MAX_CONCURRENT_TASKS + RESERVED_SOS_TASKS));
+    }
+
+    @VisibleForTesting
+    EpdgDnsScheduler(int maxConcurrentTasks, @NonNull Executor taskExecutor) {
+        this(maxConcurrentTasks, 0 /* numReservedSosTasks */, taskExecutor);
+    }
+
+    @VisibleForTesting
+    EpdgDnsScheduler(
+            int maxConcurrentTasks, int numReservedSosTasks, @NonNull Executor taskExecutor) {
+        mMaxConcurrentTasks = maxConcurrentTasks;
+        mNumReservedSosTasks = numReservedSosTasks;
+        mTaskExecutor = taskExecutor;
+        for (int i = 0; i < NUM_TASK_CLASSES; i++) {
+            mTaskQueues[i] = new TaskQueue();
+        }
+        mDnsCallbackExecutor = createDnsCallbackExecutor();
+        mSosDnsCallbackExecutor = createDnsCallbackExecutor();
+        mResolutionMethodExecutor =
+                createResolutionMethodExecutor(MAX_RESOLUTION_METHOD_THREADS);
+        mSosResolutionMethodExecutor =
+                createResolutionMethodExecutor(MAX_SOS_RESOLUTION_METHOD_THREADS);
+    }
+
+    private static ThreadPoolExecutor createResolutionMethodExecutor(int maxThreads) {
+        return new ThreadPoolExecutor(
+                0,
+                maxThreads,
+                60L,
+                TimeUnit.SECONDS,
+                new SynchronousQueue<Runnable>(),
+                new ThreadPoolExecutor.CallerRunsPolicy());
+    }
+
+    private static ThreadPoolExecutor createDnsCallbackExecutor() {
+        ThreadPoolExecutor executor =
+                new ThreadPoolExecutor(
+                        1, 1, 60L, TimeUnit.SECONDS, new LinkedBlockingQueue<Runnable>());
+        executor.allowCoreThreadTimeOut(true);
+        return executor;
+    }
+
+    private static Executor createTaskExecutor(int maxConcurrentTasks) {
+        // Never holds more than maxConcurrentTasks runnables, as tasks wait in mTaskQueues.
+        ThreadPoolExecutor executor =
+                new ThreadPoolExecutor(
+                        maxConcurrentTasks,
+                        maxConcurrentTasks,
+                        60L,
+                        TimeUnit.SECONDS,
+                        new LinkedBlockingQueue<Runnable>());
+        executor.allowCoreThreadTimeOut(true);
+        return executor;
+    }
+
+    /** Executor on which DnsResolver answers to the queries of a selection are delivered. */
+    Executor getDnsCallbackExecutor(boolean isEmergency) {
+        return isEmergency ? mSosDnsCallbackExecutor : mDnsCallbackExecutor;
+    }
+
+    /** Executor on which the address resolution methods of a selection run. */
+    ExecutorService getResolutionMethodExecutor(boolean isEmergency) {
+        return isEmergency ? mSosResolutionMethodExecutor : mResolutionMethodExecutor;
+    }
+
+    /**
+     * Queues a selection, and starts it once a thread is free and no selection of a higher task
+     * class, or of another slot whose turn it is, is waiting.
+     *
+     * @return a future that completes when the selection has run, or {@code null} if too many
+     *     selections are already waiting. Emergency selections are always accepted.
+     */
+    @Nullable
+    Future<?> submit(int slotId, @TaskClass int taskClass, @NonNull Runnable runnable) {
+        FutureTask<Void> future = new FutureTask<>(runnable, null);
+        synchronized (mLock) {
+            if (taskClass != TASK_CLASS_SOS && mNumQueuedTasks >= MAX_QUEUED_TASKS) {
+                mNumRejectedTasks++;
+                Log.e(TAG, "Rejecting selection for slot " + slotId + ", queue is full");
+                return null;
+            }
+            TaskQueue queue = mTaskQueues[taskClass];
+            queue.add(new Task(slotId, taskClass, future, IwlanHelper.elapsedRealtime()));
+            queue.mNumSubmitted++;
+            mNumQueuedTasks++;
+            mMaxNumQueuedTasks = Math.max(mMaxNumQueuedTasks, mNumQueuedTasks);
+            dispatchLocked();
+        }
+        return future;
+    }
+
+    /**
+     * Moves a queued selection to a higher task class, e.g. when a tunnel bringup joins a
+     * prefetch that has not started yet. Does nothing if the selection already started.
+     */
+    void promote(@NonNull Future<?> future, @TaskClass int taskClass) {
+        synchronized (mLock) {
+            for (int i = taskClass + 1; i < NUM_TASK_CLASSES; i++) {
+                Task task = mTaskQueues[i].find(future);
+                if (task != null && mTaskQueues[i].remove(task)) {
+                    mTaskQueues[i].mNumSubmitted--;
+                    task.mTaskClass = taskClass;
+                    mTaskQueues[taskClass].add(task);
+                    mTaskQueues[taskClass].mNumSubmitted++;
+                    return;
+                }
+            }
+        }
+    }
+
+    /**
+     * Cancels a task. A queued task is dropped right away, which frees its place in the queue. A
+     * running task is only marked as cancelled, and is expected to return early by itself.
+     */
+    void cancel(@NonNull Future<?> future) {
+        synchronized (mLock) {
+            for (TaskQueue queue : mTaskQueues) {
+                Task task = queue.find(future);
+                if (task != null && queue.remove(task)) {
+                    mNumQueuedTasks--;
+                    queue.mNumCancelled++;
+                    break;
+                }
+            }
+        }
+        future.cancel(false /* mayInterruptIfRunning */);
+    }
+
+    private void dispatchLocked() {
+        while (true) {
+            Task task;
+            if (mNumRunningTasks < mMaxConcurrentTasks) {
+                task = pollLocked();
+            } else if (mNumRunningTasks < mMaxConcurrentTasks + mNumReservedSosTasks) {
+                // Only emergency selections may take the reserved threads.
+                task = mTaskQueues[TASK_CLASS_SOS].poll();
+            } else {
+                return;
+            }
+            if (task == null) {
+                return;
+            }
+            mNumQueuedTasks--;
+            mNumRunningTasks++;
+            TaskQueue queue = mTaskQueues[task.mTaskClass];
+            long waitMs = IwlanHelper.elapsedRealtime() - task.mEnqueueTime;
+            queue.mNumStarted++;
+            queue.mTotalWaitMs += waitMs;
+            queue.mMaxWaitMs = Math.max(queue.mMaxWaitMs, waitMs);
+            mTaskExecutor.execute(() -> runTask(task));
+        }
+    }
+
+    @Nullable
+    private Task pollLocked() {
+        for (TaskQueue queue : mTaskQueues) {
+            Task task = queue.poll();
+            if (task != null) {
+                return task;
+            }
+        }
+        return null;
+    }
+
+    private void runTask(Task task) {
+        try {
+            task.mFuture.run();
+            if (!task.mFuture.isCancelled()) {
+                task.mFuture.get();
+            }
+        } catch (ExecutionException e) {
+            Log.e(TAG, "Selection for slot " + task.mSlotId + " failed: ", e.getCause());
+        } catch (InterruptedException e) {
+            Thread.currentThread().interrupt();
+        } finally {
+            synchronized (mLock) {
+                mNumRunningTasks--;
+                mTaskQueues[task.mTaskClass].mNumCompleted++;
+                dispatchLocked();
+            }
+        }
+    }
+
+    @VisibleForTesting
+    int getNumQueuedTasks() {
+        synchronized (mLock) {
+            return mNumQueuedTasks;
+        }
+    }
+
+    @VisibleForTesting
+    int getNumRunningTasks() {
+        synchronized (mLock) {
+            return mNumRunningTasks;
+        }
+    }
+
+    private static String taskClassToString(@TaskClass int taskClass) {
+        switch (taskClass) {
+            case TASK_CLASS_SOS:
+                return "SOS";
+            case TASK_CLASS_BRINGUP:
+                return "BRINGUP";
+            case TASK_CLASS_PREFETCH:
+                return "PREFETCH";
+            default:
+                return "UNKNOWN(" + taskClass + ")";
+        }
+    }
+
+    void dump(PrintWriter pw) {
+        pw.println("---- EpdgDnsScheduler ----");
+        synchronized (mLock) {
+            pw.println(
+                    "Running selections: "
+                            + mNumRunningTasks
+                            + "/"
+                            + mMaxConcurrentTasks
+                            + " (+"
+                            + mNumReservedSosTasks
+                            + " SOS) queued: "
+                            + mNumQueuedTasks
+                            + " max queued: "
+                            + mMaxNumQueuedTasks
+                            + " rejected: "
+                            + mNumRejectedTasks);
+            for (int i = 0; i < NUM_TASK_CLASSES; i++) {
+                TaskQueue queue = mTaskQueues[i];
+                pw.println(
+                        "  "
+                                + taskClassToString(i)
+                                + ": queued: "
+                                + queue.mSize
+                                + " max queued: "
+                                + queue.mMaxSize
+                                + " submitted: "
+                                + queue.mNumSubmitted
+                                + " completed: "
+                                + queue.mNumCompleted
+                                + " cancelled: "
+                                + queue.mNumCancelled
+                                + " avg wait: "
+                                + (queue.mNumStarted == 0
+                                        ? 0
+                                        : queue.mTotalWaitMs / queue.mNumStarted)
+                                + "ms max wait: "
+                                + queue.mMaxWaitMs
+                                + "ms");
+            }
+        }
+        pw.println(
+                "Pending DNS answers: "
+                        + mDnsCallbackExecutor.getQueue().size()
+                        + " SOS: "
+                        + mSosDnsCallbackExecutor.getQueue().size());
+        pw.println(
+                "Running resolution methods: "
+                        + mResolutionMethodExecutor.getActiveCount()
+                        + " SOS: "
+                        + mSosResolutionMethodExecutor.getActiveCount());
+        pw.println("--------------------------");
+    }
+}
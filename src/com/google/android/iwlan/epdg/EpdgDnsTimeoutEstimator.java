@@ -0,0 +1,165 @@
+/*
+ * Copyright 2024 The Android Open Source Project
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package com.google.android.iwlan.epdg;
+
+import android.net.Network;
+import android.support.annotation.Nullable;
+
+import java.io.PrintWriter;
+import java.util.LinkedHashMap;
+import java.util.Map;
+import java.util.Objects;
+
+/**
+ * Estimates how long {@link EpdgSelector} should wait for DNS answers of a query type on a {@link
+ * Network}.
+ *
+ * <p>The estimate follows the TCP retransmission timeout of RFC 6298: a smoothed latency and its
+ * variation are learned from the answers received for each query type on each network, and the
+ * timeout is the smoothed latency plus four times the variation. Query types are learned apart, as
+ * NAPTR and SRV answers usually take longer than A and AAAA answers, which are often cached by the
+ * resolver. Every timeout that expires with queries still outstanding doubles the next timeout,
+ * until an answer arrives again. Until a query type has been answered on a network, the caller's
+ * default timeout is used.
+ */
+final class EpdgDnsTimeoutEstimator {
+    // Networks and query types that have not been used recently are forgotten.
+    private static final int MAX_ESTIMATES = 32;
+
+    // RFC 6298 section 2: alpha = 1/8, beta = 1/4 and K = 4.
+    private static final int SRTT_SHIFT = 3;
+    private static final int RTTVAR_SHIFT = 2;
+    private static final int RTTVAR_MULTIPLIER = 4;
+
+    private static final int MAX_BACKOFF_SHIFT = 5;
+
+    private static final class Key {
+        @Nullable final Network mNetwork;
+        final int mQueryType;
+
+        Key(@Nullable Network network, int queryType) {
+            mNetwork = network;
+            mQueryType = queryType;
+        }
+
+        @Override
+        public boolean equals(Object o) {
+            if (this == o) {
+                return true;
+            }
+            if (!(o instanceof Key)) {
+                return false;
+            }
+            Key that = (Key) o;
+            return mQueryType == that.mQueryType && Objects.equals(mNetwork, that.mNetwork);
+        }
+
+        @Override
+        public int hashCode() {
+            return Objects.hash(mNetwork, mQueryType);
+        }
+
+        @Override
+        public String toString() {
+            return "network: " + mNetwork + " type: " + mQueryType;
+        }
+    }
+
+    private static final class Estimate {
+        long mSmoothedLatencyMs;
+        long mLatencyVariationMs;
+        int mBackoffShift;
+    }
+
+    private final Map<Key, Estimate> mEstimates =
+            new LinkedHashMap<>(MAX_ESTIMATES, 0.75f, true /* accessOrder */) {
+                @Override
+                protected boolean removeEldestEntry(Map.Entry<Key, Estimate> eldest) {
+                    return size() > MAX_ESTIMATES;
+                }
+            };
+
+    /** Updates the estimate with the latency of a DNS query of this type that was answered. */
+    synchronized void onAnswer(@Nullable Network network, int queryType, long latencyMs) {
+        latencyMs = Math.max(latencyMs, 0);
+        Key key = new Key(network, queryType);
+        Estimate estimate = mEstimates.get(key);
+        if (estimate == null) {
+            estimate = new Estimate();
+            estimate.mSmoothedLatencyMs = latencyMs;
+            estimate.mLatencyVariationMs = latencyMs / 2;
+            mEstimates.put(key, estimate);
+            return;
+        }
+        long deviation = Math.abs(estimate.mSmoothedLatencyMs - latencyMs);
+        estimate.mLatencyVariationMs +=
+                (deviation - estimate.mLatencyVariationMs) >> RTTVAR_SHIFT;
+        estimate.mSmoothedLatencyMs += (latencyMs - estimate.mSmoothedLatencyMs) >> SRTT_SHIFT;
+        estimate.mBackoffShift = 0;
+    }
+
+    /** Backs off the timeout of the query type after a wait for its DNS answers timed out. */
+    synchronized void onTimeout(@Nullable Network network, int queryType) {
+        Estimate estimate = mEstimates.get(new Key(network, queryType));
+        if (estimate != null) {
+            estimate.mBackoffShift = Math.min(estimate.mBackoffShift + 1, MAX_BACKOFF_SHIFT);
+        }
+    }
+
+    /**
+     * Returns how long to wait for DNS answers of the query type on the network.
+     *
+     * @param defaultTimeoutMs The timeout used while nothing is known about the query type.
+     * @param floorMs The shortest timeout that may be returned.
+     * @param ceilingMs The longest timeout that may be returned.
+     */
+    synchronized long getTimeoutMs(
+            @Nullable Network network,
+            int queryType,
+            long defaultTimeoutMs,
+            long floorMs,
+            long ceilingMs) {
+        Estimate estimate = mEstimates.get(new Key(network, queryType));
+        long timeoutMs;
+        if (estimate == null) {
+            timeoutMs = defaultTimeoutMs;
+        } else {
+            timeoutMs =
+                    (estimate.mSmoothedLatencyMs
+                                    + RTTVAR_MULTIPLIER * estimate.mLatencyVariationMs)
+                            << estimate.mBackoffShift;
+        }
+        return Math.max(floorMs, Math.min(timeoutMs, ceilingMs));
+    }
+
+    synchronized void dump(PrintWriter pw) {
+        pw.println("DNS timeout estimates:");
+        for (Map.Entry<Key, Estimate> entry : mEstimates.entrySet()) {
+            Estimate estimate = entry.getValue();
+            pw.println(
+                    "  "
+                            + entry.getKey()
+                            + " smoothed latency: "
+                            + estimate.mSmoothedLatencyMs
+                            + "ms variation: "
+                            + estimate.mLatencyVariationMs
+                            + "ms backoff: "
+                            + (1 << estimate.mBackoffShift)
+                            + "x");
+        }
+    }
+}
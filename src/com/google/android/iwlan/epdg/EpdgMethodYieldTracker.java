@@ -0,0 +1,160 @@
+/*
+ * Copyright 2024 The Android Open Source Project
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package com.google.android.iwlan.epdg;
+
+import android.telephony.CarrierConfigManager;
+
+import com.android.internal.annotations.VisibleForTesting;
+
+import java.io.PrintWriter;
+import java.util.LinkedHashMap;
+import java.util.Map;
+import java.util.Objects;
+
+/**
+ * Tracks how often, and how fast, each address resolution method of a carrier finds ePDG
+ * addresses, so that {@link EpdgSelector} can stop waiting for methods that keep finding nothing.
+ *
+ * <p>A method is deferred once its last {@link #MIN_EMPTY_RUNS_TO_DEFER} runs for the carrier all
+ * found nothing. Deferred methods still run with every selection, so a method is no longer
+ * deferred as soon as it finds an address again. The PLMN method, which congestion handling relies
+ * on, and the PCO method, which does not query DNS, are never deferred. Neither is the visited
+ * country method, as what it finds depends on the country rather than on the carrier.
+ */
+final class EpdgMethodYieldTracker {
+    @VisibleForTesting static final int MIN_EMPTY_RUNS_TO_DEFER = 3;
+
+    // Carriers are tracked for the SIM cards recently used in the slot.
+    private static final int MAX_RECORDS = 32;
+
+    private static final int LATENCY_SHIFT = 3;
+
+    private static final class Key {
+        final int mCarrierId;
+        final int mMethod;
+        final boolean mIsEmergency;
+
+        Key(int carrierId, int method, boolean isEmergency) {
+            mCarrierId = carrierId;
+            mMethod = method;
+            mIsEmergency = isEmergency;
+        }
+
+        @Override
+        public boolean equals(Object o) {
+            if (this == o) {
+                return true;
+            }
+            if (!(o instanceof Key)) {
+                return false;
+            }
+            Key that = (Key) o;
+            return mCarrierId == that.mCarrierId
+                    && mMethod == that.mMethod
+                    && mIsEmergency == that.mIsEmergency;
+        }
+
+        @Override
+        public int hashCode() {
+            return Objects.hash(mCarrierId, mMethod, mIsEmergency);
+        }
+
+        @Override
+        public String toString() {
+            return "carrier: "
+                    + mCarrierId
+                    + " method: "
+                    + mMethod
+                    + (mIsEmergency ? " SOS" : "");
+        }
+    }
+
+    private static final class Record {
+        long mNumRuns;
+        long mNumYields;
+        int mNumConsecutiveEmptyRuns;
+        long mSmoothedLatencyMs;
+    }
+
+    private final Map<Key, Record> mRecords =
+            new LinkedHashMap<>(MAX_RECORDS, 0.75f, true /* accessOrder */) {
+                @Override
+                protected boolean removeEldestEntry(Map.Entry<Key, Record> eldest) {
+                    return size() > MAX_RECORDS;
+                }
+            };
+
+    private long mNumSkippedMethods;
+
+    /** Records a completed run of a method. A method that failed found nothing. */
+    synchronized void onMethodCompleted(
+            int carrierId, int method, boolean isEmergency, boolean hasYield, long latencyMs) {
+        Key key = new Key(carrierId, method, isEmergency);
+        Record record = mRecords.get(key);
+        latencyMs = Math.max(latencyMs, 0);
+        if (record == null) {
+            record = new Record();
+            record.mSmoothedLatencyMs = latencyMs;
+            mRecords.put(key, record);
+        } else {
+            record.mSmoothedLatencyMs +=
+                    (latencyMs - record.mSmoothedLatencyMs) >> LATENCY_SHIFT;
+        }
+        record.mNumRuns++;
+        if (hasYield) {
+            record.mNumYields++;
+            record.mNumConsecutiveEmptyRuns = 0;
+        } else {
+            record.mNumConsecutiveEmptyRuns++;
+        }
+    }
+
+    /** Returns whether the selection should not wait for the method. */
+    synchronized boolean shouldDefer(int carrierId, int method, boolean isEmergency) {
+        if (method == CarrierConfigManager.Iwlan.EPDG_ADDRESS_PLMN
+                || method == CarrierConfigManager.Iwlan.EPDG_ADDRESS_PCO
+                || method == CarrierConfigManager.Iwlan.EPDG_ADDRESS_VISITED_COUNTRY) {
+            return false;
+        }
+        Record record = mRecords.get(new Key(carrierId, method, isEmergency));
+        return record != null && record.mNumConsecutiveEmptyRuns >= MIN_EMPTY_RUNS_TO_DEFER;
+    }
+
+    /** Records that a selection completed without waiting for a deferred method. */
+    synchronized void onMethodSkipped() {
+        mNumSkippedMethods++;
+    }
+
+    synchronized void dump(PrintWriter pw) {
+        pw.println("Resolution method yields: skipped: " + mNumSkippedMethods);
+        for (Map.Entry<Key, Record> entry : mRecords.entrySet()) {
+            Record record = entry.getValue();
+            pw.println(
+                    "  "
+                            + entry.getKey()
+                            + " yields: "
+                            + record.mNumYields
+                            + "/"
+                            + record.mNumRuns
+                            + " empty in a row: "
+                            + record.mNumConsecutiveEmptyRuns
+                            + " smoothed latency: "
+                            + record.mSmoothedLatencyMs
+                            + "ms");
+        }
+    }
+}
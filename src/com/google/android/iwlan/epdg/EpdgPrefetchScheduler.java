@@ -0,0 +1,285 @@
+/*
+ * Copyright 2024 The Android Open Source Project
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package com.google.android.iwlan.epdg;
+
+import android.net.Network;
+import android.os.Handler;
+import android.support.annotation.IntDef;
+import android.support.annotation.NonNull;
+import android.support.annotation.Nullable;
+import android.telephony.CellInfo;
+import android.util.Log;
+
+import com.android.internal.annotations.VisibleForTesting;
+
+import com.google.android.iwlan.IwlanHelper;
+
+import java.io.PrintWriter;
+import java.util.Arrays;
+import java.util.List;
+import java.util.concurrent.TimeUnit;
+
+/**
+ * Decides when the ePDG candidates of one slot are prefetched, so that they are already resolved
+ * when a tunnel is brought up.
+ *
+ * <p>Besides the prefetches the data service starts itself, the scheduler prefetches when
+ * something that changes the selection result changes, such as the registered location or
+ * tracking area, the roaming state or the Wi-Fi access point, and shortly before the resolved
+ * addresses expire. Prefetches are at least {@link #MIN_PREFETCH_INTERVAL_MS} apart, and are held
+ * back while a tunnel is being brought up so that they never compete with its selection.
+ *
+ * <p>All methods must be called on the thread of the handler passed to the constructor.
+ */
+public final class EpdgPrefetchScheduler {
+    private static final String TAG = "EpdgPrefetchScheduler";
+
+    public static final int REASON_NETWORK_CHANGED = 0;
+    public static final int REASON_CARRIER_CONFIG_CHANGED = 1;
+    public static final int REASON_WFC_ENABLED = 2;
+    public static final int REASON_CELL_LOCATION_CHANGED = 3;
+    public static final int REASON_ROAMING_CHANGED = 4;
+    public static final int REASON_WIFI_AP_CHANGED = 5;
+    public static final int REASON_REFRESH_AHEAD = 6;
+    private static final int NUM_REASONS = 7;
+
+    @IntDef({
+        REASON_NETWORK_CHANGED,
+        REASON_CARRIER_CONFIG_CHANGED,
+        REASON_WFC_ENABLED,
+        REASON_CELL_LOCATION_CHANGED,
+        REASON_ROAMING_CHANGED,
+        REASON_WIFI_AP_CHANGED,
+        REASON_REFRESH_AHEAD
+    })
+    public @interface PrefetchReason {}
+
+    // Also the time given to a prefetch to fill the address cache before its refresh is planned.
+    @VisibleForTesting static final long MIN_PREFETCH_INTERVAL_MS = TimeUnit.SECONDS.toMillis(30);
+    @VisibleForTesting static final long BRINGUP_BACKOFF_MS = TimeUnit.SECONDS.toMillis(10);
+    // Addresses are kept fresh for this long after the last prefetch not made by the scheduler to
+    // refresh them, so that an idle device stops querying.
+    @VisibleForTesting static final long MAX_REFRESH_AHEAD_MS = TimeUnit.HOURS.toMillis(1);
+
+    /** Runs the prefetches the scheduler decides on. */
+    public interface Prefetcher {
+        /**
+         * Prefetches the ePDG candidates, and calls {@link EpdgPrefetchScheduler#onPrefetched} if
+         * it did.
+         *
+         * @return false if prefetching is not possible at the moment
+         */
+        boolean prefetch(@PrefetchReason int reason);
+
+        /** Returns true while a tunnel of the slot is being brought up. */
+        boolean isBringupInProgress();
+    }
+
+    private final String mTag;
+    private final EpdgSelector mEpdgSelector;
+    private final Handler mHandler;
+    private final Prefetcher mPrefetcher;
+
+    private final Runnable mPrefetchRunnable = this::runPendingPrefetch;
+    private final Runnable mRefreshCheckRunnable = this::scheduleRefreshAhead;
+
+    private boolean mIsPrefetchPending;
+    @PrefetchReason private int mPendingReason;
+    private long mPendingTime;
+
+    @Nullable private Network mLastNetwork;
+    private boolean mHasPrefetched;
+    private long mLastPrefetchTime;
+    private long mLastTriggerTime;
+    @Nullable private long[] mCellLocations;
+
+    private final long[] mNumPrefetches = new long[NUM_REASONS];
+    private long mNumCoalesced;
+    private long mNumDeferred;
+
+    public EpdgPrefetchScheduler(
+            int slotId,
+            @NonNull EpdgSelector epdgSelector,
+            @NonNull Handler handler,
+            @NonNull Prefetcher prefetcher) {
+        mTag = TAG + "[" + slotId + "]";
+        mEpdgSelector = epdgSelector;
+        mHandler = handler;
+        mPrefetcher = prefetcher;
+    }
+
+    /**
+     * Requests a prefetch. It runs right away unless the previous prefetch was less than {@link
+     * #MIN_PREFETCH_INTERVAL_MS} ago, and is merged with a prefetch that is already pending.
+     */
+    public void requestPrefetch(@PrefetchReason int reason) {
+        long now = IwlanHelper.elapsedRealtime();
+        if (reason != REASON_REFRESH_AHEAD) {
+            mLastTriggerTime = now;
+        }
+        long time = now;
+        if (mHasPrefetched) {
+            time = Math.max(now, mLastPrefetchTime + MIN_PREFETCH_INTERVAL_MS);
+        }
+        schedulePrefetch(reason, time);
+    }
+
+    /**
+     * Records a prefetch on the network, whoever started it, and plans the refresh of the
+     * addresses it resolves.
+     */
+    public void onPrefetched(@Nullable Network network, @PrefetchReason int reason) {
+        long now = IwlanHelper.elapsedRealtime();
+        mNumPrefetches[reason]++;
+        mHasPrefetched = true;
+        mLastPrefetchTime = now;
+        mLastNetwork = network;
+        if (reason != REASON_REFRESH_AHEAD) {
+            mLastTriggerTime = now;
+        }
+        if (mIsPrefetchPending) {
+            // This prefetch did the work of the pending one.
+            mIsPrefetchPending = false;
+            mHandler.removeCallbacks(mPrefetchRunnable);
+            mNumCoalesced++;
+        }
+        mHandler.removeCallbacks(mRefreshCheckRunnable);
+        mHandler.postDelayed(mRefreshCheckRunnable, MIN_PREFETCH_INTERVAL_MS);
+    }
+
+    /**
+     * Tracks the registered cells of the slot.
+     *
+     * @return true if the set of registered location or tracking areas changed, in which case the
+     *     cellular location based candidates may have changed too
+     */
+    public boolean onCellInfoChanged(@Nullable List<CellInfo> cellInfos) {
+        long[] cellLocations = EpdgSelector.getRegisteredCellLocations(cellInfos);
+        if (cellLocations.length == 0) {
+            return false;
+        }
+        Arrays.sort(cellLocations);
+        if (Arrays.equals(cellLocations, mCellLocations)) {
+            return false;
+        }
+        Log.d(mTag, "Registered cell location changed");
+        mCellLocations = cellLocations;
+        return true;
+    }
+
+    /** Cancels pending prefetches and refreshes. */
+    public void cancel() {
+        mIsPrefetchPending = false;
+        mHandler.removeCallbacks(mPrefetchRunnable);
+        mHandler.removeCallbacks(mRefreshCheckRunnable);
+    }
+
+    private void schedulePrefetch(@PrefetchReason int reason, long time) {
+        if (mIsPrefetchPending) {
+            if (reason != REASON_REFRESH_AHEAD) {
+                mPendingReason = reason;
+            }
+            if (mPendingTime <= time) {
+                mNumCoalesced++;
+                return;
+            }
+            mHandler.removeCallbacks(mPrefetchRunnable);
+        } else {
+            mPendingReason = reason;
+        }
+        mIsPrefetchPending = true;
+        mPendingTime = time;
+        mHandler.postDelayed(mPrefetchRunnable, Math.max(0, time - IwlanHelper.elapsedRealtime()));
+    }
+
+    private void runPendingPrefetch() {
+        if (!mIsPrefetchPending) {
+            return;
+        }
+        mIsPrefetchPending = false;
+        if (mPrefetcher.isBringupInProgress() || mEpdgSelector.hasPendingBringupSelection()) {
+            Log.d(mTag, "Deferring prefetch during bringup");
+            mNumDeferred++;
+            schedulePrefetch(
+                    mPendingReason, IwlanHelper.elapsedRealtime() + BRINGUP_BACKOFF_MS);
+            return;
+        }
+        Log.d(mTag, "Prefetching, reason: " + reasonToString(mPendingReason));
+        mPrefetcher.prefetch(mPendingReason);
+    }
+
+    /** Plans a prefetch for when the first address resolved by the last prefetch is due. */
+    private void scheduleRefreshAhead() {
+        long now = IwlanHelper.elapsedRealtime();
+        if (now - mLastTriggerTime >= MAX_REFRESH_AHEAD_MS) {
+            Log.d(mTag, "No recent prefetch trigger, stop refreshing");
+            return;
+        }
+        long refreshTime = mEpdgSelector.getNextRefreshTime(mLastNetwork, mLastPrefetchTime);
+        if (refreshTime == Long.MAX_VALUE) {
+            return;
+        }
+        schedulePrefetch(REASON_REFRESH_AHEAD, Math.max(refreshTime, now));
+    }
+
+    private static String reasonToString(@PrefetchReason int reason) {
+        switch (reason) {
+            case REASON_NETWORK_CHANGED:
+                return "NETWORK_CHANGED";
+            case REASON_CARRIER_CONFIG_CHANGED:
+                return "CARRIER_CONFIG_CHANGED";
+            case REASON_WFC_ENABLED:
+                return "WFC_ENABLED";
+            case REASON_CELL_LOCATION_CHANGED:
+                return "CELL_LOCATION_CHANGED";
+            case REASON_ROAMING_CHANGED:
+                return "ROAMING_CHANGED";
+            case REASON_WIFI_AP_CHANGED:
+                return "WIFI_AP_CHANGED";
+            case REASON_REFRESH_AHEAD:
+                return "REFRESH_AHEAD";
+            default:
+                return "Unknown(" + reason + ")";
+        }
+    }
+
+    public void dump(PrintWriter pw) {
+        long now = IwlanHelper.elapsedRealtime();
+        StringBuilder prefetches = new StringBuilder();
+        for (int reason = 0; reason < NUM_REASONS; reason++) {
+            prefetches
+                    .append(' ')
+                    .append(reasonToString(reason))
+                    .append(": ")
+                    .append(mNumPrefetches[reason]);
+        }
+        pw.println("Prefetches:" + prefetches);
+        pw.println(
+                "Prefetch scheduler: coalesced: "
+                        + mNumCoalesced
+                        + " deferred: "
+                        + mNumDeferred
+                        + (mHasPrefetched ? " last: " + (now - mLastPrefetchTime) + "ms ago" : "")
+                        + (mIsPrefetchPending
+                                ? " pending: "
+                                        + reasonToString(mPendingReason)
+                                        + " in "
+                                        + (mPendingTime - now)
+                                        + "ms"
+                                : ""));
+    }
+}
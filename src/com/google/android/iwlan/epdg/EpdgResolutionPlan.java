@@ -0,0 +1,385 @@
+/*
+ * Copyright 2024 The Android Open Source Project
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package com.google.android.iwlan.epdg;
+
+import android.net.DnsResolver;
+import android.support.annotation.NonNull;
+import android.support.annotation.Nullable;
+import android.telephony.CarrierConfigManager;
+import android.util.Log;
+
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.LinkedHashSet;
+import java.util.List;
+import java.util.Objects;
+import java.util.Set;
+
+/**
+ * The domain names that {@link EpdgSelector} resolves, and the DNS query types to resolve them
+ * with, compiled from the carrier config, the SIM and the registered cells.
+ *
+ * <p>A plan only depends on its {@link Inputs}, so the selector compiles it once and reuses it
+ * until one of the inputs changes. The selection then only issues DNS queries.
+ */
+final class EpdgResolutionPlan {
+    private static final String TAG = "EpdgResolutionPlan";
+
+    static final int CELL_LOCATION_LAC = 0;
+    static final int CELL_LOCATION_TAC = 1;
+    static final int CELL_LOCATION_5GS_TAC = 2;
+
+    /** The inputs of a plan. Equal inputs always compile to the same plan. */
+    static final class Inputs {
+        final int mFilter;
+        final boolean mIsEmergency;
+        final boolean mHasIpv4Address;
+        final boolean mHasIpv6Address;
+        final boolean mInSameCountry;
+        @Nullable final String mStaticAddresses;
+        @Nullable final String mStaticAddressesRoaming;
+        @NonNull final String[] mMccMncs;
+        @NonNull final int[] mPlmnPriorities;
+        // Null if the SIM is not known, in which case only the carrier config PLMNs are used.
+        @Nullable final String mPlmnFromImsi;
+        @NonNull final List<String> mEhplmns;
+        @Nullable final String mRegisteredPlmn;
+        // The registered cells, each encoded by cellLocation().
+        @NonNull final long[] mCellLocations;
+
+        Inputs(
+                int filter,
+                boolean isEmergency,
+                boolean hasIpv4Address,
+                boolean hasIpv6Address,
+                boolean inSameCountry,
+                @Nullable String staticAddresses,
+                @Nullable String staticAddressesRoaming,
+                @NonNull String[] mccMncs,
+                @NonNull int[] plmnPriorities,
+                @Nullable String plmnFromImsi,
+                @NonNull List<String> ehplmns,
+                @Nullable String registeredPlmn,
+                @NonNull long[] cellLocations) {
+            mFilter = filter;
+            mIsEmergency = isEmergency;
+            mHasIpv4Address = hasIpv4Address;
+            mHasIpv6Address = hasIpv6Address;
+            mInSameCountry = inSameCountry;
+            mStaticAddresses = staticAddresses;
+            mStaticAddressesRoaming = staticAddressesRoaming;
+            mMccMncs = mccMncs;
+            mPlmnPriorities = plmnPriorities;
+            mPlmnFromImsi = plmnFromImsi;
+            mEhplmns = ehplmns;
+            mRegisteredPlmn = registeredPlmn;
+            mCellLocations = cellLocations;
+        }
+
+        @Override
+        public boolean equals(Object o) {
+            if (this == o) {
+                return true;
+            }
+            if (!(o instanceof Inputs)) {
+                return false;
+            }
+            Inputs that = (Inputs) o;
+            return mFilter == that.mFilter
+                    && mIsEmergency == that.mIsEmergency
+                    && mHasIpv4Address == that.mHasIpv4Address
+                    && mHasIpv6Address == that.mHasIpv6Address
+                    && mInSameCountry == that.mInSameCountry
+                    && Objects.equals(mStaticAddresses, that.mStaticAddresses)
+                    && Objects.equals(mStaticAddressesRoaming, that.mStaticAddressesRoaming)
+                    && Arrays.equals(mMccMncs, that.mMccMncs)
+                    && Arrays.equals(mPlmnPriorities, that.mPlmnPriorities)
+                    && Objects.equals(mPlmnFromImsi, that.mPlmnFromImsi)
+                    && mEhplmns.equals(that.mEhplmns)
+                    && Objects.equals(mRegisteredPlmn, that.mRegisteredPlmn)
+                    && Arrays.equals(mCellLocations, that.mCellLocations);
+        }
+
+        @Override
+        public int hashCode() {
+            return Objects.hash(
+                    mFilter,
+                    mIsEmergency,
+                    mHasIpv4Address,
+                    mHasIpv6Address,
+                    mInSameCountry,
+                    mStaticAddresses,
+                    mStaticAddressesRoaming,
+                    Arrays.hashCode(mMccMncs),
+                    Arrays.hashCode(mPlmnPriorities),
+                    mPlmnFromImsi,
+                    mEhplmns,
+                    mRegisteredPlmn,
+                    Arrays.hashCode(mCellLocations));
+        }
+    }
+
+    private final int[] mQueryTypes;
+    private final List<String> mStaticDomainNames;
+    private final List<String> mPlmnDomainNames;
+    private final List<String> mCellularLocDomainNames;
+
+    private EpdgResolutionPlan(
+            int[] queryTypes,
+            List<String> staticDomainNames,
+            List<String> plmnDomainNames,
+            List<String> cellularLocDomainNames) {
+        mQueryTypes = queryTypes;
+        mStaticDomainNames = staticDomainNames;
+        mPlmnDomainNames = plmnDomainNames;
+        mCellularLocDomainNames = cellularLocDomainNames;
+    }
+
+    /** Encodes the location area or tracking area code of a registered cell. */
+    static long cellLocation(int type, int code) {
+        return ((long) type << 32) | (code & 0xffffffffL);
+    }
+
+    /**
+     * Returns the DNS query types each domain name is resolved with, A before AAAA. A type is
+     * left out if the network has no address of its family, or if the filter drops its answers.
+     */
+    int[] getQueryTypes() {
+        return mQueryTypes;
+    }
+
+    /** Returns the domain names of the static method, empty if none is configured. */
+    List<String> getStaticDomainNames() {
+        return mStaticDomainNames;
+    }
+
+    /** Returns the domain names of the PLMN method, in priority order. */
+    List<String> getPlmnDomainNames() {
+        return mPlmnDomainNames;
+    }
+
+    /** Returns the domain names of the cellular location method, in TAC/LAC priority order. */
+    List<String> getCellularLocDomainNames() {
+        return mCellularLocDomainNames;
+    }
+
+    static EpdgResolutionPlan compile(@NonNull Inputs inputs) {
+        List<String> plmnList = getPlmnList(inputs);
+        return new EpdgResolutionPlan(
+                getQueryTypes(inputs),
+                getStaticDomainNames(inputs),
+                getPlmnDomainNames(plmnList, inputs.mIsEmergency),
+                getCellularLocDomainNames(plmnList, inputs));
+    }
+
+    private static int[] getQueryTypes(Inputs inputs) {
+        boolean needsA =
+                inputs.mHasIpv4Address && inputs.mFilter != EpdgSelector.PROTO_FILTER_IPV6;
+        boolean needsAaaa =
+                inputs.mHasIpv6Address && inputs.mFilter != EpdgSelector.PROTO_FILTER_IPV4;
+        if (needsA && needsAaaa) {
+            return new int[] {DnsResolver.TYPE_A, DnsResolver.TYPE_AAAA};
+        } else if (needsA) {
+            return new int[] {DnsResolver.TYPE_A};
+        } else if (needsAaaa) {
+            return new int[] {DnsResolver.TYPE_AAAA};
+        }
+        return new int[0];
+    }
+
+    private static List<String> getStaticDomainNames(Inputs inputs) {
+        // Config obtained in form of a list of domain names separated by a delimiter is only used
+        // for testing purpose.
+        String staticAddresses = null;
+        if (!inputs.mInSameCountry && !isEmpty(inputs.mStaticAddressesRoaming)) {
+            staticAddresses = inputs.mStaticAddressesRoaming;
+        } else if (!isEmpty(inputs.mStaticAddresses)) {
+            staticAddresses = inputs.mStaticAddresses;
+        }
+        return (staticAddresses == null) ? List.of() : List.of(staticAddresses.split(","));
+    }
+
+    private static boolean isEmpty(@Nullable String s) {
+        return s == null || s.isEmpty();
+    }
+
+    /** Returns the PLMNs to build domain names from, in priority order, as "MCC-MNC". */
+    private static List<String> getPlmnList(Inputs inputs) {
+        List<String> plmnsFromCarrierConfig = Arrays.asList(inputs.mMccMncs);
+        if (inputs.mPlmnFromImsi == null) {
+            return plmnsFromCarrierConfig;
+        }
+
+        List<String> combinedList = new ArrayList<>();
+        for (int plmnType : inputs.mPlmnPriorities) {
+            switch (plmnType) {
+                case CarrierConfigManager.Iwlan.EPDG_PLMN_RPLMN:
+                    if (isValidPlmn(inputs.mRegisteredPlmn)
+                            && plmnsFromCarrierConfig.contains(
+                                    toMccMnc(inputs.mRegisteredPlmn))) {
+                        combinedList.add(inputs.mRegisteredPlmn);
+                    }
+                    break;
+                case CarrierConfigManager.Iwlan.EPDG_PLMN_HPLMN:
+                    combinedList.add(inputs.mPlmnFromImsi);
+                    break;
+                case CarrierConfigManager.Iwlan.EPDG_PLMN_EHPLMN_ALL:
+                    combinedList.addAll(inputs.mEhplmns);
+                    break;
+                case CarrierConfigManager.Iwlan.EPDG_PLMN_EHPLMN_FIRST:
+                    if (!inputs.mEhplmns.isEmpty()) {
+                        combinedList.add(inputs.mEhplmns.get(0));
+                    }
+                    break;
+                default:
+                    Log.e(TAG, "Unknown PLMN type: " + plmnType);
+                    break;
+            }
+        }
+
+        combinedList =
+                combinedList.stream()
+                        .distinct()
+                        .filter(EpdgResolutionPlan::isValidPlmn)
+                        .map(EpdgResolutionPlan::toMccMnc)
+                        .toList();
+        Log.d(TAG, "Final plmn list:" + combinedList);
+        return combinedList;
+    }
+
+    /** Validates a PLMN identifier, which is a 5 or 6 digit string. */
+    static boolean isValidPlmn(@Nullable String plmn) {
+        if (plmn == null || plmn.length() < 5 || plmn.length() > 6) {
+            return false;
+        }
+        for (int i = 0; i < plmn.length(); i++) {
+            char c = plmn.charAt(i);
+            if (c < '0' || c > '9') {
+                return false;
+            }
+        }
+        return true;
+    }
+
+    private static String toMccMnc(String plmn) {
+        return plmn.substring(0, 3) + "-" + plmn.substring(3);
+    }
+
+    /** Returns the MCC and the 3 digit MNC of a "MCC-MNC" PLMN. */
+    static String[] splitMccMnc(String plmn) {
+        String[] mccmnc = plmn.split("-");
+        mccmnc[1] = String.format("%03d", Integer.parseInt(mccmnc[1]));
+        return mccmnc;
+    }
+
+    private static List<String> getPlmnDomainNames(List<String> plmnList, boolean isEmergency) {
+        List<String> domainNames = new ArrayList<>();
+        for (String plmn : plmnList) {
+            String[] mccmnc = splitMccMnc(plmn);
+            /*
+             * Operator Identifier based ePDG FQDN format:
+             * epdg.epc.mnc<MNC>.mcc<MCC>.pub.3gppnetwork.org
+             *
+             * Operator Identifier based Emergency ePDG FQDN format:
+             * sos.epdg.epc.mnc<MNC>.mcc<MCC>.pub.3gppnetwork.org
+             */
+            String operatorFqdn =
+                    "epdg.epc.mnc" + mccmnc[1] + ".mcc" + mccmnc[0] + ".pub.3gppnetwork.org";
+            if (isEmergency) {
+                domainNames.add("sos." + operatorFqdn);
+            }
+            // For emergency PDN setup, still adding FQDN without "sos" header as second priority
+            // because some operator doesn't support hostname with "sos" prefix.
+            domainNames.add(operatorFqdn);
+        }
+        return List.copyOf(domainNames);
+    }
+
+    private static List<String> getCellularLocDomainNames(List<String> plmnList, Inputs inputs) {
+        // LinkedHashSet drops FQDNs repeated across registered cells.
+        Set<String> domainNames = new LinkedHashSet<>();
+        String epdgLabel = inputs.mIsEmergency ? ".sos.epdg.epc.mnc" : ".epdg.epc.mnc";
+        for (long cellLocation : inputs.mCellLocations) {
+            int type = (int) (cellLocation >>> 32);
+            int code = (int) cellLocation;
+            String prefix;
+            switch (type) {
+                case CELL_LOCATION_LAC:
+                    /*
+                     * Location Area Identity based ePDG FQDN format:
+                     * lac<LAC>.epdg.epc.mnc<MNC>.mcc<MCC>.pub.3gppnetwork.org
+                     *
+                     * Location Area Identity based Emergency ePDG FQDN format:
+                     * lac<LAC>.sos.epdg.epc.mnc<MNC>.mcc<MCC>.pub.3gppnetwork.org
+                     */
+                    prefix = "lac" + String.format("%04x", code);
+                    break;
+                case CELL_LOCATION_TAC:
+                    /*
+                     * Tracking Area Identity based ePDG FQDN format:
+                     * tac-lb<TAC-low-byte>.tac-hb<TAC-high-byte>.tac.
+                     * epdg.epc.mnc<MNC>.mcc<MCC>.pub.3gppnetwork.org
+                     *
+                     * Tracking Area Identity based Emergency ePDG FQDN format:
+                     * tac-lb<TAC-low-byte>.tac-hb<TAC-high-byte>.tac.
+                     * sos.epdg.epc.mnc<MNC>.mcc<MCC>.pub.3gppnetwork.org
+                     */
+                    String tacString = String.format("%04x", code);
+                    prefix =
+                            "tac-lb"
+                                    + tacString.substring(2)
+                                    + ".tac-hb"
+                                    + tacString.substring(0, 2)
+                                    + ".tac";
+                    break;
+                case CELL_LOCATION_5GS_TAC:
+                    /*
+                     * 5GS Tracking Area Identity based ePDG FQDN format:
+                     * tac-lb<TAC-low-byte>.tac-mb<TAC-middle-byte>.tac-hb<TAC-high-byte>.
+                     * 5gstac.epdg.epc.mnc<MNC>.mcc<MCC>.pub.3gppnetwork.org
+                     *
+                     * 5GS Tracking Area Identity based Emergency ePDG FQDN format:
+                     * tac-lb<TAC-low-byte>.tac-mb<TAC-middle-byte>.tac-hb<TAC-high-byte>.
+                     * 5gstac.sos.epdg.epc.mnc<MNC>.mcc<MCC>.pub.3gppnetwork.org
+                     */
+                    String nrTacString = String.format("%06x", code);
+                    prefix =
+                            "tac-lb"
+                                    + nrTacString.substring(4)
+                                    + ".tac-mb"
+                                    + nrTacString.substring(2, 4)
+                                    + ".tac-hb"
+                                    + nrTacString.substring(0, 2)
+                                    + ".5gstac";
+                    break;
+                default:
+                    continue;
+            }
+            for (String plmn : plmnList) {
+                String[] mccmnc = splitMccMnc(plmn);
+                domainNames.add(
+                        prefix
+                                + epdgLabel
+                                + mccmnc[1]
+                                + ".mcc"
+                                + mccmnc[0]
+                                + ".pub.3gppnetwork.org");
+            }
+        }
+        return List.copyOf(domainNames);
+    }
+}
@@ -21,6 +21,7 @@ import android.net.DnsResolver;
 import android.net.DnsResolver.DnsException;
 import android.net.InetAddresses;
 import android.net.Network;
+import android.os.CancellationSignal;
 import android.support.annotation.IntDef;
 import android.support.annotation.NonNull;
 import android.support.annotation.Nullable;
@@ -45,28 +46,33 @@ import android.util.Log;
 import com.android.internal.annotations.VisibleForTesting;
 
 import com.google.android.iwlan.ErrorPolicyManager;
+import com.google.android.iwlan.IwlanCarrierConfig;
 import com.google.android.iwlan.IwlanError;
 import com.google.android.iwlan.IwlanHelper;
+import com.google.android.iwlan.IwlanNetworkAddresses;
+import com.google.android.iwlan.IwlanTelephonyState;
 import com.google.android.iwlan.epdg.NaptrDnsResolver.NaptrTarget;
+import com.google.android.iwlan.epdg.SrvDnsResolver.SrvRecordInetAddress;
 
+import java.io.File;
+import java.io.PrintWriter;
 import java.net.Inet4Address;
 import java.net.Inet6Address;
 import java.net.InetAddress;
 import java.net.UnknownHostException;
 import java.util.*;
-import java.util.concurrent.ArrayBlockingQueue;
-import java.util.concurrent.BlockingQueue;
 import java.util.concurrent.CompletableFuture;
+import java.util.concurrent.CompletionException;
 import java.util.concurrent.ConcurrentHashMap;
 import java.util.concurrent.ExecutionException;
 import java.util.concurrent.Executor;
-import java.util.concurrent.ExecutorService;
 import java.util.concurrent.Future;
-import java.util.concurrent.SynchronousQueue;
-import java.util.concurrent.ThreadPoolExecutor;
 import java.util.concurrent.TimeUnit;
 import java.util.concurrent.TimeoutException;
-import java.util.stream.Collectors;
+import java.util.concurrent.atomic.AtomicLong;
+import java.util.concurrent.atomic.AtomicReference;
+import java.util.function.Consumer;
+import java.util.function.ToIntFunction;
 
 public class EpdgSelector {
     private static final String TAG = "EpdgSelector";
@@ -86,39 +92,87 @@ public class EpdgSelector {
 
     private static final long PARALLEL_STATIC_RESOLUTION_TIMEOUT_DURATION_SEC = 6L;
     private static final long PARALLEL_PLMN_RESOLUTION_TIMEOUT_DURATION_SEC = 20L;
-    private static final int NUM_EPDG_SELECTION_EXECUTORS = 2; // 1 each for normal selection, SOS.
-    private static final int MAX_EPDG_SELECTION_THREADS = 2; // 1 each for prefetch, tunnel bringup.
-    private static final int MAX_DNS_RESOLVER_THREADS = 25; // Do not expect > 25 FQDNs per carrier.
+    private static final long PARALLEL_CELLULAR_LOC_RESOLUTION_TIMEOUT_DURATION_SEC = 20L;
     private static final String NO_DOMAIN = "NO_DOMAIN";
 
-    BlockingQueue<Runnable> dnsResolutionQueue =
-            new ArrayBlockingQueue<>(
-                    MAX_DNS_RESOLVER_THREADS
-                            * MAX_EPDG_SELECTION_THREADS
-                            * NUM_EPDG_SELECTION_EXECUTORS);
-
-    Executor mDnsResolutionExecutor =
-            new ThreadPoolExecutor(
-                    0, MAX_DNS_RESOLVER_THREADS, 60L, TimeUnit.SECONDS, dnsResolutionQueue);
-
-    ExecutorService mEpdgSelectionExecutor =
-            new ThreadPoolExecutor(
-                    0,
-                    MAX_EPDG_SELECTION_THREADS,
-                    60L,
-                    TimeUnit.SECONDS,
-                    new SynchronousQueue<Runnable>());
-    Future mDnsPrefetchFuture;
+    // When true, parallel DNS resolution returns as soon as the highest priority domain name has
+    // answered instead of waiting for every query to complete.
+    @VisibleForTesting
+    static final String KEY_EPDG_DNS_QUORUM_BOOL = "iwlan.key_epdg_dns_quorum_bool";
+
+    // Bounds in milliseconds of the DNS timeouts learned from the latency of the network. Without a
+    // configured ceiling, the fixed timeout of each resolution method is the ceiling.
+    @VisibleForTesting
+    static final String KEY_EPDG_DNS_TIMEOUT_FLOOR_MS_INT =
+            "iwlan.key_epdg_dns_timeout_floor_ms_int";
+
+    @VisibleForTesting
+    static final String KEY_EPDG_DNS_TIMEOUT_CEILING_MS_INT =
+            "iwlan.key_epdg_dns_timeout_ceiling_ms_int";
+
+    private static final long DEFAULT_DNS_TIMEOUT_FLOOR_MS = 500L;
+
+    // How long in milliseconds an emergency bringup without stored SOS candidates waits for the
+    // SOS domain names before it is started with the last normal candidates. Zero or less disables
+    // the fallback.
+    @VisibleForTesting
+    static final String KEY_EPDG_SOS_FALLBACK_TIMEOUT_MS_INT =
+            "iwlan.key_epdg_sos_fallback_timeout_ms_int";
+
+    @VisibleForTesting static final long DEFAULT_SOS_FALLBACK_TIMEOUT_MS = 1000L;
 
-    ExecutorService mSosEpdgSelectionExecutor =
-            new ThreadPoolExecutor(
-                    0,
-                    MAX_EPDG_SELECTION_THREADS,
-                    60L,
-                    TimeUnit.SECONDS,
-                    new SynchronousQueue<Runnable>());
+    // Written to the device protected storage of the app, as IWLAN runs before the user unlocks.
+    private static final String DNS_RECORDING_FILE_NAME = "epdg_dns_recording";
+    @Nullable private static EpdgDnsRecordingBackend sDnsRecording;
+
+    private final EpdgDnsScheduler mDnsScheduler = EpdgDnsScheduler.getInstance();
+    Future mDnsPrefetchFuture;
     Future mSosDnsPrefetchFuture;
 
+    // Shared by the selectors of all slots, as the slots of dual-SIM devices often resolve the
+    // same domain names on the same network.
+    private final EpdgAddressCache mAddressCache = EpdgAddressCache.getInstance();
+    // The cache entries this selector looked up, most recently used last, so that it only plans
+    // prefetches for the entries of its own slot. Guarded by itself.
+    private final Set<EpdgAddressCache.Key> mUsedCacheKeys =
+            Collections.newSetFromMap(
+                    new LinkedHashMap<>(16, 0.75f, true) {
+                        @Override
+                        protected boolean removeEldestEntry(
+                                Map.Entry<EpdgAddressCache.Key, Boolean> eldest) {
+                            return size() > EpdgAddressCache.MAX_ENTRIES;
+                        }
+                    });
+    private final EpdgDnsMetrics mDnsMetrics = new EpdgDnsMetrics();
+    private final EpdgDnsTimeoutEstimator mDnsTimeouts = new EpdgDnsTimeoutEstimator();
+    private final EpdgMethodYieldTracker mMethodYields = new EpdgMethodYieldTracker();
+    private final EpdgCandidateStore mCandidateStore;
+
+    // The candidates of the last normal and SOS selections, kept in memory so that an emergency
+    // bringup can start right away even if the candidate store is not persisted.
+    private final AtomicReference<LastServerList> mLastServerList = new AtomicReference<>();
+    private final AtomicReference<LastServerList> mLastSosServerList = new AtomicReference<>();
+    private final AtomicLong mNumSosFallbacks = new AtomicLong();
+    // The version of the carrier config snapshot whose ePDG keys were last checked, or 0.
+    private final AtomicLong mCheckedCarrierConfigVersion = new AtomicLong();
+
+    // Compiled resolution plans, by their inputs. A few are kept, as emergency and normal
+    // selections, or selections with different filters, alternate.
+    private static final int MAX_RESOLUTION_PLANS = 4;
+    private final Map<EpdgResolutionPlan.Inputs, EpdgResolutionPlan> mResolutionPlans =
+            new LinkedHashMap<>(MAX_RESOLUTION_PLANS, 0.75f, true /* accessOrder */) {
+                @Override
+                protected boolean removeEldestEntry(
+                        Map.Entry<EpdgResolutionPlan.Inputs, EpdgResolutionPlan> eldest) {
+                    return size() > MAX_RESOLUTION_PLANS;
+                }
+            };
+    private long mNumCompiledPlans;
+
+    // Selections in progress, joined by identical selection requests.
+    private final Map<SelectionKey, SelectionFlight> mSelectionFlights = new HashMap<>();
+    private long mNumJoinedSelections;
+
     final Comparator<InetAddress> inetAddressComparator =
             (ip1, ip2) -> {
                 if ((ip1 instanceof Inet4Address) && (ip2 instanceof Inet6Address)) {
@@ -148,6 +202,13 @@ public class EpdgSelector {
         /*gives priority ordered list of addresses*/
         void onServerListChanged(int transactionId, List<InetAddress> validIPList);
 
+        /**
+         * Gives the priority ordered list of addresses resolved so far, while lower priority
+         * resolution methods are still running. Each call carries the full list so far, and
+         * {@link #onServerListChanged} is still called once selection completes.
+         */
+        default void onPartialServerList(int transactionId, List<InetAddress> validIPList) {}
+
         void onError(int transactionId, IwlanError error);
     }
 
@@ -157,6 +218,7 @@ public class EpdgSelector {
         mSlotId = slotId;
 
         mErrorPolicyManager = ErrorPolicyManager.getInstance(mContext, mSlotId);
+        mCandidateStore = EpdgCandidateStore.create(mContext, mSlotId);
     }
 
     public static EpdgSelector getSelectorInstance(Context context, int slotId) {
@@ -207,14 +269,81 @@ public class EpdgSelector {
         mV6PcoData = null;
     }
 
+    /**
+     * Resolves the domain name, answering from {@link #mAddressCache} when possible. A stale or
+     * expiring cache entry is returned immediately, and refreshed by a DNS query in the background.
+     */
     private CompletableFuture<Map.Entry<String, List<InetAddress>>> submitDnsResolverQuery(
-            String domainName, Network network, int queryType, Executor executor) {
-        CompletableFuture<Map.Entry<String, List<InetAddress>>> result = new CompletableFuture();
+            String domainName,
+            Network network,
+            int queryType,
+            boolean isEmergency,
+            int resolutionMethod,
+            DnsQueryCanceller canceller,
+            Executor executor) {
+        final EpdgAddressCache.Key cacheKey =
+                new EpdgAddressCache.Key(domainName, network, queryType, isEmergency);
+        synchronized (mUsedCacheKeys) {
+            mUsedCacheKeys.add(cacheKey);
+        }
+        final EpdgAddressCache.Lookup cached = mAddressCache.get(cacheKey);
+        if (cached == null) {
+            if (mAddressCache.isKnownNegative(cacheKey)) {
+                Log.d(TAG, "Skipping known negative domain: " + domainName);
+                return CompletableFuture.completedFuture(Map.entry(domainName, List.of()));
+            }
+            return queryDnsResolver(
+                    domainName,
+                    network,
+                    queryType,
+                    cacheKey,
+                    resolutionMethod,
+                    canceller,
+                    executor);
+        }
+
+        if (cached.mShouldRefresh) {
+            Log.d(
+                    TAG,
+                    "Refreshing "
+                            + (cached.mIsStale ? "stale" : "expiring")
+                            + " cache entry for domain: "
+                            + domainName);
+            // The refresh only updates the cache, so it is not cancelled with the selection.
+            queryDnsResolver(
+                    domainName,
+                    network,
+                    queryType,
+                    cacheKey,
+                    resolutionMethod,
+                    null /* canceller */,
+                    executor);
+        }
+        return CompletableFuture.completedFuture(Map.entry(domainName, cached.mAddresses));
+    }
 
-        final DnsResolver.Callback<List<InetAddress>> cb =
-                new DnsResolver.Callback<List<InetAddress>>() {
+    private CompletableFuture<Map.Entry<String, List<InetAddress>>> queryDnsResolver(
+            String domainName,
+            Network network,
+            int queryType,
+            EpdgAddressCache.Key cacheKey,
+            int resolutionMethod,
+            @Nullable DnsQueryCanceller canceller,
+            Executor executor) {
+        CompletableFuture<Map.Entry<String, List<InetAddress>>> result = new CompletableFuture();
+        final CancellationSignal cancellationSignal =
+                (canceller == null)
+                        ? null
+                        : canceller.newQuerySignal(
+                                () -> result.complete(Map.entry(domainName, List.of())));
+
+        final DnsResolver.Callback<AddressDnsResolver.AddressAnswer> cb =
+                new DnsResolver.Callback<AddressDnsResolver.AddressAnswer>() {
                     @Override
-                    public void onAnswer(@NonNull final List<InetAddress> answer, final int rcode) {
+                    public void onAnswer(
+                            @NonNull final AddressDnsResolver.AddressAnswer addressAnswer,
+                            final int rcode) {
+                        final List<InetAddress> answer = addressAnswer.mAddresses;
                         if (rcode != 0) {
                             Log.e(
                                     TAG,
@@ -223,6 +352,12 @@ public class EpdgSelector {
                                             + " for domain "
                                             + domainName);
                         }
+                        if (answer.isEmpty()) {
+                            mAddressCache.onRefreshFailed(cacheKey);
+                            mAddressCache.putNegative(cacheKey, getNegativeReason(rcode));
+                        } else {
+                            mAddressCache.put(cacheKey, answer, addressAnswer.mTtlMs);
+                        }
                         Map.Entry<String, List<InetAddress>> entry = Map.entry(domainName, answer);
                         result.complete(entry);
                     }
@@ -232,18 +367,89 @@ public class EpdgSelector {
                         Log.e(
                                 TAG,
                                 "Resolve DNS with error: " + error + " for domain: " + domainName);
+                        mAddressCache.onRefreshFailed(cacheKey);
                         result.complete(null);
                     }
                 };
-        DnsResolver.getInstance()
-                .query(network, domainName, queryType, DnsResolver.FLAG_EMPTY, executor, null, cb);
+        AddressDnsResolver.query(
+                network,
+                domainName,
+                queryType,
+                executor,
+                cancellationSignal,
+                withDnsMetrics(
+                        cb,
+                        answer -> answer.mAddresses.size(),
+                        resolutionMethod,
+                        domainName,
+                        queryType,
+                        network));
         return result;
     }
 
-    private List<InetAddress> v4v6ProtocolFilter(List<InetAddress> ipList, int filter) {
+    /**
+     * Wraps a DNS callback, so that the latency and outcome of its query are recorded in {@link
+     * #mDnsMetrics}, and the latency of answers is learned by {@link #mDnsTimeouts}.
+     *
+     * @param resolutionMethod The CarrierConfigManager.Iwlan.EPDG_ADDRESS_* method that issues the
+     *     query.
+     */
+    private <T> DnsResolver.Callback<List<T>> withDnsMetrics(
+            DnsResolver.Callback<List<T>> callback,
+            int resolutionMethod,
+            String domainName,
+            int queryType,
+            Network network) {
+        return withDnsMetrics(
+                callback, List::size, resolutionMethod, domainName, queryType, network);
+    }
+
+    /**
+     * Wraps a DNS callback as above, for answers that are not a plain list of records.
+     *
+     * @param answerCount Returns the number of records in an answer.
+     */
+    private <T> DnsResolver.Callback<T> withDnsMetrics(
+            DnsResolver.Callback<T> callback,
+            ToIntFunction<T> answerCount,
+            int resolutionMethod,
+            String domainName,
+            int queryType,
+            Network network) {
+        final long startTime = IwlanHelper.elapsedRealtime();
+        return new DnsResolver.Callback<T>() {
+            @Override
+            public void onAnswer(@NonNull final T answer, final int rcode) {
+                final long latencyMs = IwlanHelper.elapsedRealtime() - startTime;
+                mDnsMetrics.onAnswer(
+                        resolutionMethod,
+                        domainName,
+                        queryType,
+                        rcode,
+                        answerCount.applyAsInt(answer),
+                        latencyMs);
+                mDnsTimeouts.onAnswer(network, queryType, latencyMs);
+                callback.onAnswer(answer, rcode);
+            }
+
+            @Override
+            public void onError(@NonNull final DnsResolver.DnsException error) {
+                mDnsMetrics.onError(
+                        resolutionMethod,
+                        domainName,
+                        queryType,
+                        error.code,
+                        IwlanHelper.elapsedRealtime() - startTime);
+                callback.onError(error);
+            }
+        };
+    }
+
+    private List<InetAddress> v4v6ProtocolFilter(
+            List<InetAddress> ipList, int filter, Network network) {
         List<InetAddress> validIpList = new ArrayList<>();
         for (InetAddress ipAddress : ipList) {
-            if (IwlanHelper.isIpv4EmbeddedIpv6Address(ipAddress)) {
+            if (IwlanNetworkAddresses.isIpv4EmbeddedIpv6Address(ipAddress, network)) {
                 continue;
             }
             switch (filter) {
@@ -267,29 +473,14 @@ public class EpdgSelector {
         return validIpList;
     }
 
-    // Converts a list of CompletableFutures of type T into a single CompletableFuture containing a
-    // list of T. The resulting CompletableFuture waits for all futures to complete,
-    // even if any future throw an exception.
-    private <T> CompletableFuture<List<T>> allOf(List<CompletableFuture<T>> futuresList) {
-        CompletableFuture<Void> allFuturesResult =
-                CompletableFuture.allOf(
-                        futuresList.toArray(new CompletableFuture[futuresList.size()]));
-        return allFuturesResult.thenApply(
-                v ->
-                        futuresList.stream()
-                                .map(CompletableFuture::join)
-                                .filter(Objects::nonNull)
-                                .collect(Collectors.<T>toList()));
-    }
-
     @VisibleForTesting
     protected boolean hasIpv4Address(Network network) {
-        return IwlanHelper.hasIpv4Address(IwlanHelper.getAllAddressesForNetwork(network, mContext));
+        return IwlanNetworkAddresses.getOrLoad(mContext, network).hasIpv4Address();
     }
 
     @VisibleForTesting
     protected boolean hasIpv6Address(Network network) {
-        return IwlanHelper.hasIpv6Address(IwlanHelper.getAllAddressesForNetwork(network, mContext));
+        return IwlanNetworkAddresses.getOrLoad(mContext, network).hasIpv6Address();
     }
 
     private void printParallelDnsResult(Map<String, List<InetAddress>> domainNameToIpAddresses) {
@@ -302,19 +493,35 @@ public class EpdgSelector {
      * Returns a list of unique IP addresses corresponding to the given domain names, in the same
      * order of the input. Runs DNS resolution across parallel threads.
      *
+     * <p>If not every query has completed by the timeout, the answers that did arrive are still
+     * returned. If {@link #KEY_EPDG_DNS_QUORUM_BOOL} is set, this returns as soon as the highest
+     * priority domain name that has any address has answered, without waiting for the rest.
+     *
      * @param domainNames Domain names for which DNS resolution needs to be performed.
      * @param filter Selects for IPv4, IPv6 (or both) addresses from the resulting DNS records
+     * @param isEmergency Specifies whether the lookup is made for an emergency session.
      * @param network {@link Network} Network on which to run the DNS query.
-     * @param timeout timeout in seconds.
+     * @param queryTypes The DNS query types to resolve each domain name with.
+     * @param resolutionMethod The CarrierConfigManager.Iwlan.EPDG_ADDRESS_* method that resolves
+     *     the domain names.
+     * @param canceller Cancels the queries if the selection is cancelled.
+     * @param timeoutMs timeout in milliseconds.
      * @return List of unique IP addresses corresponding to the domainNames.
      */
     private LinkedHashMap<String, List<InetAddress>> getIP(
-            List<String> domainNames, int filter, Network network, long timeout) {
+            List<String> domainNames,
+            int filter,
+            boolean isEmergency,
+            Network network,
+            int[] queryTypes,
+            int resolutionMethod,
+            DnsQueryCanceller canceller,
+            long timeoutMs) {
         // LinkedHashMap preserves insertion order (and hence priority) of domain names passed in.
         LinkedHashMap<String, List<InetAddress>> domainNameToIpAddr = new LinkedHashMap<>();
 
-        List<CompletableFuture<Map.Entry<String, List<InetAddress>>>> futuresList =
-                new ArrayList<>();
+        LinkedHashMap<EpdgAddressCache.Key, CompletableFuture<Map.Entry<String, List<InetAddress>>>>
+                queryFutures = new LinkedHashMap<>();
         for (String domainName : domainNames) {
             if (InetAddresses.isNumericAddress(domainName)) {
                 Log.d(TAG, domainName + " is a numeric IP address!");
@@ -325,26 +532,41 @@ public class EpdgSelector {
 
             domainNameToIpAddr.put(domainName, new ArrayList<>());
             // Dispatches separate IPv4 and IPv6 queries to avoid being blocked on either result.
-            if (hasIpv4Address(network)) {
-                futuresList.add(
-                        submitDnsResolverQuery(
-                                domainName, network, DnsResolver.TYPE_A, mDnsResolutionExecutor));
-            }
-            if (hasIpv6Address(network)) {
-                futuresList.add(
+            for (int queryType : queryTypes) {
+                queryFutures.put(
+                        new EpdgAddressCache.Key(domainName, network, queryType, isEmergency),
                         submitDnsResolverQuery(
                                 domainName,
                                 network,
-                                DnsResolver.TYPE_AAAA,
-                                mDnsResolutionExecutor));
+                                queryType,
+                                isEmergency,
+                                resolutionMethod,
+                                canceller,
+                                mDnsScheduler.getDnsCallbackExecutor(isEmergency)));
+            }
+        }
+
+        CompletableFuture<Void> allFuturesResult =
+                CompletableFuture.allOf(
+                        queryFutures.values().toArray(new CompletableFuture[queryFutures.size()]));
+        CompletableFuture<?> waitResult = allFuturesResult;
+        if (isDnsQuorumEnabled()) {
+            CompletableFuture<Void> quorumResult = new CompletableFuture<>();
+            Runnable quorumCheck =
+                    () -> {
+                        if (hasHighestPriorityAnswer(queryFutures, filter, network)) {
+                            quorumResult.complete(null);
+                        }
+                    };
+            for (CompletableFuture<?> future : queryFutures.values()) {
+                future.whenComplete((result, e) -> quorumCheck.run());
             }
+            waitResult = CompletableFuture.anyOf(allFuturesResult, quorumResult);
         }
-        CompletableFuture<List<Map.Entry<String, List<InetAddress>>>> allFuturesResult =
-                allOf(futuresList);
 
-        List<Map.Entry<String, List<InetAddress>>> resultList = null;
+        boolean isTimedOut = false;
         try {
-            resultList = allFuturesResult.get(timeout, TimeUnit.SECONDS);
+            waitResult.get(timeoutMs, TimeUnit.MILLISECONDS);
         } catch (ExecutionException e) {
             Log.e(TAG, "Cause of ExecutionException: ", e.getCause());
         } catch (InterruptedException e) {
@@ -352,174 +574,367 @@ public class EpdgSelector {
             Log.e(TAG, "InterruptedException: ", e);
         } catch (TimeoutException e) {
             Log.e(TAG, "TimeoutException: ", e);
-        } finally {
-            if (resultList == null) {
-                Log.w(TAG, "No IP addresses in parallel DNS query!");
-            } else {
-                for (Map.Entry<String, List<InetAddress>> entry : resultList) {
-                    String resultDomainName = entry.getKey();
-                    List<InetAddress> resultIpAddr = v4v6ProtocolFilter(entry.getValue(), filter);
+            isTimedOut = true;
+        }
 
-                    if (!domainNameToIpAddr.containsKey(resultDomainName)) {
-                        Log.w(
-                                TAG,
-                                "Unexpected domain name in DnsResolver result: "
-                                        + resultDomainName);
-                        continue;
-                    }
-                    domainNameToIpAddr.get(resultDomainName).addAll(resultIpAddr);
+        // Harvests every answer that has arrived so far, in priority order. Queries that are still
+        // outstanding are left running, so that a late answer still populates the cache.
+        int numOutstanding = 0;
+        Set<Integer> timedOutQueryTypes = new HashSet<>();
+        for (EpdgAddressCache.Key queryKey : queryFutures.keySet()) {
+            CompletableFuture<Map.Entry<String, List<InetAddress>>> future =
+                    queryFutures.get(queryKey);
+            if (!future.isDone()) {
+                numOutstanding++;
+                if (isTimedOut) {
+                    // A late answer replaces the entry.
+                    mAddressCache.putNegative(queryKey, EpdgAddressCache.NEGATIVE_REASON_TIMEOUT);
+                    timedOutQueryTypes.add(queryKey.mQueryType);
                 }
+                continue;
+            }
+            if (future.isCompletedExceptionally() || future.join() == null) {
+                continue;
             }
+
+            Map.Entry<String, List<InetAddress>> entry = future.join();
+            String resultDomainName = entry.getKey();
+            List<InetAddress> resultIpAddr =
+                    v4v6ProtocolFilter(entry.getValue(), filter, network);
+
+            if (!domainNameToIpAddr.containsKey(resultDomainName)) {
+                Log.w(TAG, "Unexpected domain name in DnsResolver result: " + resultDomainName);
+                continue;
+            }
+            domainNameToIpAddr.get(resultDomainName).addAll(resultIpAddr);
+        }
+        if (numOutstanding > 0) {
+            for (int queryType : timedOutQueryTypes) {
+                mDnsTimeouts.onTimeout(network, queryType);
+            }
+            Log.w(
+                    TAG,
+                    "Parallel DNS query returned with "
+                            + numOutstanding
+                            + " of "
+                            + queryFutures.size()
+                            + " queries outstanding");
         }
         return domainNameToIpAddr;
     }
 
     /**
-     * Updates the validIpList with the IP addresses corresponding to this domainName. Runs blocking
-     * DNS resolution on the same thread.
+     * Returns how long to wait for DNS answers of these query types on the network, learned from
+     * their recent latency and bounded by {@link #KEY_EPDG_DNS_TIMEOUT_FLOOR_MS_INT} and {@link
+     * #KEY_EPDG_DNS_TIMEOUT_CEILING_MS_INT}. The slowest query type sets the timeout.
      *
-     * @param domainName Domain name for which DNS resolution needs to be performed.
-     * @param filter Selects for IPv4, IPv6 (or both) addresses from the resulting DNS records
-     * @param validIpList A running list of IP addresses that needs to be updated.
-     * @param network {@link Network} Network on which to run the DNS query.
+     * @param defaultTimeoutSec The fixed timeout of the resolution method, used until a query type
+     *     has been answered on the network, and as the ceiling unless one is configured.
      */
-    private void getIP(
-            String domainName, int filter, List<InetAddress> validIpList, Network network) {
-        List<InetAddress> ipList = new ArrayList<InetAddress>();
-
-        // Get All IP for each domain name
-        Log.d(TAG, "Input domainName : " + domainName);
+    @VisibleForTesting
+    long getDnsTimeoutMs(Network network, int[] queryTypes, long defaultTimeoutSec) {
+        final long defaultTimeoutMs = TimeUnit.SECONDS.toMillis(defaultTimeoutSec);
+        Integer floorMs =
+                IwlanHelper.getConfig(KEY_EPDG_DNS_TIMEOUT_FLOOR_MS_INT, mContext, mSlotId);
+        Integer ceilingMs =
+                IwlanHelper.getConfig(KEY_EPDG_DNS_TIMEOUT_CEILING_MS_INT, mContext, mSlotId);
+        long timeoutMs = 0;
+        for (int queryType : queryTypes) {
+            timeoutMs =
+                    Math.max(
+                            timeoutMs,
+                            mDnsTimeouts.getTimeoutMs(
+                                    network,
+                                    queryType,
+                                    defaultTimeoutMs,
+                                    (floorMs != null) ? floorMs : DEFAULT_DNS_TIMEOUT_FLOOR_MS,
+                                    (ceilingMs != null) ? ceilingMs : defaultTimeoutMs));
+        }
+        return timeoutMs;
+    }
 
-        if (InetAddresses.isNumericAddress(domainName)) {
-            Log.d(TAG, domainName + " is a numeric IP address!");
-            ipList.add(InetAddresses.parseNumericAddress(domainName));
-        } else {
-            try {
-                CompletableFuture<List<InetAddress>> result = new CompletableFuture();
-                final DnsResolver.Callback<List<InetAddress>> cb =
-                        new DnsResolver.Callback<List<InetAddress>>() {
-                            @Override
-                            public void onAnswer(
-                                    @NonNull final List<InetAddress> answer, final int rcode) {
-                                if (rcode != 0) {
-                                    Log.e(TAG, "DnsResolver Response Code = " + rcode);
-                                }
-                                result.complete(answer);
-                            }
+    private boolean isDnsQuorumEnabled() {
+        Boolean isQuorumEnabled =
+                IwlanHelper.getConfig(KEY_EPDG_DNS_QUORUM_BOOL, mContext, mSlotId);
+        return isQuorumEnabled != null && isQuorumEnabled;
+    }
 
-                            @Override
-                            public void onError(@Nullable final DnsResolver.DnsException error) {
-                                Log.e(TAG, "Resolve DNS with error : " + error);
-                                result.completeExceptionally(error);
-                            }
-                        };
-                DnsResolver.getInstance()
-                        .query(
-                                network,
-                                domainName,
-                                DnsResolver.FLAG_EMPTY,
-                                Runnable::run,
-                                null,
-                                cb);
-                ipList =
-                        new ArrayList<>(
-                                result.get(DNS_RESOLVER_TIMEOUT_DURATION_SEC, TimeUnit.SECONDS));
-            } catch (ExecutionException e) {
-                Log.e(TAG, "Cause of ExecutionException: ", e.getCause());
-            } catch (InterruptedException e) {
-                Thread thread = Thread.currentThread();
-                if (thread.interrupted()) {
-                    thread.interrupt();
+    /**
+     * Returns true once every query for the highest priority domain name that can still produce an
+     * address has completed, and at least one of them returned an address. Domain names whose
+     * queries all completed without an address are skipped over.
+     */
+    private boolean hasHighestPriorityAnswer(
+            Map<EpdgAddressCache.Key, CompletableFuture<Map.Entry<String, List<InetAddress>>>>
+                    queryFutures,
+            int filter,
+            Network network) {
+        String currentDomainName = null;
+        boolean hasAnswer = false;
+        for (EpdgAddressCache.Key queryKey : queryFutures.keySet()) {
+            String domainName = queryKey.mDomainName;
+            if (!domainName.equals(currentDomainName)) {
+                if (hasAnswer) {
+                    return true;
                 }
-                Log.e(TAG, "InterruptedException: ", e);
-            } catch (TimeoutException e) {
-                Log.e(TAG, "TimeoutException: ", e);
+                currentDomainName = domainName;
+            }
+
+            CompletableFuture<Map.Entry<String, List<InetAddress>>> future =
+                    queryFutures.get(queryKey);
+            if (!future.isDone()) {
+                return false;
+            }
+            if (!future.isCompletedExceptionally()
+                    && future.join() != null
+                    && !v4v6ProtocolFilter(future.join().getValue(), filter, network).isEmpty()) {
+                hasAnswer = true;
             }
         }
+        return hasAnswer;
+    }
 
-        List<InetAddress> filteredIpList = v4v6ProtocolFilter(ipList, filter);
-        validIpList.addAll(filteredIpList);
+    private static int getNegativeReason(int rcode) {
+        return (rcode == EpdgAddressCache.RCODE_NXDOMAIN)
+                ? EpdgAddressCache.NEGATIVE_REASON_NXDOMAIN
+                : EpdgAddressCache.NEGATIVE_REASON_EMPTY;
     }
 
-    private String[] getPlmnList() {
-        List<String> plmnsFromCarrierConfig = getPlmnsFromCarrierConfig();
-        Log.d(TAG, "plmnsFromCarrierConfig:" + plmnsFromCarrierConfig);
+    /** A DNS lookup of the visited country method that is in progress. */
+    private static final class PendingLookup {
+        final String mDomainName;
+        final EpdgAddressCache.Key mNegativeCacheKey;
+        final CompletableFuture<List<InetAddress>> mResult;
+
+        PendingLookup(
+                String domainName,
+                EpdgAddressCache.Key negativeCacheKey,
+                CompletableFuture<List<InetAddress>> result) {
+            mDomainName = domainName;
+            mNegativeCacheKey = negativeCacheKey;
+            mResult = result;
+        }
+    }
 
-        // Get Ehplmns & mccmnc from SubscriptionManager
-        SubscriptionManager subscriptionManager =
-                mContext.getSystemService(SubscriptionManager.class);
-        if (subscriptionManager == null) {
-            Log.e(TAG, "SubscriptionManager is NULL");
-            return plmnsFromCarrierConfig.toArray(new String[plmnsFromCarrierConfig.size()]);
+    /**
+     * Cancels the outstanding DNS queries of a selection.
+     *
+     * <p>{@link DnsResolver} replaces the cancel listener of a {@link CancellationSignal} with its
+     * own on every query, so each query gets a signal of its own. A cancelled query is never
+     * answered, so the caller also provides what to do in place of the answer.
+     */
+    private static final class DnsQueryCanceller {
+        private final List<CancellationSignal> mSignals = new ArrayList<>();
+        private final List<Runnable> mOnCancelActions = new ArrayList<>();
+        private boolean mIsCancelled;
+
+        /**
+         * Returns a signal for a new query. If the selection is already cancelled, the signal is
+         * returned cancelled and onCancel runs right away.
+         */
+        CancellationSignal newQuerySignal(@NonNull Runnable onCancel) {
+            CancellationSignal signal = new CancellationSignal();
+            synchronized (this) {
+                if (!mIsCancelled) {
+                    mSignals.add(signal);
+                    mOnCancelActions.add(onCancel);
+                    return signal;
+                }
+            }
+            signal.cancel();
+            onCancel.run();
+            return signal;
         }
 
-        SubscriptionInfo subInfo =
-                subscriptionManager.getActiveSubscriptionInfoForSimSlotIndex(mSlotId);
-        if (subInfo == null) {
-            Log.e(TAG, "SubscriptionInfo is NULL");
-            return plmnsFromCarrierConfig.toArray(new String[plmnsFromCarrierConfig.size()]);
+        void cancel() {
+            List<CancellationSignal> signals;
+            List<Runnable> onCancelActions;
+            synchronized (this) {
+                if (mIsCancelled) {
+                    return;
+                }
+                mIsCancelled = true;
+                signals = new ArrayList<>(mSignals);
+                onCancelActions = new ArrayList<>(mOnCancelActions);
+                mSignals.clear();
+                mOnCancelActions.clear();
+            }
+            for (CancellationSignal signal : signals) {
+                signal.cancel();
+            }
+            for (Runnable onCancel : onCancelActions) {
+                onCancel.run();
+            }
         }
 
-        // Get MCCMNC from IMSI
-        String plmnFromImsi = subInfo.getMccString() + subInfo.getMncString();
+        synchronized boolean isCancelled() {
+            return mIsCancelled;
+        }
+    }
 
-        int[] prioritizedPlmnTypes =
-                IwlanHelper.getConfig(
-                        CarrierConfigManager.Iwlan.KEY_EPDG_PLMN_PRIORITY_INT_ARRAY,
-                        mContext,
-                        mSlotId);
+    /**
+     * Starts resolving the IP addresses of this domainName. Domain names that recently returned
+     * NXDOMAIN, an empty answer or timed out on this network are skipped.
+     *
+     * @param domainName Domain name for which DNS resolution needs to be performed.
+     * @param isEmergency Specifies whether the lookup is made for an emergency session.
+     * @param network {@link Network} Network on which to run the DNS query.
+     */
+    private PendingLookup startIpLookup(
+            String domainName,
+            boolean isEmergency,
+            Network network,
+            DnsQueryCanceller canceller) {
+        Log.d(TAG, "Input domainName : " + domainName);
 
-        List<String> ehplmns = getEhplmns();
-        String registeredPlmn = getRegisteredPlmn();
+        final EpdgAddressCache.Key negativeCacheKey =
+                new EpdgAddressCache.Key(
+                        domainName, network, EpdgAddressCache.QUERY_TYPE_UNSPECIFIED, isEmergency);
+        final CompletableFuture<List<InetAddress>> result = new CompletableFuture<>();
+        if (InetAddresses.isNumericAddress(domainName)) {
+            Log.d(TAG, domainName + " is a numeric IP address!");
+            result.complete(List.of(InetAddresses.parseNumericAddress(domainName)));
+        } else if (mAddressCache.isKnownNegative(negativeCacheKey)) {
+            Log.d(TAG, "Skipping known negative domain: " + domainName);
+            result.complete(List.of());
+        } else {
+            final DnsResolver.Callback<List<InetAddress>> cb =
+                    new DnsResolver.Callback<List<InetAddress>>() {
+                        @Override
+                        public void onAnswer(
+                                @NonNull final List<InetAddress> answer, final int rcode) {
+                            if (rcode != 0) {
+                                Log.e(TAG, "DnsResolver Response Code = " + rcode);
+                            }
+                            if (answer.isEmpty()) {
+                                mAddressCache.putNegative(
+                                        negativeCacheKey, getNegativeReason(rcode));
+                            } else {
+                                mAddressCache.removeNegative(negativeCacheKey);
+                            }
+                            result.complete(answer);
+                        }
 
-        List<String> combinedList = new ArrayList<>();
-        for (int plmnType : prioritizedPlmnTypes) {
-            switch (plmnType) {
-                case CarrierConfigManager.Iwlan.EPDG_PLMN_RPLMN:
-                    if (isInEpdgSelectionInfo(registeredPlmn)) {
-                        combinedList.add(registeredPlmn);
-                    }
-                    break;
-                case CarrierConfigManager.Iwlan.EPDG_PLMN_HPLMN:
-                    combinedList.add(plmnFromImsi);
-                    break;
-                case CarrierConfigManager.Iwlan.EPDG_PLMN_EHPLMN_ALL:
-                    combinedList.addAll(getEhplmns());
-                    break;
-                case CarrierConfigManager.Iwlan.EPDG_PLMN_EHPLMN_FIRST:
-                    if (!ehplmns.isEmpty()) {
-                        combinedList.add(ehplmns.get(0));
-                    }
-                    break;
-                default:
-                    Log.e(TAG, "Unknown PLMN type: " + plmnType);
-                    break;
-            }
+                        @Override
+                        public void onError(@Nullable final DnsResolver.DnsException error) {
+                            Log.e(TAG, "Resolve DNS with error : " + error);
+                            result.completeExceptionally(error);
+                        }
+                    };
+            EpdgDnsQueryCoalescer.getInstance()
+                    .query(
+                            network,
+                            domainName,
+                            DnsResolver.FLAG_EMPTY,
+                            Runnable::run,
+                            canceller.newQuerySignal(() -> result.complete(List.of())),
+                            withDnsMetrics(
+                                    cb,
+                                    CarrierConfigManager.Iwlan.EPDG_ADDRESS_VISITED_COUNTRY,
+                                    domainName,
+                                    EpdgAddressCache.QUERY_TYPE_UNSPECIFIED,
+                                    network));
         }
-
-        combinedList =
-                combinedList.stream()
-                        .distinct()
-                        .filter(EpdgSelector::isValidPlmn)
-                        .map(plmn -> new StringBuilder(plmn).insert(3, "-").toString())
-                        .toList();
-
-        Log.d(TAG, "Final plmn list:" + combinedList);
-        return combinedList.toArray(new String[combinedList.size()]);
+        return new PendingLookup(domainName, negativeCacheKey, result);
     }
 
-    private List<String> getPlmnsFromCarrierConfig() {
-        return Arrays.asList(
-                IwlanHelper.getConfig(
-                        CarrierConfigManager.Iwlan.KEY_MCC_MNCS_STRING_ARRAY, mContext, mSlotId));
+    /**
+     * Starts resolving the IP addresses of the targets of this SRV domain name, as returned for a
+     * NAPTR record with the "S" flag. The ports are not used, as IKE runs on well-known ports.
+     */
+    private PendingLookup startSrvLookup(
+            String domainName,
+            boolean isEmergency,
+            Network network,
+            DnsQueryCanceller canceller) {
+        Log.d(TAG, "Input SRV domainName : " + domainName);
+
+        final EpdgAddressCache.Key negativeCacheKey =
+                new EpdgAddressCache.Key(
+                        domainName, network, SrvDnsResolver.QUERY_TYPE_SRV, isEmergency);
+        final CompletableFuture<List<InetAddress>> result = new CompletableFuture<>();
+        if (mAddressCache.isKnownNegative(negativeCacheKey)) {
+            Log.d(TAG, "Skipping known negative domain: " + domainName);
+            result.complete(List.of());
+        } else {
+            final DnsResolver.Callback<List<SrvRecordInetAddress>> cb =
+                    new DnsResolver.Callback<List<SrvRecordInetAddress>>() {
+                        @Override
+                        public void onAnswer(
+                                @NonNull final List<SrvRecordInetAddress> answer,
+                                final int rcode) {
+                            if (rcode != 0) {
+                                Log.e(TAG, "SrvDnsResolver Response Code = " + rcode);
+                            }
+                            if (answer.isEmpty()) {
+                                mAddressCache.putNegative(
+                                        negativeCacheKey, getNegativeReason(rcode));
+                            } else {
+                                mAddressCache.removeNegative(negativeCacheKey);
+                            }
+                            List<InetAddress> addresses = new ArrayList<>();
+                            for (SrvRecordInetAddress srvRecordInetAddress : answer) {
+                                addresses.add(srvRecordInetAddress.mInetAddress);
+                            }
+                            result.complete(addresses);
+                        }
+
+                        @Override
+                        public void onError(@Nullable final DnsResolver.DnsException error) {
+                            Log.e(TAG, "Resolve SRV with error : " + error);
+                            result.completeExceptionally(error);
+                        }
+                    };
+            SrvDnsResolver.query(
+                    network,
+                    domainName,
+                    Runnable::run,
+                    canceller.newQuerySignal(() -> result.complete(List.of())),
+                    withDnsMetrics(
+                            cb,
+                            CarrierConfigManager.Iwlan.EPDG_ADDRESS_VISITED_COUNTRY,
+                            domainName,
+                            SrvDnsResolver.QUERY_TYPE_SRV,
+                            network));
+        }
+        return new PendingLookup(domainName, negativeCacheKey, result);
     }
 
-    private boolean isInEpdgSelectionInfo(String plmn) {
-        if (!isValidPlmn(plmn)) {
-            return false;
+    /**
+     * Updates the validIpList with the IP addresses of a lookup, waiting for it until the deadline
+     * at the latest.
+     *
+     * @param lookup The lookup started by {@link #startIpLookup} or {@link #startSrvLookup}.
+     * @param filter Selects for IPv4, IPv6 (or both) addresses from the resulting DNS records
+     * @param validIpList A running list of IP addresses that needs to be updated.
+     * @param deadline The {@link IwlanHelper#elapsedRealtime} after which the lookup is abandoned.
+     */
+    private void awaitLookup(
+            PendingLookup lookup,
+            int filter,
+            Network network,
+            List<InetAddress> validIpList,
+            long deadline) {
+        try {
+            long remainingMillis = Math.max(0, deadline - IwlanHelper.elapsedRealtime());
+            List<InetAddress> ipList = lookup.mResult.get(remainingMillis, TimeUnit.MILLISECONDS);
+            validIpList.addAll(v4v6ProtocolFilter(ipList, filter, network));
+        } catch (ExecutionException e) {
+            Log.e(TAG, "Cause of ExecutionException: ", e.getCause());
+        } catch (InterruptedException e) {
+            Thread thread = Thread.currentThread();
+            if (thread.interrupted()) {
+                thread.interrupt();
+            }
+            Log.e(TAG, "InterruptedException: ", e);
+        } catch (TimeoutException e) {
+            Log.e(TAG, "TimeoutException for domain: " + lookup.mDomainName);
+            // A late answer replaces the entry.
+            mAddressCache.putNegative(
+                    lookup.mNegativeCacheKey, EpdgAddressCache.NEGATIVE_REASON_TIMEOUT);
+            mDnsTimeouts.onTimeout(
+                    lookup.mNegativeCacheKey.mNetwork, lookup.mNegativeCacheKey.mQueryType);
         }
-        List<String> plmnsFromCarrierConfig = getPlmnsFromCarrierConfig();
-        return plmnsFromCarrierConfig.contains(new StringBuilder(plmn).insert(3, "-").toString());
     }
 
     private ArrayList<InetAddress> removeDuplicateIp(List<InetAddress> validIpList) {
@@ -549,18 +964,17 @@ public class EpdgSelector {
         }
     }
 
-    private String[] splitMccMnc(String plmn) {
-        String[] mccmnc = plmn.split("-");
-        mccmnc[1] = String.format("%03d", Integer.parseInt(mccmnc[1]));
-        return mccmnc;
-    }
-
     /**
      * @return the registered PLMN, null if not registered with 3gpp or failed to get telephony
      *     manager
      */
     @Nullable
     private String getRegisteredPlmn() {
+        IwlanTelephonyState telephonyState = IwlanTelephonyState.get(mSlotId);
+        if (telephonyState != null) {
+            return telephonyState.getRegisteredPlmn();
+        }
+
         TelephonyManager telephonyManager = mContext.getSystemService(TelephonyManager.class);
         if (telephonyManager == null) {
             Log.e(TAG, "TelephonyManager is NULL");
@@ -575,6 +989,11 @@ public class EpdgSelector {
     }
 
     private List<String> getEhplmns() {
+        IwlanTelephonyState telephonyState = IwlanTelephonyState.get(mSlotId);
+        if (telephonyState != null) {
+            return telephonyState.getEhplmns();
+        }
+
         TelephonyManager mTelephonyManager = mContext.getSystemService(TelephonyManager.class);
         mTelephonyManager =
                 Objects.requireNonNull(mTelephonyManager)
@@ -589,272 +1008,323 @@ public class EpdgSelector {
     }
 
     private void resolutionMethodStatic(
-            int filter, List<InetAddress> validIpList, Network network) {
-        String[] domainNames = null;
-
+            int filter,
+            List<InetAddress> validIpList,
+            boolean isEmergency,
+            Network network,
+            EpdgResolutionPlan plan,
+            DnsQueryCanceller canceller) {
         Log.d(TAG, "STATIC Method");
 
-        // Get the static domain names from carrier config
-        // Config obtained in form of a list of domain names separated by
-        // a delimiter is only used for testing purpose.
-        if (!inSameCountry()) {
-            domainNames =
-                    getDomainNames(
-                            CarrierConfigManager.Iwlan.KEY_EPDG_STATIC_ADDRESS_ROAMING_STRING);
-        }
-        if (domainNames == null
-                && (domainNames =
-                                getDomainNames(
-                                        CarrierConfigManager.Iwlan.KEY_EPDG_STATIC_ADDRESS_STRING))
-                        == null) {
+        List<String> domainNames = plan.getStaticDomainNames();
+        if (domainNames.isEmpty()) {
             Log.d(TAG, "Static address string is null");
             return;
         }
 
-        Log.d(TAG, "Static Domain Names: " + Arrays.toString(domainNames));
+        Log.d(TAG, "Static Domain Names: " + domainNames);
         LinkedHashMap<String, List<InetAddress>> domainNameToIpAddr =
                 getIP(
-                        Arrays.asList(domainNames),
+                        domainNames,
                         filter,
+                        isEmergency,
                         network,
-                        PARALLEL_STATIC_RESOLUTION_TIMEOUT_DURATION_SEC);
+                        plan.getQueryTypes(),
+                        CarrierConfigManager.Iwlan.EPDG_ADDRESS_STATIC,
+                        canceller,
+                        getDnsTimeoutMs(
+                                network,
+                                plan.getQueryTypes(),
+                                PARALLEL_STATIC_RESOLUTION_TIMEOUT_DURATION_SEC));
         printParallelDnsResult(domainNameToIpAddr);
         domainNameToIpAddr.values().forEach(validIpList::addAll);
     }
 
-    private String[] getDomainNames(String key) {
-        String configValue = (String) IwlanHelper.getConfig(key, mContext, mSlotId);
-        if (configValue == null || configValue.isEmpty()) {
-            Log.d(TAG, key + " string is null");
-            return null;
+    /**
+     * Returns the resolution plan for the current carrier config, SIM, registration and cells. The
+     * plan is only compiled if one of them changed since it was last used. Only the inputs of the
+     * configured resolution methods are read.
+     */
+    private EpdgResolutionPlan getResolutionPlan(
+            @ProtoFilter int filter,
+            boolean isEmergency,
+            Network network,
+            int[] addrResolutionMethods) {
+        boolean isStaticRequired = false;
+        boolean isPlmnListRequired = false;
+        boolean isCellularLocRequired = false;
+        for (int addrResolutionMethod : addrResolutionMethods) {
+            switch (addrResolutionMethod) {
+                case CarrierConfigManager.Iwlan.EPDG_ADDRESS_STATIC:
+                    isStaticRequired = true;
+                    break;
+                case CarrierConfigManager.Iwlan.EPDG_ADDRESS_CELLULAR_LOC:
+                    isCellularLocRequired = true;
+                    isPlmnListRequired = true;
+                    break;
+                case CarrierConfigManager.Iwlan.EPDG_ADDRESS_PLMN:
+                    isPlmnListRequired = true;
+                    break;
+                default:
+                    break;
+            }
         }
-        return configValue.split(",");
-    }
 
-    private boolean inSameCountry() {
+        String staticAddresses = null;
+        String staticAddressesRoaming = null;
         boolean inSameCountry = true;
-
-        TelephonyManager tm = mContext.getSystemService(TelephonyManager.class);
-        tm =
-                Objects.requireNonNull(tm)
-                        .createForSubscriptionId(IwlanHelper.getSubId(mContext, mSlotId));
-
-        if (tm != null) {
-            String simCountry = tm.getSimCountryIso();
-            String currentCountry = IwlanHelper.getLastKnownCountryCode(mContext);
-            if (!TextUtils.isEmpty(simCountry) && !TextUtils.isEmpty(currentCountry)) {
-                Log.d(TAG, "simCountry = " + simCountry + ", currentCountry = " + currentCountry);
-                inSameCountry = simCountry.equalsIgnoreCase(currentCountry);
+        if (isStaticRequired) {
+            staticAddresses =
+                    IwlanHelper.getConfig(
+                            CarrierConfigManager.Iwlan.KEY_EPDG_STATIC_ADDRESS_STRING,
+                            mContext,
+                            mSlotId);
+            staticAddressesRoaming =
+                    IwlanHelper.getConfig(
+                            CarrierConfigManager.Iwlan.KEY_EPDG_STATIC_ADDRESS_ROAMING_STRING,
+                            mContext,
+                            mSlotId);
+            if (!TextUtils.isEmpty(staticAddressesRoaming)) {
+                inSameCountry = inSameCountry();
             }
         }
 
-        return inSameCountry;
-    }
+        String[] mccMncs = new String[0];
+        int[] plmnPriorities = new int[0];
+        String plmnFromImsi = null;
+        List<String> ehplmns = List.of();
+        String registeredPlmn = null;
+        if (isPlmnListRequired) {
+            mccMncs =
+                    IwlanHelper.getConfig(
+                            CarrierConfigManager.Iwlan.KEY_MCC_MNCS_STRING_ARRAY,
+                            mContext,
+                            mSlotId);
+            plmnPriorities =
+                    IwlanHelper.getConfig(
+                            CarrierConfigManager.Iwlan.KEY_EPDG_PLMN_PRIORITY_INT_ARRAY,
+                            mContext,
+                            mSlotId);
+            // Get MCCMNC from IMSI
+            plmnFromImsi = getSimPlmn();
+            if (plmnFromImsi != null) {
+                ehplmns = getEhplmns();
+                registeredPlmn = getRegisteredPlmn();
+            }
+        }
 
-    private Map<String, List<InetAddress>> resolutionMethodPlmn(
-            int filter, List<InetAddress> validIpList, boolean isEmergency, Network network) {
-        String[] plmnList;
-        StringBuilder domainName = new StringBuilder();
+        long[] cellLocations =
+                isCellularLocRequired ? getRegisteredCellLocations() : new long[0];
 
-        Log.d(TAG, "PLMN Method");
+        // The address families of the network only matter to the methods that query A/AAAA.
+        boolean isDnsRequired = isStaticRequired || isPlmnListRequired;
 
-        plmnList = getPlmnList();
-        List<String> domainNames = new ArrayList<>();
-        for (String plmn : plmnList) {
-            String[] mccmnc = splitMccMnc(plmn);
-            /*
-             * Operator Identifier based ePDG FQDN format:
-             * epdg.epc.mnc<MNC>.mcc<MCC>.pub.3gppnetwork.org
-             *
-             * Operator Identifier based Emergency ePDG FQDN format:
-             * sos.epdg.epc.mnc<MNC>.mcc<MCC>.pub.3gppnetwork.org
-             */
-            if (isEmergency) {
-                domainName = new StringBuilder();
-                domainName
-                        .append("sos.")
-                        .append("epdg.epc.mnc")
-                        .append(mccmnc[1])
-                        .append(".mcc")
-                        .append(mccmnc[0])
-                        .append(".pub.3gppnetwork.org");
-                domainNames.add(domainName.toString());
-                domainName.setLength(0);
+        EpdgResolutionPlan.Inputs inputs =
+                new EpdgResolutionPlan.Inputs(
+                        filter,
+                        isEmergency,
+                        isDnsRequired && hasIpv4Address(network),
+                        isDnsRequired && hasIpv6Address(network),
+                        inSameCountry,
+                        staticAddresses,
+                        staticAddressesRoaming,
+                        mccMncs,
+                        plmnPriorities,
+                        plmnFromImsi,
+                        ehplmns,
+                        registeredPlmn,
+                        cellLocations);
+        synchronized (mResolutionPlans) {
+            EpdgResolutionPlan plan = mResolutionPlans.get(inputs);
+            if (plan == null) {
+                plan = EpdgResolutionPlan.compile(inputs);
+                mResolutionPlans.put(inputs, plan);
+                mNumCompiledPlans++;
             }
-            // For emergency PDN setup, still adding FQDN without "sos" header as second priority
-            // because some operator doesn't support hostname with "sos" prefix.
-            domainName
-                    .append("epdg.epc.mnc")
-                    .append(mccmnc[1])
-                    .append(".mcc")
-                    .append(mccmnc[0])
-                    .append(".pub.3gppnetwork.org");
-            domainNames.add(domainName.toString());
-            domainName.setLength(0);
+            return plan;
         }
-
-        LinkedHashMap<String, List<InetAddress>> domainNameToIpAddr =
-                getIP(domainNames, filter, network, PARALLEL_PLMN_RESOLUTION_TIMEOUT_DURATION_SEC);
-        printParallelDnsResult(domainNameToIpAddr);
-        domainNameToIpAddr.values().forEach(validIpList::addAll);
-        return domainNameToIpAddr;
     }
 
-    private void resolutionMethodCellularLoc(
-            int filter, List<InetAddress> validIpList, boolean isEmergency, Network network) {
-        String[] plmnList;
-        StringBuilder domainName = new StringBuilder();
-
-        Log.d(TAG, "CELLULAR_LOC Method");
-
-        TelephonyManager mTelephonyManager = mContext.getSystemService(TelephonyManager.class);
-        mTelephonyManager =
-                Objects.requireNonNull(mTelephonyManager)
-                        .createForSubscriptionId(IwlanHelper.getSubId(mContext, mSlotId));
-
-        if (mTelephonyManager == null) {
-            Log.e(TAG, "TelephonyManager is NULL");
-            return;
+    /** Returns the MCC and MNC of the IMSI, or null if they are not known. */
+    @Nullable
+    private String getSimPlmn() {
+        IwlanTelephonyState telephonyState = IwlanTelephonyState.get(mSlotId);
+        if (telephonyState != null) {
+            return telephonyState.getSimPlmn();
         }
 
-        List<CellInfo> cellInfoList = mTelephonyManager.getAllCellInfo();
-        if (cellInfoList == null) {
-            Log.e(TAG, "cellInfoList is NULL");
-            return;
-        }
+        SubscriptionInfo subInfo = getActiveSubscriptionInfo();
+        return subInfo != null ? IwlanTelephonyState.toSimPlmn(subInfo) : null;
+    }
 
-        for (CellInfo cellInfo : cellInfoList) {
-            if (!cellInfo.isRegistered()) {
+    @Nullable
+    private SubscriptionInfo getActiveSubscriptionInfo() {
+        SubscriptionManager subscriptionManager =
+                mContext.getSystemService(SubscriptionManager.class);
+        if (subscriptionManager == null) {
+            Log.e(TAG, "SubscriptionManager is NULL");
+            return null;
+        }
+        SubscriptionInfo subInfo =
+                subscriptionManager.getActiveSubscriptionInfoForSimSlotIndex(mSlotId);
+        if (subInfo == null) {
+            Log.e(TAG, "SubscriptionInfo is NULL");
+        }
+        return subInfo;
+    }
+
+    /** Returns the location or tracking area of each registered cell, in cell info order. */
+    private long[] getRegisteredCellLocations() {
+        return getRegisteredCellLocations(getAllCellInfo());
+    }
+
+    /** Returns the location or tracking area of each registered cell, in cell info order. */
+    static long[] getRegisteredCellLocations(@Nullable List<CellInfo> cellInfoList) {
+        if (cellInfoList == null) {
+            return new long[0];
+        }
+
+        List<Long> cellLocations = new ArrayList<>();
+        for (CellInfo cellInfo : cellInfoList) {
+            if (!cellInfo.isRegistered()) {
                 continue;
             }
 
             if (cellInfo instanceof CellInfoGsm) {
                 CellIdentityGsm gsmCellId = ((CellInfoGsm) cellInfo).getCellIdentity();
-                String lacString = String.format("%04x", gsmCellId.getLac());
-
-                lacDomainNameResolution(filter, validIpList, lacString, isEmergency, network);
+                cellLocations.add(
+                        EpdgResolutionPlan.cellLocation(
+                                EpdgResolutionPlan.CELL_LOCATION_LAC, gsmCellId.getLac()));
             } else if (cellInfo instanceof CellInfoWcdma) {
                 CellIdentityWcdma wcdmaCellId = ((CellInfoWcdma) cellInfo).getCellIdentity();
-                String lacString = String.format("%04x", wcdmaCellId.getLac());
-
-                lacDomainNameResolution(filter, validIpList, lacString, isEmergency, network);
+                cellLocations.add(
+                        EpdgResolutionPlan.cellLocation(
+                                EpdgResolutionPlan.CELL_LOCATION_LAC, wcdmaCellId.getLac()));
             } else if (cellInfo instanceof CellInfoLte) {
                 CellIdentityLte lteCellId = ((CellInfoLte) cellInfo).getCellIdentity();
-                String tacString = String.format("%04x", lteCellId.getTac());
-                String[] tacSubString = new String[2];
-                tacSubString[0] = tacString.substring(0, 2);
-                tacSubString[1] = tacString.substring(2);
-
-                plmnList = getPlmnList();
-                for (String plmn : plmnList) {
-                    String[] mccmnc = splitMccMnc(plmn);
-                    /**
-                     * Tracking Area Identity based ePDG FQDN format:
-                     * tac-lb<TAC-low-byte>.tac-hb<TAC-high-byte>.tac.
-                     * epdg.epc.mnc<MNC>.mcc<MCC>.pub.3gppnetwork.org
-                     *
-                     * <p>Tracking Area Identity based Emergency ePDG FQDN format:
-                     * tac-lb<TAC-low-byte>.tac-hb<TAC-highbyte>.tac.
-                     * sos.epdg.epc.mnc<MNC>.mcc<MCC>.pub.3gppnetwork.org"
-                     */
-                    domainName
-                            .append("tac-lb")
-                            .append(tacSubString[1])
-                            .append(".tac-hb")
-                            .append(tacSubString[0]);
-                    if (isEmergency) {
-                        domainName.append(".tac.sos.epdg.epc.mnc");
-                    } else {
-                        domainName.append(".tac.epdg.epc.mnc");
-                    }
-                    domainName
-                            .append(mccmnc[1])
-                            .append(".mcc")
-                            .append(mccmnc[0])
-                            .append(".pub.3gppnetwork.org");
-                    getIP(domainName.toString(), filter, validIpList, network);
-                    domainName.setLength(0);
-                }
+                cellLocations.add(
+                        EpdgResolutionPlan.cellLocation(
+                                EpdgResolutionPlan.CELL_LOCATION_TAC, lteCellId.getTac()));
             } else if (cellInfo instanceof CellInfoNr) {
                 CellIdentityNr nrCellId = (CellIdentityNr) cellInfo.getCellIdentity();
-                String tacString = String.format("%06x", nrCellId.getTac());
-                String[] tacSubString = new String[3];
-                tacSubString[0] = tacString.substring(0, 2);
-                tacSubString[1] = tacString.substring(2, 4);
-                tacSubString[2] = tacString.substring(4);
-
-                plmnList = getPlmnList();
-                for (String plmn : plmnList) {
-                    String[] mccmnc = splitMccMnc(plmn);
-                    /**
-                     * 5GS Tracking Area Identity based ePDG FQDN format:
-                     * tac-lb<TAC-low-byte>.tac-mb<TAC-middle-byte>.tac-hb<TAC-high-byte>.
-                     * 5gstac.epdg.epc.mnc<MNC>.mcc<MCC>.pub.3gppnetwork.org
-                     *
-                     * <p>5GS Tracking Area Identity based Emergency ePDG FQDN format:
-                     * tac-lb<TAC-low-byte>.tac-mb<TAC-middle-byte>.tac-hb<TAC-high-byte>.
-                     * 5gstac.sos.epdg.epc.mnc<MNC>.mcc<MCC>.pub.3gppnetwork.org
-                     */
-                    domainName
-                            .append("tac-lb")
-                            .append(tacSubString[2])
-                            .append(".tac-mb")
-                            .append(tacSubString[1])
-                            .append(".tac-hb")
-                            .append(tacSubString[0]);
-                    if (isEmergency) {
-                        domainName.append(".5gstac.sos.epdg.epc.mnc");
-                    } else {
-                        domainName.append(".5gstac.epdg.epc.mnc");
-                    }
-                    domainName
-                            .append(mccmnc[1])
-                            .append(".mcc")
-                            .append(mccmnc[0])
-                            .append(".pub.3gppnetwork.org");
-                    getIP(domainName.toString(), filter, validIpList, network);
-                    domainName.setLength(0);
-                }
+                cellLocations.add(
+                        EpdgResolutionPlan.cellLocation(
+                                EpdgResolutionPlan.CELL_LOCATION_5GS_TAC, nrCellId.getTac()));
             } else {
                 Log.d(TAG, "This cell doesn't contain LAC/TAC info");
             }
         }
+        return cellLocations.stream().mapToLong(Long::longValue).toArray();
+    }
+
+    /**
+     * @return the cells of the slot, null if failed to get telephony manager or cell info
+     */
+    @Nullable
+    private List<CellInfo> getAllCellInfo() {
+        IwlanTelephonyState telephonyState = IwlanTelephonyState.get(mSlotId);
+        if (telephonyState != null) {
+            return telephonyState.getRegisteredCellInfos();
+        }
+
+        TelephonyManager telephonyManager = mContext.getSystemService(TelephonyManager.class);
+        telephonyManager =
+                Objects.requireNonNull(telephonyManager)
+                        .createForSubscriptionId(IwlanHelper.getSubId(mContext, mSlotId));
+        if (telephonyManager == null) {
+            Log.e(TAG, "TelephonyManager is NULL");
+            return null;
+        }
+
+        List<CellInfo> cellInfoList = telephonyManager.getAllCellInfo();
+        if (cellInfoList == null) {
+            Log.e(TAG, "cellInfoList is NULL");
+        }
+        return cellInfoList;
+    }
+
+    private boolean inSameCountry() {
+        boolean inSameCountry = true;
+
+        String simCountry = null;
+        IwlanTelephonyState telephonyState = IwlanTelephonyState.get(mSlotId);
+        if (telephonyState != null) {
+            simCountry = telephonyState.getSimCountryIso();
+        } else {
+            TelephonyManager tm = mContext.getSystemService(TelephonyManager.class);
+            tm =
+                    Objects.requireNonNull(tm)
+                            .createForSubscriptionId(IwlanHelper.getSubId(mContext, mSlotId));
+            if (tm != null) {
+                simCountry = tm.getSimCountryIso();
+            }
+        }
+
+        String currentCountry = IwlanHelper.getLastKnownCountryCode(mContext);
+        if (!TextUtils.isEmpty(simCountry) && !TextUtils.isEmpty(currentCountry)) {
+            Log.d(TAG, "simCountry = " + simCountry + ", currentCountry = " + currentCountry);
+            inSameCountry = simCountry.equalsIgnoreCase(currentCountry);
+        }
+
+        return inSameCountry;
     }
 
-    private void lacDomainNameResolution(
+    private Map<String, List<InetAddress>> resolutionMethodPlmn(
             int filter,
             List<InetAddress> validIpList,
-            String lacString,
             boolean isEmergency,
-            Network network) {
-        String[] plmnList;
-        StringBuilder domainName = new StringBuilder();
+            Network network,
+            EpdgResolutionPlan plan,
+            DnsQueryCanceller canceller) {
+        Log.d(TAG, "PLMN Method");
 
-        plmnList = getPlmnList();
-        for (String plmn : plmnList) {
-            String[] mccmnc = splitMccMnc(plmn);
-            /**
-             * Location Area Identity based ePDG FQDN format:
-             * lac<LAC>.epdg.epc.mnc<MNC>.mcc<MCC>.pub.3gppnetwork.org
-             *
-             * <p>Location Area Identity based Emergency ePDG FQDN format:
-             * lac<LAC>.sos.epdg.epc.mnc<MNC>.mcc<MCC>.pub.3gppnetwork.org
-             */
-            domainName.append("lac").append(lacString);
-            if (isEmergency) {
-                domainName.append(".sos.epdg.epc.mnc");
-            } else {
-                domainName.append(".epdg.epc.mnc");
-            }
-            domainName
-                    .append(mccmnc[1])
-                    .append(".mcc")
-                    .append(mccmnc[0])
-                    .append(".pub.3gppnetwork.org");
+        LinkedHashMap<String, List<InetAddress>> domainNameToIpAddr =
+                getIP(
+                        plan.getPlmnDomainNames(),
+                        filter,
+                        isEmergency,
+                        network,
+                        plan.getQueryTypes(),
+                        CarrierConfigManager.Iwlan.EPDG_ADDRESS_PLMN,
+                        canceller,
+                        getDnsTimeoutMs(
+                                network,
+                                plan.getQueryTypes(),
+                                PARALLEL_PLMN_RESOLUTION_TIMEOUT_DURATION_SEC));
+        printParallelDnsResult(domainNameToIpAddr);
+        domainNameToIpAddr.values().forEach(validIpList::addAll);
+        return domainNameToIpAddr;
+    }
 
-            getIP(domainName.toString(), filter, validIpList, network);
-            domainName.setLength(0);
+    private void resolutionMethodCellularLoc(
+            int filter,
+            List<InetAddress> validIpList,
+            boolean isEmergency,
+            Network network,
+            EpdgResolutionPlan plan,
+            DnsQueryCanceller canceller) {
+        Log.d(TAG, "CELLULAR_LOC Method");
+
+        List<String> domainNames = plan.getCellularLocDomainNames();
+        if (domainNames.isEmpty()) {
+            return;
         }
+
+        LinkedHashMap<String, List<InetAddress>> domainNameToIpAddr =
+                getIP(
+                        domainNames,
+                        filter,
+                        isEmergency,
+                        network,
+                        plan.getQueryTypes(),
+                        CarrierConfigManager.Iwlan.EPDG_ADDRESS_CELLULAR_LOC,
+                        canceller,
+                        getDnsTimeoutMs(
+                                network,
+                                plan.getQueryTypes(),
+                                PARALLEL_CELLULAR_LOC_RESOLUTION_TIMEOUT_DURATION_SEC));
+        printParallelDnsResult(domainNameToIpAddr);
+        domainNameToIpAddr.values().forEach(validIpList::addAll);
     }
 
     private void resolutionMethodPco(int filter, List<InetAddress> validIpList) {
@@ -933,11 +1403,8 @@ public class EpdgSelector {
         return domainName.toString();
     }
 
-    private boolean isRegisteredWith3GPP(TelephonyManager telephonyManager) {
-        List<CellInfo> cellInfoList = telephonyManager.getAllCellInfo();
-        if (cellInfoList == null) {
-            Log.e(TAG, "cellInfoList is NULL");
-        } else {
+    private boolean isRegisteredWith3GPP(@Nullable List<CellInfo> cellInfoList) {
+        if (cellInfoList != null) {
             for (CellInfo cellInfo : cellInfoList) {
                 if (!cellInfo.isRegistered()) {
                     continue;
@@ -954,6 +1421,13 @@ public class EpdgSelector {
         return false;
     }
 
+    /**
+     * Resolves every A and SRV target of the NAPTR response at once, then collects the results in
+     * the order of 3GPP TS 23.402 4.5.4.5.
+     *
+     * @param lookups The lookups already started, by domain name. Lookups for the targets of the
+     *     response are added to it.
+     */
     private void processNaptrResponse(
             int filter,
             List<InetAddress> validIpList,
@@ -962,17 +1436,38 @@ public class EpdgSelector {
             boolean isRegisteredWith3GPP,
             List<NaptrTarget> naptrResponse,
             Set<String> plmnsFromCarrierConfig,
-            String registeredhostName) {
+            String registeredhostName,
+            Map<String, PendingLookup> lookups,
+            DnsQueryCanceller canceller) {
         Set<String> resultSet = new LinkedHashSet<>();
 
         for (NaptrTarget target : naptrResponse) {
             Log.d(TAG, "NaptrTarget - name: " + target.mName);
             Log.d(TAG, "NaptrTarget - type: " + target.mType);
             if (target.mType == NaptrDnsResolver.TYPE_A) {
+                lookups.computeIfAbsent(
+                        target.mName,
+                        name -> startIpLookup(name, isEmergency, network, canceller));
+                resultSet.add(target.mName);
+            } else if (target.mType == NaptrDnsResolver.TYPE_SRV) {
+                lookups.computeIfAbsent(
+                        target.mName,
+                        name -> startSrvLookup(name, isEmergency, network, canceller));
                 resultSet.add(target.mName);
             }
         }
 
+        // The lookups run concurrently, so they share a single timeout.
+        final long deadline =
+                IwlanHelper.elapsedRealtime()
+                        + getDnsTimeoutMs(
+                                network,
+                                new int[] {
+                                    EpdgAddressCache.QUERY_TYPE_UNSPECIFIED,
+                                    SrvDnsResolver.QUERY_TYPE_SRV
+                                },
+                                DNS_RESOLVER_TIMEOUT_DURATION_SEC);
+
         /*
          * As 3GPP TS 23.402 4.5.4.5 bullet 2a,
          * if the device registers via 3GPP and its PLMN info is in the NAPTR response,
@@ -980,7 +1475,8 @@ public class EpdgSelector {
          */
         if (isRegisteredWith3GPP) {
             if (resultSet.contains(registeredhostName)) {
-                getIP(registeredhostName, filter, validIpList, network);
+                awaitLookup(
+                        lookups.get(registeredhostName), filter, network, validIpList, deadline);
                 resultSet.remove(registeredhostName);
             }
         }
@@ -990,11 +1486,16 @@ public class EpdgSelector {
          * Check if there is any PLMN in both ePDG selection information and the DNS response
          */
         for (String plmn : plmnsFromCarrierConfig) {
-            String[] mccmnc = splitMccMnc(plmn);
+            String[] mccmnc = EpdgResolutionPlan.splitMccMnc(plmn);
             String carrierConfighostName = composeFqdnWithMccMnc(mccmnc[0], mccmnc[1], isEmergency);
 
             if (resultSet.contains(carrierConfighostName)) {
-                getIP(carrierConfighostName, filter, validIpList, network);
+                awaitLookup(
+                        lookups.get(carrierConfighostName),
+                        filter,
+                        network,
+                        validIpList,
+                        deadline);
                 resultSet.remove(carrierConfighostName);
             }
         }
@@ -1003,25 +1504,25 @@ public class EpdgSelector {
          * Do FQDN with the remaining PLMNs in the ResultSet
          */
         for (String result : resultSet) {
-            getIP(result, filter, validIpList, network);
+            awaitLookup(lookups.get(result), filter, network, validIpList, deadline);
         }
     }
 
     private void resolutionMethodVisitedCountry(
-            int filter, List<InetAddress> validIpList, boolean isEmergency, Network network) {
+            int filter,
+            List<InetAddress> validIpList,
+            boolean isEmergency,
+            Network network,
+            DnsQueryCanceller canceller) {
         StringBuilder domainName = new StringBuilder();
 
-        TelephonyManager telephonyManager = mContext.getSystemService(TelephonyManager.class);
-        telephonyManager =
-                Objects.requireNonNull(telephonyManager)
-                        .createForSubscriptionId(IwlanHelper.getSubId(mContext, mSlotId));
-
-        if (telephonyManager == null) {
-            Log.e(TAG, "TelephonyManager is NULL");
+        final String registeredPlmn = getRegisteredPlmn();
+        if (registeredPlmn == null) {
+            Log.e(TAG, "Not registered with a PLMN");
             return;
         }
 
-        final boolean isRegisteredWith3GPP = isRegisteredWith3GPP(telephonyManager);
+        final boolean isRegisteredWith3GPP = isRegisteredWith3GPP(getAllCellInfo());
 
         // Get ePDG selection information from CarrierConfig
         final Set<String> plmnsFromCarrierConfig =
@@ -1032,8 +1533,8 @@ public class EpdgSelector {
                                         mContext,
                                         mSlotId)));
 
-        final String cellMcc = telephonyManager.getNetworkOperator().substring(0, 3);
-        final String cellMnc = telephonyManager.getNetworkOperator().substring(3);
+        final String cellMcc = registeredPlmn.substring(0, 3);
+        final String cellMnc = registeredPlmn.substring(3);
         final String plmnFromNetwork = cellMcc + "-" + cellMnc;
         final String registeredhostName = composeFqdnWithMccMnc(cellMcc, cellMnc, isEmergency);
 
@@ -1043,9 +1544,15 @@ public class EpdgSelector {
         * If the UE is registered via 3GPP access to a PLMN and this PLMN matches an entry
           in the ePDG selection information, then the UE shall select an ePDG in this PLMN.
         */
+        // Runs concurrently with the NAPTR query below, and is reused if the NAPTR response
+        // also lists the registered PLMN.
+        final Map<String, PendingLookup> lookups = new HashMap<>();
+        PendingLookup registeredHostLookup = null;
         if (isRegisteredWith3GPP) {
             if (plmnsFromCarrierConfig.contains(plmnFromNetwork)) {
-                getIP(registeredhostName, filter, validIpList, network);
+                registeredHostLookup =
+                        startIpLookup(registeredhostName, isEmergency, network, canceller);
+                lookups.put(registeredhostName, registeredHostLookup);
             }
         }
 
@@ -1066,14 +1573,27 @@ public class EpdgSelector {
 
         Log.d(TAG, "Visited Country FQDN with " + domainName);
 
+        final EpdgAddressCache.Key naptrCacheKey =
+                new EpdgAddressCache.Key(
+                        domainName.toString(),
+                        network,
+                        NaptrDnsResolver.QUERY_TYPE_NAPTR,
+                        isEmergency);
+        final boolean isNaptrKnownNegative = mAddressCache.isKnownNegative(naptrCacheKey);
+        if (isNaptrKnownNegative) {
+            Log.d(TAG, "Skipping known negative domain: " + domainName);
+        }
+
         CompletableFuture<List<NaptrTarget>> naptrDnsResult = new CompletableFuture<>();
         DnsResolver.Callback<List<NaptrTarget>> naptrDnsCb =
                 new DnsResolver.Callback<List<NaptrTarget>>() {
                     @Override
                     public void onAnswer(@NonNull final List<NaptrTarget> answer, final int rcode) {
                         if (rcode == 0 && answer.size() != 0) {
+                            mAddressCache.removeNegative(naptrCacheKey);
                             naptrDnsResult.complete(answer);
                         } else {
+                            mAddressCache.putNegative(naptrCacheKey, getNegativeReason(rcode));
                             naptrDnsResult.completeExceptionally(new UnknownHostException());
                         }
                     }
@@ -1083,11 +1603,40 @@ public class EpdgSelector {
                         naptrDnsResult.completeExceptionally(error);
                     }
                 };
-        NaptrDnsResolver.query(network, domainName.toString(), Runnable::run, null, naptrDnsCb);
+        if (!isNaptrKnownNegative) {
+            NaptrDnsResolver.query(
+                    network,
+                    domainName.toString(),
+                    Runnable::run,
+                    canceller.newQuerySignal(() -> naptrDnsResult.complete(List.of())),
+                    withDnsMetrics(
+                            naptrDnsCb,
+                            CarrierConfigManager.Iwlan.EPDG_ADDRESS_VISITED_COUNTRY,
+                            domainName.toString(),
+                            NaptrDnsResolver.QUERY_TYPE_NAPTR,
+                            network));
+        }
+        final long naptrDeadline =
+                IwlanHelper.elapsedRealtime()
+                        + getDnsTimeoutMs(
+                                network,
+                                new int[] {
+                                    NaptrDnsResolver.QUERY_TYPE_NAPTR,
+                                    EpdgAddressCache.QUERY_TYPE_UNSPECIFIED
+                                },
+                                DNS_RESOLVER_TIMEOUT_DURATION_SEC);
+
+        if (registeredHostLookup != null) {
+            awaitLookup(registeredHostLookup, filter, network, validIpList, naptrDeadline);
+        }
+        if (isNaptrKnownNegative) {
+            return;
+        }
 
         try {
+            long remainingMillis = Math.max(0, naptrDeadline - IwlanHelper.elapsedRealtime());
             final List<NaptrTarget> naptrResponse =
-                    naptrDnsResult.get(DNS_RESOLVER_TIMEOUT_DURATION_SEC, TimeUnit.SECONDS);
+                    naptrDnsResult.get(remainingMillis, TimeUnit.MILLISECONDS);
             // Check if there is any record in the NAPTR response
             if (naptrResponse != null && naptrResponse.size() > 0) {
                 processNaptrResponse(
@@ -1098,7 +1647,9 @@ public class EpdgSelector {
                         isRegisteredWith3GPP,
                         naptrResponse,
                         plmnsFromCarrierConfig,
-                        registeredhostName);
+                        registeredhostName,
+                        lookups,
+                        canceller);
             }
         } catch (ExecutionException e) {
             Log.e(TAG, "Cause of ExecutionException: ", e.getCause());
@@ -1109,28 +1660,42 @@ public class EpdgSelector {
             }
             Log.e(TAG, "InterruptedException: ", e);
         } catch (TimeoutException e) {
+            // Only the learned deadline was missed, so the domain is not negative cached. The query
+            // goes on, and a slow answer is waited for longer next time.
             Log.e(TAG, "TimeoutException: ", e);
+            mDnsTimeouts.onTimeout(network, NaptrDnsResolver.QUERY_TYPE_NAPTR);
         }
     }
 
-    // Cancels duplicate prefetches a prefetch is already running. Always schedules tunnel bringup.
-    private void trySubmitEpdgSelectionExecutor(
+    // Cancels duplicate prefetches a prefetch is already running. Queues tunnel bringup on the
+    // shared scheduler. Returns null if the runnable was not scheduled.
+    @Nullable
+    private Future<?> trySubmitEpdgSelectionExecutor(
             Runnable runnable, boolean isPrefetch, boolean isEmergency) {
         if (isEmergency) {
             if (isPrefetch) {
                 if (mSosDnsPrefetchFuture == null || mSosDnsPrefetchFuture.isDone()) {
-                    mSosDnsPrefetchFuture = mSosEpdgSelectionExecutor.submit(runnable);
+                    mSosDnsPrefetchFuture =
+                            mDnsScheduler.submit(
+                                    mSlotId, EpdgDnsScheduler.TASK_CLASS_PREFETCH, runnable);
+                    return mSosDnsPrefetchFuture;
                 }
+                return null;
             } else {
-                mSosEpdgSelectionExecutor.execute(runnable);
+                return mDnsScheduler.submit(mSlotId, EpdgDnsScheduler.TASK_CLASS_SOS, runnable);
             }
         } else {
             if (isPrefetch) {
                 if (mDnsPrefetchFuture == null || mDnsPrefetchFuture.isDone()) {
-                    mDnsPrefetchFuture = mEpdgSelectionExecutor.submit(runnable);
+                    mDnsPrefetchFuture =
+                            mDnsScheduler.submit(
+                                    mSlotId, EpdgDnsScheduler.TASK_CLASS_PREFETCH, runnable);
+                    return mDnsPrefetchFuture;
                 }
+                return null;
             } else {
-                mEpdgSelectionExecutor.execute(runnable);
+                return mDnsScheduler.submit(
+                        mSlotId, EpdgDnsScheduler.TASK_CLASS_BRINGUP, runnable);
             }
         }
     }
@@ -1139,6 +1704,10 @@ public class EpdgSelector {
      * Asynchronously runs DNS resolution on a carrier-specific list of ePDG servers into IP
      * addresses, and passes them to the caller via the {@link EpdgSelectorCallback}.
      *
+     * <p>A request that arrives while a selection with the same filter, roaming state, emergency
+     * type and network is in progress joins that selection instead of starting another one, and is
+     * answered when it completes.
+     *
      * @param transactionId A unique ID passed in to match the response with the request. If this
      *     value is 0, the caller is not interested in the result.
      * @param filter Allows the caller to filter for IPv4 or IPv6 servers, or both.
@@ -1159,116 +1728,981 @@ public class EpdgSelector {
             boolean isEmergency,
             @NonNull Network network,
             EpdgSelectorCallback selectorCallback) {
+        return getValidatedServerList(
+                transactionId,
+                filter,
+                order,
+                isRoaming,
+                isEmergency,
+                network,
+                selectorCallback,
+                null /* cancellationSignal */);
+    }
 
-        final Runnable epdgSelectionRunnable =
-                () -> {
-                    List<InetAddress> validIpList = new ArrayList<>();
+    /**
+     * Same as {@link #getValidatedServerList(int, int, int, boolean, boolean, Network,
+     * EpdgSelectorCallback)}, but the request can be withdrawn through a {@link
+     * CancellationSignal}.
+     *
+     * <p>Once cancelled, the callback is no longer called for this request. If no other request
+     * waits for the same selection, the selection is dropped from the DNS queue, or its
+     * outstanding DNS queries are cancelled if it is already running. Prefetches are never
+     * cancelled, as they only warm the caches.
+     *
+     * @param cancellationSignal Withdraws the request when cancelled. May be null.
+     */
+    public IwlanError getValidatedServerList(
+            int transactionId,
+            @ProtoFilter int filter,
+            @EpdgAddressOrder int order,
+            boolean isRoaming,
+            boolean isEmergency,
+            @NonNull Network network,
+            EpdgSelectorCallback selectorCallback,
+            @Nullable CancellationSignal cancellationSignal) {
+        if (cancellationSignal != null && cancellationSignal.isCanceled()) {
+            return new IwlanError(IwlanError.NO_ERROR);
+        }
+        final SelectionKey selectionKey =
+                new SelectionKey(filter, isRoaming, isEmergency, network);
+        // A bringup starts right away from the list stored by an earlier selection, if any. An
+        // emergency bringup also uses the SOS list kept in memory by the prefetches. Under
+        // congestion only a single PLMN FQDN is tried per attempt, which the stored list ignores.
+        List<InetAddress> storedIpList = null;
+        if (selectorCallback != null && !isCongested()) {
+            storedIpList =
+                    isEmergency
+                            ? getLastServerList(filter, true, isRoaming, network)
+                            : getStoredServerList(filter, false, network);
+        }
+        List<InetAddress> joinedPartialIpList = null;
+        SelectionFlight storedListFlight = null;
+        SelectionFlight cancellableFlight = null;
+        SelectionSubscriber subscriber = null;
+        synchronized (mSelectionFlights) {
+            SelectionFlight inFlight = mSelectionFlights.get(selectionKey);
+            if (inFlight == null) {
+                final SelectionFlight flight = new SelectionFlight(selectionKey);
+                if (selectorCallback != null) {
+                    subscriber = flight.addSubscriber(transactionId, order, selectorCallback);
+                } else {
+                    flight.mIsPrefetchRequested = true;
+                }
+                final Runnable epdgSelectionRunnable =
+                        () -> {
+                            try {
+                                runSelection(
+                                        transactionId,
+                                        filter,
+                                        isRoaming,
+                                        isEmergency,
+                                        network,
+                                        flight);
+                            } finally {
+                                // Answers the requests even if the selection threw.
+                                flight.complete(
+                                        null,
+                                        new IwlanError(
+                                                IwlanError.EPDG_SELECTOR_SERVER_SELECTION_FAILED));
+                            }
+                        };
+
+                // The flight is published and submitted under the lock, so that no request can
+                // join a selection that is not going to run.
+                mSelectionFlights.put(selectionKey, flight);
+                boolean isPrefetch = (selectorCallback == null);
+                flight.mFuture =
+                        trySubmitEpdgSelectionExecutor(
+                                epdgSelectionRunnable, isPrefetch, isEmergency);
+                if (flight.mFuture == null) {
+                    mSelectionFlights.remove(selectionKey);
+                    if (!isPrefetch) {
+                        return new IwlanError(IwlanError.EPDG_SELECTOR_SERVER_SELECTION_FAILED);
+                    }
+                    return new IwlanError(IwlanError.NO_ERROR);
+                }
+                storedListFlight = flight;
+                cancellableFlight = flight;
+            } else {
+                mNumJoinedSelections++;
+                Log.d(
+                        TAG,
+                        "Transaction "
+                                + transactionId
+                                + " joins in-flight selection: "
+                                + selectionKey);
+                if (selectorCallback == null) {
+                    inFlight.mIsPrefetchRequested = true;
+                    return new IwlanError(IwlanError.NO_ERROR);
+                }
+                // A bringup must not wait behind other slots' prefetches for the prefetch it
+                // joined.
+                mDnsScheduler.promote(
+                        inFlight.mFuture,
+                        isEmergency
+                                ? EpdgDnsScheduler.TASK_CLASS_SOS
+                                : EpdgDnsScheduler.TASK_CLASS_BRINGUP);
+                subscriber = inFlight.addSubscriber(transactionId, order, selectorCallback);
+                joinedPartialIpList = inFlight.mPartialIpList;
+                cancellableFlight = inFlight;
+            }
+        }
+
+        if (storedIpList != null && storedListFlight != null) {
+            storedListFlight.notifyStoredServerList(storedIpList);
+        }
+        if (joinedPartialIpList != null) {
+            List<InetAddress> partialIpList = new ArrayList<>(joinedPartialIpList);
+            prioritizeIp(partialIpList, order);
+            selectorCallback.onPartialServerList(transactionId, partialIpList);
+        }
+        if (cancellationSignal != null && subscriber != null) {
+            cancellableFlight.setOnCancelListener(cancellationSignal, subscriber);
+        }
+        return new IwlanError(IwlanError.NO_ERROR);
+    }
+
+    private boolean isCongested() {
+        return mErrorPolicyManager.getMostRecentDataFailCause() == DataFailCause.IWLAN_CONGESTION;
+    }
+
+    private void runSelection(
+            int transactionId,
+            @ProtoFilter int filter,
+            boolean isRoaming,
+            boolean isEmergency,
+            @NonNull Network network,
+            @NonNull SelectionFlight flight) {
+        // The SOS fallback timeout runs from here, however long the methods take to start.
+        final long selectionStartTime = IwlanHelper.elapsedRealtime();
+        List<InetAddress> validIpList = new ArrayList<>();
+        Log.d(
+                TAG,
+                "Processing request with transactionId: "
+                        + transactionId
+                        + ", for slotID: "
+                        + mSlotId
+                        + ", isEmergency: "
+                        + isEmergency);
+
+        int[] addrResolutionMethods =
+                IwlanHelper.getConfig(
+                        CarrierConfigManager.Iwlan.KEY_EPDG_ADDRESS_PRIORITY_INT_ARRAY,
+                        mContext,
+                        mSlotId);
+
+        final boolean isVisitedCountryMethodRequired =
+                Arrays.stream(addrResolutionMethods)
+                        .anyMatch(
+                                i -> i == CarrierConfigManager.Iwlan.EPDG_ADDRESS_VISITED_COUNTRY);
+
+        // The domain names are built here once, so that the resolution methods only run DNS.
+        final EpdgResolutionPlan plan =
+                getResolutionPlan(filter, isEmergency, network, addrResolutionMethods);
+
+        // Under congestion the final list is narrowed down to a single PLMN FQDN, so candidates
+        // are not streamed ahead of it.
+        final boolean isCongested = isCongested();
+        int numStreamedIps = 0;
+
+        // All address resolution methods run concurrently, each into its own list.
+        final long startTime = IwlanHelper.elapsedRealtime();
+        List<CompletableFuture<List<InetAddress>>> methodResults = new ArrayList<>();
+        List<Integer> methods = new ArrayList<>();
+
+        // In the visited country
+        if (isRoaming && !inSameCountry() && isVisitedCountryMethodRequired) {
+            methods.add(CarrierConfigManager.Iwlan.EPDG_ADDRESS_VISITED_COUNTRY);
+            methodResults.add(
+                    submitResolutionMethod(
+                            isEmergency,
+                            ipList ->
+                                    resolutionMethodVisitedCountry(
+                                            filter,
+                                            ipList,
+                                            isEmergency,
+                                            network,
+                                            flight.mCanceller)));
+        }
+
+        CompletableFuture<Map<String, List<InetAddress>>> plmnResult = null;
+        for (int addrResolutionMethod : addrResolutionMethods) {
+            switch (addrResolutionMethod) {
+                case CarrierConfigManager.Iwlan.EPDG_ADDRESS_STATIC:
+                    methods.add(addrResolutionMethod);
+                    methodResults.add(
+                            submitResolutionMethod(
+                                    isEmergency,
+                                    ipList ->
+                                            resolutionMethodStatic(
+                                                    filter,
+                                                    ipList,
+                                                    isEmergency,
+                                                    network,
+                                                    plan,
+                                                    flight.mCanceller)));
+                    break;
+
+                case CarrierConfigManager.Iwlan.EPDG_ADDRESS_PLMN:
+                    List<InetAddress> plmnIpList = new ArrayList<>();
+                    plmnResult =
+                            CompletableFuture.supplyAsync(
+                                    () ->
+                                            resolutionMethodPlmn(
+                                                    filter,
+                                                    plmnIpList,
+                                                    isEmergency,
+                                                    network,
+                                                    plan,
+                                                    flight.mCanceller),
+                                    mDnsScheduler.getResolutionMethodExecutor(isEmergency));
+                    methods.add(addrResolutionMethod);
+                    methodResults.add(plmnResult.thenApply(result -> plmnIpList));
+                    break;
+
+                case CarrierConfigManager.Iwlan.EPDG_ADDRESS_PCO:
+                    methods.add(addrResolutionMethod);
+                    methodResults.add(
+                            submitResolutionMethod(
+                                    isEmergency, ipList -> resolutionMethodPco(filter, ipList)));
+                    break;
+
+                case CarrierConfigManager.Iwlan.EPDG_ADDRESS_CELLULAR_LOC:
+                    methods.add(addrResolutionMethod);
+                    methodResults.add(
+                            submitResolutionMethod(
+                                    isEmergency,
+                                    ipList ->
+                                            resolutionMethodCellularLoc(
+                                                    filter,
+                                                    ipList,
+                                                    isEmergency,
+                                                    network,
+                                                    plan,
+                                                    flight.mCanceller)));
+                    break;
+
+                default:
+                    Log.d(TAG, "Incorrect address resolution method " + addrResolutionMethod);
+            }
+        }
+
+        // Methods that recently found nothing for this carrier still run, but are not waited for
+        // unless the other methods find nothing either.
+        final int carrierId = IwlanHelper.getCarrierId(mContext, mSlotId);
+        boolean[] isDeferred = new boolean[methodResults.size()];
+        boolean hasUndeferredMethod = false;
+        for (int i = 0; i < methodResults.size(); i++) {
+            isDeferred[i] = mMethodYields.shouldDefer(carrierId, methods.get(i), isEmergency);
+            hasUndeferredMethod |= !isDeferred[i];
+            trackMethodYield(
+                    methodResults.get(i),
+                    carrierId,
+                    methods.get(i),
+                    isEmergency,
+                    startTime,
+                    flight.mCanceller);
+        }
+        if (!hasUndeferredMethod) {
+            Arrays.fill(isDeferred, false);
+        }
+
+        if (isEmergency) {
+            awaitSosCandidates(
+                    methodResults, filter, isRoaming, network, flight, selectionStartTime);
+        }
+
+        // Results are merged in the configured priority order, regardless of which method
+        // completes first. Deferred methods are merged if they are done by the time their turn
+        // comes.
+        List<List<InetAddress>> methodIpLists = new ArrayList<>();
+        for (int i = 0; i < methodResults.size(); i++) {
+            List<InetAddress> ipList = null;
+            if (!isDeferred[i] || methodResults.get(i).isDone()) {
+                ipList = joinMethodResult(methodResults.get(i));
+                validIpList.addAll(ipList);
+            }
+            methodIpLists.add(ipList);
+            // The complete list follows right after the last method.
+            if (!isCongested
+                    && i < methodResults.size() - 1
+                    && validIpList.size() > numStreamedIps) {
+                numStreamedIps = validIpList.size();
+                flight.notifyPartialServerList(removeDuplicateIp(validIpList));
+            }
+        }
+
+        // The deferred methods that are still running are only waited for if nothing was found,
+        // and the ones done by now are merged at their configured priority.
+        final boolean waitForDeferred = validIpList.isEmpty();
+        validIpList = new ArrayList<>();
+        for (int i = 0; i < methodResults.size(); i++) {
+            List<InetAddress> ipList = methodIpLists.get(i);
+            if (ipList == null && (waitForDeferred || methodResults.get(i).isDone())) {
+                ipList = joinMethodResult(methodResults.get(i));
+            }
+            if (ipList == null) {
+                Log.d(TAG, "Not waiting for deferred resolution method " + methods.get(i));
+                mMethodYields.onMethodSkipped();
+                continue;
+            }
+            validIpList.addAll(ipList);
+        }
+
+        Map<String, List<InetAddress>> plmnDomainNamesToIpAddress = null;
+        if (plmnResult != null && !plmnResult.isCompletedExceptionally()) {
+            plmnDomainNamesToIpAddress = plmnResult.join();
+        }
+
+        if (isCongested) {
+            if (plmnDomainNamesToIpAddress == null) {
+                Log.w(TAG, "CONGESTION error handling- PLMN method not configured");
+            } else {
+                plmnDomainNamesToIpAddress.values().removeIf(List::isEmpty);
+
+                int numFqdns = plmnDomainNamesToIpAddress.size();
+                int index = mErrorPolicyManager.getCurrentFqdnIndex(numFqdns);
+                if (index >= 0 && index < numFqdns) {
+                    Object[] keys = plmnDomainNamesToIpAddress.keySet().toArray();
+                    validIpList = plmnDomainNamesToIpAddress.get((String) keys[index]);
+                } else {
+                    Log.w(
+                            TAG,
+                            "CONGESTION error handling- invalid index: "
+                                    + index
+                                    + " number of PLMN FQDNs: "
+                                    + numFqdns);
+                }
+            }
+        }
+
+        if (flight.mCanceller.isCancelled()) {
+            // The queries were cut short, so the list is not worth keeping.
+            Log.d(TAG, "Selection cancelled: " + transactionId);
+            return;
+        }
+
+        if (!validIpList.isEmpty()) {
+            validIpList = removeDuplicateIp(validIpList);
+            if (!isCongested) {
+                EpdgCandidateStore.Key candidateKey = getCandidateKey(isEmergency);
+                if (candidateKey != null) {
+                    (isEmergency ? mLastSosServerList : mLastServerList)
+                            .set(
+                                    new LastServerList(
+                                            candidateKey,
+                                            network,
+                                            isRoaming,
+                                            validIpList,
+                                            IwlanHelper.elapsedRealtime()));
+                }
+                storeServerList(isEmergency, validIpList);
+            }
+            flight.complete(validIpList, null);
+        } else {
+            flight.complete(
+                    null, new IwlanError(IwlanError.EPDG_SELECTOR_SERVER_SELECTION_FAILED));
+        }
+    }
+
+    @Nullable
+    private EpdgCandidateStore.Key getCandidateStoreKey(boolean isEmergency) {
+        if (!mCandidateStore.isPersisted()) {
+            return null;
+        }
+        return getCandidateKey(isEmergency);
+    }
+
+    /**
+     * Returns the carrier, SIM PLMN and country the candidates of a selection are valid for, or
+     * null if they are not known.
+     */
+    @Nullable
+    private EpdgCandidateStore.Key getCandidateKey(boolean isEmergency) {
+        int carrierId;
+        String simPlmn;
+        IwlanTelephonyState telephonyState = IwlanTelephonyState.get(mSlotId);
+        if (telephonyState != null) {
+            carrierId = telephonyState.getCarrierId();
+            simPlmn = telephonyState.getSimPlmn();
+        } else {
+            SubscriptionManager subscriptionManager =
+                    mContext.getSystemService(SubscriptionManager.class);
+            if (subscriptionManager == null) {
+                return null;
+            }
+            SubscriptionInfo subInfo =
+                    subscriptionManager.getActiveSubscriptionInfoForSimSlotIndex(mSlotId);
+            if (subInfo == null) {
+                return null;
+            }
+            carrierId = subInfo.getCarrierId();
+            simPlmn = IwlanTelephonyState.toSimPlmn(subInfo);
+        }
+        if (simPlmn == null) {
+            return null;
+        }
+        return new EpdgCandidateStore.Key(
+                carrierId,
+                simPlmn,
+                Objects.toString(IwlanHelper.getLastKnownCountryCode(mContext), ""),
+                isEmergency);
+    }
+
+    /**
+     * Waits until the fallback timeout, counted from the start of the selection, for the SOS
+     * resolution methods. If none of them produced a candidate by then, and the bringup was not
+     * started from stored SOS candidates, it is started with the last normal candidates while the
+     * SOS selection goes on.
+     */
+    private void awaitSosCandidates(
+            List<CompletableFuture<List<InetAddress>>> methodResults,
+            @ProtoFilter int filter,
+            boolean isRoaming,
+            Network network,
+            SelectionFlight flight,
+            long selectionStartTime) {
+        long timeoutMs = getSosFallbackTimeoutMs();
+        // Under congestion only the PLMN FQDN picked for this attempt may be tried.
+        if (timeoutMs <= 0 || methodResults.isEmpty() || isCongested()) {
+            return;
+        }
+        synchronized (mSelectionFlights) {
+            if (flight.mPartialIpList != null) {
+                return;
+            }
+        }
+        long remainingMs = timeoutMs - (IwlanHelper.elapsedRealtime() - selectionStartTime);
+        try {
+            CompletableFuture.allOf(methodResults.toArray(new CompletableFuture[0]))
+                    .get(Math.max(remainingMs, 0), TimeUnit.MILLISECONDS);
+            return;
+        } catch (ExecutionException e) {
+            // Failed methods are logged when the results are merged.
+            return;
+        } catch (InterruptedException e) {
+            Thread.currentThread().interrupt();
+            return;
+        } catch (TimeoutException e) {
+            // Falls back below, unless a method already answered.
+        }
+        for (CompletableFuture<List<InetAddress>> methodResult : methodResults) {
+            if (methodResult.isDone()
+                    && !methodResult.isCompletedExceptionally()
+                    && !methodResult.join().isEmpty()) {
+                return;
+            }
+        }
+        List<InetAddress> fallbackIpList = getLastServerList(filter, false, isRoaming, network);
+        if (fallbackIpList == null) {
+            return;
+        }
+        Log.w(
+                TAG,
+                "No SOS candidate within "
+                        + timeoutMs
+                        + "ms, starting with normal candidates: "
+                        + fallbackIpList);
+        mNumSosFallbacks.incrementAndGet();
+        flight.notifyStoredServerList(fallbackIpList);
+    }
+
+    private long getSosFallbackTimeoutMs() {
+        Integer timeoutMs =
+                IwlanHelper.getConfig(KEY_EPDG_SOS_FALLBACK_TIMEOUT_MS_INT, mContext, mSlotId);
+        return (timeoutMs != null) ? timeoutMs : DEFAULT_SOS_FALLBACK_TIMEOUT_MS;
+    }
+
+    /** The candidates of the last selection of a type made by this process. */
+    private static final class LastServerList {
+        @NonNull final EpdgCandidateStore.Key mKey;
+        @NonNull final Network mNetwork;
+        final boolean mIsRoaming;
+        @NonNull final List<InetAddress> mIpList;
+        final long mTime;
+
+        LastServerList(
+                @NonNull EpdgCandidateStore.Key key,
+                @NonNull Network network,
+                boolean isRoaming,
+                @NonNull List<InetAddress> ipList,
+                long time) {
+            mKey = key;
+            mNetwork = network;
+            mIsRoaming = isRoaming;
+            mIpList = List.copyOf(ipList);
+            mTime = time;
+        }
+
+        /** Returns whether the candidates were selected for this carrier, country and network. */
+        boolean isValidFor(
+                @Nullable EpdgCandidateStore.Key key, Network network, boolean isRoaming) {
+            long age = IwlanHelper.elapsedRealtime() - mTime;
+            return mKey.equals(key)
+                    && mNetwork.equals(network)
+                    && mIsRoaming == isRoaming
+                    && age >= 0
+                    && age < EpdgCandidateStore.MAX_AGE_MS;
+        }
+
+        @Override
+        public String toString() {
+            return mIpList + " for " + mKey + " network: " + mNetwork;
+        }
+    }
+
+    /**
+     * Returns the candidates of the last selection of this type made by this process, or else the
+     * stored ones. Used by the emergency fast path. The last candidates are dropped once the
+     * carrier, SIM, country, network or roaming state they were selected for changed, or once they
+     * are as old as the stored ones may be.
+     */
+    @Nullable
+    private List<InetAddress> getLastServerList(
+            @ProtoFilter int filter, boolean isEmergency, boolean isRoaming, Network network) {
+        AtomicReference<LastServerList> lastServerList =
+                isEmergency ? mLastSosServerList : mLastServerList;
+        LastServerList last = lastServerList.get();
+        if (last != null) {
+            if (!last.isValidFor(getCandidateKey(isEmergency), network, isRoaming)) {
+                Log.d(TAG, "Dropping last ePDG candidates: " + last);
+                lastServerList.compareAndSet(last, null);
+            } else {
+                List<InetAddress> lastIpList = v4v6ProtocolFilter(last.mIpList, filter, network);
+                if (!lastIpList.isEmpty()) {
                     Log.d(
                             TAG,
-                            "Processing request with transactionId: "
-                                    + transactionId
-                                    + ", for slotID: "
-                                    + mSlotId
-                                    + ", isEmergency: "
-                                    + isEmergency);
-
-                    int[] addrResolutionMethods =
-                            IwlanHelper.getConfig(
-                                    CarrierConfigManager.Iwlan.KEY_EPDG_ADDRESS_PRIORITY_INT_ARRAY,
-                                    mContext,
-                                    mSlotId);
-
-                    final boolean isVisitedCountryMethodRequired =
-                            Arrays.stream(addrResolutionMethods)
-                                    .anyMatch(
-                                            i ->
-                                                    i
-                                                            == CarrierConfigManager.Iwlan
-                                                                    .EPDG_ADDRESS_VISITED_COUNTRY);
-
-                    // In the visited country
-                    if (isRoaming && !inSameCountry() && isVisitedCountryMethodRequired) {
-                        resolutionMethodVisitedCountry(filter, validIpList, isEmergency, network);
-                    }
+                            "Last ePDG candidates"
+                                    + (isEmergency ? " (SOS): " : ": ")
+                                    + lastIpList);
+                    return lastIpList;
+                }
+            }
+        }
+        return getStoredServerList(filter, isEmergency, network);
+    }
 
-                    Map<String, List<InetAddress>> plmnDomainNamesToIpAddress = null;
-                    for (int addrResolutionMethod : addrResolutionMethods) {
-                        switch (addrResolutionMethod) {
-                            case CarrierConfigManager.Iwlan.EPDG_ADDRESS_STATIC:
-                                resolutionMethodStatic(filter, validIpList, network);
-                                break;
-
-                            case CarrierConfigManager.Iwlan.EPDG_ADDRESS_PLMN:
-                                plmnDomainNamesToIpAddress =
-                                        resolutionMethodPlmn(
-                                                filter, validIpList, isEmergency, network);
-                                break;
-
-                            case CarrierConfigManager.Iwlan.EPDG_ADDRESS_PCO:
-                                resolutionMethodPco(filter, validIpList);
-                                break;
-
-                            case CarrierConfigManager.Iwlan.EPDG_ADDRESS_CELLULAR_LOC:
-                                resolutionMethodCellularLoc(
-                                        filter, validIpList, isEmergency, network);
-                                break;
-
-                            default:
-                                Log.d(
-                                        TAG,
-                                        "Incorrect address resolution method "
-                                                + addrResolutionMethod);
-                        }
+    @Nullable
+    private List<InetAddress> getStoredServerList(
+            @ProtoFilter int filter, boolean isEmergency, Network network) {
+        EpdgCandidateStore.Key storeKey = getCandidateStoreKey(isEmergency);
+        if (storeKey == null) {
+            return null;
+        }
+        List<InetAddress> storedIpList = mCandidateStore.get(storeKey);
+        if (storedIpList == null) {
+            return null;
+        }
+        storedIpList = v4v6ProtocolFilter(storedIpList, filter, network);
+        if (storedIpList.isEmpty()) {
+            return null;
+        }
+        Log.d(TAG, "Stored ePDG candidates for " + storeKey + ": " + storedIpList);
+        return storedIpList;
+    }
+
+    private void storeServerList(boolean isEmergency, List<InetAddress> validIpList) {
+        EpdgCandidateStore.Key storeKey = getCandidateStoreKey(isEmergency);
+        if (storeKey != null) {
+            mCandidateStore.put(storeKey, validIpList);
+        }
+    }
+
+    /**
+     * Records that a child SA was established with this ePDG, so that it is tried first by the
+     * first bringup after a restart.
+     */
+    public void onEpdgConnected(@NonNull InetAddress epdgAddress) {
+        mCandidateStore.onConnected(epdgAddress);
+    }
+
+    /**
+     * Drops the stored candidate lists if the carrier changed its ePDG configuration. The lists
+     * kept in memory are always dropped, as the prefetch that follows a carrier config change
+     * replaces them.
+     */
+    public void onCarrierConfigChanged() {
+        mLastServerList.set(null);
+        mLastSosServerList.set(null);
+        // The config is read from the snapshot, so an unchanged snapshot needs no check.
+        IwlanCarrierConfig carrierConfig = IwlanCarrierConfig.get(mContext, mSlotId);
+        long version = (carrierConfig != null) ? carrierConfig.getVersion() : 0;
+        if (mCheckedCarrierConfigVersion.getAndSet(version) == version && version != 0) {
+            return;
+        }
+        int[] addrResolutionMethods =
+                IwlanHelper.getConfig(
+                        CarrierConfigManager.Iwlan.KEY_EPDG_ADDRESS_PRIORITY_INT_ARRAY,
+                        mContext,
+                        mSlotId);
+        int[] plmnPriorities =
+                IwlanHelper.getConfig(
+                        CarrierConfigManager.Iwlan.KEY_EPDG_PLMN_PRIORITY_INT_ARRAY,
+                        mContext,
+                        mSlotId);
+        String[] mccMncs =
+                IwlanHelper.getConfig(
+                        CarrierConfigManager.Iwlan.KEY_MCC_MNCS_STRING_ARRAY, mContext, mSlotId);
+        int configHash =
+                Objects.hash(
+                        Arrays.hashCode(addrResolutionMethods),
+                        Arrays.hashCode(plmnPriorities),
+                        Arrays.hashCode(mccMncs),
+                        IwlanHelper.getConfig(
+                                CarrierConfigManager.Iwlan.KEY_EPDG_STATIC_ADDRESS_STRING,
+                                mContext,
+                                mSlotId),
+                        IwlanHelper.getConfig(
+                                CarrierConfigManager.Iwlan.KEY_EPDG_STATIC_ADDRESS_ROAMING_STRING,
+                                mContext,
+                                mSlotId));
+        mCandidateStore.onCarrierConfigChanged(configHash);
+    }
+
+    private static List<InetAddress> joinMethodResult(
+            CompletableFuture<List<InetAddress>> methodResult) {
+        try {
+            return methodResult.join();
+        } catch (CompletionException e) {
+            Log.e(TAG, "Address resolution method failed: ", e.getCause());
+            return List.of();
+        }
+    }
+
+    /** Records whether the method found addresses once it completes, unless it was cancelled. */
+    private void trackMethodYield(
+            CompletableFuture<List<InetAddress>> methodResult,
+            int carrierId,
+            int method,
+            boolean isEmergency,
+            long startTime,
+            DnsQueryCanceller canceller) {
+        methodResult.whenComplete(
+                (ipList, e) -> {
+                    if (canceller.isCancelled()) {
+                        return;
                     }
+                    mMethodYields.onMethodCompleted(
+                            carrierId,
+                            method,
+                            isEmergency,
+                            ipList != null && !ipList.isEmpty(),
+                            IwlanHelper.elapsedRealtime() - startTime);
+                });
+    }
 
-                    if (selectorCallback != null) {
-                        if (mErrorPolicyManager.getMostRecentDataFailCause()
-                                == DataFailCause.IWLAN_CONGESTION) {
-                            Objects.requireNonNull(plmnDomainNamesToIpAddress)
-                                    .values()
-                                    .removeIf(List::isEmpty);
-
-                            int numFqdns = plmnDomainNamesToIpAddress.size();
-                            int index = mErrorPolicyManager.getCurrentFqdnIndex(numFqdns);
-                            if (index >= 0 && index < numFqdns) {
-                                Object[] keys = plmnDomainNamesToIpAddress.keySet().toArray();
-                                validIpList = plmnDomainNamesToIpAddress.get((String) keys[index]);
-                            } else {
-                                Log.w(
-                                        TAG,
-                                        "CONGESTION error handling- invalid index: "
-                                                + index
-                                                + " number of PLMN FQDNs: "
-                                                + numFqdns);
-                            }
-                        }
+    private CompletableFuture<List<InetAddress>> submitResolutionMethod(
+            boolean isEmergency, Consumer<List<InetAddress>> resolutionMethod) {
+        return CompletableFuture.supplyAsync(
+                () -> {
+                    List<InetAddress> ipList = new ArrayList<>();
+                    resolutionMethod.accept(ipList);
+                    return ipList;
+                },
+                mDnsScheduler.getResolutionMethodExecutor(isEmergency));
+    }
 
-                        if (!validIpList.isEmpty()) {
-                            prioritizeIp(validIpList, order);
-                            selectorCallback.onServerListChanged(
-                                    transactionId, removeDuplicateIp(validIpList));
-                        } else {
-                            selectorCallback.onError(
-                                    transactionId,
-                                    new IwlanError(
-                                            IwlanError.EPDG_SELECTOR_SERVER_SELECTION_FAILED));
-                        }
+    /** Identifies selection requests that can share a single selection. */
+    private static final class SelectionKey {
+        final int mFilter;
+        final boolean mIsRoaming;
+        final boolean mIsEmergency;
+        final Network mNetwork;
+
+        SelectionKey(int filter, boolean isRoaming, boolean isEmergency, Network network) {
+            mFilter = filter;
+            mIsRoaming = isRoaming;
+            mIsEmergency = isEmergency;
+            mNetwork = network;
+        }
+
+        @Override
+        public boolean equals(Object o) {
+            if (this == o) {
+                return true;
+            }
+            if (!(o instanceof SelectionKey)) {
+                return false;
+            }
+            SelectionKey that = (SelectionKey) o;
+            return mFilter == that.mFilter
+                    && mIsRoaming == that.mIsRoaming
+                    && mIsEmergency == that.mIsEmergency
+                    && Objects.equals(mNetwork, that.mNetwork);
+        }
+
+        @Override
+        public int hashCode() {
+            return Objects.hash(mFilter, mIsRoaming, mIsEmergency, mNetwork);
+        }
+
+        @Override
+        public String toString() {
+            return "filter: "
+                    + mFilter
+                    + " roaming: "
+                    + mIsRoaming
+                    + " emergency: "
+                    + mIsEmergency
+                    + " network: "
+                    + mNetwork;
+        }
+    }
+
+    private static final class SelectionSubscriber {
+        final int mTransactionId;
+        @EpdgAddressOrder final int mOrder;
+        @NonNull final EpdgSelectorCallback mCallback;
+
+        SelectionSubscriber(
+                int transactionId,
+                @EpdgAddressOrder int order,
+                @NonNull EpdgSelectorCallback callback) {
+            mTransactionId = transactionId;
+            mOrder = order;
+            mCallback = callback;
+        }
+    }
+
+    /**
+     * A selection in progress, and the requests waiting for its result. Each request keeps its own
+     * transaction ID and address order. Subscribers are guarded by {@link #mSelectionFlights}.
+     */
+    private final class SelectionFlight {
+        private final SelectionKey mKey;
+        private final List<SelectionSubscriber> mSubscribers = new ArrayList<>();
+        @Nullable private List<InetAddress> mPartialIpList;
+        private boolean mIsComplete;
+        // Keeps partial lists in order for the subscribers of this flight, without holding
+        // mSelectionFlights while they are called.
+        private final Object mPartialListDeliveryLock = new Object();
+        // The queued or running selection, set under mSelectionFlights when it is submitted.
+        Future<?> mFuture;
+        // A prefetch keeps the selection running even if all bringups withdraw.
+        boolean mIsPrefetchRequested;
+        final DnsQueryCanceller mCanceller = new DnsQueryCanceller();
+
+        SelectionFlight(SelectionKey key) {
+            mKey = key;
+        }
+
+        /**
+         * Adds a request to this selection. Must be called with {@link #mSelectionFlights} held.
+         */
+        SelectionSubscriber addSubscriber(
+                int transactionId,
+                @EpdgAddressOrder int order,
+                @NonNull EpdgSelectorCallback callback) {
+            SelectionSubscriber subscriber =
+                    new SelectionSubscriber(transactionId, order, callback);
+            mSubscribers.add(subscriber);
+            return subscriber;
+        }
+
+        /**
+         * Withdraws the request of the subscriber when the signal is cancelled. Must be called
+         * without {@link #mSelectionFlights} held, as the listener runs right away if the signal
+         * is already cancelled.
+         */
+        void setOnCancelListener(
+                @NonNull CancellationSignal cancellationSignal,
+                @NonNull SelectionSubscriber subscriber) {
+            cancellationSignal.setOnCancelListener(() -> removeSubscriber(subscriber));
+        }
+
+        /**
+         * Withdraws a request. The selection is cancelled once no request is left, unless a
+         * prefetch asked for it.
+         */
+        void removeSubscriber(@NonNull SelectionSubscriber subscriber) {
+            synchronized (mSelectionFlights) {
+                if (!mSubscribers.remove(subscriber)) {
+                    return;
+                }
+                Log.d(TAG, "Transaction " + subscriber.mTransactionId + " cancelled");
+                if (mIsComplete || !mSubscribers.isEmpty() || mIsPrefetchRequested) {
+                    return;
+                }
+                mIsComplete = true;
+                mSelectionFlights.remove(mKey, this);
+            }
+            Log.d(TAG, "Cancelling selection: " + mKey);
+            if (mFuture != null) {
+                mDnsScheduler.cancel(mFuture);
+            }
+            mCanceller.cancel();
+        }
+
+        void notifyPartialServerList(@NonNull List<InetAddress> validIpList) {
+            synchronized (mSelectionFlights) {
+                if (mIsComplete) {
+                    return;
+                }
+                mPartialIpList = validIpList;
+            }
+            deliverPartialServerList(validIpList);
+        }
+
+        /**
+         * Sends the list stored by an earlier selection to the requests, unless this selection
+         * already streamed its own candidates. Must be called without {@link #mSelectionFlights}
+         * held.
+         */
+        void notifyStoredServerList(@NonNull List<InetAddress> storedIpList) {
+            synchronized (mSelectionFlights) {
+                if (mIsComplete || mPartialIpList != null) {
+                    return;
+                }
+                mPartialIpList = storedIpList;
+            }
+            deliverPartialServerList(storedIpList);
+        }
+
+        /**
+         * Calls the subscribers with the partial list, unless a newer one was recorded since, in
+         * which case the caller that recorded it delivers it.
+         */
+        private void deliverPartialServerList(@NonNull List<InetAddress> ipList) {
+            synchronized (mPartialListDeliveryLock) {
+                List<SelectionSubscriber> subscribers;
+                synchronized (mSelectionFlights) {
+                    if (mIsComplete || mPartialIpList != ipList) {
+                        return;
                     }
-                };
+                    subscribers = new ArrayList<>(mSubscribers);
+                }
+                for (SelectionSubscriber subscriber : subscribers) {
+                    List<InetAddress> partialIpList = new ArrayList<>(ipList);
+                    prioritizeIp(partialIpList, subscriber.mOrder);
+                    subscriber.mCallback.onPartialServerList(
+                            subscriber.mTransactionId, partialIpList);
+                }
+            }
+        }
 
-        boolean isPrefetch = (selectorCallback == null);
-        trySubmitEpdgSelectionExecutor(epdgSelectionRunnable, isPrefetch, isEmergency);
+        /** Answers every request of this selection. Only the first call has any effect. */
+        void complete(@Nullable List<InetAddress> validIpList, @Nullable IwlanError error) {
+            List<SelectionSubscriber> subscribers;
+            synchronized (mSelectionFlights) {
+                if (mIsComplete) {
+                    return;
+                }
+                mIsComplete = true;
+                mSelectionFlights.remove(mKey, this);
+                subscribers = new ArrayList<>(mSubscribers);
+            }
+            for (SelectionSubscriber subscriber : subscribers) {
+                if (validIpList != null) {
+                    List<InetAddress> ipList = new ArrayList<>(validIpList);
+                    prioritizeIp(ipList, subscriber.mOrder);
+                    subscriber.mCallback.onServerListChanged(subscriber.mTransactionId, ipList);
+                } else {
+                    subscriber.mCallback.onError(subscriber.mTransactionId, error);
+                }
+            }
+        }
+    }
 
-        return new IwlanError(IwlanError.NO_ERROR);
+    /**
+     * Returns the earliest time, in {@link IwlanHelper#elapsedRealtime}, at which an address
+     * this selector resolved on the network should be refreshed, or {@link Long#MAX_VALUE} if none
+     * is cached. Addresses that were already due at {@code notBefore} are skipped.
+     */
+    public long getNextRefreshTime(@Nullable Network network, long notBefore) {
+        synchronized (mUsedCacheKeys) {
+            return mAddressCache.getNextRefreshTime(network, mUsedCacheKeys, notBefore);
+        }
+    }
+
+    /** Returns true if a bringup is waiting for a selection of this selector. */
+    public boolean hasPendingBringupSelection() {
+        synchronized (mSelectionFlights) {
+            for (SelectionFlight flight : mSelectionFlights.values()) {
+                if (!flight.mSubscribers.isEmpty()) {
+                    return true;
+                }
+            }
+        }
+        return false;
+    }
+
+    @VisibleForTesting
+    long getNumCompiledPlans() {
+        synchronized (mResolutionPlans) {
+            return mNumCompiledPlans;
+        }
     }
 
     /**
-     * Validates a PLMN (Public Land Mobile Network) identifier string.
-     *
-     * @param plmn The PLMN identifier string to validate.
-     * @return True if the PLMN identifier is valid, false otherwise.
+     * Starts or stops recording the answers to the ePDG DNS queries of all slots, to a file that
+     * {@link EpdgDnsReplayBackend} can replay without a network. Starting again starts a new file.
+     * The recording also stops by itself, see {@link EpdgDnsRecordingBackend}.
      */
-    private static boolean isValidPlmn(String plmn) {
-        return plmn != null && plmn.matches("\\d{5,6}");
+    public static synchronized void setDnsRecordingEnabled(
+            @NonNull Context context, boolean enabled) {
+        if (sDnsRecording != null) {
+            Log.d(TAG, "Stopping DNS recording");
+            EpdgDnsBackend.setInstance(null);
+            sDnsRecording.stop();
+            sDnsRecording = null;
+        }
+        if (!enabled) {
+            return;
+        }
+        File filesDir = context.createDeviceProtectedStorageContext().getFilesDir();
+        File file = new File(filesDir, DNS_RECORDING_FILE_NAME);
+        Log.d(TAG, "Recording DNS answers to " + file);
+        sDnsRecording = EpdgDnsRecordingBackend.create(file, EpdgSelector::onDnsRecordingStopped);
+        EpdgDnsBackend.setInstance(sDnsRecording);
+    }
+
+    private static synchronized void onDnsRecordingStopped() {
+        if (sDnsRecording != null && sDnsRecording.isStopped()) {
+            Log.d(TAG, "DNS recording stopped");
+            EpdgDnsBackend.setInstance(null);
+            sDnsRecording = null;
+        }
+    }
+
+    /** Dumps the DNS scheduler, queries and cache shared by the selectors of all slots. */
+    public static void dumpDnsScheduler(PrintWriter pw) {
+        EpdgDnsScheduler.getInstance().dump(pw);
+        EpdgDnsQueryCoalescer.getInstance().dump(pw);
+        EpdgAddressCache.getInstance().dump(pw);
+        synchronized (EpdgSelector.class) {
+            if (sDnsRecording != null) {
+                sDnsRecording.dump(pw);
+            }
+        }
+    }
+
+    public void dump(PrintWriter pw) {
+        pw.println("---- EpdgSelector[" + mSlotId + "] ----");
+        synchronized (mSelectionFlights) {
+            pw.println(
+                    "In-flight selections: "
+                            + mSelectionFlights.size()
+                            + " joined requests: "
+                            + mNumJoinedSelections);
+        }
+        synchronized (mResolutionPlans) {
+            pw.println(
+                    "Resolution plans: "
+                            + mResolutionPlans.size()
+                            + " compiled: "
+                            + mNumCompiledPlans);
+        }
+        pw.println(
+                "Last candidates: "
+                        + mLastServerList.get()
+                        + " SOS: "
+                        + mLastSosServerList.get()
+                        + " SOS fallbacks: "
+                        + mNumSosFallbacks.get());
+        mCandidateStore.dump(pw);
+        mDnsMetrics.dump(pw);
+        mDnsTimeouts.dump(pw);
+        mMethodYields.dump(pw);
+        pw.println("-------------------------");
     }
 }
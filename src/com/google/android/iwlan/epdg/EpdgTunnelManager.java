@@ -58,6 +58,7 @@ import android.net.ipsec.ike.ike3gpp.Ike3gppData;
 import android.net.ipsec.ike.ike3gpp.Ike3gppExtension;
 import android.net.ipsec.ike.ike3gpp.Ike3gppN1ModeInformation;
 import android.net.ipsec.ike.ike3gpp.Ike3gppParams;
+import android.os.CancellationSignal;
 import android.os.Handler;
 import android.os.HandlerThread;
 import android.os.Looper;
@@ -119,6 +120,7 @@ public class EpdgTunnelManager {
     private static final int EVENT_IKE_SESSION_OPENED = 10;
     private static final int EVENT_IKE_SESSION_CONNECTION_INFO_CHANGED = 11;
     private static final int EVENT_IKE_3GPP_DATA_RECEIVED = 12;
+    private static final int EVENT_EPDG_ADDRESS_SELECTION_PARTIAL_RESULT = 13;
     private static final int IKE_HARD_LIFETIME_SEC_MINIMUM = 300;
     private static final int IKE_HARD_LIFETIME_SEC_MAXIMUM = 86400;
     private static final int IKE_SOFT_LIFETIME_SEC_MINIMUM = 120;
@@ -157,6 +159,10 @@ public class EpdgTunnelManager {
 
     private final EpdgInfo mValidEpdgInfo = new EpdgInfo();
     @Nullable private InetAddress mEpdgAddress;
+    // Transaction whose bring-up was started from a partial ePDG selection result, and the address
+    // it was started against. The address is cleared once the tunnel opens.
+    private int mStreamedTransactionId = -1;
+    @Nullable private InetAddress mStreamedEpdgAddress;
 
     // The most recently updated system default network as seen by IwlanDataService.
     @Nullable private Network mDefaultNetwork;
@@ -164,6 +170,9 @@ public class EpdgTunnelManager {
     @Nullable private Network mIkeSessionNetwork;
 
     private int mTransactionId = 0;
+    // Withdraws the ePDG selection in progress, if any, and the network it runs on.
+    @Nullable private CancellationSignal mEpdgSelectionCancellationSignal;
+    @Nullable private Network mEpdgSelectionNetwork;
     private boolean mHasConnectedToEpdg;
     private final IkeSessionCreator mIkeSessionCreator;
 
@@ -231,6 +240,12 @@ public class EpdgTunnelManager {
                             validIPList, new IwlanError(IwlanError.NO_ERROR), transactionId);
                 }
 
+                @Override
+                public void onPartialServerList(
+                        int transactionId, List<InetAddress> validIPList) {
+                    sendSelectionPartialResult(validIPList, transactionId);
+                }
+
                 @Override
                 public void onError(int transactionId, IwlanError epdgSelectorError) {
                     sendSelectionRequestComplete(null, epdgSelectorError, transactionId);
@@ -1380,6 +1395,17 @@ public class EpdgTunnelManager {
                         Log.e(TAG, "Mismatched transactionId");
                         break;
                     }
+                    mEpdgSelectionCancellationSignal = null;
+
+                    if (selectorResult.getTransactionId() == mStreamedTransactionId) {
+                        // The bring-up already started from a partial result, the complete list
+                        // only replaces the candidates used for retries.
+                        if (selectorResult.getEpdgError().getErrorType() == IwlanError.NO_ERROR
+                                && selectorResult.getValidIpList() != null) {
+                            updateStreamedEpdgAddressList(selectorResult.getValidIpList());
+                        }
+                        break;
+                    }
 
                     if (mPendingBringUpRequests.isEmpty()) {
                         Log.d(TAG, "Empty request queue");
@@ -1405,6 +1431,37 @@ public class EpdgTunnelManager {
                     }
                     break;
 
+                case EVENT_EPDG_ADDRESS_SELECTION_PARTIAL_RESULT:
+                    selectorResult = (EpdgSelectorResult) msg.obj;
+                    printRequestQueue("EVENT_EPDG_ADDRESS_SELECTION_PARTIAL_RESULT");
+
+                    if (selectorResult.getTransactionId() != mTransactionId) {
+                        Log.e(TAG, "Mismatched transactionId");
+                        break;
+                    }
+
+                    if (selectorResult.getTransactionId() == mStreamedTransactionId) {
+                        updateStreamedEpdgAddressList(selectorResult.getValidIpList());
+                        break;
+                    }
+
+                    if (mPendingBringUpRequests.isEmpty()) {
+                        Log.d(TAG, "Empty request queue");
+                        break;
+                    }
+
+                    // Starts the bring-up against the first candidates while the lower priority
+                    // resolution methods are still running.
+                    mStreamedTransactionId = selectorResult.getTransactionId();
+                    tunnelRequestWrapper = mPendingBringUpRequests.remove();
+                    validateAndSetEpdgAddress(selectorResult.getValidIpList());
+                    mStreamedEpdgAddress = mEpdgAddress;
+                    onBringUpTunnel(
+                            tunnelRequestWrapper.getSetupRequest(),
+                            tunnelRequestWrapper.getTunnelCallback(),
+                            tunnelRequestWrapper.getTunnelMetrics());
+                    break;
+
                 case EVENT_CHILD_SESSION_OPENED:
                     TunnelOpenedData tunnelOpenedData = (TunnelOpenedData) msg.obj;
                     apnName = tunnelOpenedData.mApnName;
@@ -1452,7 +1509,9 @@ public class EpdgTunnelManager {
                                             .build());
 
                     onConnectedToEpdg(true);
+                    getEpdgSelector().onEpdgConnected(mEpdgAddress);
                     mValidEpdgInfo.resetIndex();
+                    mStreamedEpdgAddress = null;
                     printRequestQueue("EVENT_CHILD_SESSION_OPENED");
                     serviceAllPendingRequests();
                     tunnelConfig.setIkeSessionState(IkeSessionState.CHILD_SESSION_OPENED);
@@ -1580,6 +1639,15 @@ public class EpdgTunnelManager {
                                     });
                             mIkeSessionNetwork = mDefaultNetwork;
                         }
+                    } else if (mEpdgSelectionCancellationSignal != null
+                            && mTransactionId != mStreamedTransactionId
+                            && !mPendingBringUpRequests.isEmpty()
+                            && Objects.nonNull(mDefaultNetwork)
+                            && !Objects.equals(mDefaultNetwork, mEpdgSelectionNetwork)) {
+                        // The DNS queries of the selection in progress were sent on the previous
+                        // network, so the selection is restarted on the new one.
+                        Log.d(TAG, "Restarting ePDG selection on the new network. " + paraString);
+                        selectEpdgAddress(mPendingBringUpRequests.peek().getSetupRequest());
                     }
                     break;
 
@@ -1605,6 +1673,10 @@ public class EpdgTunnelManager {
                     int numClosed = closePendingRequestsForApn(apnName);
                     if (numClosed > 0) {
                         Log.d(TAG, "Closed " + numClosed + " pending requests for apn: " + apnName);
+                        if (mPendingBringUpRequests.isEmpty()) {
+                            // No request is waiting for the ePDG selection any more.
+                            cancelEpdgSelection();
+                        }
                     }
                     if (tunnelConfig == null && numClosed == 0) {
                         // IwlanDataService expected to close a (pending or up) tunnel but was not
@@ -1787,8 +1859,19 @@ public class EpdgTunnelManager {
         tunnelConfig.getIkeSession().close();
     }
 
+    private void cancelEpdgSelection() {
+        if (mEpdgSelectionCancellationSignal != null) {
+            Log.d(TAG, "Cancelling ePDG selection: " + mTransactionId);
+            mEpdgSelectionCancellationSignal.cancel();
+            mEpdgSelectionCancellationSignal = null;
+        }
+    }
+
     private void selectEpdgAddress(TunnelSetupRequest setupRequest) {
+        // A new selection supersedes the one in progress, whose result would be dropped anyway.
+        cancelEpdgSelection();
         ++mTransactionId;
+        mStreamedEpdgAddress = null;
         mEpdgServerSelectionStartTime = System.currentTimeMillis();
 
         final int ipPreference =
@@ -1827,6 +1910,8 @@ public class EpdgTunnelManager {
         }
 
         EpdgSelector epdgSelector = getEpdgSelector();
+        mEpdgSelectionCancellationSignal = new CancellationSignal();
+        mEpdgSelectionNetwork = mDefaultNetwork;
         IwlanError epdgError =
                 epdgSelector.getValidatedServerList(
                         mTransactionId,
@@ -1835,7 +1920,8 @@ public class EpdgTunnelManager {
                         setupRequest.isRoaming(),
                         setupRequest.isEmergency(),
                         mDefaultNetwork,
-                        mSelectorCallback);
+                        mSelectorCallback,
+                        mEpdgSelectionCancellationSignal);
 
         if (epdgError.getErrorType() != IwlanError.NO_ERROR) {
             Log.e(TAG, "Epdg address selection failed with error:" + epdgError);
@@ -1898,6 +1984,19 @@ public class EpdgTunnelManager {
         mValidEpdgInfo.incrementIndex();
     }
 
+    // Replaces the candidate list of a bring-up that was started from a partial selection result.
+    // The address in use is moved past, so that a retry continues with the next candidate.
+    private void updateStreamedEpdgAddressList(List<InetAddress> selectorResultList) {
+        if (selectorResultList.isEmpty()) {
+            return;
+        }
+        Log.d(TAG, "Update streamed ePDG address list: " + selectorResultList);
+        mValidEpdgInfo.setAddrList(selectorResultList);
+        if (mStreamedEpdgAddress != null) {
+            mValidEpdgInfo.setIndexAfter(mStreamedEpdgAddress);
+        }
+    }
+
     private void serviceAllPendingRequests() {
         while (!mPendingBringUpRequests.isEmpty()) {
             Log.d(TAG, "serviceAllPendingRequests");
@@ -2149,6 +2248,15 @@ public class EpdgTunnelManager {
         public void resetIndex() {
             mIndex = 0;
         }
+
+        public void setIndexAfter(@NonNull InetAddress addr) {
+            int index = mAddrList.indexOf(addr);
+            if (index < 0 || index >= mAddrList.size() - 1) {
+                resetIndex();
+            } else {
+                mIndex = index + 1;
+            }
+        }
     }
 
     private static class IpPreferenceConflict {
@@ -2294,8 +2402,7 @@ public class EpdgTunnelManager {
     @VisibleForTesting
     void sendSelectionRequestComplete(
             List<InetAddress> validIPList, IwlanError result, int transactionId) {
-        mEpdgServerSelectionDuration = System.currentTimeMillis() - mEpdgServerSelectionStartTime;
-        mEpdgServerSelectionStartTime = 0;
+        updateEpdgServerSelectionDuration();
         EpdgSelectorResult epdgSelectorResult =
                 new EpdgSelectorResult(validIPList, result, transactionId);
         mHandler.sendMessage(
@@ -2303,6 +2410,26 @@ public class EpdgTunnelManager {
                         EVENT_EPDG_ADDRESS_SELECTION_REQUEST_COMPLETE, epdgSelectorResult));
     }
 
+    @VisibleForTesting
+    void sendSelectionPartialResult(List<InetAddress> validIPList, int transactionId) {
+        updateEpdgServerSelectionDuration();
+        EpdgSelectorResult epdgSelectorResult =
+                new EpdgSelectorResult(
+                        validIPList, new IwlanError(IwlanError.NO_ERROR), transactionId);
+        mHandler.sendMessage(
+                mHandler.obtainMessage(
+                        EVENT_EPDG_ADDRESS_SELECTION_PARTIAL_RESULT, epdgSelectorResult));
+    }
+
+    // Records the time until the first selection result, partial or complete, was received.
+    private void updateEpdgServerSelectionDuration() {
+        if (mEpdgServerSelectionStartTime == 0) {
+            return;
+        }
+        mEpdgServerSelectionDuration = System.currentTimeMillis() - mEpdgServerSelectionStartTime;
+        mEpdgServerSelectionStartTime = 0;
+    }
+
     static boolean isValidApnProtocol(int proto) {
         return (proto == ApnSetting.PROTOCOL_IP
                 || proto == ApnSetting.PROTOCOL_IPV4V6
@@ -2330,6 +2457,8 @@ public class EpdgTunnelManager {
                 return "EVENT_IKE_SESSION_CLOSED";
             case EVENT_EPDG_ADDRESS_SELECTION_REQUEST_COMPLETE:
                 return "EVENT_EPDG_ADDRESS_SELECTION_REQUEST_COMPLETE";
+            case EVENT_EPDG_ADDRESS_SELECTION_PARTIAL_RESULT:
+                return "EVENT_EPDG_ADDRESS_SELECTION_PARTIAL_RESULT";
             case EVENT_IPSEC_TRANSFORM_CREATED:
                 return "EVENT_IPSEC_TRANSFORM_CREATED";
             case EVENT_IPSEC_TRANSFORM_DELETED:
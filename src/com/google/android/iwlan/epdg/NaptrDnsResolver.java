@@ -79,7 +79,11 @@ final class NaptrDnsResolver {
 
     static class NaptrResponse extends DnsPacket {
         /*
-         * Parses and stores a NAPTR record as described in RFC 2915.
+         * Parses a NAPTR record as described in RFC 2915.
+         *
+         * Only the fields used for ePDG selection are decoded up front. The free form |service|
+         * string is decoded from the record data on first use, and the |regex| field is only
+         * checked to be empty.
          */
         static class NaptrRecord {
 
@@ -91,57 +95,78 @@ final class NaptrDnsResolver {
             // should prioritize records with lower 'order'.
             public final int order;
 
-            // A string that denotes the @NaptrRecordType.
-            @NonNull public final String flag;
-
-            // A free form string that denotes the service provided by the server described by the
-            // record- SIP, email, etc.
-            public final String service;
-
-            // A string that describes the regex transformation (described in RFC 2915) that needs
-            // to be applied to the DNS query domain name for further processes. RFC 2915 describes
-            // that in a NaptrRecord, exactly one of |regex| and |replacement| must be non-null.
-            @Nullable public final String regex;
-
             // This string describes how the input DNS query domain name should be replaced. With
             // the 'flag' and 'service' field, this instructs the DNS client on what to do next.
             // For current use cases, only the |replacement| field is expected to be non-null in a
-            // NaptrRecord.
+            // NaptrRecord, as RFC 2915 describes that exactly one of |regex| and |replacement|
+            // must be non-null.
             @Nullable public final String replacement;
 
             private static final int MAXNAMESIZE = 255;
 
-            private String parseNextField(ByteBuffer buf) throws BufferUnderflowException {
-                final short size = buf.get();
+            // The record data, and the positions of the 'flag' and 'service' strings within it.
+            private final byte[] mData;
+            private final int mFlagOffset;
+            private final int mFlagLength;
+            private final int mServiceOffset;
+            private final int mServiceLength;
+
+            // Skips over a <character-string>, and returns its length.
+            private static int skipNextField(ByteBuffer buf) throws BufferUnderflowException {
+                final int size = Byte.toUnsignedInt(buf.get());
                 // size can also be 0, for instance for the 'regex' field.
-                final byte[] field = new byte[size];
-                buf.get(field, 0, size);
-                return new String(field, StandardCharsets.UTF_8);
+                if (size > buf.remaining()) {
+                    throw new BufferUnderflowException();
+                }
+                buf.position(buf.position() + size);
+                return size;
+            }
+
+            private String decodeField(int offset, int length) {
+                return new String(mData, offset, length, StandardCharsets.UTF_8);
+            }
+
+            /** Returns the string that denotes the @NaptrRecordType. */
+            @NonNull
+            public String getFlag() {
+                return decodeField(mFlagOffset, mFlagLength);
+            }
+
+            /**
+             * Returns the free form string that denotes the service provided by the server
+             * described by the record- SIP, email, etc.
+             */
+            @NonNull
+            public String getService() {
+                return decodeField(mServiceOffset, mServiceLength);
             }
 
             @NaptrRecordType
             public int getTypeFromFlagString() {
-                switch (flag) {
-                    case "S":
-                    case "s":
-                        return TYPE_SRV;
-                    case "A":
-                    case "a":
-                        return TYPE_A;
-                    default:
-                        throw new ParseException("Unsupported flag type: " + flag);
+                if (mFlagLength == 1) {
+                    switch (mData[mFlagOffset]) {
+                        case 'S':
+                        case 's':
+                            return TYPE_SRV;
+                        case 'A':
+                        case 'a':
+                            return TYPE_A;
+                    }
                 }
+                throw new ParseException("Unsupported flag type: " + getFlag());
             }
 
             NaptrRecord(byte[] naptrRecordData) throws ParseException {
                 final ByteBuffer buf = ByteBuffer.wrap(naptrRecordData);
+                mData = naptrRecordData;
                 try {
                     order = Short.toUnsignedInt(buf.getShort());
                     preference = Short.toUnsignedInt(buf.getShort());
-                    flag = parseNextField(buf);
-                    service = parseNextField(buf);
-                    regex = parseNextField(buf);
-                    if (regex.length() != 0) {
+                    mFlagOffset = buf.position() + 1;
+                    mFlagLength = skipNextField(buf);
+                    mServiceOffset = buf.position() + 1;
+                    mServiceLength = skipNextField(buf);
+                    if (skipNextField(buf) != 0) {
                         throw new ParseException("NAPTR: regex field expected to be empty!");
                     }
                     replacement =
@@ -291,7 +316,7 @@ final class NaptrDnsResolver {
             @NonNull DnsResolver.Callback<List<NaptrTarget>> callback) {
         final NaptrRecordAnswerAccumulator naptrDnsCb =
                 new NaptrRecordAnswerAccumulator(callback, executor);
-        DnsResolver.getInstance()
+        EpdgDnsQueryCoalescer.getInstance()
                 .rawQuery(
                         network,
                         domain,
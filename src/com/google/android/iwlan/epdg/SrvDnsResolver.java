@@ -26,6 +26,7 @@ import android.net.ParseException;
 import android.os.CancellationSignal;
 import android.util.Log;
 
+import com.android.internal.annotations.VisibleForTesting;
 import com.android.net.module.util.DnsPacket;
 import com.android.net.module.util.DnsPacketUtils.DnsRecordParser;
 
@@ -34,23 +35,29 @@ import java.net.UnknownHostException;
 import java.nio.BufferUnderflowException;
 import java.nio.ByteBuffer;
 import java.util.ArrayList;
+import java.util.Collection;
+import java.util.Comparator;
 import java.util.HashMap;
 import java.util.Iterator;
 import java.util.LinkedHashMap;
 import java.util.List;
 import java.util.Map;
+import java.util.Random;
 import java.util.concurrent.CompletableFuture;
+import java.util.concurrent.CompletionException;
 import java.util.concurrent.ExecutionException;
 import java.util.concurrent.Executor;
 import java.util.concurrent.Executors;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.TimeoutException;
 
 /**
  * A utility wrapper around android.net.DnsResolver that queries for SRV DNS Resource Records, and
  * returns in the user callback a list of server (IP addresses, port number) combinations pertaining
  * to the service requested.
  *
- * <p>The returned {@link List<SrvRecordInetAddress>} is currently not sorted according to priority
- * and weight, in the mechanism described in RFC2782.
+ * <p>The returned {@link List<SrvRecordInetAddress>} is ordered by priority, and by weighted random
+ * selection among records of the same priority, as described in RFC2782.
  */
 final class SrvDnsResolver {
     private static final String TAG = "SrvDnsResolver";
@@ -74,6 +81,12 @@ final class SrvDnsResolver {
     // Since the query type for SRV records is not defined in DnsResolver, it is defined here.
     static final int QUERY_TYPE_SRV = 33;
 
+    // Bounds the follow-up queries for targets without address records, so that a target that
+    // never answers cannot hold up the others. Kept below the timeout EpdgSelector applies to the
+    // whole SRV query.
+    @VisibleForTesting static final long DEFAULT_TARGET_RESOLUTION_TIMEOUT_MS = 4000;
+    private static volatile long sTargetResolutionTimeoutMs = DEFAULT_TARGET_RESOLUTION_TIMEOUT_MS;
+
     /*
      * Parses and stores an SRV record as described in RFC2782.
      *
@@ -100,6 +113,14 @@ final class SrvDnsResolver {
 
             private static final int MAXNAMESIZE = 255;
 
+            @VisibleForTesting
+            SrvRecord(int priority, int weight, int port, String target) {
+                this.priority = priority;
+                this.weight = weight;
+                this.port = port;
+                this.target = target;
+            }
+
             SrvRecord(byte[] srvRecordData) throws ParseException {
                 final ByteBuffer buf = ByteBuffer.wrap(srvRecordData);
 
@@ -208,6 +229,8 @@ final class SrvDnsResolver {
     private static class SrvRecordAnswerAccumulator implements DnsResolver.Callback<byte[]> {
         private static final String TAG = "SrvRecordAnswerAccum";
 
+        private static final Random sRandom = new Random();
+
         private final Network mNetwork;
         private final DnsResolver.Callback<List<SrvRecordInetAddress>> mUserCallback;
         private final Executor mUserExecutor;
@@ -231,10 +254,10 @@ final class SrvDnsResolver {
 
         /**
          * Some DNS servers, when queried for an SRV record, do not return the IPv4/v6 records along
-         * with the SRV record. For those, we perform an additional blocking IPv4/v6 DNS query for
-         * each outstanding SRV record.
+         * with the SRV record. For those, we perform an additional IPv4/v6 DNS query for each
+         * outstanding SRV record.
          */
-        private List<InetAddress> queryDns(String domainName) throws DnsException {
+        private CompletableFuture<List<InetAddress>> queryDns(String domainName) {
             final CompletableFuture<List<InetAddress>> result = new CompletableFuture();
             final DnsResolver.Callback<List<InetAddress>> cb =
                     new DnsResolver.Callback<List<InetAddress>>() {
@@ -253,63 +276,73 @@ final class SrvDnsResolver {
                             result.completeExceptionally(error);
                         }
                     };
-            DnsResolver.getInstance()
+            EpdgDnsQueryCoalescer.getInstance()
                     .query(mNetwork, domainName, DnsResolver.FLAG_EMPTY, Runnable::run, null, cb);
-
-            try {
-                return result.get();
-            } catch (ExecutionException e) {
-                throw (DnsException) e.getCause();
-            } catch (InterruptedException e) {
-                Thread.currentThread().interrupt(); // Restore the interrupted status
-                throw new DnsException(DnsResolver.ERROR_SYSTEM, e);
-            }
+            return result;
         }
 
         /**
-         * Composes the final (IP address, Port) combination for the client's SRV request. Performs
-         * additional DNS queries if necessary. The SRV records are presently not sorted according
-         * to priority and weight, as described in RFC2782- this is simply 'good enough'.
+         * Composes the final (IP address, Port) combination for the client's SRV request, in the
+         * order described in RFC2782. The targets without address records in the response are
+         * resolved concurrently; the ones that fail or do not answer in time are left out.
          */
         private List<SrvRecordInetAddress> composeSrvRecordResult(SrvResponse response)
                 throws DnsPacket.ParseException, DnsException {
             final List<SrvRecordInetAddress> srvRecordInetAddresses = new ArrayList<>();
             final Map<String, List<InetAddress>> domainNameToIpAddresses =
                     response.parseIpAddresses();
-            final Map<String, SrvResponse.SrvRecord> targetNameToSrvRecords =
-                    response.parseSrvRecords();
-
-            Iterator<Map.Entry<String, SrvResponse.SrvRecord>> itr =
-                    targetNameToSrvRecords.entrySet().iterator();
-
-            // Checks if the received SRV RRs have a corresponding match in IP addresses. For the
-            // ones that do, adds the (IP address, port number) to the output field list.
-            while (itr.hasNext()) {
-                Map.Entry<String, SrvResponse.SrvRecord> targetNameToSrvRecord = itr.next();
-                String domainName = targetNameToSrvRecord.getKey();
-                int port = targetNameToSrvRecord.getValue().port;
-                List<InetAddress> addresses = domainNameToIpAddresses.get(domainName);
-                if (addresses != null) {
-                    // Found a match- add to output list and remove entry from SrvRecord collection.
-                    for (InetAddress address : addresses) {
-                        srvRecordInetAddresses.add(new SrvRecordInetAddress(address, port));
-                    }
-                    itr.remove();
+            final List<SrvResponse.SrvRecord> srvRecords =
+                    orderSrvRecords(response.parseSrvRecords().values(), sRandom);
+
+            final Map<String, CompletableFuture<List<InetAddress>>> targetQueries =
+                    new HashMap<>();
+            for (SrvResponse.SrvRecord record : srvRecords) {
+                if (!domainNameToIpAddresses.containsKey(record.target)) {
+                    targetQueries.put(record.target, queryDns(record.target));
                 }
             }
 
-            // For the SRV RRs that don't, spawns a separate DnsResolver query for each, and
-            // collects results using a blocking call.
-            itr = targetNameToSrvRecords.entrySet().iterator();
-            while (itr.hasNext()) {
-                Map.Entry<String, SrvResponse.SrvRecord> targetNameToSrvRecord = itr.next();
-                String domainName = targetNameToSrvRecord.getKey();
-                int port = targetNameToSrvRecord.getValue().port;
-                List<InetAddress> addresses = queryDns(domainName);
+            if (!targetQueries.isEmpty()) {
+                try {
+                    CompletableFuture.allOf(
+                                    targetQueries.values().toArray(new CompletableFuture[0]))
+                            .get(sTargetResolutionTimeoutMs, TimeUnit.MILLISECONDS);
+                } catch (ExecutionException e) {
+                    // The failed targets are left out below.
+                } catch (TimeoutException e) {
+                    Log.w(TAG, "Timed out resolving SRV targets");
+                } catch (InterruptedException e) {
+                    Thread.currentThread().interrupt(); // Restore the interrupted status
+                    throw new DnsException(DnsResolver.ERROR_SYSTEM, e);
+                }
+            }
+
+            DnsException targetError = null;
+            for (SrvResponse.SrvRecord record : srvRecords) {
+                List<InetAddress> addresses = domainNameToIpAddresses.get(record.target);
+                if (addresses == null) {
+                    CompletableFuture<List<InetAddress>> targetQuery =
+                            targetQueries.get(record.target);
+                    if (!targetQuery.isDone()) {
+                        Log.w(TAG, "No answer in time for SRV target: " + record.target);
+                        continue;
+                    }
+                    try {
+                        addresses = targetQuery.join();
+                    } catch (CompletionException e) {
+                        targetError = (DnsException) e.getCause();
+                        continue;
+                    }
+                }
                 for (InetAddress address : addresses) {
-                    srvRecordInetAddresses.add(new SrvRecordInetAddress(address, port));
+                    srvRecordInetAddresses.add(new SrvRecordInetAddress(address, record.port));
                 }
             }
+
+            // Only fails the query if no target could be resolved at all.
+            if (srvRecordInetAddresses.isEmpty() && targetError != null) {
+                throw targetError;
+            }
             return srvRecordInetAddresses;
         }
 
@@ -342,6 +375,64 @@ final class SrvDnsResolver {
         }
     }
 
+    /** Sets how long the follow-up queries for SRV targets are waited for. */
+    @VisibleForTesting
+    static void setTargetResolutionTimeoutMs(long timeoutMs) {
+        sTargetResolutionTimeoutMs = timeoutMs;
+    }
+
+    /**
+     * Orders SRV records as described in RFC2782: by ascending priority, and among records of the
+     * same priority by repeated weighted random selection. Records whose target is "." denote that
+     * the service is not available, and are dropped.
+     */
+    @VisibleForTesting
+    static List<SrvResponse.SrvRecord> orderSrvRecords(
+            @NonNull Collection<SrvResponse.SrvRecord> srvRecords, @NonNull Random random) {
+        final List<SrvResponse.SrvRecord> remaining = new ArrayList<>();
+        for (SrvResponse.SrvRecord record : srvRecords) {
+            if (!record.target.isEmpty() && !record.target.equals(".")) {
+                remaining.add(record);
+            }
+        }
+        // Within a priority, records of weight 0 are placed first, as the RFC requires.
+        remaining.sort(
+                Comparator.<SrvResponse.SrvRecord>comparingInt(r -> r.priority)
+                        .thenComparingInt(r -> (r.weight == 0) ? 0 : 1));
+
+        final List<SrvResponse.SrvRecord> ordered = new ArrayList<>();
+        int start = 0;
+        while (start < remaining.size()) {
+            int end = start;
+            int totalWeight = 0;
+            while (end < remaining.size()
+                    && remaining.get(end).priority == remaining.get(start).priority) {
+                totalWeight += remaining.get(end).weight;
+                end++;
+            }
+
+            final List<SrvResponse.SrvRecord> samePriority =
+                    new ArrayList<>(remaining.subList(start, end));
+            while (!samePriority.isEmpty()) {
+                int selection = random.nextInt(totalWeight + 1);
+                int runningSum = 0;
+                Iterator<SrvResponse.SrvRecord> itr = samePriority.iterator();
+                while (itr.hasNext()) {
+                    SrvResponse.SrvRecord record = itr.next();
+                    runningSum += record.weight;
+                    if (runningSum >= selection) {
+                        ordered.add(record);
+                        totalWeight -= record.weight;
+                        itr.remove();
+                        break;
+                    }
+                }
+            }
+            start = end;
+        }
+        return ordered;
+    }
+
     /**
      * Send an SRV DNS query with the specified name, class and query type. The answer will be
      * provided asynchronously on the passed executor, through the provided {@link
@@ -363,7 +454,7 @@ final class SrvDnsResolver {
             @NonNull DnsResolver.Callback<List<SrvRecordInetAddress>> callback) {
         final SrvRecordAnswerAccumulator srvDnsCb =
                 new SrvRecordAnswerAccumulator(network, callback, executor);
-        DnsResolver.getInstance()
+        EpdgDnsQueryCoalescer.getInstance()
                 .rawQuery(
                         network,
                         domain,
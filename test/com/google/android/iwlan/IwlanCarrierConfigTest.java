@@ -0,0 +1,152 @@
+/*
+ * Copyright 2024 The Android Open Source Project
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package com.google.android.iwlan;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertNull;
+import static org.junit.Assert.assertSame;
+import static org.junit.Assert.assertTrue;
+import static org.mockito.ArgumentMatchers.anyInt;
+import static org.mockito.Mockito.eq;
+import static org.mockito.Mockito.mock;
+import static org.mockito.Mockito.times;
+import static org.mockito.Mockito.verify;
+import static org.mockito.Mockito.when;
+
+import android.content.Context;
+import android.os.PersistableBundle;
+import android.telephony.CarrierConfigManager;
+import android.telephony.SubscriptionInfo;
+import android.telephony.SubscriptionManager;
+
+import org.junit.After;
+import org.junit.Before;
+import org.junit.Test;
+import org.mockito.Mock;
+import org.mockito.MockitoAnnotations;
+
+public class IwlanCarrierConfigTest {
+    private static final int DEFAULT_SLOT_INDEX = 0;
+    private static final int DEFAULT_SUB_INDEX = 0;
+
+    @Mock private Context mMockContext;
+    @Mock private CarrierConfigManager mMockCarrierConfigManager;
+    @Mock private SubscriptionManager mMockSubscriptionManager;
+    @Mock private SubscriptionInfo mMockSubscriptionInfo;
+
+    private PersistableBundle mTestBundle;
+
+    @Before
+    public void setUp() throws Exception {
+        MockitoAnnotations.initMocks(this);
+
+        when(mMockContext.getSystemService(eq(CarrierConfigManager.class)))
+                .thenReturn(mMockCarrierConfigManager);
+        when(mMockContext.getSystemService(eq(SubscriptionManager.class)))
+                .thenReturn(mMockSubscriptionManager);
+        when(mMockSubscriptionManager.getActiveSubscriptionInfoForSimSlotIndex(anyInt()))
+                .thenReturn(mMockSubscriptionInfo);
+        when(mMockSubscriptionInfo.getSubscriptionId()).thenReturn(DEFAULT_SUB_INDEX);
+
+        mTestBundle = new PersistableBundle();
+        mTestBundle.putInt(CarrierConfigManager.Iwlan.KEY_DPD_TIMER_SEC_INT, 60);
+        when(mMockCarrierConfigManager.getConfigForSubId(DEFAULT_SUB_INDEX))
+                .thenReturn(mTestBundle);
+
+        IwlanCarrierConfig.resetAll();
+    }
+
+    @After
+    public void cleanUp() throws Exception {
+        IwlanCarrierConfig.resetAll();
+    }
+
+    @Test
+    public void testConfigReadDirectlyUntilLoaded() throws Exception {
+        assertNull(IwlanCarrierConfig.get(mMockContext, DEFAULT_SLOT_INDEX));
+
+        int dpdDelay =
+                IwlanHelper.getConfig(
+                        CarrierConfigManager.Iwlan.KEY_DPD_TIMER_SEC_INT,
+                        mMockContext,
+                        DEFAULT_SLOT_INDEX);
+        assertEquals(60, dpdDelay);
+        verify(mMockCarrierConfigManager, times(1)).getConfigForSubId(DEFAULT_SUB_INDEX);
+    }
+
+    @Test
+    public void testLoadedSnapshotServesConfigWithoutQuery() throws Exception {
+        IwlanCarrierConfig carrierConfig =
+                IwlanCarrierConfig.reload(mMockContext, DEFAULT_SLOT_INDEX);
+        assertTrue(carrierConfig.hasCarrierConfig());
+        assertEquals(DEFAULT_SUB_INDEX, carrierConfig.getSubId());
+
+        // Later changes to the bundle are not visible until the next reload.
+        mTestBundle.putInt(CarrierConfigManager.Iwlan.KEY_DPD_TIMER_SEC_INT, 120);
+        for (int i = 0; i < 3; i++) {
+            int dpdDelay =
+                    IwlanHelper.getConfig(
+                            CarrierConfigManager.Iwlan.KEY_DPD_TIMER_SEC_INT,
+                            mMockContext,
+                            DEFAULT_SLOT_INDEX);
+            assertEquals(60, dpdDelay);
+        }
+        verify(mMockCarrierConfigManager, times(1)).getConfigForSubId(DEFAULT_SUB_INDEX);
+
+        // Keys the carrier does not set fall back to the platform defaults.
+        int natKeepAlive =
+                IwlanHelper.getConfig(
+                        CarrierConfigManager.Iwlan.KEY_NATT_KEEP_ALIVE_TIMER_SEC_INT,
+                        mMockContext,
+                        DEFAULT_SLOT_INDEX);
+        assertEquals(
+                (int)
+                        IwlanHelper.getDefaultConfig(
+                                CarrierConfigManager.Iwlan.KEY_NATT_KEEP_ALIVE_TIMER_SEC_INT),
+                natKeepAlive);
+    }
+
+    @Test
+    public void testReloadBumpsVersion() throws Exception {
+        long firstVersion =
+                IwlanCarrierConfig.reload(mMockContext, DEFAULT_SLOT_INDEX).getVersion();
+        mTestBundle.putInt(CarrierConfigManager.Iwlan.KEY_DPD_TIMER_SEC_INT, 120);
+        long secondVersion =
+                IwlanCarrierConfig.reload(mMockContext, DEFAULT_SLOT_INDEX).getVersion();
+
+        assertTrue(secondVersion > firstVersion);
+        IwlanCarrierConfig carrierConfig = IwlanCarrierConfig.get(mMockContext, DEFAULT_SLOT_INDEX);
+        assertEquals(secondVersion, carrierConfig.getVersion());
+        assertEquals(120, carrierConfig.getInt(CarrierConfigManager.Iwlan.KEY_DPD_TIMER_SEC_INT));
+    }
+
+    @Test
+    public void testSnapshotKeyedBySlotAndSubscription() throws Exception {
+        IwlanCarrierConfig carrierConfig =
+                IwlanCarrierConfig.reload(mMockContext, DEFAULT_SLOT_INDEX);
+
+        // Any context of the process reads the snapshot of the slot.
+        Context otherContext = mock(Context.class);
+        when(otherContext.getSystemService(eq(SubscriptionManager.class)))
+                .thenReturn(mMockSubscriptionManager);
+        assertSame(carrierConfig, IwlanCarrierConfig.get(otherContext, DEFAULT_SLOT_INDEX));
+
+        // A snapshot of the previous subscription of the slot is not served.
+        when(mMockSubscriptionInfo.getSubscriptionId()).thenReturn(DEFAULT_SUB_INDEX + 1);
+        assertNull(IwlanCarrierConfig.get(mMockContext, DEFAULT_SLOT_INDEX));
+    }
+}
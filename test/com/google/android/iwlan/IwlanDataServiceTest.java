@@ -26,6 +26,7 @@ import static org.junit.Assert.assertEquals;
 import static org.junit.Assert.assertFalse;
 import static org.junit.Assert.assertNotEquals;
 import static org.junit.Assert.assertNotNull;
+import static org.junit.Assert.assertNull;
 import static org.junit.Assert.assertThrows;
 import static org.junit.Assert.assertTrue;
 import static org.mockito.Matchers.isNull;
@@ -387,6 +388,28 @@ public class IwlanDataServiceTest {
                 .updateNetwork(eq(newNetwork), any(LinkProperties.class));
     }
 
+    @Test
+    public void testNetworkAddressesPublishedOnlyForDefaultNetwork() {
+        IwlanNetworkAddresses.resetAll();
+        NetworkCallback networkCallback = getNetworkMonitorCallback();
+        onSystemDefaultNetworkConnected(
+                mMockNetwork, mLinkProperties, TRANSPORT_WIFI, INVALID_SUB_INDEX);
+        assertNotNull(IwlanNetworkAddresses.get(mMockNetwork));
+
+        LinkProperties newLinkProperties = new LinkProperties();
+        newLinkProperties.setInterfaceName("wlan1");
+        newLinkProperties.addLinkAddress(mMockIPv6LinkAddress);
+        Network newNetwork = createMockNetwork(newLinkProperties);
+        networkCallback.onLinkPropertiesChanged(newNetwork, newLinkProperties);
+        assertNull(IwlanNetworkAddresses.get(newNetwork));
+
+        // The replaced default network is not reported lost, but its addresses are dropped.
+        onSystemDefaultNetworkConnected(
+                newNetwork, newLinkProperties, TRANSPORT_WIFI, INVALID_SUB_INDEX);
+        assertNull(IwlanNetworkAddresses.get(mMockNetwork));
+        assertTrue(IwlanNetworkAddresses.get(newNetwork).hasIpv6Address());
+    }
+
     @Test
     public void testOnLinkPropertiesChangedWithClatInstalled() throws Exception {
         NetworkCallback networkCallback = getNetworkMonitorCallback();
@@ -18,6 +18,9 @@ package com.google.android.iwlan;
 
 import static com.android.dx.mockito.inline.extended.ExtendedMockito.mockitoSession;
 
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertNull;
+import static org.junit.Assert.assertTrue;
 import static org.mockito.Mockito.*;
 
 import android.content.ContentResolver;
@@ -30,6 +33,8 @@ import android.os.Handler;
 import android.os.Message;
 import android.telephony.CarrierConfigManager;
 import android.telephony.CellInfo;
+import android.telephony.CellInfoLte;
+import android.telephony.ServiceState;
 import android.telephony.SubscriptionInfo;
 import android.telephony.SubscriptionManager;
 import android.telephony.TelephonyCallback;
@@ -83,6 +88,7 @@ public class IwlanEventListenerTest {
                         .mockStatic(IwlanHelper.class)
                         .mockStatic(SubscriptionManager.class)
                         .mockStatic(TelephonyManager.class)
+                        .spyStatic(IwlanDataService.class)
                         .startMocking();
 
         when(mMockContext.getSystemService(eq(WifiManager.class))).thenReturn(mMockWifiManager);
@@ -116,6 +122,7 @@ public class IwlanEventListenerTest {
     @After
     public void cleanUp() throws Exception {
         mStaticMockSession.finishMocking();
+        IwlanTelephonyState.resetAll();
     }
 
     @Test
@@ -281,6 +288,48 @@ public class IwlanEventListenerTest {
         verify(mMockMessage, times(1)).sendToTarget();
     }
 
+    @Test
+    public void testTelephonyCallbackUpdatesTelephonyState() throws Exception {
+        when(IwlanDataService.getContext()).thenReturn(mMockContext);
+        when(mMockTelephonyManager.getNetworkOperator()).thenReturn("31048");
+        IwlanTelephonyState.resetAll();
+        IwlanTelephonyState.reload(mMockContext, DEFAULT_SLOT_INDEX);
+        mIwlanEventListener.registerTelephonyCallback();
+
+        CellInfoLte registeredCellInfo = mock(CellInfoLte.class);
+        when(registeredCellInfo.isRegistered()).thenReturn(true);
+        mIwlanEventListener
+                .getTelephonyCallback()
+                .onCellInfoChanged(List.of(registeredCellInfo, mock(CellInfoLte.class)));
+        ServiceState serviceState = mock(ServiceState.class);
+        when(serviceState.getOperatorNumeric()).thenReturn("46001");
+        when(serviceState.getRoaming()).thenReturn(true);
+        mIwlanEventListener.getTelephonyCallback().onServiceStateChanged(serviceState);
+
+        // The registration is updated from the callbacks, without querying telephony again.
+        IwlanTelephonyState state = IwlanTelephonyState.get(DEFAULT_SLOT_INDEX);
+        assertEquals(List.of(registeredCellInfo), state.getRegisteredCellInfos());
+        assertEquals("46001", state.getRegisteredPlmn());
+        assertTrue(state.isNetworkRoaming());
+        verify(mMockTelephonyManager, times(1)).getNetworkOperator();
+        verify(mMockTelephonyManager, times(1)).getAllCellInfo();
+    }
+
+    @Test
+    public void testTelephonyCallbackIgnoredUntilStateLoaded() throws Exception {
+        when(IwlanDataService.getContext()).thenReturn(mMockContext);
+        IwlanTelephonyState.resetAll();
+        mIwlanEventListener.registerTelephonyCallback();
+
+        ServiceState serviceState = mock(ServiceState.class);
+        when(serviceState.getOperatorNumeric()).thenReturn("46001");
+        mIwlanEventListener.getTelephonyCallback().onServiceStateChanged(serviceState);
+        mIwlanEventListener.getTelephonyCallback().onCellInfoChanged(List.of());
+
+        // Callers keep querying telephony until the state is loaded.
+        assertNull(IwlanTelephonyState.get(DEFAULT_SLOT_INDEX));
+    }
+
     @Test
     public void testCallStateChanged() throws Exception {
         when(mMockHandler.obtainMessage(
@@ -0,0 +1,147 @@
+/*
+ * Copyright 2024 The Android Open Source Project
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package com.google.android.iwlan;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertFalse;
+import static org.junit.Assert.assertNull;
+import static org.junit.Assert.assertTrue;
+import static org.mockito.Mockito.eq;
+import static org.mockito.Mockito.never;
+import static org.mockito.Mockito.times;
+import static org.mockito.Mockito.verify;
+import static org.mockito.Mockito.when;
+
+import android.content.Context;
+import android.net.ConnectivityManager;
+import android.net.InetAddresses;
+import android.net.IpPrefix;
+import android.net.LinkAddress;
+import android.net.LinkProperties;
+import android.net.Network;
+
+import org.junit.After;
+import org.junit.Before;
+import org.junit.Test;
+import org.mockito.Mock;
+import org.mockito.MockitoAnnotations;
+
+import java.util.List;
+
+public class IwlanNetworkAddressesTest {
+    @Mock private Context mMockContext;
+    @Mock private ConnectivityManager mMockConnectivityManager;
+    @Mock private Network mMockNetwork;
+    @Mock private Network mMockOtherNetwork;
+
+    private LinkProperties mLinkProperties;
+
+    @Before
+    public void setUp() throws Exception {
+        MockitoAnnotations.initMocks(this);
+
+        when(mMockContext.getSystemService(eq(ConnectivityManager.class)))
+                .thenReturn(mMockConnectivityManager);
+
+        mLinkProperties = new LinkProperties();
+        mLinkProperties.setInterfaceName("wlan0");
+        mLinkProperties.addLinkAddress(new LinkAddress("192.0.2.10/24"));
+        mLinkProperties.addLinkAddress(new LinkAddress("fe80::1/64"));
+        when(mMockConnectivityManager.getLinkProperties(eq(mMockNetwork)))
+                .thenReturn(mLinkProperties);
+
+        IwlanNetworkAddresses.resetAll();
+    }
+
+    @After
+    public void cleanUp() throws Exception {
+        IwlanNetworkAddresses.resetAll();
+    }
+
+    @Test
+    public void testLinkPropertiesChangeReplacesAddresses() throws Exception {
+        IwlanNetworkAddresses.update(mMockNetwork, mLinkProperties);
+        IwlanNetworkAddresses addresses =
+                IwlanNetworkAddresses.getOrLoad(mMockContext, mMockNetwork);
+        // The link-local address is skipped.
+        assertEquals(
+                List.of(InetAddresses.parseNumericAddress("192.0.2.10")),
+                addresses.getAddresses());
+        assertTrue(addresses.hasIpv4Address());
+        assertFalse(addresses.hasIpv6Address());
+
+        // The network gains a global IPv6 address and a NAT64 prefix, and loses IPv4.
+        LinkProperties newLinkProperties = new LinkProperties();
+        newLinkProperties.setInterfaceName("wlan0");
+        newLinkProperties.addLinkAddress(new LinkAddress("2001:db8::10/64"));
+        newLinkProperties.setNat64Prefix(new IpPrefix("2001:db8:64::/96"));
+        IwlanNetworkAddresses.update(mMockNetwork, newLinkProperties);
+
+        IwlanNetworkAddresses newAddresses =
+                IwlanNetworkAddresses.getOrLoad(mMockContext, mMockNetwork);
+        assertFalse(newAddresses.hasIpv4Address());
+        assertTrue(newAddresses.hasIpv6Address());
+        assertEquals(new IpPrefix("2001:db8:64::/96"), newAddresses.getNat64Prefix());
+        // The snapshot read before the change is left as it was.
+        assertTrue(addresses.hasIpv4Address());
+        assertNull(addresses.getNat64Prefix());
+
+        // Null link properties drop the snapshot.
+        IwlanNetworkAddresses.update(mMockNetwork, null);
+        assertNull(IwlanNetworkAddresses.get(mMockNetwork));
+        verify(mMockConnectivityManager, never()).getLinkProperties(eq(mMockNetwork));
+    }
+
+    @Test
+    public void testUnpublishedNetworkQueriedEachTime() throws Exception {
+        assertNull(IwlanNetworkAddresses.get(mMockNetwork));
+
+        IwlanNetworkAddresses.getOrLoad(mMockContext, mMockNetwork);
+        IwlanNetworkAddresses.getOrLoad(mMockContext, mMockNetwork);
+        verify(mMockConnectivityManager, times(2)).getLinkProperties(eq(mMockNetwork));
+
+        IwlanNetworkAddresses.update(mMockNetwork, mLinkProperties);
+        IwlanNetworkAddresses.remove(mMockNetwork);
+        assertNull(IwlanNetworkAddresses.get(mMockNetwork));
+    }
+
+    @Test
+    public void testNat64PrefixIsPerNetwork() throws Exception {
+        mLinkProperties.setNat64Prefix(new IpPrefix("2001:db8:64::/96"));
+        IwlanNetworkAddresses.update(mMockNetwork, mLinkProperties);
+
+        assertTrue(
+                IwlanNetworkAddresses.isIpv4EmbeddedIpv6Address(
+                        InetAddresses.parseNumericAddress("2001:db8:64::c000:20a"), mMockNetwork));
+        assertFalse(
+                IwlanNetworkAddresses.isIpv4EmbeddedIpv6Address(
+                        InetAddresses.parseNumericAddress("64:ff9b::c000:20a"), mMockNetwork));
+
+        // A network that has not advertised a prefix uses the Well-Known Prefix.
+        assertFalse(
+                IwlanNetworkAddresses.isIpv4EmbeddedIpv6Address(
+                        InetAddresses.parseNumericAddress("2001:db8:64::c000:20a"),
+                        mMockOtherNetwork));
+        assertTrue(
+                IwlanNetworkAddresses.isIpv4EmbeddedIpv6Address(
+                        InetAddresses.parseNumericAddress("64:ff9b::c000:20a"),
+                        mMockOtherNetwork));
+        assertFalse(
+                IwlanNetworkAddresses.isIpv4EmbeddedIpv6Address(
+                        InetAddresses.parseNumericAddress("192.0.2.10"), mMockOtherNetwork));
+    }
+}
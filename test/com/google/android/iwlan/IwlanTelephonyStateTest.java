@@ -0,0 +1,202 @@
+/*
+ * Copyright 2024 The Android Open Source Project
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package com.google.android.iwlan;
+
+import static com.android.dx.mockito.inline.extended.ExtendedMockito.mockitoSession;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertFalse;
+import static org.junit.Assert.assertNull;
+import static org.junit.Assert.assertTrue;
+import static org.mockito.ArgumentMatchers.anyInt;
+import static org.mockito.Mockito.eq;
+import static org.mockito.Mockito.mock;
+import static org.mockito.Mockito.times;
+import static org.mockito.Mockito.verify;
+import static org.mockito.Mockito.when;
+
+import android.content.Context;
+import android.telephony.CellInfo;
+import android.telephony.CellInfoLte;
+import android.telephony.SubscriptionInfo;
+import android.telephony.SubscriptionManager;
+import android.telephony.TelephonyManager;
+
+import org.junit.After;
+import org.junit.Before;
+import org.junit.Test;
+import org.mockito.Mock;
+import org.mockito.MockitoAnnotations;
+import org.mockito.MockitoSession;
+
+import java.util.List;
+
+public class IwlanTelephonyStateTest {
+    private static final int DEFAULT_SLOT_INDEX = 0;
+    private static final int DEFAULT_SUB_INDEX = 2;
+    private static final int OTHER_SUB_INDEX = 3;
+    private static final int TEST_CARRIER_ID = 1;
+
+    @Mock private Context mMockContext;
+    @Mock private SubscriptionManager mMockSubscriptionManager;
+    @Mock private SubscriptionInfo mMockSubscriptionInfo;
+    @Mock private TelephonyManager mMockTelephonyManager;
+    @Mock private CellInfoLte mMockCellInfoLte;
+    @Mock private CellInfoLte mMockUnregisteredCellInfoLte;
+
+    MockitoSession mStaticMockSession;
+
+    @Before
+    public void setUp() throws Exception {
+        MockitoAnnotations.initMocks(this);
+        mStaticMockSession = mockitoSession().mockStatic(SubscriptionManager.class).startMocking();
+
+        when(mMockContext.getSystemService(eq(SubscriptionManager.class)))
+                .thenReturn(mMockSubscriptionManager);
+        when(mMockContext.getSystemService(eq(TelephonyManager.class)))
+                .thenReturn(mMockTelephonyManager);
+        when(mMockSubscriptionManager.getActiveSubscriptionInfoForSimSlotIndex(anyInt()))
+                .thenReturn(mMockSubscriptionInfo);
+        when(mMockSubscriptionInfo.getSubscriptionId()).thenReturn(DEFAULT_SUB_INDEX);
+        when(SubscriptionManager.getSubscriptionId(DEFAULT_SLOT_INDEX))
+                .thenReturn(DEFAULT_SUB_INDEX);
+        when(mMockSubscriptionInfo.getMccString()).thenReturn("311");
+        when(mMockSubscriptionInfo.getMncString()).thenReturn("120");
+        when(mMockTelephonyManager.createForSubscriptionId(eq(DEFAULT_SUB_INDEX)))
+                .thenReturn(mMockTelephonyManager);
+        when(mMockTelephonyManager.getSimCarrierId()).thenReturn(TEST_CARRIER_ID);
+        when(mMockTelephonyManager.getSimCountryIso()).thenReturn("us");
+        when(mMockTelephonyManager.getNetworkOperator()).thenReturn("31048");
+        when(mMockTelephonyManager.getEquivalentHomePlmns()).thenReturn(List.of("31048"));
+        when(mMockTelephonyManager.isNetworkRoaming()).thenReturn(false);
+        when(mMockCellInfoLte.isRegistered()).thenReturn(true);
+        when(mMockUnregisteredCellInfoLte.isRegistered()).thenReturn(false);
+        when(mMockTelephonyManager.getAllCellInfo())
+                .thenReturn(List.of(mMockCellInfoLte, mMockUnregisteredCellInfoLte));
+
+        IwlanTelephonyState.resetAll();
+    }
+
+    @After
+    public void cleanUp() throws Exception {
+        mStaticMockSession.finishMocking();
+        IwlanTelephonyState.resetAll();
+    }
+
+    @Test
+    public void testReloadSnapshotsSubscriptionAndRegistration() throws Exception {
+        assertNull(IwlanTelephonyState.get(DEFAULT_SLOT_INDEX));
+
+        IwlanTelephonyState.reload(mMockContext, DEFAULT_SLOT_INDEX);
+        IwlanTelephonyState state = IwlanTelephonyState.get(DEFAULT_SLOT_INDEX);
+
+        assertEquals(DEFAULT_SUB_INDEX, state.getSubId());
+        assertEquals(TEST_CARRIER_ID, state.getCarrierId());
+        assertEquals("311120", state.getSimPlmn());
+        assertEquals("us", state.getSimCountryIso());
+        assertEquals("31048", state.getRegisteredPlmn());
+        assertEquals(List.of("31048"), state.getEhplmns());
+        assertFalse(state.isNetworkRoaming());
+        assertEquals(List.of(mMockCellInfoLte), state.getRegisteredCellInfos());
+
+        // Reads are served from the snapshot.
+        for (int i = 0; i < 3; i++) {
+            assertEquals(DEFAULT_SUB_INDEX, IwlanHelper.getSubId(mMockContext, DEFAULT_SLOT_INDEX));
+            assertEquals(
+                    TEST_CARRIER_ID, IwlanHelper.getCarrierId(mMockContext, DEFAULT_SLOT_INDEX));
+        }
+        verify(mMockSubscriptionManager, times(1))
+                .getActiveSubscriptionInfoForSimSlotIndex(DEFAULT_SLOT_INDEX);
+        verify(mMockTelephonyManager, times(1)).getSimCarrierId();
+    }
+
+    @Test
+    public void testReloadWithoutActiveSubscription() throws Exception {
+        when(mMockSubscriptionManager.getActiveSubscriptionInfoForSimSlotIndex(anyInt()))
+                .thenReturn(null);
+        when(SubscriptionManager.getSubscriptionId(DEFAULT_SLOT_INDEX))
+                .thenReturn(SubscriptionManager.INVALID_SUBSCRIPTION_ID);
+
+        IwlanTelephonyState state = IwlanTelephonyState.reload(mMockContext, DEFAULT_SLOT_INDEX);
+
+        assertEquals(SubscriptionManager.INVALID_SUBSCRIPTION_ID, state.getSubId());
+        assertNull(state.getSimPlmn());
+        assertNull(state.getRegisteredPlmn());
+        assertEquals(
+                SubscriptionManager.INVALID_SUBSCRIPTION_ID,
+                IwlanHelper.getSubId(mMockContext, DEFAULT_SLOT_INDEX));
+    }
+
+    @Test
+    public void testSimPlmnUnknownWithoutMccAndMnc() throws Exception {
+        when(mMockSubscriptionInfo.getMccString()).thenReturn(null);
+        when(mMockSubscriptionInfo.getMncString()).thenReturn(null);
+
+        IwlanTelephonyState state = IwlanTelephonyState.reload(mMockContext, DEFAULT_SLOT_INDEX);
+
+        assertEquals(DEFAULT_SUB_INDEX, state.getSubId());
+        assertNull(state.getSimPlmn());
+        assertNull(IwlanTelephonyState.toSimPlmn(mMockSubscriptionInfo));
+    }
+
+    @Test
+    public void testRegistrationUpdatedFromCallbacks() throws Exception {
+        IwlanTelephonyState.reload(mMockContext, DEFAULT_SLOT_INDEX);
+
+        IwlanTelephonyState.onServiceStateChanged(
+                DEFAULT_SLOT_INDEX, DEFAULT_SUB_INDEX, "46001", true /* isNetworkRoaming */);
+        IwlanTelephonyState.onCellInfoChanged(
+                DEFAULT_SLOT_INDEX,
+                DEFAULT_SUB_INDEX,
+                List.<CellInfo>of(mMockUnregisteredCellInfoLte));
+
+        IwlanTelephonyState state = IwlanTelephonyState.get(DEFAULT_SLOT_INDEX);
+        assertEquals("46001", state.getRegisteredPlmn());
+        assertTrue(state.isNetworkRoaming());
+        assertTrue(state.getRegisteredCellInfos().isEmpty());
+        // The subscription fields are kept.
+        assertEquals(DEFAULT_SUB_INDEX, state.getSubId());
+        assertEquals("311120", state.getSimPlmn());
+
+        // Out of service.
+        IwlanTelephonyState.onServiceStateChanged(
+                DEFAULT_SLOT_INDEX, DEFAULT_SUB_INDEX, "", false /* isNetworkRoaming */);
+        assertNull(IwlanTelephonyState.get(DEFAULT_SLOT_INDEX).getRegisteredPlmn());
+        verify(mMockTelephonyManager, times(1)).getNetworkOperator();
+
+        // Callbacks of another subscription are ignored.
+        IwlanTelephonyState.onServiceStateChanged(
+                DEFAULT_SLOT_INDEX, OTHER_SUB_INDEX, "46001", true /* isNetworkRoaming */);
+        assertNull(IwlanTelephonyState.get(DEFAULT_SLOT_INDEX).getRegisteredPlmn());
+    }
+
+    @Test
+    public void testStateServedOnlyForLoadedSubscription() throws Exception {
+        IwlanTelephonyState state = IwlanTelephonyState.reload(mMockContext, DEFAULT_SLOT_INDEX);
+
+        // The state is served to every caller, whichever context they hold.
+        assertEquals(
+                DEFAULT_SUB_INDEX, IwlanHelper.getSubId(mock(Context.class), DEFAULT_SLOT_INDEX));
+        assertEquals(state, IwlanTelephonyState.get(DEFAULT_SLOT_INDEX));
+
+        // The subscription of the slot changes before the state is reloaded.
+        when(SubscriptionManager.getSubscriptionId(DEFAULT_SLOT_INDEX)).thenReturn(OTHER_SUB_INDEX);
+        when(mMockSubscriptionInfo.getSubscriptionId()).thenReturn(OTHER_SUB_INDEX);
+        assertNull(IwlanTelephonyState.get(DEFAULT_SLOT_INDEX));
+        assertEquals(OTHER_SUB_INDEX, IwlanHelper.getSubId(mMockContext, DEFAULT_SLOT_INDEX));
+    }
+}
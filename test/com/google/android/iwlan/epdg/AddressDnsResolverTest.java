@@ -0,0 +1,257 @@
+/*
+ * Copyright 2024 The Android Open Source Project
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package com.google.android.iwlan.epdg;
+
+import static android.net.DnsResolver.TYPE_A;
+import static android.net.DnsResolver.TYPE_AAAA;
+
+import static com.android.dx.mockito.inline.extended.ExtendedMockito.mockitoSession;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertNotNull;
+import static org.junit.Assert.assertThrows;
+import static org.mockito.ArgumentMatchers.any;
+import static org.mockito.ArgumentMatchers.anyInt;
+import static org.mockito.ArgumentMatchers.eq;
+import static org.mockito.Mockito.doAnswer;
+import static org.mockito.Mockito.lenient;
+
+import android.net.DnsResolver;
+import android.net.InetAddresses;
+import android.net.Network;
+import android.support.annotation.NonNull;
+import android.support.annotation.Nullable;
+
+import com.android.net.module.util.DnsPacket;
+import com.google.android.iwlan.epdg.AddressDnsResolver.AddressAnswer;
+import com.google.android.iwlan.epdg.AddressDnsResolver.AddressResponse;
+
+import org.junit.After;
+import org.junit.Before;
+import org.junit.Test;
+import org.mockito.Mock;
+import org.mockito.MockitoAnnotations;
+import org.mockito.MockitoSession;
+
+import java.io.ByteArrayOutputStream;
+import java.io.DataOutputStream;
+import java.io.IOException;
+import java.net.InetAddress;
+import java.util.List;
+import java.util.concurrent.CompletableFuture;
+import java.util.concurrent.CompletionException;
+import java.util.concurrent.Executor;
+import java.util.concurrent.Executors;
+
+public class AddressDnsResolverTest {
+    private static final String TEST_DOMAIN_NAME = "epdg.epc.mnc120.mcc311.pub.3gppnetwork.org";
+    private static final String TEST_ALIAS_NAME = "epdg.example.com";
+    private static final InetAddress TEST_IPV4_ADDRESS =
+            InetAddresses.parseNumericAddress("127.0.0.1");
+    private static final InetAddress TEST_IPV6_ADDRESS =
+            InetAddresses.parseNumericAddress("2001:db8::1");
+    private static final int QUERY_TYPE_CNAME = 5;
+    private static final int RCODE_NXDOMAIN = 3;
+
+    @Mock private DnsResolver mMockDnsResolver;
+    @Mock private Network mMockNetwork;
+
+    private MockitoSession mStaticMockSession;
+
+    @Before
+    public void setUp() throws Exception {
+        MockitoAnnotations.initMocks(this);
+        mStaticMockSession = mockitoSession().mockStatic(DnsResolver.class).startMocking();
+
+        // lenient() here is used to mock the static method.
+        lenient().when(DnsResolver.getInstance()).thenReturn(mMockDnsResolver);
+        EpdgDnsQueryCoalescer.resetInstance();
+    }
+
+    @After
+    public void cleanUp() throws Exception {
+        mStaticMockSession.finishMocking();
+    }
+
+    /** A DNS record of the answer section. */
+    private static final class TestRecord {
+        final String mName;
+        final int mType;
+        final long mTtlSec;
+        final byte[] mData;
+
+        TestRecord(String name, int type, long ttlSec, byte[] data) {
+            mName = name;
+            mType = type;
+            mTtlSec = ttlSec;
+            mData = data;
+        }
+    }
+
+    private static byte[] buildResponse(int queryType, int rcode, TestRecord... records)
+            throws IOException {
+        ByteArrayOutputStream packet = new ByteArrayOutputStream();
+        DataOutputStream out = new DataOutputStream(packet);
+        // Header: id, flags (standard response), 1 question, N answers.
+        out.writeShort(0x1234);
+        out.writeShort(0x8180 | rcode);
+        out.writeShort(1);
+        out.writeShort(records.length);
+        out.writeShort(0);
+        out.writeShort(0);
+        writeDnsName(out, TEST_DOMAIN_NAME);
+        out.writeShort(queryType);
+        out.writeShort(DnsResolver.CLASS_IN);
+        for (TestRecord record : records) {
+            writeDnsName(out, record.mName);
+            out.writeShort(record.mType);
+            out.writeShort(DnsResolver.CLASS_IN);
+            out.writeInt((int) record.mTtlSec);
+            out.writeShort(record.mData.length);
+            out.write(record.mData);
+        }
+        return packet.toByteArray();
+    }
+
+    private static byte[] encodeDnsName(String name) throws IOException {
+        ByteArrayOutputStream bytes = new ByteArrayOutputStream();
+        writeDnsName(new DataOutputStream(bytes), name);
+        return bytes.toByteArray();
+    }
+
+    private static void writeDnsName(DataOutputStream out, String name) throws IOException {
+        for (String label : name.split("\\.")) {
+            out.writeByte(label.length());
+            out.writeBytes(label);
+        }
+        out.writeByte(0);
+    }
+
+    @Test
+    public void testAnswerTtlIsLowestRecordTtl() throws Exception {
+        byte[] response =
+                buildResponse(
+                        TYPE_A,
+                        0,
+                        new TestRecord(
+                                TEST_DOMAIN_NAME,
+                                QUERY_TYPE_CNAME,
+                                60,
+                                encodeDnsName(TEST_ALIAS_NAME)),
+                        new TestRecord(
+                                TEST_ALIAS_NAME, TYPE_A, 300, TEST_IPV4_ADDRESS.getAddress()));
+
+        AddressAnswer answer = new AddressResponse(response).parseAddresses();
+
+        assertEquals(List.of(TEST_IPV4_ADDRESS), answer.mAddresses);
+        // The alias expires first, so the address may not be cached for longer.
+        assertEquals(60_000, answer.mTtlMs);
+    }
+
+    @Test
+    public void testAaaaAnswerParsed() throws Exception {
+        byte[] response =
+                buildResponse(
+                        TYPE_AAAA,
+                        0,
+                        new TestRecord(
+                                TEST_DOMAIN_NAME, TYPE_AAAA, 120, TEST_IPV6_ADDRESS.getAddress()));
+
+        AddressAnswer answer = new AddressResponse(response).parseAddresses();
+
+        assertEquals(List.of(TEST_IPV6_ADDRESS), answer.mAddresses);
+        assertEquals(120_000, answer.mTtlMs);
+    }
+
+    @Test
+    public void testNxdomainAnswerIsEmpty() throws Exception {
+        AddressAnswer answer =
+                new AddressResponse(buildResponse(TYPE_A, RCODE_NXDOMAIN)).parseAddresses();
+
+        assertEquals(List.of(), answer.mAddresses);
+        assertEquals(0, answer.mTtlMs);
+    }
+
+    @Test
+    public void testAddressOfWrongLengthFailsToParse() throws Exception {
+        byte[] response =
+                buildResponse(
+                        TYPE_AAAA,
+                        0,
+                        new TestRecord(
+                                TEST_DOMAIN_NAME, TYPE_AAAA, 120, TEST_IPV4_ADDRESS.getAddress()));
+
+        assertThrows(
+                DnsPacket.ParseException.class,
+                () -> new AddressResponse(response).parseAddresses());
+    }
+
+    @Test
+    public void testQueryReportsParseError() throws Exception {
+        byte[] response =
+                buildResponse(
+                        TYPE_A,
+                        0,
+                        new TestRecord(
+                                TEST_DOMAIN_NAME, TYPE_A, 120, TEST_IPV6_ADDRESS.getAddress()));
+        doAnswer(
+                        invocation -> {
+                            final Executor executor = invocation.getArgument(5);
+                            final DnsResolver.Callback<byte[]> callback = invocation.getArgument(7);
+                            executor.execute(() -> callback.onAnswer(response, 0));
+                            return null;
+                        })
+                .when(mMockDnsResolver)
+                .rawQuery(
+                        any(),
+                        eq(TEST_DOMAIN_NAME),
+                        eq(DnsResolver.CLASS_IN),
+                        eq(TYPE_A),
+                        anyInt(),
+                        any(),
+                        any(),
+                        any());
+
+        final CompletableFuture<AddressAnswer> result = new CompletableFuture<>();
+        AddressDnsResolver.query(
+                mMockNetwork,
+                TEST_DOMAIN_NAME,
+                TYPE_A,
+                Executors.newSingleThreadExecutor(),
+                null,
+                new DnsResolver.Callback<AddressAnswer>() {
+                    @Override
+                    public void onAnswer(@NonNull AddressAnswer answer, int rcode) {
+                        result.complete(answer);
+                    }
+
+                    @Override
+                    public void onError(@Nullable DnsResolver.DnsException error) {
+                        result.completeExceptionally(error);
+                    }
+                });
+
+        DnsResolver.DnsException exception = null;
+        try {
+            result.join();
+        } catch (CompletionException e) {
+            exception = (DnsResolver.DnsException) e.getCause();
+        }
+        assertNotNull("Exception wasn't thrown!", exception);
+        assertEquals(DnsResolver.ERROR_PARSE, exception.code);
+    }
+}
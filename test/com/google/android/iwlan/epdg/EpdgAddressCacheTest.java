@@ -0,0 +1,225 @@
+/*
+ * Copyright 2024 The Android Open Source Project
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package com.google.android.iwlan.epdg;
+
+import static com.android.dx.mockito.inline.extended.ExtendedMockito.mockitoSession;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertFalse;
+import static org.junit.Assert.assertNotNull;
+import static org.junit.Assert.assertNull;
+import static org.junit.Assert.assertTrue;
+import static org.mockito.Mockito.when;
+
+import android.net.DnsResolver;
+import android.net.InetAddresses;
+import android.net.Network;
+
+import com.google.android.iwlan.IwlanHelper;
+
+import org.junit.After;
+import org.junit.Before;
+import org.junit.Test;
+import org.mockito.Mock;
+import org.mockito.MockitoAnnotations;
+import org.mockito.MockitoSession;
+import org.mockito.quality.Strictness;
+
+import java.net.InetAddress;
+import java.util.List;
+import java.util.Set;
+
+public class EpdgAddressCacheTest {
+    private static final String TEST_DOMAIN_NAME = "epdg.epc.mnc120.mcc311.pub.3gppnetwork.org";
+    private static final InetAddress TEST_ADDRESS = InetAddresses.parseNumericAddress("127.0.0.1");
+    private static final long TEST_TTL_MS = 1000;
+
+    @Mock private Network mMockNetwork;
+
+    private MockitoSession mStaticMockSession;
+    private long mMockedClockTime = 0;
+    private EpdgAddressCache mCache;
+    private EpdgAddressCache.Key mKey;
+
+    @Before
+    public void setUp() throws Exception {
+        MockitoAnnotations.initMocks(this);
+        mStaticMockSession =
+                mockitoSession()
+                        .spyStatic(IwlanHelper.class)
+                        .strictness(Strictness.LENIENT)
+                        .startMocking();
+        when(IwlanHelper.elapsedRealtime()).thenAnswer(i -> mMockedClockTime);
+
+        mCache = new EpdgAddressCache();
+        mKey =
+                new EpdgAddressCache.Key(
+                        TEST_DOMAIN_NAME, mMockNetwork, DnsResolver.TYPE_A, false);
+    }
+
+    @After
+    public void cleanUp() throws Exception {
+        mStaticMockSession.finishMocking();
+    }
+
+    @Test
+    public void testMissOnEmptyCache() {
+        assertNull(mCache.get(mKey));
+    }
+
+    @Test
+    public void testFreshHit() {
+        mCache.put(mKey, List.of(TEST_ADDRESS), TEST_TTL_MS);
+
+        EpdgAddressCache.Lookup lookup = mCache.get(mKey);
+
+        assertNotNull(lookup);
+        assertFalse(lookup.mIsStale);
+        assertFalse(lookup.mShouldRefresh);
+        assertEquals(List.of(TEST_ADDRESS), lookup.mAddresses);
+    }
+
+    @Test
+    public void testStaleHitRequestsSingleRefresh() {
+        mCache.put(mKey, List.of(TEST_ADDRESS), TEST_TTL_MS);
+        mMockedClockTime += TEST_TTL_MS;
+
+        EpdgAddressCache.Lookup first = mCache.get(mKey);
+        EpdgAddressCache.Lookup second = mCache.get(mKey);
+
+        assertTrue(first.mIsStale);
+        assertTrue(first.mShouldRefresh);
+        assertTrue(second.mIsStale);
+        assertFalse(second.mShouldRefresh);
+
+        mCache.onRefreshFailed(mKey);
+        assertTrue(mCache.get(mKey).mShouldRefresh);
+    }
+
+    @Test
+    public void testExpiringEntryRefreshedAhead() {
+        mCache.put(mKey, List.of(TEST_ADDRESS), TEST_TTL_MS);
+        // Short-lived entries are refreshed in the second half of their TTL.
+        long refreshTime = TEST_TTL_MS / 2;
+        assertEquals(refreshTime, mCache.getNextRefreshTime(mMockNetwork, Set.of(mKey), 0));
+
+        mMockedClockTime += refreshTime - 1;
+        assertFalse(mCache.get(mKey).mShouldRefresh);
+
+        mMockedClockTime += 1;
+        EpdgAddressCache.Lookup first = mCache.get(mKey);
+        assertFalse(first.mIsStale);
+        assertTrue(first.mShouldRefresh);
+        assertFalse(mCache.get(mKey).mShouldRefresh);
+        // An entry being refreshed is not due again.
+        assertEquals(Long.MAX_VALUE, mCache.getNextRefreshTime(mMockNetwork, Set.of(mKey), 0));
+
+        mCache.onRefreshFailed(mKey);
+        assertEquals(refreshTime, mCache.getNextRefreshTime(mMockNetwork, Set.of(mKey), 0));
+        assertEquals(
+                Long.MAX_VALUE,
+                mCache.getNextRefreshTime(mMockNetwork, Set.of(mKey), refreshTime + 1));
+    }
+
+    @Test
+    public void testRefreshTimeOnlyCoversGivenKeys() {
+        EpdgAddressCache.Key otherKey =
+                new EpdgAddressCache.Key(
+                        TEST_DOMAIN_NAME, mMockNetwork, DnsResolver.TYPE_AAAA, false);
+        mCache.put(mKey, List.of(TEST_ADDRESS), TEST_TTL_MS);
+        mCache.put(otherKey, List.of(TEST_ADDRESS), 2 * TEST_TTL_MS);
+
+        // The entries looked up by the selector of another slot are not refreshed by this one.
+        assertEquals(
+                TEST_TTL_MS, mCache.getNextRefreshTime(mMockNetwork, Set.of(otherKey), 0));
+        assertEquals(
+                TEST_TTL_MS / 2,
+                mCache.getNextRefreshTime(mMockNetwork, Set.of(mKey, otherKey), 0));
+        assertEquals(Long.MAX_VALUE, mCache.getNextRefreshTime(mMockNetwork, Set.of(), 0));
+    }
+
+    @Test
+    public void testEntryDroppedAfterStaleWindow() {
+        mCache.put(mKey, List.of(TEST_ADDRESS), TEST_TTL_MS);
+        mMockedClockTime += TEST_TTL_MS + TEST_TTL_MS / EpdgAddressCache.STALE_TTL_DIVISOR;
+
+        assertNull(mCache.get(mKey));
+        assertEquals(0, mCache.size());
+    }
+
+    @Test
+    public void testStaleWindowIsFractionOfTtl() {
+        mCache.put(mKey, List.of(TEST_ADDRESS), TEST_TTL_MS);
+        long staleMs = TEST_TTL_MS / EpdgAddressCache.STALE_TTL_DIVISOR;
+
+        mMockedClockTime += TEST_TTL_MS + staleMs - 1;
+        assertTrue(mCache.get(mKey).mIsStale);
+        mCache.onRefreshFailed(mKey);
+        assertEquals(
+                TEST_TTL_MS / 2, mCache.getNextRefreshTime(mMockNetwork, Set.of(mKey), 0));
+
+        mMockedClockTime += 1;
+        assertEquals(Long.MAX_VALUE, mCache.getNextRefreshTime(mMockNetwork, Set.of(mKey), 0));
+        assertNull(mCache.get(mKey));
+    }
+
+    @Test
+    public void testKeyIncludesQueryTypeAndEmergency() {
+        mCache.put(mKey, List.of(TEST_ADDRESS), TEST_TTL_MS);
+
+        assertNull(
+                mCache.get(
+                        new EpdgAddressCache.Key(
+                                TEST_DOMAIN_NAME, mMockNetwork, DnsResolver.TYPE_AAAA, false)));
+        assertNull(
+                mCache.get(
+                        new EpdgAddressCache.Key(
+                                TEST_DOMAIN_NAME, mMockNetwork, DnsResolver.TYPE_A, true)));
+    }
+
+    @Test
+    public void testNegativeEntryExpires() {
+        mCache.putNegative(mKey, EpdgAddressCache.NEGATIVE_REASON_NXDOMAIN);
+        assertTrue(mCache.isKnownNegative(mKey));
+
+        mMockedClockTime += EpdgAddressCache.NEGATIVE_TTL_MS;
+        assertFalse(mCache.isKnownNegative(mKey));
+    }
+
+    @Test
+    public void testTimeoutNegativeEntryUsesShorterTtl() {
+        mCache.putNegative(mKey, EpdgAddressCache.NEGATIVE_REASON_TIMEOUT);
+
+        mMockedClockTime += EpdgAddressCache.TIMEOUT_NEGATIVE_TTL_MS;
+        assertFalse(mCache.isKnownNegative(mKey));
+    }
+
+    @Test
+    public void testPositiveAnswerClearsNegativeEntry() {
+        mCache.putNegative(mKey, EpdgAddressCache.NEGATIVE_REASON_EMPTY);
+        mCache.put(mKey, List.of(TEST_ADDRESS), TEST_TTL_MS);
+
+        assertFalse(mCache.isKnownNegative(mKey));
+    }
+
+    @Test
+    public void testEmptyAnswerNotCached() {
+        mCache.put(mKey, List.of(), TEST_TTL_MS);
+
+        assertNull(mCache.get(mKey));
+    }
+}
@@ -0,0 +1,151 @@
+/*
+ * Copyright 2024 The Android Open Source Project
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package com.google.android.iwlan.epdg;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertFalse;
+import static org.junit.Assert.assertNull;
+
+import android.net.InetAddresses;
+
+import org.junit.After;
+import org.junit.Before;
+import org.junit.Test;
+
+import java.io.DataOutputStream;
+import java.io.File;
+import java.io.FileOutputStream;
+import java.net.InetAddress;
+import java.util.List;
+
+public class EpdgCandidateStoreTest {
+    private static final InetAddress TEST_ADDRESS_1 =
+            InetAddresses.parseNumericAddress("127.0.0.1");
+    private static final InetAddress TEST_ADDRESS_2 =
+            InetAddresses.parseNumericAddress("2001:db8::1");
+    private static final InetAddress TEST_ADDRESS_3 =
+            InetAddresses.parseNumericAddress("127.0.0.3");
+
+    private static final EpdgCandidateStore.Key TEST_KEY =
+            new EpdgCandidateStore.Key(1, "311120", "us", false);
+
+    private File mFile;
+
+    @Before
+    public void setUp() throws Exception {
+        mFile = File.createTempFile("epdg_candidates", null);
+        mFile.delete();
+    }
+
+    @After
+    public void cleanUp() {
+        mFile.delete();
+    }
+
+    // Writes run inline, so that a new store reads what the previous one wrote.
+    private EpdgCandidateStore createStore() {
+        return new EpdgCandidateStore(mFile, Runnable::run);
+    }
+
+    @Test
+    public void testListSurvivesRestart() {
+        createStore().put(TEST_KEY, List.of(TEST_ADDRESS_1, TEST_ADDRESS_2));
+
+        EpdgCandidateStore store = createStore();
+
+        assertEquals(List.of(TEST_ADDRESS_1, TEST_ADDRESS_2), store.get(TEST_KEY));
+    }
+
+    @Test
+    public void testKeyIncludesEmergencyAndCountry() {
+        EpdgCandidateStore store = createStore();
+        store.put(TEST_KEY, List.of(TEST_ADDRESS_1));
+
+        assertNull(store.get(new EpdgCandidateStore.Key(1, "311120", "us", true)));
+        assertNull(store.get(new EpdgCandidateStore.Key(1, "311120", "ca", false)));
+        assertNull(store.get(new EpdgCandidateStore.Key(2, "311120", "us", false)));
+    }
+
+    @Test
+    public void testConnectedAddressReturnedFirst() {
+        EpdgCandidateStore store = createStore();
+        store.put(TEST_KEY, List.of(TEST_ADDRESS_1, TEST_ADDRESS_2, TEST_ADDRESS_3));
+        store.onConnected(TEST_ADDRESS_2);
+
+        assertEquals(
+                List.of(TEST_ADDRESS_2, TEST_ADDRESS_1, TEST_ADDRESS_3),
+                createStore().get(TEST_KEY));
+    }
+
+    @Test
+    public void testConnectedAddressDroppedWhenNoLongerSelected() {
+        EpdgCandidateStore store = createStore();
+        store.put(TEST_KEY, List.of(TEST_ADDRESS_1, TEST_ADDRESS_2));
+        store.onConnected(TEST_ADDRESS_2);
+        store.put(TEST_KEY, List.of(TEST_ADDRESS_1, TEST_ADDRESS_3));
+
+        assertEquals(List.of(TEST_ADDRESS_1, TEST_ADDRESS_3), store.get(TEST_KEY));
+    }
+
+    @Test
+    public void testCarrierConfigChangeDropsLists() {
+        EpdgCandidateStore store = createStore();
+        store.onCarrierConfigChanged(1);
+        store.put(TEST_KEY, List.of(TEST_ADDRESS_1));
+
+        // The broadcast sent on every boot keeps the lists of an unchanged configuration.
+        store = createStore();
+        store.onCarrierConfigChanged(1);
+        assertEquals(List.of(TEST_ADDRESS_1), store.get(TEST_KEY));
+
+        store.onCarrierConfigChanged(2);
+        assertNull(store.get(TEST_KEY));
+        assertNull(createStore().get(TEST_KEY));
+    }
+
+    @Test
+    public void testOtherVersionDiscarded() throws Exception {
+        try (DataOutputStream out = new DataOutputStream(new FileOutputStream(mFile))) {
+            out.writeInt(EpdgCandidateStore.VERSION + 1);
+            out.writeInt(0);
+        }
+
+        assertNull(createStore().get(TEST_KEY));
+    }
+
+    @Test
+    public void testCorruptFileDiscarded() throws Exception {
+        try (FileOutputStream out = new FileOutputStream(mFile)) {
+            out.write(new byte[] {0, 0, 0, (byte) EpdgCandidateStore.VERSION, 0, 0});
+        }
+
+        EpdgCandidateStore store = createStore();
+
+        assertNull(store.get(TEST_KEY));
+        store.put(TEST_KEY, List.of(TEST_ADDRESS_1));
+        assertEquals(List.of(TEST_ADDRESS_1), createStore().get(TEST_KEY));
+    }
+
+    @Test
+    public void testNotPersistedWithoutFile() {
+        EpdgCandidateStore store = new EpdgCandidateStore(null, Runnable::run);
+        store.put(TEST_KEY, List.of(TEST_ADDRESS_1));
+
+        assertFalse(store.isPersisted());
+        assertEquals(List.of(TEST_ADDRESS_1), store.get(TEST_KEY));
+    }
+}
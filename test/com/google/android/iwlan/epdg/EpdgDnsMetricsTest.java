@@ -0,0 +1,123 @@
+/*
+ * Copyright 2024 The Android Open Source Project
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package com.google.android.iwlan.epdg;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertTrue;
+
+import android.net.DnsResolver;
+import android.telephony.CarrierConfigManager;
+
+import org.junit.Before;
+import org.junit.Test;
+
+import java.io.PrintWriter;
+import java.io.StringWriter;
+
+public class EpdgDnsMetricsTest {
+    private static final int METHOD_PLMN = CarrierConfigManager.Iwlan.EPDG_ADDRESS_PLMN;
+    private static final int METHOD_STATIC = CarrierConfigManager.Iwlan.EPDG_ADDRESS_STATIC;
+    private static final String TEST_FQDN = "epdg.epc.mnc120.mcc311.pub.3gppnetwork.org";
+
+    private EpdgDnsMetrics mDnsMetrics;
+
+    @Before
+    public void setUp() {
+        mDnsMetrics = new EpdgDnsMetrics();
+    }
+
+    @Test
+    public void testLatencyPercentilesPerMethod() {
+        // 90 fast answers and 10 slow ones.
+        for (int i = 0; i < 90; i++) {
+            mDnsMetrics.onAnswer(METHOD_PLMN, TEST_FQDN, DnsResolver.TYPE_A, 0, 1, 20);
+        }
+        for (int i = 0; i < 10; i++) {
+            mDnsMetrics.onAnswer(METHOD_PLMN, TEST_FQDN, DnsResolver.TYPE_A, 0, 1, 3000);
+        }
+
+        assertEquals(32, mDnsMetrics.getLatencyPercentileMs(METHOD_PLMN, 50));
+        assertEquals(32, mDnsMetrics.getLatencyPercentileMs(METHOD_PLMN, 90));
+        assertEquals(4096, mDnsMetrics.getLatencyPercentileMs(METHOD_PLMN, 99));
+        assertEquals(-1, mDnsMetrics.getLatencyPercentileMs(METHOD_STATIC, 50));
+    }
+
+    @Test
+    public void testVeryLongLatencyKeptInLastBucket() {
+        mDnsMetrics.onAnswer(METHOD_STATIC, TEST_FQDN, DnsResolver.TYPE_A, 0, 1, 600_000);
+
+        assertEquals(
+                1L << (EpdgDnsMetrics.NUM_BUCKETS - 2),
+                mDnsMetrics.getLatencyPercentileMs(METHOD_STATIC, 50));
+    }
+
+    @Test
+    public void testOutcomesCounted() {
+        mDnsMetrics.onAnswer(METHOD_STATIC, TEST_FQDN, DnsResolver.TYPE_A, 0, 2, 10);
+        mDnsMetrics.onAnswer(METHOD_STATIC, TEST_FQDN, DnsResolver.TYPE_AAAA, 0, 0, 10);
+        mDnsMetrics.onAnswer(
+                METHOD_STATIC,
+                TEST_FQDN,
+                DnsResolver.TYPE_A,
+                EpdgAddressCache.RCODE_NXDOMAIN,
+                0 /* numAnswers */,
+                10);
+        mDnsMetrics.onError(
+                METHOD_STATIC, TEST_FQDN, DnsResolver.TYPE_A, DnsResolver.ERROR_SYSTEM, 10);
+
+        assertEquals(1, mDnsMetrics.getNumQueries(METHOD_STATIC, EpdgDnsMetrics.OUTCOME_ANSWER));
+        assertEquals(1, mDnsMetrics.getNumQueries(METHOD_STATIC, EpdgDnsMetrics.OUTCOME_EMPTY));
+        assertEquals(1, mDnsMetrics.getNumQueries(METHOD_STATIC, EpdgDnsMetrics.OUTCOME_NXDOMAIN));
+        assertEquals(1, mDnsMetrics.getNumQueries(METHOD_STATIC, EpdgDnsMetrics.OUTCOME_ERROR));
+        assertEquals(0, mDnsMetrics.getNumQueries(METHOD_PLMN, EpdgDnsMetrics.OUTCOME_ANSWER));
+    }
+
+    @Test
+    public void testFqdnClass() {
+        assertEquals(EpdgDnsMetrics.FQDN_CLASS_OPERATOR, EpdgDnsMetrics.getFqdnClass(TEST_FQDN));
+        assertEquals(
+                EpdgDnsMetrics.FQDN_CLASS_OPERATOR,
+                EpdgDnsMetrics.getFqdnClass("sos.epdg.epc.mnc120.mcc311.pub.3gppnetwork.org"));
+        assertEquals(
+                EpdgDnsMetrics.FQDN_CLASS_TRACKING_AREA,
+                EpdgDnsMetrics.getFqdnClass(
+                        "tac-lb01.tac-hb00.tac.epdg.epc.mnc120.mcc311.pub.3gppnetwork.org"));
+        assertEquals(
+                EpdgDnsMetrics.FQDN_CLASS_TRACKING_AREA,
+                EpdgDnsMetrics.getFqdnClass("lac1234.epdg.epc.mnc120.mcc311.pub.3gppnetwork.org"));
+        assertEquals(
+                EpdgDnsMetrics.FQDN_CLASS_VISITED_COUNTRY,
+                EpdgDnsMetrics.getFqdnClass(
+                        "epdg.epc.mcc311.visited-country.pub.3gppnetwork.org"));
+        assertEquals(
+                EpdgDnsMetrics.FQDN_CLASS_CUSTOM,
+                EpdgDnsMetrics.getFqdnClass("epdg.example.com"));
+    }
+
+    @Test
+    public void testDumpIncludesPercentilesAndRecentQueries() {
+        mDnsMetrics.onAnswer(METHOD_PLMN, TEST_FQDN, DnsResolver.TYPE_A, 0, 1, 20);
+
+        StringWriter sw = new StringWriter();
+        mDnsMetrics.dump(new PrintWriter(sw));
+        String dump = sw.toString();
+
+        assertTrue(dump.contains("PLMN: queries: 1 answered: 1"));
+        assertTrue(dump.contains("p50: 32ms p90: 32ms p99: 32ms"));
+        assertTrue(dump.contains("PLMN OPERATOR " + TEST_FQDN + " type: A ANSWER"));
+    }
+}
@@ -0,0 +1,152 @@
+/*
+ * Copyright 2024 The Android Open Source Project
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package com.google.android.iwlan.epdg;
+
+import static android.net.DnsResolver.TYPE_A;
+import static android.net.DnsResolver.TYPE_AAAA;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertFalse;
+import static org.junit.Assert.assertTrue;
+import static org.mockito.ArgumentMatchers.any;
+import static org.mockito.ArgumentMatchers.anyInt;
+import static org.mockito.ArgumentMatchers.eq;
+import static org.mockito.Mockito.times;
+import static org.mockito.Mockito.verify;
+
+import android.net.DnsResolver;
+import android.net.InetAddresses;
+import android.net.Network;
+import android.os.CancellationSignal;
+
+import org.junit.After;
+import org.junit.Before;
+import org.junit.Test;
+import org.mockito.ArgumentCaptor;
+import org.mockito.Mock;
+import org.mockito.MockitoAnnotations;
+
+import java.net.InetAddress;
+import java.util.ArrayList;
+import java.util.List;
+
+public class EpdgDnsQueryCoalescerTest {
+    private static final String TEST_DOMAIN = "epdg.epc.mnc120.mcc311.pub.3gppnetwork.org";
+    private static final InetAddress TEST_ADDRESS =
+            InetAddresses.parseNumericAddress("127.0.0.1");
+
+    @Mock private EpdgDnsBackend mMockBackend;
+    @Mock private Network mMockNetwork;
+
+    private EpdgDnsQueryCoalescer mCoalescer;
+
+    @Before
+    public void setUp() throws Exception {
+        MockitoAnnotations.initMocks(this);
+        EpdgDnsBackend.setInstance(mMockBackend);
+        mCoalescer = new EpdgDnsQueryCoalescer();
+    }
+
+    @After
+    public void cleanUp() throws Exception {
+        EpdgDnsBackend.setInstance(null);
+    }
+
+    private static class TestCallback implements DnsResolver.Callback<List<InetAddress>> {
+        final List<List<InetAddress>> mAnswers = new ArrayList<>();
+
+        @Override
+        public void onAnswer(List<InetAddress> answer, int rcode) {
+            mAnswers.add(answer);
+        }
+
+        @Override
+        public void onError(DnsResolver.DnsException error) {}
+    }
+
+    private void query(int nsType, CancellationSignal signal, TestCallback callback) {
+        mCoalescer.query(mMockNetwork, TEST_DOMAIN, nsType, 0, Runnable::run, signal, callback);
+    }
+
+    private DnsResolver.Callback<List<InetAddress>> verifyBackendQuery(
+            int nsType, ArgumentCaptor<CancellationSignal> signalCaptor) {
+        ArgumentCaptor<DnsResolver.Callback<List<InetAddress>>> callbackCaptor =
+                ArgumentCaptor.forClass(DnsResolver.Callback.class);
+        verify(mMockBackend, times(1))
+                .query(
+                        eq(mMockNetwork),
+                        eq(TEST_DOMAIN),
+                        eq(nsType),
+                        anyInt(),
+                        any(),
+                        signalCaptor.capture(),
+                        callbackCaptor.capture());
+        return callbackCaptor.getValue();
+    }
+
+    @Test
+    public void testIdenticalQueriesShareAnswer() throws Exception {
+        TestCallback firstCallback = new TestCallback();
+        TestCallback secondCallback = new TestCallback();
+        query(TYPE_A, null, firstCallback);
+        query(TYPE_A, null, secondCallback);
+        query(TYPE_AAAA, null, new TestCallback());
+
+        DnsResolver.Callback<List<InetAddress>> backendCallback =
+                verifyBackendQuery(TYPE_A, ArgumentCaptor.forClass(CancellationSignal.class));
+        verifyBackendQuery(TYPE_AAAA, ArgumentCaptor.forClass(CancellationSignal.class));
+        backendCallback.onAnswer(List.of(TEST_ADDRESS), 0);
+
+        assertEquals(List.of(List.of(TEST_ADDRESS)), firstCallback.mAnswers);
+        assertEquals(List.of(List.of(TEST_ADDRESS)), secondCallback.mAnswers);
+
+        // Once answered, the next query is sent again.
+        query(TYPE_A, null, new TestCallback());
+        verify(mMockBackend, times(2))
+                .query(any(), eq(TEST_DOMAIN), eq(TYPE_A), anyInt(), any(), any(), any());
+    }
+
+    @Test
+    public void testSharedQueryCancelledWithLastCaller() throws Exception {
+        CancellationSignal firstSignal = new CancellationSignal();
+        CancellationSignal secondSignal = new CancellationSignal();
+        TestCallback firstCallback = new TestCallback();
+        TestCallback secondCallback = new TestCallback();
+        query(TYPE_A, firstSignal, firstCallback);
+        query(TYPE_A, secondSignal, secondCallback);
+
+        ArgumentCaptor<CancellationSignal> signalCaptor =
+                ArgumentCaptor.forClass(CancellationSignal.class);
+        DnsResolver.Callback<List<InetAddress>> backendCallback =
+                verifyBackendQuery(TYPE_A, signalCaptor);
+
+        firstSignal.cancel();
+        assertFalse(signalCaptor.getValue().isCanceled());
+        backendCallback.onAnswer(List.of(TEST_ADDRESS), 0);
+        assertTrue(firstCallback.mAnswers.isEmpty());
+        assertEquals(List.of(List.of(TEST_ADDRESS)), secondCallback.mAnswers);
+
+        // A query whose callers all cancel is cancelled.
+        CancellationSignal thirdSignal = new CancellationSignal();
+        query(TYPE_AAAA, thirdSignal, new TestCallback());
+        ArgumentCaptor<CancellationSignal> aaaaSignalCaptor =
+                ArgumentCaptor.forClass(CancellationSignal.class);
+        verifyBackendQuery(TYPE_AAAA, aaaaSignalCaptor);
+        thirdSignal.cancel();
+        assertTrue(aaaaSignalCaptor.getValue().isCanceled());
+    }
+}
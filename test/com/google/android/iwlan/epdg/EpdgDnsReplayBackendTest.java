@@ -0,0 +1,254 @@
+/*
+ * Copyright 2024 The Android Open Source Project
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package com.google.android.iwlan.epdg;
+
+import static android.net.DnsResolver.TYPE_A;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertFalse;
+import static org.junit.Assert.assertTrue;
+import static org.mockito.ArgumentMatchers.any;
+import static org.mockito.ArgumentMatchers.anyInt;
+import static org.mockito.ArgumentMatchers.eq;
+import static org.mockito.Mockito.doAnswer;
+
+import android.net.DnsResolver;
+import android.net.InetAddresses;
+import android.net.Network;
+import android.os.CancellationSignal;
+
+import org.junit.After;
+import org.junit.Before;
+import org.junit.Test;
+import org.mockito.Mock;
+import org.mockito.MockitoAnnotations;
+
+import java.io.ByteArrayInputStream;
+import java.io.ByteArrayOutputStream;
+import java.io.DataOutputStream;
+import java.io.File;
+import java.io.FileInputStream;
+import java.io.InputStream;
+import java.net.InetAddress;
+import java.util.ArrayList;
+import java.util.List;
+import java.util.concurrent.CountDownLatch;
+import java.util.concurrent.ScheduledThreadPoolExecutor;
+import java.util.concurrent.TimeUnit;
+
+public class EpdgDnsReplayBackendTest {
+    private static final String TEST_DOMAIN = "epdg.epc.mnc120.mcc311.pub.3gppnetwork.org";
+    private static final InetAddress TEST_ADDRESS =
+            InetAddresses.parseNumericAddress("127.0.0.1");
+
+    @Mock private EpdgDnsBackend mMockDelegate;
+    @Mock private Network mMockNetwork;
+
+    private final ScheduledThreadPoolExecutor mTimer = new ScheduledThreadPoolExecutor(1);
+
+    @Before
+    public void setUp() throws Exception {
+        MockitoAnnotations.initMocks(this);
+    }
+
+    @After
+    public void cleanUp() throws Exception {
+        mTimer.shutdownNow();
+    }
+
+    private static class TestCallback implements DnsResolver.Callback<List<InetAddress>> {
+        final CountDownLatch mLatch = new CountDownLatch(1);
+        final List<InetAddress> mAnswer = new ArrayList<>();
+        int mRcode = -1;
+
+        @Override
+        public void onAnswer(List<InetAddress> answer, int rcode) {
+            mAnswer.addAll(answer);
+            mRcode = rcode;
+            mLatch.countDown();
+        }
+
+        @Override
+        public void onError(DnsResolver.DnsException error) {
+            mLatch.countDown();
+        }
+    }
+
+    private void answerQueries(List<InetAddress> answer) {
+        doAnswer(
+                        i -> {
+                            DnsResolver.Callback<List<InetAddress>> cb = i.getArgument(6);
+                            cb.onAnswer(answer, 0);
+                            return null;
+                        })
+                .when(mMockDelegate)
+                .query(
+                        eq(mMockNetwork),
+                        eq(TEST_DOMAIN),
+                        eq(TYPE_A),
+                        anyInt(),
+                        any(),
+                        any(),
+                        any());
+    }
+
+    private List<EpdgDnsRecordingBackend.Record> recordQuery() throws Exception {
+        answerQueries(List.of(TEST_ADDRESS));
+        EpdgDnsRecordingBackend recorder =
+                new EpdgDnsRecordingBackend(
+                        mMockDelegate, null /* file */, mTimer, null /* onStopped */);
+
+        TestCallback callback = new TestCallback();
+        recorder.query(
+                mMockNetwork, TEST_DOMAIN, TYPE_A, 0 /* flags */, Runnable::run, null, callback);
+        assertEquals(List.of(TEST_ADDRESS), callback.mAnswer);
+
+        // Round trip through the file format.
+        ByteArrayOutputStream bytes = new ByteArrayOutputStream();
+        EpdgDnsRecordingBackend.writeRecords(recorder.getRecords(), new DataOutputStream(bytes));
+        return EpdgDnsRecordingBackend.readRecords(new ByteArrayInputStream(bytes.toByteArray()));
+    }
+
+    @Test
+    public void testRecordedAnswerReplayed() throws Exception {
+        List<EpdgDnsRecordingBackend.Record> records = recordQuery();
+        assertEquals(1, records.size());
+
+        EpdgDnsReplayBackend replay =
+                new EpdgDnsReplayBackend(records, EpdgDnsReplayBackend.fixedLatency(10), mTimer);
+        TestCallback callback = new TestCallback();
+        replay.query(null, TEST_DOMAIN, TYPE_A, 0 /* flags */, Runnable::run, null, callback);
+
+        assertTrue(callback.mLatch.await(1, TimeUnit.SECONDS));
+        assertEquals(List.of(TEST_ADDRESS), callback.mAnswer);
+        assertEquals(0, callback.mRcode);
+
+        // A name that was not recorded does not exist.
+        TestCallback unknownCallback = new TestCallback();
+        replay.query(null, "unknown.example", TYPE_A, 0, Runnable::run, null, unknownCallback);
+        assertTrue(unknownCallback.mLatch.await(1, TimeUnit.SECONDS));
+        assertTrue(unknownCallback.mAnswer.isEmpty());
+        assertEquals(3 /* NXDOMAIN */, unknownCallback.mRcode);
+    }
+
+    @Test
+    public void testCancelledQueryNotAnswered() throws Exception {
+        EpdgDnsReplayBackend replay =
+                new EpdgDnsReplayBackend(
+                        recordQuery(), EpdgDnsReplayBackend.fixedLatency(100), mTimer);
+        CancellationSignal signal = new CancellationSignal();
+        TestCallback callback = new TestCallback();
+        replay.query(null, TEST_DOMAIN, TYPE_A, 0 /* flags */, Runnable::run, signal, callback);
+
+        signal.cancel();
+
+        assertFalse(callback.mLatch.await(300, TimeUnit.MILLISECONDS));
+    }
+
+    @Test
+    public void testRecordedAddressesCapped() throws Exception {
+        List<InetAddress> answer = new ArrayList<>();
+        for (int i = 0; i <= EpdgDnsRecordingBackend.MAX_ADDRESSES_PER_RECORD; i++) {
+            answer.add(InetAddresses.parseNumericAddress("10.0.0." + i));
+        }
+        answerQueries(answer);
+        EpdgDnsRecordingBackend recorder =
+                new EpdgDnsRecordingBackend(
+                        mMockDelegate, null /* file */, mTimer, null /* onStopped */);
+        TestCallback callback = new TestCallback();
+        recorder.query(
+                mMockNetwork, TEST_DOMAIN, TYPE_A, 0 /* flags */, Runnable::run, null, callback);
+
+        // The caller gets the whole answer, but the file keeps what can be read back.
+        assertEquals(answer, callback.mAnswer);
+        ByteArrayOutputStream bytes = new ByteArrayOutputStream();
+        EpdgDnsRecordingBackend.writeRecords(recorder.getRecords(), new DataOutputStream(bytes));
+        List<EpdgDnsRecordingBackend.Record> records =
+                EpdgDnsRecordingBackend.readRecords(new ByteArrayInputStream(bytes.toByteArray()));
+        assertEquals(
+                answer.subList(0, EpdgDnsRecordingBackend.MAX_ADDRESSES_PER_RECORD),
+                records.get(0).mAddresses);
+    }
+
+    @Test
+    public void testRecordingWrittenWhenStopped() throws Exception {
+        answerQueries(List.of(TEST_ADDRESS));
+        File file = File.createTempFile("epdg_dns_recording", null);
+        file.delete();
+        EpdgDnsRecordingBackend recorder =
+                new EpdgDnsRecordingBackend(mMockDelegate, file, mTimer, null /* onStopped */);
+        for (int i = 0; i < 2; i++) {
+            recorder.query(
+                    mMockNetwork,
+                    TEST_DOMAIN,
+                    TYPE_A,
+                    0 /* flags */,
+                    Runnable::run,
+                    null,
+                    new TestCallback());
+        }
+        // The answers are not written one by one.
+        assertFalse(file.exists());
+
+        recorder.stop();
+        assertTrue(mTimer.awaitTermination(1, TimeUnit.SECONDS));
+        try (InputStream in = new FileInputStream(file)) {
+            assertEquals(2, EpdgDnsRecordingBackend.readRecords(in).size());
+        } finally {
+            file.delete();
+        }
+    }
+
+    @Test
+    public void testRecordingStopsAfterMaxRecords() throws Exception {
+        answerQueries(List.of(TEST_ADDRESS));
+        File file = File.createTempFile("epdg_dns_recording", null);
+        file.delete();
+        CountDownLatch stopped = new CountDownLatch(1);
+        EpdgDnsRecordingBackend recorder =
+                new EpdgDnsRecordingBackend(mMockDelegate, file, mTimer, stopped::countDown);
+        for (int i = 0; i < EpdgDnsRecordingBackend.MAX_RECORDS; i++) {
+            assertFalse(recorder.isStopped());
+            recorder.query(
+                    mMockNetwork,
+                    TEST_DOMAIN,
+                    TYPE_A,
+                    0 /* flags */,
+                    Runnable::run,
+                    null,
+                    new TestCallback());
+        }
+        assertTrue(recorder.isStopped());
+        assertEquals(0, stopped.getCount());
+
+        // One more query is passed on without being recorded.
+        TestCallback callback = new TestCallback();
+        recorder.query(
+                mMockNetwork, TEST_DOMAIN, TYPE_A, 0 /* flags */, Runnable::run, null, callback);
+        assertEquals(List.of(TEST_ADDRESS), callback.mAnswer);
+        assertEquals(EpdgDnsRecordingBackend.MAX_RECORDS, recorder.getRecords().size());
+
+        assertTrue(mTimer.awaitTermination(1, TimeUnit.SECONDS));
+        try (InputStream in = new FileInputStream(file)) {
+            assertEquals(
+                    EpdgDnsRecordingBackend.MAX_RECORDS,
+                    EpdgDnsRecordingBackend.readRecords(in).size());
+        } finally {
+            file.delete();
+        }
+    }
+}
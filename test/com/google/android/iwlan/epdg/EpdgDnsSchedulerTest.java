@@ -0,0 +1,159 @@
+/*
+ * Copyright 2024 The Android Open Source Project
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package com.google.android.iwlan.epdg;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertNotNull;
+import static org.junit.Assert.assertNull;
+import static org.junit.Assert.assertTrue;
+
+import org.junit.Before;
+import org.junit.Test;
+
+import java.util.ArrayList;
+import java.util.List;
+import java.util.concurrent.Future;
+
+public class EpdgDnsSchedulerTest {
+    private static final int SLOT_0 = 0;
+    private static final int SLOT_1 = 1;
+
+    // Runnables handed to the worker threads, run by the test one at a time.
+    private final List<Runnable> mStartedTasks = new ArrayList<>();
+    private final List<String> mRunOrder = new ArrayList<>();
+    private EpdgDnsScheduler mScheduler;
+
+    @Before
+    public void setUp() {
+        mScheduler = new EpdgDnsScheduler(1, mStartedTasks::add);
+    }
+
+    private Future<?> submit(int slotId, int taskClass, String name) {
+        return mScheduler.submit(slotId, taskClass, () -> mRunOrder.add(name));
+    }
+
+    private void runAllTasks() {
+        while (!mStartedTasks.isEmpty()) {
+            mStartedTasks.remove(0).run();
+        }
+    }
+
+    @Test
+    public void testHigherTaskClassRunsFirst() {
+        submit(SLOT_0, EpdgDnsScheduler.TASK_CLASS_PREFETCH, "running");
+        submit(SLOT_0, EpdgDnsScheduler.TASK_CLASS_PREFETCH, "prefetch");
+        submit(SLOT_0, EpdgDnsScheduler.TASK_CLASS_BRINGUP, "bringup");
+        submit(SLOT_0, EpdgDnsScheduler.TASK_CLASS_SOS, "sos");
+
+        assertEquals(1, mStartedTasks.size());
+        assertEquals(3, mScheduler.getNumQueuedTasks());
+
+        runAllTasks();
+
+        assertEquals(List.of("running", "sos", "bringup", "prefetch"), mRunOrder);
+        assertEquals(0, mScheduler.getNumRunningTasks());
+    }
+
+    @Test
+    public void testSlotsTakeTurnsWithinTaskClass() {
+        submit(SLOT_0, EpdgDnsScheduler.TASK_CLASS_BRINGUP, "running");
+        submit(SLOT_0, EpdgDnsScheduler.TASK_CLASS_BRINGUP, "slot0-a");
+        submit(SLOT_0, EpdgDnsScheduler.TASK_CLASS_BRINGUP, "slot0-b");
+        submit(SLOT_1, EpdgDnsScheduler.TASK_CLASS_BRINGUP, "slot1-a");
+
+        runAllTasks();
+
+        assertEquals(List.of("running", "slot0-a", "slot1-a", "slot0-b"), mRunOrder);
+    }
+
+    @Test
+    public void testPromotedTaskRunsBeforePrefetches() {
+        submit(SLOT_0, EpdgDnsScheduler.TASK_CLASS_PREFETCH, "running");
+        submit(SLOT_1, EpdgDnsScheduler.TASK_CLASS_PREFETCH, "slot1-prefetch");
+        Future<?> joined = submit(SLOT_0, EpdgDnsScheduler.TASK_CLASS_PREFETCH, "slot0-prefetch");
+
+        mScheduler.promote(joined, EpdgDnsScheduler.TASK_CLASS_BRINGUP);
+        runAllTasks();
+
+        assertEquals(List.of("running", "slot0-prefetch", "slot1-prefetch"), mRunOrder);
+        assertTrue(joined.isDone());
+    }
+
+    @Test
+    public void testTasksQueueUntilQueueIsFull() {
+        submit(SLOT_0, EpdgDnsScheduler.TASK_CLASS_BRINGUP, "running");
+        for (int i = 0; i < EpdgDnsScheduler.MAX_QUEUED_TASKS; i++) {
+            assertNotNull(submit(SLOT_0, EpdgDnsScheduler.TASK_CLASS_BRINGUP, "queued"));
+        }
+
+        assertNull(submit(SLOT_0, EpdgDnsScheduler.TASK_CLASS_BRINGUP, "rejected"));
+
+        runAllTasks();
+        assertEquals(EpdgDnsScheduler.MAX_QUEUED_TASKS + 1, mRunOrder.size());
+        assertNotNull(submit(SLOT_0, EpdgDnsScheduler.TASK_CLASS_BRINGUP, "accepted"));
+    }
+
+    @Test
+    public void testCancelledTaskFreesQueueSlot() {
+        submit(SLOT_0, EpdgDnsScheduler.TASK_CLASS_BRINGUP, "running");
+        Future<?> cancelled = null;
+        for (int i = 0; i < EpdgDnsScheduler.MAX_QUEUED_TASKS; i++) {
+            cancelled = submit(SLOT_0, EpdgDnsScheduler.TASK_CLASS_BRINGUP, "queued");
+        }
+
+        mScheduler.cancel(cancelled);
+
+        assertTrue(cancelled.isCancelled());
+        assertEquals(EpdgDnsScheduler.MAX_QUEUED_TASKS - 1, mScheduler.getNumQueuedTasks());
+        assertNotNull(submit(SLOT_0, EpdgDnsScheduler.TASK_CLASS_BRINGUP, "accepted"));
+
+        runAllTasks();
+        assertEquals(EpdgDnsScheduler.MAX_QUEUED_TASKS + 1, mRunOrder.size());
+        assertEquals("accepted", mRunOrder.get(mRunOrder.size() - 1));
+    }
+
+    @Test
+    public void testSosUsesReservedCapacity() {
+        mScheduler = new EpdgDnsScheduler(1, 1, mStartedTasks::add);
+        submit(SLOT_0, EpdgDnsScheduler.TASK_CLASS_PREFETCH, "running");
+        submit(SLOT_1, EpdgDnsScheduler.TASK_CLASS_BRINGUP, "bringup");
+
+        // The reserved thread is kept for emergency selections.
+        assertEquals(1, mStartedTasks.size());
+        assertEquals(1, mScheduler.getNumQueuedTasks());
+
+        submit(SLOT_0, EpdgDnsScheduler.TASK_CLASS_SOS, "sos");
+        assertEquals(2, mStartedTasks.size());
+        assertEquals(2, mScheduler.getNumRunningTasks());
+
+        runAllTasks();
+        assertEquals(List.of("running", "sos", "bringup"), mRunOrder);
+    }
+
+    @Test
+    public void testSosAcceptedWhenQueueIsFull() {
+        submit(SLOT_0, EpdgDnsScheduler.TASK_CLASS_BRINGUP, "running");
+        for (int i = 0; i < EpdgDnsScheduler.MAX_QUEUED_TASKS; i++) {
+            submit(SLOT_0, EpdgDnsScheduler.TASK_CLASS_BRINGUP, "queued");
+        }
+
+        assertNotNull(submit(SLOT_1, EpdgDnsScheduler.TASK_CLASS_SOS, "sos"));
+
+        runAllTasks();
+        assertEquals("sos", mRunOrder.get(1));
+    }
+}
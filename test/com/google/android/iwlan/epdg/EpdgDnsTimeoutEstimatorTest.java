@@ -0,0 +1,121 @@
+/*
+ * Copyright 2024 The Android Open Source Project
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package com.google.android.iwlan.epdg;
+
+import static android.net.DnsResolver.TYPE_A;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertTrue;
+
+import android.net.Network;
+
+import org.junit.Before;
+import org.junit.Test;
+import org.mockito.Mock;
+import org.mockito.MockitoAnnotations;
+
+public class EpdgDnsTimeoutEstimatorTest {
+    private static final long DEFAULT_TIMEOUT_MS = 6000;
+    private static final long FLOOR_MS = 100;
+    private static final long CEILING_MS = 20000;
+
+    @Mock private Network mMockNetwork;
+    @Mock private Network mMockOtherNetwork;
+
+    private EpdgDnsTimeoutEstimator mEstimator;
+
+    @Before
+    public void setUp() {
+        MockitoAnnotations.initMocks(this);
+        mEstimator = new EpdgDnsTimeoutEstimator();
+    }
+
+    private long getTimeoutMs(Network network) {
+        return getTimeoutMs(network, TYPE_A);
+    }
+
+    private long getTimeoutMs(Network network, int queryType) {
+        return mEstimator.getTimeoutMs(
+                network, queryType, DEFAULT_TIMEOUT_MS, FLOOR_MS, CEILING_MS);
+    }
+
+    @Test
+    public void testDefaultTimeoutUntilNetworkAnswers() {
+        assertEquals(DEFAULT_TIMEOUT_MS, getTimeoutMs(mMockNetwork));
+
+        mEstimator.onAnswer(mMockNetwork, TYPE_A, 100);
+
+        // Smoothed latency plus four times the initial variation of half the latency.
+        assertEquals(300, getTimeoutMs(mMockNetwork));
+        assertEquals(DEFAULT_TIMEOUT_MS, getTimeoutMs(mMockOtherNetwork));
+    }
+
+    @Test
+    public void testQueryTypesLearnedSeparately() {
+        mEstimator.onAnswer(mMockNetwork, TYPE_A, 100);
+
+        // A fast A answer, possibly from the resolver cache, does not shorten the NAPTR timeout.
+        assertEquals(300, getTimeoutMs(mMockNetwork, TYPE_A));
+        assertEquals(
+                DEFAULT_TIMEOUT_MS, getTimeoutMs(mMockNetwork, NaptrDnsResolver.QUERY_TYPE_NAPTR));
+    }
+
+    @Test
+    public void testNoNetworkLearnedSeparately() {
+        mEstimator.onAnswer(null, TYPE_A, 100);
+        mEstimator.onAnswer(mMockNetwork, TYPE_A, 1000);
+        mEstimator.onTimeout(null, TYPE_A);
+
+        assertEquals(600, getTimeoutMs(null));
+        assertEquals(3000, getTimeoutMs(mMockNetwork));
+    }
+
+    @Test
+    public void testTimeoutBoundedByFloorAndCeiling() {
+        mEstimator.onAnswer(mMockNetwork, TYPE_A, 10);
+        assertEquals(FLOOR_MS, getTimeoutMs(mMockNetwork));
+
+        mEstimator.onAnswer(mMockOtherNetwork, TYPE_A, 10000);
+        assertEquals(CEILING_MS, getTimeoutMs(mMockOtherNetwork));
+    }
+
+    @Test
+    public void testTimeoutTracksSlowerNetwork() {
+        mEstimator.onAnswer(mMockNetwork, TYPE_A, 100);
+        long fastTimeoutMs = getTimeoutMs(mMockNetwork);
+        for (int i = 0; i < 10; i++) {
+            mEstimator.onAnswer(mMockNetwork, TYPE_A, 1000);
+        }
+
+        long slowTimeoutMs = getTimeoutMs(mMockNetwork);
+        assertTrue(slowTimeoutMs > fastTimeoutMs);
+        assertTrue(slowTimeoutMs > 1000);
+    }
+
+    @Test
+    public void testTimeoutBacksOffUntilNextAnswer() {
+        mEstimator.onAnswer(mMockNetwork, TYPE_A, 100);
+
+        mEstimator.onTimeout(mMockNetwork, TYPE_A);
+        assertEquals(600, getTimeoutMs(mMockNetwork));
+        mEstimator.onTimeout(mMockNetwork, TYPE_A);
+        assertEquals(1200, getTimeoutMs(mMockNetwork));
+
+        mEstimator.onAnswer(mMockNetwork, TYPE_A, 100);
+        assertTrue(getTimeoutMs(mMockNetwork) < 600);
+    }
+}
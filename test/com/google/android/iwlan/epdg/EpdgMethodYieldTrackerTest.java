@@ -0,0 +1,81 @@
+/*
+ * Copyright 2024 The Android Open Source Project
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package com.google.android.iwlan.epdg;
+
+import static org.junit.Assert.assertFalse;
+import static org.junit.Assert.assertTrue;
+
+import android.telephony.CarrierConfigManager;
+
+import org.junit.Test;
+
+public class EpdgMethodYieldTrackerTest {
+    private static final int TEST_CARRIER_ID = 1839;
+    private static final int OTHER_CARRIER_ID = 1187;
+    private static final int STATIC = CarrierConfigManager.Iwlan.EPDG_ADDRESS_STATIC;
+    private static final int PLMN = CarrierConfigManager.Iwlan.EPDG_ADDRESS_PLMN;
+    private static final int PCO = CarrierConfigManager.Iwlan.EPDG_ADDRESS_PCO;
+    private static final int VISITED_COUNTRY =
+            CarrierConfigManager.Iwlan.EPDG_ADDRESS_VISITED_COUNTRY;
+
+    private final EpdgMethodYieldTracker mTracker = new EpdgMethodYieldTracker();
+
+    private void runEmpty(int carrierId, int method, boolean isEmergency, int numRuns) {
+        for (int i = 0; i < numRuns; i++) {
+            mTracker.onMethodCompleted(
+                    carrierId, method, isEmergency, false /* hasYield */, 100 /* latencyMs */);
+        }
+    }
+
+    @Test
+    public void testDeferredAfterConsecutiveEmptyRuns() {
+        runEmpty(
+                TEST_CARRIER_ID, STATIC, false, EpdgMethodYieldTracker.MIN_EMPTY_RUNS_TO_DEFER - 1);
+        assertFalse(mTracker.shouldDefer(TEST_CARRIER_ID, STATIC, false));
+
+        runEmpty(TEST_CARRIER_ID, STATIC, false, 1);
+        assertTrue(mTracker.shouldDefer(TEST_CARRIER_ID, STATIC, false));
+
+        // A single yield brings the method back.
+        mTracker.onMethodCompleted(TEST_CARRIER_ID, STATIC, false, true /* hasYield */, 100);
+        assertFalse(mTracker.shouldDefer(TEST_CARRIER_ID, STATIC, false));
+    }
+
+    @Test
+    public void testPlmnPcoAndVisitedCountryNeverDeferred() {
+        runEmpty(TEST_CARRIER_ID, PLMN, false, EpdgMethodYieldTracker.MIN_EMPTY_RUNS_TO_DEFER);
+        runEmpty(TEST_CARRIER_ID, PCO, false, EpdgMethodYieldTracker.MIN_EMPTY_RUNS_TO_DEFER);
+        runEmpty(
+                TEST_CARRIER_ID,
+                VISITED_COUNTRY,
+                false,
+                EpdgMethodYieldTracker.MIN_EMPTY_RUNS_TO_DEFER);
+
+        assertFalse(mTracker.shouldDefer(TEST_CARRIER_ID, PLMN, false));
+        assertFalse(mTracker.shouldDefer(TEST_CARRIER_ID, PCO, false));
+        assertFalse(mTracker.shouldDefer(TEST_CARRIER_ID, VISITED_COUNTRY, false));
+    }
+
+    @Test
+    public void testCarriersAndEmergencyTrackedSeparately() {
+        runEmpty(TEST_CARRIER_ID, STATIC, false, EpdgMethodYieldTracker.MIN_EMPTY_RUNS_TO_DEFER);
+
+        assertTrue(mTracker.shouldDefer(TEST_CARRIER_ID, STATIC, false));
+        assertFalse(mTracker.shouldDefer(OTHER_CARRIER_ID, STATIC, false));
+        assertFalse(mTracker.shouldDefer(TEST_CARRIER_ID, STATIC, true));
+    }
+}
@@ -0,0 +1,180 @@
+/*
+ * Copyright 2024 The Android Open Source Project
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package com.google.android.iwlan.epdg;
+
+import static com.android.dx.mockito.inline.extended.ExtendedMockito.mockitoSession;
+
+import static org.junit.Assert.assertFalse;
+import static org.junit.Assert.assertTrue;
+import static org.mockito.ArgumentMatchers.anyInt;
+import static org.mockito.ArgumentMatchers.anyLong;
+import static org.mockito.Mockito.clearInvocations;
+import static org.mockito.Mockito.eq;
+import static org.mockito.Mockito.never;
+import static org.mockito.Mockito.times;
+import static org.mockito.Mockito.verify;
+import static org.mockito.Mockito.when;
+
+import android.net.Network;
+import android.os.Handler;
+import android.os.test.TestLooper;
+import android.telephony.CellIdentityLte;
+import android.telephony.CellInfo;
+import android.telephony.CellInfoLte;
+
+import com.google.android.iwlan.IwlanHelper;
+
+import org.junit.After;
+import org.junit.Before;
+import org.junit.Test;
+import org.mockito.Mock;
+import org.mockito.MockitoAnnotations;
+import org.mockito.MockitoSession;
+import org.mockito.quality.Strictness;
+
+import java.util.List;
+import java.util.concurrent.TimeUnit;
+
+public class EpdgPrefetchSchedulerTest {
+    private static final int DEFAULT_SLOT_INDEX = 0;
+    private static final long TEST_TTL_MS = TimeUnit.MINUTES.toMillis(5);
+
+    @Mock private EpdgSelector mMockEpdgSelector;
+    @Mock private EpdgPrefetchScheduler.Prefetcher mMockPrefetcher;
+    @Mock private Network mMockNetwork;
+    @Mock private CellInfoLte mMockCellInfoLte;
+    @Mock private CellIdentityLte mMockCellIdentityLte;
+
+    private MockitoSession mStaticMockSession;
+    private final TestLooper mTestLooper = new TestLooper();
+    private long mMockedClockTime = 0;
+    private EpdgPrefetchScheduler mScheduler;
+
+    @Before
+    public void setUp() throws Exception {
+        MockitoAnnotations.initMocks(this);
+        mStaticMockSession =
+                mockitoSession()
+                        .spyStatic(IwlanHelper.class)
+                        .strictness(Strictness.LENIENT)
+                        .startMocking();
+        when(IwlanHelper.elapsedRealtime()).thenAnswer(i -> mMockedClockTime);
+
+        when(mMockEpdgSelector.getNextRefreshTime(eq(mMockNetwork), anyLong()))
+                .thenReturn(Long.MAX_VALUE);
+        when(mMockPrefetcher.prefetch(anyInt()))
+                .thenAnswer(
+                        i -> {
+                            mScheduler.onPrefetched(mMockNetwork, i.getArgument(0));
+                            return true;
+                        });
+
+        mScheduler =
+                new EpdgPrefetchScheduler(
+                        DEFAULT_SLOT_INDEX,
+                        mMockEpdgSelector,
+                        new Handler(mTestLooper.getLooper()),
+                        mMockPrefetcher);
+    }
+
+    @After
+    public void cleanUp() throws Exception {
+        mScheduler.cancel();
+        mStaticMockSession.finishMocking();
+    }
+
+    // Moves both clocks forward a second at a time, so that delayed messages run close to their
+    // due time.
+    private void advanceTime(long millis) {
+        while (millis > 0) {
+            long step = Math.min(millis, 1000);
+            mMockedClockTime += step;
+            mTestLooper.moveTimeForward(step);
+            mTestLooper.dispatchAll();
+            millis -= step;
+        }
+    }
+
+    @Test
+    public void testPrefetchesAreRateLimited() throws Exception {
+        mScheduler.requestPrefetch(EpdgPrefetchScheduler.REASON_WIFI_AP_CHANGED);
+        mTestLooper.dispatchAll();
+        verify(mMockPrefetcher, times(1)).prefetch(EpdgPrefetchScheduler.REASON_WIFI_AP_CHANGED);
+
+        // Both requests are merged into one prefetch once the interval has passed.
+        mScheduler.requestPrefetch(EpdgPrefetchScheduler.REASON_WIFI_AP_CHANGED);
+        mScheduler.requestPrefetch(EpdgPrefetchScheduler.REASON_ROAMING_CHANGED);
+        mTestLooper.dispatchAll();
+        verify(mMockPrefetcher, never()).prefetch(EpdgPrefetchScheduler.REASON_ROAMING_CHANGED);
+
+        advanceTime(EpdgPrefetchScheduler.MIN_PREFETCH_INTERVAL_MS);
+        verify(mMockPrefetcher, times(1)).prefetch(EpdgPrefetchScheduler.REASON_ROAMING_CHANGED);
+        verify(mMockPrefetcher, times(2)).prefetch(anyInt());
+    }
+
+    @Test
+    public void testPrefetchDeferredDuringBringup() throws Exception {
+        when(mMockPrefetcher.isBringupInProgress()).thenReturn(true);
+        mScheduler.requestPrefetch(EpdgPrefetchScheduler.REASON_ROAMING_CHANGED);
+        mTestLooper.dispatchAll();
+        verify(mMockPrefetcher, never()).prefetch(anyInt());
+
+        when(mMockPrefetcher.isBringupInProgress()).thenReturn(false);
+        when(mMockEpdgSelector.hasPendingBringupSelection()).thenReturn(true);
+        advanceTime(EpdgPrefetchScheduler.BRINGUP_BACKOFF_MS);
+        verify(mMockPrefetcher, never()).prefetch(anyInt());
+
+        when(mMockEpdgSelector.hasPendingBringupSelection()).thenReturn(false);
+        advanceTime(EpdgPrefetchScheduler.BRINGUP_BACKOFF_MS);
+        verify(mMockPrefetcher, times(1)).prefetch(EpdgPrefetchScheduler.REASON_ROAMING_CHANGED);
+    }
+
+    @Test
+    public void testRefreshAheadOfExpiry() throws Exception {
+        long refreshDelay = TEST_TTL_MS - EpdgAddressCache.REFRESH_AHEAD_MS;
+        when(mMockEpdgSelector.getNextRefreshTime(eq(mMockNetwork), anyLong()))
+                .thenAnswer(i -> i.<Long>getArgument(1) + refreshDelay);
+
+        mScheduler.onPrefetched(mMockNetwork, EpdgPrefetchScheduler.REASON_NETWORK_CHANGED);
+        advanceTime(refreshDelay - 1);
+        verify(mMockPrefetcher, never()).prefetch(anyInt());
+
+        advanceTime(1);
+        verify(mMockPrefetcher, times(1)).prefetch(EpdgPrefetchScheduler.REASON_REFRESH_AHEAD);
+
+        // Refreshing stops once no prefetch was triggered for a while.
+        advanceTime(EpdgPrefetchScheduler.MAX_REFRESH_AHEAD_MS);
+        clearInvocations(mMockPrefetcher);
+        advanceTime(2 * refreshDelay);
+        verify(mMockPrefetcher, never()).prefetch(anyInt());
+    }
+
+    @Test
+    public void testOnlyCellLocationChangesAreReported() throws Exception {
+        when(mMockCellInfoLte.isRegistered()).thenReturn(true);
+        when(mMockCellInfoLte.getCellIdentity()).thenReturn(mMockCellIdentityLte);
+        when(mMockCellIdentityLte.getTac()).thenReturn(0x1234);
+        List<CellInfo> cellInfos = List.of(mMockCellInfoLte);
+
+        assertTrue(mScheduler.onCellInfoChanged(cellInfos));
+        // A new cell of the same tracking area does not change the candidates.
+        assertFalse(mScheduler.onCellInfoChanged(cellInfos));
+
+        when(mMockCellIdentityLte.getTac()).thenReturn(0x5678);
+        assertTrue(mScheduler.onCellInfoChanged(cellInfos));
+    }
+}
@@ -0,0 +1,159 @@
+/*
+ * Copyright 2024 The Android Open Source Project
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package com.google.android.iwlan.epdg;
+
+import static org.junit.Assert.assertArrayEquals;
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertFalse;
+import static org.junit.Assert.assertNotEquals;
+import static org.junit.Assert.assertTrue;
+
+import android.net.DnsResolver;
+import android.telephony.CarrierConfigManager;
+
+import org.junit.Test;
+
+import java.util.List;
+
+public class EpdgResolutionPlanTest {
+    private static final String[] TEST_MCC_MNCS = new String[] {"311-120", "310-48"};
+    private static final int[] TEST_PLMN_PRIORITIES =
+            new int[] {
+                CarrierConfigManager.Iwlan.EPDG_PLMN_RPLMN,
+                CarrierConfigManager.Iwlan.EPDG_PLMN_HPLMN,
+                CarrierConfigManager.Iwlan.EPDG_PLMN_EHPLMN_ALL
+            };
+
+    private static EpdgResolutionPlan.Inputs createInputs(
+            int filter, boolean isEmergency, String registeredPlmn, long... cellLocations) {
+        return new EpdgResolutionPlan.Inputs(
+                filter,
+                isEmergency,
+                true /* hasIpv4Address */,
+                true /* hasIpv6Address */,
+                true /* inSameCountry */,
+                "epdg.example.com",
+                null /* staticAddressesRoaming */,
+                TEST_MCC_MNCS,
+                TEST_PLMN_PRIORITIES,
+                "311120",
+                List.of("311120", "31048"),
+                registeredPlmn,
+                cellLocations);
+    }
+
+    @Test
+    public void testPlmnDomainNamesInPriorityOrder() {
+        EpdgResolutionPlan plan =
+                EpdgResolutionPlan.compile(
+                        createInputs(EpdgSelector.PROTO_FILTER_IPV4V6, true, "31048"));
+
+        // The registered PLMN comes first, with its MNC padded to 3 digits, and repeated PLMNs
+        // are dropped.
+        assertEquals(
+                List.of(
+                        "sos.epdg.epc.mnc048.mcc310.pub.3gppnetwork.org",
+                        "epdg.epc.mnc048.mcc310.pub.3gppnetwork.org",
+                        "sos.epdg.epc.mnc120.mcc311.pub.3gppnetwork.org",
+                        "epdg.epc.mnc120.mcc311.pub.3gppnetwork.org"),
+                plan.getPlmnDomainNames());
+        assertEquals(List.of("epdg.example.com"), plan.getStaticDomainNames());
+    }
+
+    @Test
+    public void testRegisteredPlmnOutsideSelectionInfoSkipped() {
+        EpdgResolutionPlan plan =
+                EpdgResolutionPlan.compile(
+                        createInputs(EpdgSelector.PROTO_FILTER_IPV4V6, false, "46001"));
+
+        assertEquals(
+                List.of(
+                        "epdg.epc.mnc120.mcc311.pub.3gppnetwork.org",
+                        "epdg.epc.mnc048.mcc310.pub.3gppnetwork.org"),
+                plan.getPlmnDomainNames());
+    }
+
+    @Test
+    public void testCellularLocDomainNames() {
+        EpdgResolutionPlan plan =
+                EpdgResolutionPlan.compile(
+                        createInputs(
+                                EpdgSelector.PROTO_FILTER_IPV4V6,
+                                false,
+                                null,
+                                EpdgResolutionPlan.cellLocation(
+                                        EpdgResolutionPlan.CELL_LOCATION_LAC, 0xffcc),
+                                EpdgResolutionPlan.cellLocation(
+                                        EpdgResolutionPlan.CELL_LOCATION_TAC, 0xffcc),
+                                EpdgResolutionPlan.cellLocation(
+                                        EpdgResolutionPlan.CELL_LOCATION_5GS_TAC, 0xffccaa)));
+
+        assertEquals(
+                List.of(
+                        "lacffcc.epdg.epc.mnc120.mcc311.pub.3gppnetwork.org",
+                        "lacffcc.epdg.epc.mnc048.mcc310.pub.3gppnetwork.org",
+                        "tac-lbcc.tac-hbff.tac.epdg.epc.mnc120.mcc311.pub.3gppnetwork.org",
+                        "tac-lbcc.tac-hbff.tac.epdg.epc.mnc048.mcc310.pub.3gppnetwork.org",
+                        "tac-lbaa.tac-mbcc.tac-hbff.5gstac.epdg.epc.mnc120.mcc311"
+                                + ".pub.3gppnetwork.org",
+                        "tac-lbaa.tac-mbcc.tac-hbff.5gstac.epdg.epc.mnc048.mcc310"
+                                + ".pub.3gppnetwork.org"),
+                plan.getCellularLocDomainNames());
+    }
+
+    @Test
+    public void testQueryTypesFollowFilter() {
+        assertArrayEquals(
+                new int[] {DnsResolver.TYPE_A, DnsResolver.TYPE_AAAA},
+                EpdgResolutionPlan.compile(
+                                createInputs(EpdgSelector.PROTO_FILTER_IPV4V6, false, null))
+                        .getQueryTypes());
+        assertArrayEquals(
+                new int[] {DnsResolver.TYPE_A},
+                EpdgResolutionPlan.compile(
+                                createInputs(EpdgSelector.PROTO_FILTER_IPV4, false, null))
+                        .getQueryTypes());
+        assertArrayEquals(
+                new int[] {DnsResolver.TYPE_AAAA},
+                EpdgResolutionPlan.compile(
+                                createInputs(EpdgSelector.PROTO_FILTER_IPV6, false, null))
+                        .getQueryTypes());
+    }
+
+    @Test
+    public void testInputsEquality() {
+        assertEquals(
+                createInputs(EpdgSelector.PROTO_FILTER_IPV4V6, false, "311120"),
+                createInputs(EpdgSelector.PROTO_FILTER_IPV4V6, false, "311120"));
+        assertNotEquals(
+                createInputs(EpdgSelector.PROTO_FILTER_IPV4V6, false, "311120"),
+                createInputs(EpdgSelector.PROTO_FILTER_IPV4V6, false, "31048"));
+        assertNotEquals(
+                createInputs(EpdgSelector.PROTO_FILTER_IPV4V6, false, null, 1L),
+                createInputs(EpdgSelector.PROTO_FILTER_IPV4V6, false, null, 2L));
+    }
+
+    @Test
+    public void testIsValidPlmn() {
+        assertTrue(EpdgResolutionPlan.isValidPlmn("31048"));
+        assertTrue(EpdgResolutionPlan.isValidPlmn("311120"));
+        assertFalse(EpdgResolutionPlan.isValidPlmn("3110"));
+        assertFalse(EpdgResolutionPlan.isValidPlmn("3111200"));
+        assertFalse(EpdgResolutionPlan.isValidPlmn("311-12"));
+        assertFalse(EpdgResolutionPlan.isValidPlmn(null));
+    }
+}
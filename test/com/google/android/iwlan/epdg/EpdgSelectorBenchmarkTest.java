@@ -0,0 +1,656 @@
+/*
+ * Copyright 2024 The Android Open Source Project
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package com.google.android.iwlan.epdg;
+
+import static android.net.DnsResolver.TYPE_A;
+import static android.net.DnsResolver.TYPE_AAAA;
+
+import static com.android.dx.mockito.inline.extended.ExtendedMockito.mockitoSession;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertTrue;
+import static org.junit.Assume.assumeTrue;
+import static org.mockito.ArgumentMatchers.any;
+import static org.mockito.ArgumentMatchers.anyInt;
+import static org.mockito.ArgumentMatchers.anyString;
+import static org.mockito.ArgumentMatchers.eq;
+import static org.mockito.Mockito.when;
+
+import android.content.Context;
+import android.content.SharedPreferences;
+import android.net.DnsResolver;
+import android.net.InetAddresses;
+import android.net.LinkAddress;
+import android.net.LinkProperties;
+import android.net.Network;
+import android.os.CancellationSignal;
+import android.os.Debug;
+import android.os.PersistableBundle;
+import android.telephony.CarrierConfigManager;
+import android.telephony.CellIdentityLte;
+import android.telephony.CellInfoLte;
+import android.telephony.SubscriptionInfo;
+import android.telephony.SubscriptionManager;
+import android.telephony.TelephonyManager;
+import android.util.Log;
+
+import androidx.test.InstrumentationRegistry;
+
+import com.google.android.iwlan.ErrorPolicyManager;
+import com.google.android.iwlan.IwlanError;
+import com.google.android.iwlan.IwlanNetworkAddresses;
+
+import org.json.JSONObject;
+import org.junit.After;
+import org.junit.Before;
+import org.junit.Test;
+import org.mockito.Mock;
+import org.mockito.MockitoAnnotations;
+import org.mockito.MockitoSession;
+import org.mockito.quality.Strictness;
+
+import java.io.ByteArrayOutputStream;
+import java.io.DataOutputStream;
+import java.io.File;
+import java.io.FileWriter;
+import java.io.IOException;
+import java.io.Writer;
+import java.net.Inet4Address;
+import java.net.Inet6Address;
+import java.net.InetAddress;
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.HashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.Random;
+import java.util.concurrent.CountDownLatch;
+import java.util.concurrent.Executor;
+import java.util.concurrent.ScheduledThreadPoolExecutor;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicInteger;
+
+/**
+ * Measures ePDG selection against a simulated resolver.
+ *
+ * <p>The full benchmark runs every combination of resolution methods, roaming state and emergency
+ * type, and writes one JSON object per combination to logcat and to epdg_selector_benchmark.jsonl
+ * in the files directory of the test app. It only runs when the instrumentation argument
+ * "epdg-selector-benchmark" is "true", for example with:
+ *
+ * <pre>
+ * atest IwlanTests:EpdgSelectorBenchmarkTest -- \
+ *     --module-arg IwlanTests:instrumentation-arg:epdg-selector-benchmark:=true
+ * </pre>
+ *
+ * <p>Allocations are the bytes allocated by the whole test process during the selections, and
+ * threads are the most threads seen alive while a query or answer is simulated.
+ */
+public class EpdgSelectorBenchmarkTest {
+    private static final String TAG = "EpdgSelectorBenchmark";
+    private static final String BENCHMARK_ARG = "epdg-selector-benchmark";
+    private static final String RESULT_FILE_NAME = "epdg_selector_benchmark.jsonl";
+    private static final int DEFAULT_SLOT_INDEX = 0;
+    private static final int ITERATIONS = 5;
+    private static final long SELECTION_TIMEOUT_SEC = 60;
+
+    private static final int[] METHODS = {
+        CarrierConfigManager.Iwlan.EPDG_ADDRESS_STATIC,
+        CarrierConfigManager.Iwlan.EPDG_ADDRESS_PLMN,
+        CarrierConfigManager.Iwlan.EPDG_ADDRESS_PCO,
+        CarrierConfigManager.Iwlan.EPDG_ADDRESS_CELLULAR_LOC,
+        CarrierConfigManager.Iwlan.EPDG_ADDRESS_VISITED_COUNTRY
+    };
+
+    private static final String STATIC_ADDRESS = "epdg.epc.mnc120.mcc311.static.example";
+    private static final String PLMN_ADDRESS = "epdg.epc.mnc120.mcc311.pub.3gppnetwork.org";
+    private static final String CELLULAR_ADDRESS =
+            "tac-lb34.tac-hb12.tac.epdg.epc.mnc120.mcc311.pub.3gppnetwork.org";
+    private static final String SOS_CELLULAR_ADDRESS =
+            "tac-lb34.tac-hb12.tac.sos.epdg.epc.mnc120.mcc311.pub.3gppnetwork.org";
+    private static final int PCO_ID_IPV4 = 0xFF02;
+
+    @Mock private Context mMockContext;
+    @Mock private Network mMockNetwork;
+    @Mock private ErrorPolicyManager mMockErrorPolicyManager;
+    @Mock private SubscriptionManager mMockSubscriptionManager;
+    @Mock private SubscriptionInfo mMockSubscriptionInfo;
+    @Mock private CarrierConfigManager mMockCarrierConfigManager;
+    @Mock private TelephonyManager mMockTelephonyManager;
+    @Mock private SharedPreferences mMockSharedPreferences;
+    @Mock private CellInfoLte mMockCellInfoLte;
+    @Mock private CellIdentityLte mMockCellIdentityLte;
+
+    private MockitoSession mStaticMockSession;
+    private PersistableBundle mTestBundle;
+    private SimulatedDnsBackend mDnsBackend;
+
+    /** How the simulated resolver answers a name. */
+    static final class DnsProfile {
+        final long mMinLatencyMs;
+        final long mMaxLatencyMs;
+        // Lost queries are never answered.
+        final double mLossRate;
+        final double mNxdomainRate;
+
+        DnsProfile(long minLatencyMs, long maxLatencyMs, double lossRate, double nxdomainRate) {
+            mMinLatencyMs = minLatencyMs;
+            mMaxLatencyMs = maxLatencyMs;
+            mLossRate = lossRate;
+            mNxdomainRate = nxdomainRate;
+        }
+
+        @Override
+        public String toString() {
+            return mMinLatencyMs
+                    + "-"
+                    + mMaxLatencyMs
+                    + "ms loss: "
+                    + mLossRate
+                    + " nxdomain: "
+                    + mNxdomainRate;
+        }
+    }
+
+    /**
+     * Answers address queries from a table, with the latency, loss and NXDOMAIN rate of the
+     * profile of each name. Raw A and AAAA queries are answered from the same table. Other raw
+     * queries, used for NAPTR and SRV records, always get an NXDOMAIN answer, unless they are lost.
+     */
+    static final class SimulatedDnsBackend implements EpdgDnsBackend {
+        private static final int RCODE_NXDOMAIN = 3;
+        private static final int ANSWER_TTL_SEC = 300;
+
+        private final Map<String, List<InetAddress>> mAnswers = new HashMap<>();
+        private final Map<String, DnsProfile> mProfiles = new HashMap<>();
+        private final DnsProfile mDefaultProfile;
+        private final Random mRandom = new Random(0);
+        private final ScheduledThreadPoolExecutor mTimer = new ScheduledThreadPoolExecutor(1);
+        private final AtomicInteger mPeakThreads = new AtomicInteger();
+        private final AtomicInteger mNumQueries = new AtomicInteger();
+
+        SimulatedDnsBackend(DnsProfile defaultProfile) {
+            mDefaultProfile = defaultProfile;
+        }
+
+        void setAnswer(String domain, String... addresses) {
+            List<InetAddress> answer = new ArrayList<>();
+            for (String address : addresses) {
+                answer.add(InetAddresses.parseNumericAddress(address));
+            }
+            mAnswers.put(domain, answer);
+        }
+
+        void setProfile(String domain, DnsProfile profile) {
+            mProfiles.put(domain, profile);
+        }
+
+        void resetCounters() {
+            mPeakThreads.set(0);
+            mNumQueries.set(0);
+        }
+
+        void shutdown() {
+            mTimer.shutdownNow();
+        }
+
+        @Override
+        public void query(
+                Network network,
+                String domain,
+                int flags,
+                Executor executor,
+                CancellationSignal cancellationSignal,
+                DnsResolver.Callback<List<InetAddress>> callback) {
+            query(
+                    network,
+                    domain,
+                    EpdgAddressCache.QUERY_TYPE_UNSPECIFIED,
+                    flags,
+                    executor,
+                    cancellationSignal,
+                    callback);
+        }
+
+        @Override
+        public void query(
+                Network network,
+                String domain,
+                int nsType,
+                int flags,
+                Executor executor,
+                CancellationSignal cancellationSignal,
+                DnsResolver.Callback<List<InetAddress>> callback) {
+            List<InetAddress> answer = new ArrayList<>();
+            for (InetAddress address : mAnswers.getOrDefault(domain, List.of())) {
+                if (nsType == EpdgAddressCache.QUERY_TYPE_UNSPECIFIED
+                        || (nsType == TYPE_A && address instanceof Inet4Address)
+                        || (nsType == TYPE_AAAA && address instanceof Inet6Address)) {
+                    answer.add(address);
+                }
+            }
+            simulate(
+                    domain,
+                    executor,
+                    cancellationSignal,
+                    isNxdomain ->
+                            callback.onAnswer(
+                                    isNxdomain ? List.of() : answer,
+                                    (isNxdomain || answer.isEmpty()) ? RCODE_NXDOMAIN : 0));
+        }
+
+        @Override
+        public void rawQuery(
+                Network network,
+                String domain,
+                int nsClass,
+                int nsType,
+                int flags,
+                Executor executor,
+                CancellationSignal cancellationSignal,
+                DnsResolver.Callback<? super byte[]> callback) {
+            if (nsType != TYPE_A && nsType != TYPE_AAAA) {
+                byte[] answer = buildAnswer(domain, nsType, RCODE_NXDOMAIN, List.of());
+                simulate(
+                        domain,
+                        executor,
+                        cancellationSignal,
+                        isNxdomain -> callback.onAnswer(answer, RCODE_NXDOMAIN));
+                return;
+            }
+            List<InetAddress> addresses = new ArrayList<>();
+            for (InetAddress address : mAnswers.getOrDefault(domain, List.of())) {
+                if ((nsType == TYPE_A) == (address instanceof Inet4Address)) {
+                    addresses.add(address);
+                }
+            }
+            byte[] answer = buildAnswer(domain, nsType, 0, addresses);
+            byte[] nxdomainAnswer = buildAnswer(domain, nsType, RCODE_NXDOMAIN, List.of());
+            simulate(
+                    domain,
+                    executor,
+                    cancellationSignal,
+                    isNxdomain -> {
+                        if (isNxdomain || addresses.isEmpty()) {
+                            callback.onAnswer(nxdomainAnswer, RCODE_NXDOMAIN);
+                        } else {
+                            callback.onAnswer(answer, 0);
+                        }
+                    });
+        }
+
+        private interface Outcome {
+            void deliver(boolean isNxdomain);
+        }
+
+        private void simulate(
+                String domain,
+                Executor executor,
+                CancellationSignal cancellationSignal,
+                Outcome outcome) {
+            mNumQueries.incrementAndGet();
+            samplePeakThreads();
+            DnsProfile profile = mProfiles.getOrDefault(domain, mDefaultProfile);
+            final boolean isLost;
+            final boolean isNxdomain;
+            final long latencyMs;
+            synchronized (mRandom) {
+                isLost = mRandom.nextDouble() < profile.mLossRate;
+                isNxdomain = mRandom.nextDouble() < profile.mNxdomainRate;
+                latencyMs =
+                        profile.mMinLatencyMs
+                                + (long)
+                                        (mRandom.nextDouble()
+                                                * (profile.mMaxLatencyMs - profile.mMinLatencyMs));
+            }
+            if (isLost) {
+                return;
+            }
+            mTimer.schedule(
+                    () -> {
+                        if (cancellationSignal == null || !cancellationSignal.isCanceled()) {
+                            executor.execute(
+                                    () -> {
+                                        samplePeakThreads();
+                                        outcome.deliver(isNxdomain);
+                                    });
+                        }
+                    },
+                    latencyMs,
+                    TimeUnit.MILLISECONDS);
+        }
+
+        private void samplePeakThreads() {
+            mPeakThreads.accumulateAndGet(Thread.activeCount(), Math::max);
+        }
+
+        /** Builds a response to the query, with an A or AAAA record for each address. */
+        private static byte[] buildAnswer(
+                String domain, int nsType, int rcode, List<InetAddress> addresses) {
+            try {
+                ByteArrayOutputStream bytes = new ByteArrayOutputStream();
+                DataOutputStream out = new DataOutputStream(bytes);
+                out.writeShort(0); // ID
+                out.writeShort(0x8180 | rcode); // QR, RD, RA
+                out.writeShort(1); // QDCOUNT
+                out.writeShort(addresses.size()); // ANCOUNT
+                out.writeShort(0); // NSCOUNT
+                out.writeShort(0); // ARCOUNT
+                writeName(out, domain);
+                out.writeShort(nsType);
+                out.writeShort(DnsResolver.CLASS_IN);
+                for (InetAddress address : addresses) {
+                    writeName(out, domain);
+                    out.writeShort(nsType);
+                    out.writeShort(DnsResolver.CLASS_IN);
+                    out.writeInt(ANSWER_TTL_SEC);
+                    out.writeShort(address.getAddress().length);
+                    out.write(address.getAddress());
+                }
+                out.flush();
+                return bytes.toByteArray();
+            } catch (IOException e) {
+                throw new IllegalStateException(e);
+            }
+        }
+
+        private static void writeName(DataOutputStream out, String domain) throws IOException {
+            for (String label : domain.split("\\.")) {
+                out.writeByte(label.length());
+                out.writeBytes(label);
+            }
+            out.writeByte(0);
+        }
+    }
+
+    /** The measurements of one selection. */
+    private static final class Sample {
+        long mFirstCandidateMs = -1;
+        long mTotalMs;
+        int mNumCandidates;
+        boolean mIsError;
+    }
+
+    @Before
+    public void setUp() throws Exception {
+        MockitoAnnotations.initMocks(this);
+        mStaticMockSession =
+                mockitoSession()
+                        .mockStatic(ErrorPolicyManager.class)
+                        .strictness(Strictness.LENIENT)
+                        .startMocking();
+        when(ErrorPolicyManager.getInstance(mMockContext, DEFAULT_SLOT_INDEX))
+                .thenReturn(mMockErrorPolicyManager);
+
+        when(mMockContext.getSystemService(eq(SubscriptionManager.class)))
+                .thenReturn(mMockSubscriptionManager);
+        when(mMockSubscriptionManager.getActiveSubscriptionInfoForSimSlotIndex(anyInt()))
+                .thenReturn(mMockSubscriptionInfo);
+        when(mMockSubscriptionInfo.getMccString()).thenReturn("311");
+        when(mMockSubscriptionInfo.getMncString()).thenReturn("120");
+        when(mMockContext.getSystemService(eq(TelephonyManager.class)))
+                .thenReturn(mMockTelephonyManager);
+        when(mMockTelephonyManager.createForSubscriptionId(anyInt()))
+                .thenReturn(mMockTelephonyManager);
+        when(mMockTelephonyManager.getNetworkOperator()).thenReturn("311120");
+        when(mMockTelephonyManager.getEquivalentHomePlmns()).thenReturn(List.of());
+        when(mMockTelephonyManager.getSimCountryIso()).thenReturn("ca");
+        when(mMockContext.getSharedPreferences(anyString(), anyInt()))
+                .thenReturn(mMockSharedPreferences);
+        when(mMockSharedPreferences.getString(any(), any())).thenReturn("US");
+
+        when(mMockCellInfoLte.isRegistered()).thenReturn(true);
+        when(mMockCellInfoLte.getCellIdentity()).thenReturn(mMockCellIdentityLte);
+        when(mMockCellIdentityLte.getMcc()).thenReturn(311);
+        when(mMockCellIdentityLte.getMnc()).thenReturn(120);
+        when(mMockCellIdentityLte.getTac()).thenReturn(0x1234);
+        when(mMockTelephonyManager.getAllCellInfo()).thenReturn(List.of(mMockCellInfoLte));
+
+        mTestBundle = new PersistableBundle();
+        mTestBundle.putInt(
+                CarrierConfigManager.Iwlan.KEY_EPDG_ADDRESS_IP_TYPE_PREFERENCE_INT,
+                CarrierConfigManager.Iwlan.EPDG_ADDRESS_IPV4_PREFERRED);
+        mTestBundle.putString(
+                CarrierConfigManager.Iwlan.KEY_EPDG_STATIC_ADDRESS_STRING, STATIC_ADDRESS);
+        mTestBundle.putString(
+                CarrierConfigManager.Iwlan.KEY_EPDG_STATIC_ADDRESS_ROAMING_STRING, STATIC_ADDRESS);
+        mTestBundle.putStringArray(
+                CarrierConfigManager.Iwlan.KEY_MCC_MNCS_STRING_ARRAY, new String[] {"311-120"});
+        mTestBundle.putInt(CarrierConfigManager.Iwlan.KEY_EPDG_PCO_ID_IPV4_INT, PCO_ID_IPV4);
+        when(mMockContext.getSystemService(eq(CarrierConfigManager.class)))
+                .thenReturn(mMockCarrierConfigManager);
+        when(mMockCarrierConfigManager.getConfigForSubId(anyInt())).thenReturn(mTestBundle);
+
+        LinkProperties linkProperties = new LinkProperties();
+        linkProperties.addLinkAddress(new LinkAddress("192.0.2.10/24"));
+        linkProperties.addLinkAddress(new LinkAddress("2001:db8::10/64"));
+        IwlanNetworkAddresses.update(mMockNetwork, linkProperties);
+    }
+
+    @After
+    public void cleanUp() throws Exception {
+        if (mDnsBackend != null) {
+            mDnsBackend.shutdown();
+        }
+        EpdgDnsBackend.setInstance(null);
+        IwlanNetworkAddresses.remove(mMockNetwork);
+        mStaticMockSession.finishMocking();
+    }
+
+    private void setUpDnsBackend(DnsProfile defaultProfile) {
+        mDnsBackend = new SimulatedDnsBackend(defaultProfile);
+        mDnsBackend.setAnswer(STATIC_ADDRESS, "127.0.0.1");
+        mDnsBackend.setAnswer(PLMN_ADDRESS, "127.0.0.2", "2001:db8::2");
+        mDnsBackend.setAnswer("sos." + PLMN_ADDRESS, "127.0.0.3");
+        mDnsBackend.setAnswer(CELLULAR_ADDRESS, "127.0.0.4");
+        mDnsBackend.setAnswer(SOS_CELLULAR_ADDRESS, "127.0.0.5");
+        EpdgDnsBackend.setInstance(mDnsBackend);
+    }
+
+    private Sample runSelection(boolean isRoaming, boolean isEmergency) throws Exception {
+        // A new selector and cache for each run, so that no answer is served from the cache.
+        EpdgDnsScheduler.resetInstance();
+        EpdgDnsQueryCoalescer.resetInstance();
+        EpdgAddressCache.resetInstance();
+        EpdgSelector selector = new EpdgSelector(mMockContext, DEFAULT_SLOT_INDEX);
+        selector.setPcoData(
+                PCO_ID_IPV4, InetAddresses.parseNumericAddress("127.0.0.6").getAddress());
+
+        Sample sample = new Sample();
+        CountDownLatch latch = new CountDownLatch(1);
+        long startTime = System.nanoTime();
+        IwlanError ret =
+                selector.getValidatedServerList(
+                        1 /* transactionId */,
+                        EpdgSelector.PROTO_FILTER_IPV4V6,
+                        EpdgSelector.IPV4_PREFERRED,
+                        isRoaming,
+                        isEmergency,
+                        mMockNetwork,
+                        new EpdgSelector.EpdgSelectorCallback() {
+                            private void onCandidates(List<InetAddress> candidates) {
+                                if (sample.mFirstCandidateMs < 0 && !candidates.isEmpty()) {
+                                    sample.mFirstCandidateMs = elapsedMs(startTime);
+                                }
+                            }
+
+                            @Override
+                            public void onPartialServerList(
+                                    int transactionId, List<InetAddress> validIPList) {
+                                onCandidates(validIPList);
+                            }
+
+                            @Override
+                            public void onServerListChanged(
+                                    int transactionId, List<InetAddress> validIPList) {
+                                onCandidates(validIPList);
+                                sample.mNumCandidates = validIPList.size();
+                                sample.mTotalMs = elapsedMs(startTime);
+                                latch.countDown();
+                            }
+
+                            @Override
+                            public void onError(int transactionId, IwlanError error) {
+                                sample.mIsError = true;
+                                sample.mTotalMs = elapsedMs(startTime);
+                                latch.countDown();
+                            }
+                        });
+        assertEquals(IwlanError.NO_ERROR, ret.getErrorType());
+        assertTrue(latch.await(SELECTION_TIMEOUT_SEC, TimeUnit.SECONDS));
+        return sample;
+    }
+
+    private static long elapsedMs(long startTimeNanos) {
+        return TimeUnit.NANOSECONDS.toMillis(System.nanoTime() - startTimeNanos);
+    }
+
+    private static long getAllocatedBytes() {
+        String bytes = Debug.getRuntimeStat("art.gc.bytes-allocated");
+        return (bytes != null) ? Long.parseLong(bytes) : -1;
+    }
+
+    private JSONObject runConfiguration(int[] methods, boolean isRoaming, boolean isEmergency)
+            throws Exception {
+        mTestBundle.putIntArray(
+                CarrierConfigManager.Iwlan.KEY_EPDG_ADDRESS_PRIORITY_INT_ARRAY, methods);
+        mDnsBackend.resetCounters();
+
+        List<Long> firstCandidateMs = new ArrayList<>();
+        List<Long> totalMs = new ArrayList<>();
+        int numErrors = 0;
+        int numCandidates = 0;
+        long allocatedBytes = getAllocatedBytes();
+        for (int i = 0; i < ITERATIONS; i++) {
+            Sample sample = runSelection(isRoaming, isEmergency);
+            if (sample.mFirstCandidateMs >= 0) {
+                firstCandidateMs.add(sample.mFirstCandidateMs);
+            }
+            totalMs.add(sample.mTotalMs);
+            numErrors += sample.mIsError ? 1 : 0;
+            numCandidates = Math.max(numCandidates, sample.mNumCandidates);
+        }
+        allocatedBytes = getAllocatedBytes() - allocatedBytes;
+
+        List<String> methodNames = new ArrayList<>();
+        for (int method : methods) {
+            methodNames.add(methodToString(method));
+        }
+        JSONObject result = new JSONObject();
+        result.put("methods", String.join(",", methodNames));
+        result.put("roaming", isRoaming);
+        result.put("emergency", isEmergency);
+        result.put("iterations", ITERATIONS);
+        result.put("errors", numErrors);
+        result.put("max_candidates", numCandidates);
+        result.put("first_candidate_ms_p50", percentile(firstCandidateMs, 50));
+        result.put("first_candidate_ms_p90", percentile(firstCandidateMs, 90));
+        result.put("total_ms_p50", percentile(totalMs, 50));
+        result.put("total_ms_p90", percentile(totalMs, 90));
+        result.put("total_ms_max", percentile(totalMs, 100));
+        result.put("dns_queries", mDnsBackend.mNumQueries.get());
+        result.put("peak_threads", mDnsBackend.mPeakThreads.get());
+        result.put("allocated_bytes_per_selection", allocatedBytes / ITERATIONS);
+        return result;
+    }
+
+    /** Returns the nearest-rank percentile, or -1 if there are no values. */
+    private static long percentile(List<Long> values, int percent) {
+        if (values.isEmpty()) {
+            return -1;
+        }
+        List<Long> sorted = new ArrayList<>(values);
+        Collections.sort(sorted);
+        int rank = (int) Math.ceil(percent / 100.0 * sorted.size());
+        return sorted.get(Math.max(rank, 1) - 1);
+    }
+
+    private static String methodToString(int method) {
+        switch (method) {
+            case CarrierConfigManager.Iwlan.EPDG_ADDRESS_STATIC:
+                return "STATIC";
+            case CarrierConfigManager.Iwlan.EPDG_ADDRESS_PLMN:
+                return "PLMN";
+            case CarrierConfigManager.Iwlan.EPDG_ADDRESS_PCO:
+                return "PCO";
+            case CarrierConfigManager.Iwlan.EPDG_ADDRESS_CELLULAR_LOC:
+                return "CELLULAR_LOC";
+            case CarrierConfigManager.Iwlan.EPDG_ADDRESS_VISITED_COUNTRY:
+                return "VISITED_COUNTRY";
+            default:
+                return "UNKNOWN(" + method + ")";
+        }
+    }
+
+    @Test
+    public void testSelectionMeasured() throws Exception {
+        setUpDnsBackend(new DnsProfile(0, 5, 0 /* lossRate */, 0 /* nxdomainRate */));
+
+        JSONObject result =
+                runConfiguration(
+                        new int[] {
+                            CarrierConfigManager.Iwlan.EPDG_ADDRESS_STATIC,
+                            CarrierConfigManager.Iwlan.EPDG_ADDRESS_PLMN
+                        },
+                        false /* isRoaming */,
+                        false /* isEmergency */);
+
+        assertEquals(0, result.getInt("errors"));
+        assertEquals(3, result.getInt("max_candidates"));
+        assertTrue(result.getLong("first_candidate_ms_p50") >= 0);
+        assertTrue(
+                result.getLong("first_candidate_ms_p50") <= result.getLong("total_ms_p50"));
+        assertTrue(result.getInt("dns_queries") > 0);
+    }
+
+    @Test
+    public void testAllConfigurations() throws Exception {
+        assumeTrue(
+                Boolean.parseBoolean(
+                        InstrumentationRegistry.getArguments().getString(BENCHMARK_ARG)));
+        DnsProfile profile = new DnsProfile(20, 200, 0.05, 0.1);
+        setUpDnsBackend(profile);
+        // The FQDN of the carrier is slow to answer.
+        mDnsBackend.setProfile(PLMN_ADDRESS, new DnsProfile(200, 1000, 0.05, 0));
+        Log.i(TAG, "Default DNS profile: " + profile);
+
+        File filesDir = InstrumentationRegistry.getTargetContext().getFilesDir();
+        File resultFile = new File(filesDir, RESULT_FILE_NAME);
+        try (Writer writer = new FileWriter(resultFile)) {
+            // Every non-empty subset of the methods, in the order of METHODS.
+            for (int mask = 1; mask < (1 << METHODS.length); mask++) {
+                int[] methods = new int[Integer.bitCount(mask)];
+                int numMethods = 0;
+                for (int i = 0; i < METHODS.length; i++) {
+                    if ((mask & (1 << i)) != 0) {
+                        methods[numMethods++] = METHODS[i];
+                    }
+                }
+                for (boolean isRoaming : new boolean[] {false, true}) {
+                    for (boolean isEmergency : new boolean[] {false, true}) {
+                        String line =
+                                runConfiguration(methods, isRoaming, isEmergency).toString();
+                        Log.i(TAG, line);
+                        writer.write(line);
+                        writer.write('\n');
+                    }
+                }
+            }
+        }
+        Log.i(TAG, "Results written to " + resultFile);
+    }
+}
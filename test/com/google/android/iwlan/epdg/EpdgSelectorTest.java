@@ -31,6 +31,7 @@ import android.content.SharedPreferences;
 import android.net.DnsResolver;
 import android.net.InetAddresses;
 import android.net.Network;
+import android.os.CancellationSignal;
 import android.os.Handler;
 import android.os.Looper;
 import android.os.PersistableBundle;
@@ -52,21 +53,29 @@ import android.util.Log;
 
 import com.google.android.iwlan.ErrorPolicyManager;
 import com.google.android.iwlan.IwlanError;
+import com.google.android.iwlan.IwlanHelper;
 
 import org.junit.After;
 import org.junit.Before;
 import org.junit.Test;
+import org.mockito.ArgumentCaptor;
 import org.mockito.Mock;
 import org.mockito.MockitoAnnotations;
 import org.mockito.MockitoSession;
 import org.mockito.invocation.InvocationOnMock;
 import org.mockito.stubbing.Answer;
 
+import java.io.ByteArrayOutputStream;
+import java.io.DataOutputStream;
+import java.io.File;
+import java.io.IOException;
 import java.net.InetAddress;
 import java.net.UnknownHostException;
+import java.nio.file.Files;
 import java.util.*;
 import java.util.concurrent.CountDownLatch;
 import java.util.concurrent.Executor;
+import java.util.concurrent.ExecutorService;
 import java.util.concurrent.TimeUnit;
 
 public class EpdgSelectorTest {
@@ -120,10 +129,15 @@ public class EpdgSelectorTest {
                 mockitoSession()
                         .mockStatic(DnsResolver.class)
                         .mockStatic(ErrorPolicyManager.class)
+                        .spyStatic(IwlanHelper.class)
                         .startMocking();
 
         when(ErrorPolicyManager.getInstance(mMockContext, DEFAULT_SLOT_INDEX))
                 .thenReturn(mMockErrorPolicyManager);
+        // Selections left waiting on DNS by earlier tests must not hold up this test.
+        EpdgDnsScheduler.resetInstance();
+        EpdgDnsQueryCoalescer.resetInstance();
+        EpdgAddressCache.resetInstance();
         mEpdgSelector = spy(new EpdgSelector(mMockContext, DEFAULT_SLOT_INDEX));
 
         when(mMockContext.getSystemService(eq(SubscriptionManager.class)))
@@ -199,6 +213,347 @@ public class EpdgSelectorTest {
         assertEquals(expectedAddress, testInetAddresses.get(0));
     }
 
+    @Test
+    public void testStaticMethodAnsweredFromCache() throws Exception {
+        when(DnsResolver.getInstance()).thenReturn(mMockDnsResolver);
+        doReturn(true).when(mEpdgSelector).hasIpv4Address(mMockNetwork);
+        doReturn(true).when(mEpdgSelector).hasIpv6Address(mMockNetwork);
+
+        final String testStaticAddress = "epdg.epc.mnc088.mcc888.pub.3gppnetwork.org";
+        mFakeDns.setAnswer(testStaticAddress, new String[] {TEST_IP_ADDRESS}, TYPE_A);
+
+        mTestBundle.putIntArray(
+                CarrierConfigManager.Iwlan.KEY_EPDG_ADDRESS_PRIORITY_INT_ARRAY,
+                new int[] {CarrierConfigManager.Iwlan.EPDG_ADDRESS_STATIC});
+        mTestBundle.putString(
+                CarrierConfigManager.Iwlan.KEY_EPDG_STATIC_ADDRESS_STRING, testStaticAddress);
+
+        getValidatedServerListWithDefaultParams(false /*isEmergency*/);
+        ArrayList<InetAddress> testInetAddresses =
+                getValidatedServerListWithDefaultParams(false /*isEmergency*/);
+
+        assertEquals(1, testInetAddresses.size());
+        assertEquals(InetAddress.getByName(TEST_IP_ADDRESS), testInetAddresses.get(0));
+        // One A and one AAAA query for the first selection, none for the second.
+        verify(mMockDnsResolver, times(2))
+                .rawQuery(
+                        any(),
+                        eq(testStaticAddress),
+                        anyInt(),
+                        anyInt(),
+                        anyInt(),
+                        any(),
+                        any(),
+                        any());
+    }
+
+    @Test
+    public void testCachedAnswerExpiresWithRecordTtl() throws Exception {
+        when(DnsResolver.getInstance()).thenReturn(mMockDnsResolver);
+        doReturn(true).when(mEpdgSelector).hasIpv4Address(mMockNetwork);
+        doReturn(false).when(mEpdgSelector).hasIpv6Address(mMockNetwork);
+        final long[] clock = {1000};
+        when(IwlanHelper.elapsedRealtime()).thenAnswer(i -> clock[0]);
+
+        final String testStaticAddress = "epdg.epc.mnc088.mcc888.pub.3gppnetwork.org";
+        mFakeDns.setAnswer(testStaticAddress, new String[] {TEST_IP_ADDRESS}, TYPE_A, 10);
+
+        mTestBundle.putIntArray(
+                CarrierConfigManager.Iwlan.KEY_EPDG_ADDRESS_PRIORITY_INT_ARRAY,
+                new int[] {CarrierConfigManager.Iwlan.EPDG_ADDRESS_STATIC});
+        mTestBundle.putString(
+                CarrierConfigManager.Iwlan.KEY_EPDG_STATIC_ADDRESS_STRING, testStaticAddress);
+        mTestBundle.putInt(EpdgSelector.KEY_EPDG_DNS_TIMEOUT_FLOOR_MS_INT, 100);
+        mTestBundle.putInt(EpdgSelector.KEY_EPDG_DNS_TIMEOUT_CEILING_MS_INT, 300);
+
+        assertEquals(
+                List.of(InetAddress.getByName(TEST_IP_ADDRESS)),
+                getValidatedServerListWithDefaultParams(false /*isEmergency*/));
+
+        // The name stops resolving. The cached answer is served while stale, for half of the 10
+        // second TTL, and is dropped afterwards.
+        mFakeDns.clearAll();
+        clock[0] += TimeUnit.SECONDS.toMillis(10);
+        assertEquals(
+                List.of(InetAddress.getByName(TEST_IP_ADDRESS)),
+                getValidatedServerListWithDefaultParams(false /*isEmergency*/));
+
+        clock[0] += TimeUnit.SECONDS.toMillis(5);
+        assertEquals(List.of(), getValidatedServerListWithDefaultParams(false /*isEmergency*/));
+    }
+
+    @Test
+    public void testStaticMethodKeepsAnswersOnTimeout() throws Exception {
+        when(DnsResolver.getInstance()).thenReturn(mMockDnsResolver);
+        doReturn(true).when(mEpdgSelector).hasIpv4Address(mMockNetwork);
+        doReturn(false).when(mEpdgSelector).hasIpv6Address(mMockNetwork);
+
+        // The first domain name is never answered.
+        final String testUnansweredAddress = "epdg.epc.mnc088.mcc888.pub.3gppnetwork.org";
+        final String testStaticAddress = "epdg.epc.mnc099.mcc999.pub.3gppnetwork.org";
+        mFakeDns.setAnswer(testStaticAddress, new String[] {TEST_IP_ADDRESS}, TYPE_A);
+
+        mTestBundle.putIntArray(
+                CarrierConfigManager.Iwlan.KEY_EPDG_ADDRESS_PRIORITY_INT_ARRAY,
+                new int[] {CarrierConfigManager.Iwlan.EPDG_ADDRESS_STATIC});
+        mTestBundle.putString(
+                CarrierConfigManager.Iwlan.KEY_EPDG_STATIC_ADDRESS_STRING,
+                testUnansweredAddress + "," + testStaticAddress);
+        // A short deadline, rather than the 6 seconds of the static method.
+        mTestBundle.putInt(EpdgSelector.KEY_EPDG_DNS_TIMEOUT_FLOOR_MS_INT, 100);
+        mTestBundle.putInt(EpdgSelector.KEY_EPDG_DNS_TIMEOUT_CEILING_MS_INT, 300);
+
+        ArrayList<InetAddress> testInetAddresses =
+                getValidatedServerListWithDefaultParams(false /*isEmergency*/);
+
+        assertEquals(1, testInetAddresses.size());
+        assertEquals(InetAddress.getByName(TEST_IP_ADDRESS), testInetAddresses.get(0));
+    }
+
+    @Test
+    public void testStaticMethodSkipsDomainWithDnsError() throws Exception {
+        when(DnsResolver.getInstance()).thenReturn(mMockDnsResolver);
+        doReturn(true).when(mEpdgSelector).hasIpv4Address(mMockNetwork);
+        doReturn(false).when(mEpdgSelector).hasIpv6Address(mMockNetwork);
+
+        // The first domain name fails with a DNS error.
+        final String testErrorAddress = "epdg.epc.mnc088.mcc888.pub.3gppnetwork.org";
+        final String testStaticAddress = "epdg.epc.mnc099.mcc999.pub.3gppnetwork.org";
+        mFakeDns.setAnswer(testStaticAddress, new String[] {TEST_IP_ADDRESS}, TYPE_A);
+        doAnswer(
+                        invocation -> {
+                            final Executor executor = invocation.getArgument(5);
+                            final DnsResolver.Callback<byte[]> callback =
+                                    invocation.getArgument(7);
+                            executor.execute(
+                                    () ->
+                                            callback.onError(
+                                                    new DnsResolver.DnsException(
+                                                            DnsResolver.ERROR_SYSTEM, null)));
+                            return null;
+                        })
+                .when(mMockDnsResolver)
+                .rawQuery(
+                        any(),
+                        eq(testErrorAddress),
+                        anyInt(),
+                        anyInt(),
+                        anyInt(),
+                        any(),
+                        any(),
+                        any());
+
+        // The quorum check also looks at the failed query.
+        mTestBundle.putBoolean(EpdgSelector.KEY_EPDG_DNS_QUORUM_BOOL, true);
+        mTestBundle.putIntArray(
+                CarrierConfigManager.Iwlan.KEY_EPDG_ADDRESS_PRIORITY_INT_ARRAY,
+                new int[] {CarrierConfigManager.Iwlan.EPDG_ADDRESS_STATIC});
+        mTestBundle.putString(
+                CarrierConfigManager.Iwlan.KEY_EPDG_STATIC_ADDRESS_STRING,
+                testErrorAddress + "," + testStaticAddress);
+
+        ArrayList<InetAddress> testInetAddresses =
+                getValidatedServerListWithDefaultParams(false /*isEmergency*/);
+
+        assertEquals(List.of(InetAddress.getByName(TEST_IP_ADDRESS)), testInetAddresses);
+    }
+
+    @Test
+    public void testLearnedDnsTimeoutShortensWaitForUnansweredDomain() throws Exception {
+        when(DnsResolver.getInstance()).thenReturn(mMockDnsResolver);
+        doReturn(true).when(mEpdgSelector).hasIpv4Address(mMockNetwork);
+        doReturn(false).when(mEpdgSelector).hasIpv6Address(mMockNetwork);
+
+        final String testStaticAddress = "epdg.epc.mnc099.mcc999.pub.3gppnetwork.org";
+        final String testUnansweredAddress = "epdg.epc.mnc088.mcc888.pub.3gppnetwork.org";
+        mFakeDns.setAnswer(testStaticAddress, new String[] {TEST_IP_ADDRESS}, TYPE_A);
+
+        mTestBundle.putIntArray(
+                CarrierConfigManager.Iwlan.KEY_EPDG_ADDRESS_PRIORITY_INT_ARRAY,
+                new int[] {CarrierConfigManager.Iwlan.EPDG_ADDRESS_STATIC});
+        mTestBundle.putInt(EpdgSelector.KEY_EPDG_DNS_TIMEOUT_FLOOR_MS_INT, 200);
+        mTestBundle.putString(
+                CarrierConfigManager.Iwlan.KEY_EPDG_STATIC_ADDRESS_STRING, testStaticAddress);
+        // The clock stands still, so the answers appear to take no time.
+        when(IwlanHelper.elapsedRealtime()).thenReturn(1000L);
+        final int[] queryTypes = new int[] {TYPE_A};
+        assertEquals(6000, mEpdgSelector.getDnsTimeoutMs(mMockNetwork, queryTypes, 6));
+
+        // The first selection learns the latency of the network.
+        getValidatedServerListWithDefaultParams(false /*isEmergency*/);
+
+        // Without a learned timeout, the unanswered query would be waited for 6 seconds.
+        assertEquals(200, mEpdgSelector.getDnsTimeoutMs(mMockNetwork, queryTypes, 6));
+        mTestBundle.putString(
+                CarrierConfigManager.Iwlan.KEY_EPDG_STATIC_ADDRESS_STRING,
+                testStaticAddress + "," + testUnansweredAddress);
+        ArrayList<InetAddress> testInetAddresses =
+                getValidatedServerListWithTimeout(
+                        EpdgSelector.PROTO_FILTER_IPV4V6,
+                        EpdgSelector.IPV4_PREFERRED,
+                        false /*isEmergency*/,
+                        10 /* timeoutSec */);
+
+        assertEquals(1, testInetAddresses.size());
+        assertEquals(InetAddress.getByName(TEST_IP_ADDRESS), testInetAddresses.get(0));
+    }
+
+    @Test
+    public void testStaticMethodReturnsOnceHighestPriorityAnswered() throws Exception {
+        when(DnsResolver.getInstance()).thenReturn(mMockDnsResolver);
+        doReturn(true).when(mEpdgSelector).hasIpv4Address(mMockNetwork);
+        doReturn(false).when(mEpdgSelector).hasIpv6Address(mMockNetwork);
+
+        // The second domain name is never answered.
+        final String testStaticAddress = "epdg.epc.mnc088.mcc888.pub.3gppnetwork.org";
+        final String testUnansweredAddress = "epdg.epc.mnc099.mcc999.pub.3gppnetwork.org";
+        mFakeDns.setAnswer(testStaticAddress, new String[] {TEST_IP_ADDRESS}, TYPE_A);
+
+        mTestBundle.putBoolean(EpdgSelector.KEY_EPDG_DNS_QUORUM_BOOL, true);
+        mTestBundle.putIntArray(
+                CarrierConfigManager.Iwlan.KEY_EPDG_ADDRESS_PRIORITY_INT_ARRAY,
+                new int[] {CarrierConfigManager.Iwlan.EPDG_ADDRESS_STATIC});
+        mTestBundle.putString(
+                CarrierConfigManager.Iwlan.KEY_EPDG_STATIC_ADDRESS_STRING,
+                testStaticAddress + "," + testUnansweredAddress);
+
+        ArrayList<InetAddress> testInetAddresses =
+                getValidatedServerListWithDefaultParams(false /*isEmergency*/);
+
+        assertEquals(1, testInetAddresses.size());
+        assertEquals(InetAddress.getByName(TEST_IP_ADDRESS), testInetAddresses.get(0));
+    }
+
+    @Test
+    public void testCancelledSelectionStopsWaitingForDns() throws Exception {
+        when(DnsResolver.getInstance()).thenReturn(mMockDnsResolver);
+        doReturn(true).when(mEpdgSelector).hasIpv4Address(mMockNetwork);
+        doReturn(false).when(mEpdgSelector).hasIpv6Address(mMockNetwork);
+
+        // The only domain name is never answered.
+        final String testUnansweredAddress = "epdg.epc.mnc088.mcc888.pub.3gppnetwork.org";
+        mTestBundle.putIntArray(
+                CarrierConfigManager.Iwlan.KEY_EPDG_ADDRESS_PRIORITY_INT_ARRAY,
+                new int[] {CarrierConfigManager.Iwlan.EPDG_ADDRESS_STATIC});
+        mTestBundle.putString(
+                CarrierConfigManager.Iwlan.KEY_EPDG_STATIC_ADDRESS_STRING, testUnansweredAddress);
+
+        final CountDownLatch latch = new CountDownLatch(1);
+        final CancellationSignal cancellationSignal = new CancellationSignal();
+        IwlanError ret =
+                mEpdgSelector.getValidatedServerList(
+                        1234,
+                        EpdgSelector.PROTO_FILTER_IPV4V6,
+                        EpdgSelector.SYSTEM_PREFERRED,
+                        false /* isRoaming */,
+                        false /* isEmergency */,
+                        mMockNetwork,
+                        new EpdgSelector.EpdgSelectorCallback() {
+                            @Override
+                            public void onServerListChanged(
+                                    int transactionId, List<InetAddress> validIPList) {
+                                latch.countDown();
+                            }
+
+                            @Override
+                            public void onError(int transactionId, IwlanError epdgSelectorError) {
+                                latch.countDown();
+                            }
+                        },
+                        cancellationSignal);
+        assertEquals(IwlanError.NO_ERROR, ret.getErrorType());
+
+        // Each query gets a signal of its own, which is cancelled with the selection.
+        ArgumentCaptor<CancellationSignal> querySignalCaptor =
+                ArgumentCaptor.forClass(CancellationSignal.class);
+        verify(mMockDnsResolver, timeout(1000))
+                .rawQuery(
+                        any(),
+                        eq(testUnansweredAddress),
+                        anyInt(),
+                        anyInt(),
+                        anyInt(),
+                        any(),
+                        querySignalCaptor.capture(),
+                        any());
+        cancellationSignal.cancel();
+
+        assertTrue(querySignalCaptor.getValue().isCanceled());
+        long deadline = System.currentTimeMillis() + 1000;
+        while (EpdgDnsScheduler.getInstance().getNumRunningTasks() > 0
+                && System.currentTimeMillis() < deadline) {
+            Thread.sleep(10);
+        }
+        assertEquals(0, EpdgDnsScheduler.getInstance().getNumRunningTasks());
+        assertFalse(latch.await(100, TimeUnit.MILLISECONDS));
+    }
+
+    @Test
+    public void testConcurrentSelectionsJoinInFlightSelection() throws Exception {
+        when(DnsResolver.getInstance()).thenReturn(mMockDnsResolver);
+        // Holds the first selection in flight until the second request has been made.
+        final CountDownLatch releaseLatch = new CountDownLatch(1);
+        doAnswer(
+                        invocation -> {
+                            releaseLatch.await(1, TimeUnit.SECONDS);
+                            return true;
+                        })
+                .when(mEpdgSelector)
+                .hasIpv4Address(mMockNetwork);
+        doReturn(false).when(mEpdgSelector).hasIpv6Address(mMockNetwork);
+
+        final String testStaticAddress = "epdg.epc.mnc088.mcc888.pub.3gppnetwork.org";
+        mFakeDns.setAnswer(testStaticAddress, new String[] {TEST_IP_ADDRESS}, TYPE_A);
+
+        mTestBundle.putIntArray(
+                CarrierConfigManager.Iwlan.KEY_EPDG_ADDRESS_PRIORITY_INT_ARRAY,
+                new int[] {CarrierConfigManager.Iwlan.EPDG_ADDRESS_STATIC});
+        mTestBundle.putString(
+                CarrierConfigManager.Iwlan.KEY_EPDG_STATIC_ADDRESS_STRING, testStaticAddress);
+
+        final CountDownLatch latch = new CountDownLatch(2);
+        final List<Integer> transactionIds = Collections.synchronizedList(new ArrayList<>());
+        EpdgSelector.EpdgSelectorCallback callback =
+                new EpdgSelector.EpdgSelectorCallback() {
+                    @Override
+                    public void onServerListChanged(
+                            int transactionId, List<InetAddress> validIPList) {
+                        transactionIds.add(transactionId);
+                        latch.countDown();
+                    }
+
+                    @Override
+                    public void onError(int transactionId, IwlanError epdgSelectorError) {
+                        latch.countDown();
+                    }
+                };
+
+        mEpdgSelector.getValidatedServerList(
+                1234,
+                EpdgSelector.PROTO_FILTER_IPV4V6,
+                EpdgSelector.IPV4_PREFERRED,
+                false /* isRoaming */,
+                false /* isEmergency */,
+                mMockNetwork,
+                callback);
+        mEpdgSelector.getValidatedServerList(
+                5678,
+                EpdgSelector.PROTO_FILTER_IPV4V6,
+                EpdgSelector.IPV6_PREFERRED,
+                false /* isRoaming */,
+                false /* isEmergency */,
+                mMockNetwork,
+                callback);
+        releaseLatch.countDown();
+        latch.await(1, TimeUnit.SECONDS);
+
+        assertEquals(2, transactionIds.size());
+        assertTrue(transactionIds.contains(1234));
+        assertTrue(transactionIds.contains(5678));
+        // The domain name was resolved by a single selection.
+        verify(mEpdgSelector, times(1)).hasIpv4Address(mMockNetwork);
+    }
+
     @Test
     public void testStaticMethodDirectIpAddress_noDnsResolution() throws Exception {
         mTestBundle.putIntArray(
@@ -273,6 +628,579 @@ public class EpdgSelectorTest {
         assertTrue(testInetAddresses.contains(InetAddress.getByName(TEST_IP_ADDRESS_2)));
     }
 
+    @Test
+    public void testConcurrentMethodsMergedInPriorityOrder() throws Exception {
+        when(DnsResolver.getInstance()).thenReturn(mMockDnsResolver);
+        doReturn(true).when(mEpdgSelector).hasIpv4Address(mMockNetwork);
+        doReturn(true).when(mEpdgSelector).hasIpv6Address(mMockNetwork);
+
+        String expectedFqdnFromImsi = "epdg.epc.mnc120.mcc311.pub.3gppnetwork.org";
+        String expectedFqdnFromEhplmn = "epdg.epc.mnc120.mcc300.pub.3gppnetwork.org";
+        mFakeDns.setAnswer(expectedFqdnFromImsi, new String[] {TEST_IP_ADDRESS_1}, TYPE_A);
+        mFakeDns.setAnswer(expectedFqdnFromEhplmn, new String[] {TEST_IP_ADDRESS_2}, TYPE_A);
+
+        // The STATIC method needs no DNS resolution and completes before the PLMN method.
+        mTestBundle.putIntArray(
+                CarrierConfigManager.Iwlan.KEY_EPDG_ADDRESS_PRIORITY_INT_ARRAY,
+                new int[] {
+                    CarrierConfigManager.Iwlan.EPDG_ADDRESS_PLMN,
+                    CarrierConfigManager.Iwlan.EPDG_ADDRESS_STATIC
+                });
+        mTestBundle.putString(
+                CarrierConfigManager.Iwlan.KEY_EPDG_STATIC_ADDRESS_STRING, TEST_IP_ADDRESS);
+
+        ArrayList<InetAddress> testInetAddresses =
+                getValidatedServerListWithDefaultParams(false /*isEmergency*/);
+
+        assertEquals(3, testInetAddresses.size());
+        assertTrue(testInetAddresses.contains(InetAddress.getByName(TEST_IP_ADDRESS_1)));
+        assertTrue(testInetAddresses.contains(InetAddress.getByName(TEST_IP_ADDRESS_2)));
+        assertEquals(InetAddress.getByName(TEST_IP_ADDRESS), testInetAddresses.get(2));
+    }
+
+    @Test
+    public void testPartialServerListStreamedBeforeLowerPriorityMethods() throws Exception {
+        when(DnsResolver.getInstance()).thenReturn(mMockDnsResolver);
+        doReturn(true).when(mEpdgSelector).hasIpv4Address(mMockNetwork);
+        doReturn(true).when(mEpdgSelector).hasIpv6Address(mMockNetwork);
+
+        final String testStaticAddress = "epdg.epc.mnc088.mcc888.pub.3gppnetwork.org";
+        String expectedFqdnFromImsi = "epdg.epc.mnc120.mcc311.pub.3gppnetwork.org";
+        String expectedFqdnFromEhplmn = "epdg.epc.mnc120.mcc300.pub.3gppnetwork.org";
+        mFakeDns.setAnswer(testStaticAddress, new String[] {TEST_IP_ADDRESS}, TYPE_A);
+        mFakeDns.setAnswer(expectedFqdnFromImsi, new String[] {TEST_IP_ADDRESS_1}, TYPE_A);
+        mFakeDns.setAnswer(expectedFqdnFromEhplmn, new String[] {TEST_IP_ADDRESS_2}, TYPE_A);
+
+        mTestBundle.putIntArray(
+                CarrierConfigManager.Iwlan.KEY_EPDG_ADDRESS_PRIORITY_INT_ARRAY,
+                new int[] {
+                    CarrierConfigManager.Iwlan.EPDG_ADDRESS_STATIC,
+                    CarrierConfigManager.Iwlan.EPDG_ADDRESS_PLMN
+                });
+        mTestBundle.putString(
+                CarrierConfigManager.Iwlan.KEY_EPDG_STATIC_ADDRESS_STRING, testStaticAddress);
+
+        List<List<InetAddress>> partialIpLists = new ArrayList<>();
+        List<InetAddress> finalIpList = new ArrayList<>();
+        final CountDownLatch latch = new CountDownLatch(1);
+        mEpdgSelector.getValidatedServerList(
+                1234,
+                EpdgSelector.PROTO_FILTER_IPV4V6,
+                EpdgSelector.IPV4_PREFERRED,
+                false /* isRoaming */,
+                false /* isEmergency */,
+                mMockNetwork,
+                new EpdgSelector.EpdgSelectorCallback() {
+                    @Override
+                    public void onServerListChanged(
+                            int transactionId, List<InetAddress> validIPList) {
+                        finalIpList.addAll(validIPList);
+                        latch.countDown();
+                    }
+
+                    @Override
+                    public void onPartialServerList(
+                            int transactionId, List<InetAddress> validIPList) {
+                        partialIpLists.add(validIPList);
+                    }
+
+                    @Override
+                    public void onError(int transactionId, IwlanError epdgSelectorError) {
+                        latch.countDown();
+                    }
+                });
+        latch.await(1, TimeUnit.SECONDS);
+
+        assertEquals(1, partialIpLists.size());
+        assertEquals(List.of(InetAddress.getByName(TEST_IP_ADDRESS)), partialIpLists.get(0));
+        assertEquals(3, finalIpList.size());
+        assertEquals(InetAddress.getByName(TEST_IP_ADDRESS), finalIpList.get(0));
+    }
+
+    @Test
+    public void testStoredServerListStreamedOnNextSelection() throws Exception {
+        File filesDir = Files.createTempDirectory("epdg_selector_test").toFile();
+        filesDir.deleteOnExit();
+        when(mMockContext.createDeviceProtectedStorageContext()).thenReturn(mMockContext);
+        when(mMockContext.getFilesDir()).thenReturn(filesDir);
+        EpdgSelector epdgSelector = spy(new EpdgSelector(mMockContext, DEFAULT_SLOT_INDEX));
+
+        when(DnsResolver.getInstance()).thenReturn(mMockDnsResolver);
+        doReturn(true).when(epdgSelector).hasIpv4Address(mMockNetwork);
+        doReturn(true).when(epdgSelector).hasIpv6Address(mMockNetwork);
+
+        final String testStaticAddress = "epdg.epc.mnc088.mcc888.pub.3gppnetwork.org";
+        mFakeDns.setAnswer(testStaticAddress, new String[] {TEST_IP_ADDRESS}, TYPE_A);
+        mTestBundle.putIntArray(
+                CarrierConfigManager.Iwlan.KEY_EPDG_ADDRESS_PRIORITY_INT_ARRAY,
+                new int[] {CarrierConfigManager.Iwlan.EPDG_ADDRESS_STATIC});
+        mTestBundle.putString(
+                CarrierConfigManager.Iwlan.KEY_EPDG_STATIC_ADDRESS_STRING, testStaticAddress);
+
+        List<List<InetAddress>> partialIpLists = new ArrayList<>();
+        for (int transactionId = 1; transactionId <= 2; transactionId++) {
+            final CountDownLatch latch = new CountDownLatch(1);
+            epdgSelector.getValidatedServerList(
+                    transactionId,
+                    EpdgSelector.PROTO_FILTER_IPV4V6,
+                    EpdgSelector.IPV4_PREFERRED,
+                    false /* isRoaming */,
+                    false /* isEmergency */,
+                    mMockNetwork,
+                    new EpdgSelector.EpdgSelectorCallback() {
+                        @Override
+                        public void onServerListChanged(
+                                int transactionId, List<InetAddress> validIPList) {
+                            latch.countDown();
+                        }
+
+                        @Override
+                        public void onPartialServerList(
+                                int transactionId, List<InetAddress> validIPList) {
+                            partialIpLists.add(validIPList);
+                        }
+
+                        @Override
+                        public void onError(int transactionId, IwlanError epdgSelectorError) {
+                            latch.countDown();
+                        }
+                    });
+            // The stored list is sent before the request returns.
+            assertEquals(transactionId - 1, partialIpLists.size());
+            latch.await(1, TimeUnit.SECONDS);
+        }
+
+        assertEquals(List.of(InetAddress.getByName(TEST_IP_ADDRESS)), partialIpLists.get(0));
+    }
+
+    @Test
+    public void testStoredServerListNotStreamedUnderCongestion() throws Exception {
+        File filesDir = Files.createTempDirectory("epdg_selector_test").toFile();
+        filesDir.deleteOnExit();
+        when(mMockContext.createDeviceProtectedStorageContext()).thenReturn(mMockContext);
+        when(mMockContext.getFilesDir()).thenReturn(filesDir);
+        EpdgSelector epdgSelector = spy(new EpdgSelector(mMockContext, DEFAULT_SLOT_INDEX));
+
+        when(DnsResolver.getInstance()).thenReturn(mMockDnsResolver);
+        doReturn(true).when(epdgSelector).hasIpv4Address(mMockNetwork);
+        doReturn(true).when(epdgSelector).hasIpv6Address(mMockNetwork);
+
+        final String testStaticAddress = "epdg.epc.mnc088.mcc888.pub.3gppnetwork.org";
+        mFakeDns.setAnswer(testStaticAddress, new String[] {TEST_IP_ADDRESS}, TYPE_A);
+        mTestBundle.putIntArray(
+                CarrierConfigManager.Iwlan.KEY_EPDG_ADDRESS_PRIORITY_INT_ARRAY,
+                new int[] {CarrierConfigManager.Iwlan.EPDG_ADDRESS_STATIC});
+        mTestBundle.putString(
+                CarrierConfigManager.Iwlan.KEY_EPDG_STATIC_ADDRESS_STRING, testStaticAddress);
+
+        List<List<InetAddress>> partialIpLists = new ArrayList<>();
+        for (int transactionId = 1; transactionId <= 2; transactionId++) {
+            if (transactionId == 2) {
+                // The next attempt must only try the PLMN FQDN picked for it.
+                when(mMockErrorPolicyManager.getMostRecentDataFailCause())
+                        .thenReturn(DataFailCause.IWLAN_CONGESTION);
+            }
+            final CountDownLatch latch = new CountDownLatch(1);
+            epdgSelector.getValidatedServerList(
+                    transactionId,
+                    EpdgSelector.PROTO_FILTER_IPV4V6,
+                    EpdgSelector.IPV4_PREFERRED,
+                    false /* isRoaming */,
+                    false /* isEmergency */,
+                    mMockNetwork,
+                    new EpdgSelector.EpdgSelectorCallback() {
+                        @Override
+                        public void onServerListChanged(
+                                int transactionId, List<InetAddress> validIPList) {
+                            latch.countDown();
+                        }
+
+                        @Override
+                        public void onPartialServerList(
+                                int transactionId, List<InetAddress> validIPList) {
+                            partialIpLists.add(validIPList);
+                        }
+
+                        @Override
+                        public void onError(int transactionId, IwlanError epdgSelectorError) {
+                            latch.countDown();
+                        }
+                    });
+            assertTrue(latch.await(1, TimeUnit.SECONDS));
+        }
+
+        assertTrue(partialIpLists.isEmpty());
+    }
+
+    /**
+     * Requests an emergency selection, and returns the partial lists it got until the timeout. The
+     * selection is withdrawn before returning.
+     */
+    private List<List<InetAddress>> getEmergencyPartialServerLists(long timeoutMs)
+            throws Exception {
+        List<List<InetAddress>> partialIpLists = new ArrayList<>();
+        final CountDownLatch latch = new CountDownLatch(1);
+        final CancellationSignal cancellationSignal = new CancellationSignal();
+        mEpdgSelector.getValidatedServerList(
+                1234,
+                EpdgSelector.PROTO_FILTER_IPV4V6,
+                EpdgSelector.IPV4_PREFERRED,
+                false /* isRoaming */,
+                true /* isEmergency */,
+                mMockNetwork,
+                new EpdgSelector.EpdgSelectorCallback() {
+                    @Override
+                    public void onServerListChanged(
+                            int transactionId, List<InetAddress> validIPList) {}
+
+                    @Override
+                    public void onPartialServerList(
+                            int transactionId, List<InetAddress> validIPList) {
+                        synchronized (partialIpLists) {
+                            partialIpLists.add(validIPList);
+                        }
+                        latch.countDown();
+                    }
+
+                    @Override
+                    public void onError(int transactionId, IwlanError epdgSelectorError) {}
+                },
+                cancellationSignal);
+        latch.await(timeoutMs, TimeUnit.MILLISECONDS);
+        cancellationSignal.cancel();
+        synchronized (partialIpLists) {
+            return new ArrayList<>(partialIpLists);
+        }
+    }
+
+    private void setUpStaticMethodForSos(String testStaticAddress) {
+        when(DnsResolver.getInstance()).thenReturn(mMockDnsResolver);
+        doReturn(true).when(mEpdgSelector).hasIpv4Address(mMockNetwork);
+        doReturn(false).when(mEpdgSelector).hasIpv6Address(mMockNetwork);
+        mFakeDns.setAnswer(testStaticAddress, new String[] {TEST_IP_ADDRESS}, TYPE_A);
+        mTestBundle.putIntArray(
+                CarrierConfigManager.Iwlan.KEY_EPDG_ADDRESS_PRIORITY_INT_ARRAY,
+                new int[] {CarrierConfigManager.Iwlan.EPDG_ADDRESS_STATIC});
+        mTestBundle.putString(
+                CarrierConfigManager.Iwlan.KEY_EPDG_STATIC_ADDRESS_STRING, testStaticAddress);
+        mTestBundle.putInt(EpdgSelector.KEY_EPDG_SOS_FALLBACK_TIMEOUT_MS_INT, 100);
+    }
+
+    @Test
+    public void testSosFallsBackToLastNormalCandidates() throws Exception {
+        final String testStaticAddress = "epdg.epc.mnc088.mcc888.pub.3gppnetwork.org";
+        setUpStaticMethodForSos(testStaticAddress);
+        ArrayList<InetAddress> normalIpList =
+                getValidatedServerListWithDefaultParams(false /*isEmergency*/);
+        assertEquals(List.of(InetAddress.getByName(TEST_IP_ADDRESS)), normalIpList);
+
+        // The SOS lookup is never answered, so the bringup starts with the normal candidates once
+        // the fallback timeout expires.
+        mFakeDns.clearAll();
+        List<List<InetAddress>> partialIpLists = getEmergencyPartialServerLists(1000);
+
+        assertEquals(List.of(normalIpList), partialIpLists);
+    }
+
+    @Test
+    public void testSosFallbackWithSaturatedResolutionMethodThreads() throws Exception {
+        final String testStaticAddress = "epdg.epc.mnc088.mcc888.pub.3gppnetwork.org";
+        setUpStaticMethodForSos(testStaticAddress);
+        ArrayList<InetAddress> normalIpList =
+                getValidatedServerListWithDefaultParams(false /*isEmergency*/);
+
+        // Every thread that runs the methods of normal selections is busy.
+        ExecutorService executor =
+                EpdgDnsScheduler.getInstance().getResolutionMethodExecutor(false);
+        CountDownLatch busyLatch = new CountDownLatch(1);
+        CountDownLatch startedLatch =
+                new CountDownLatch(EpdgDnsScheduler.MAX_RESOLUTION_METHOD_THREADS);
+        try {
+            for (int i = 0; i < EpdgDnsScheduler.MAX_RESOLUTION_METHOD_THREADS; i++) {
+                executor.execute(
+                        () -> {
+                            startedLatch.countDown();
+                            try {
+                                busyLatch.await();
+                            } catch (InterruptedException e) {
+                                Thread.currentThread().interrupt();
+                            }
+                        });
+            }
+            assertTrue(startedLatch.await(1, TimeUnit.SECONDS));
+
+            // The SOS methods still run on their own threads, so the fallback is not held up by
+            // the SOS lookup that is never answered.
+            mFakeDns.clearAll();
+            List<List<InetAddress>> partialIpLists = getEmergencyPartialServerLists(1000);
+
+            assertEquals(List.of(normalIpList), partialIpLists);
+        } finally {
+            busyLatch.countDown();
+        }
+    }
+
+    @Test
+    public void testSosFallbackDisabled() throws Exception {
+        final String testStaticAddress = "epdg.epc.mnc088.mcc888.pub.3gppnetwork.org";
+        setUpStaticMethodForSos(testStaticAddress);
+        mTestBundle.putInt(EpdgSelector.KEY_EPDG_SOS_FALLBACK_TIMEOUT_MS_INT, 0);
+        getValidatedServerListWithDefaultParams(false /*isEmergency*/);
+
+        mFakeDns.clearAll();
+        List<List<InetAddress>> partialIpLists = getEmergencyPartialServerLists(500);
+
+        assertTrue(partialIpLists.isEmpty());
+    }
+
+    @Test
+    public void testLastSosCandidatesServedUntilCountryChanges() throws Exception {
+        final String testStaticAddress = "epdg.epc.mnc088.mcc888.pub.3gppnetwork.org";
+        setUpStaticMethodForSos(testStaticAddress);
+        ArrayList<InetAddress> sosIpList =
+                getValidatedServerListWithDefaultParams(true /*isEmergency*/);
+        assertEquals(List.of(InetAddress.getByName(TEST_IP_ADDRESS)), sosIpList);
+
+        // The next emergency bringup starts right away with the SOS candidates kept in memory.
+        mFakeDns.clearAll();
+        assertEquals(List.of(sosIpList), getEmergencyPartialServerLists(0));
+
+        // They were selected in another country, so they are not used anymore.
+        when(mMockSharedPreferences.getString(any(), any())).thenReturn("CA");
+        assertTrue(getEmergencyPartialServerLists(0).isEmpty());
+    }
+
+    /**
+     * Configures the static and PLMN methods, in that order, and runs selections until the static
+     * method is deferred for finding nothing.
+     */
+    private void deferStaticMethod(String plmnAddress) throws Exception {
+        when(DnsResolver.getInstance()).thenReturn(mMockDnsResolver);
+        doReturn(true).when(mEpdgSelector).hasIpv4Address(mMockNetwork);
+        doReturn(false).when(mEpdgSelector).hasIpv6Address(mMockNetwork);
+
+        final String testEmptyAddress = "epdg.epc.mnc077.mcc777.pub.3gppnetwork.org";
+        doAnswer(
+                        invocation -> {
+                            final Executor executor = invocation.getArgument(5);
+                            final DnsResolver.Callback<byte[]> callback =
+                                    invocation.getArgument(7);
+                            final byte[] answer =
+                                    buildAddressResponse(
+                                            testEmptyAddress,
+                                            invocation.getArgument(3),
+                                            3 /* NXDOMAIN */,
+                                            0 /* ttlSec */,
+                                            List.of());
+                            executor.execute(() -> callback.onAnswer(answer, 3 /* NXDOMAIN */));
+                            return null;
+                        })
+                .when(mMockDnsResolver)
+                .rawQuery(
+                        any(),
+                        eq(testEmptyAddress),
+                        anyInt(),
+                        anyInt(),
+                        anyInt(),
+                        any(),
+                        any(),
+                        any());
+        mFakeDns.setAnswer(plmnAddress, new String[] {TEST_IP_ADDRESS_1}, TYPE_A);
+
+        mTestBundle.putIntArray(
+                CarrierConfigManager.Iwlan.KEY_EPDG_ADDRESS_PRIORITY_INT_ARRAY,
+                new int[] {
+                    CarrierConfigManager.Iwlan.EPDG_ADDRESS_STATIC,
+                    CarrierConfigManager.Iwlan.EPDG_ADDRESS_PLMN
+                });
+        mTestBundle.putStringArray(
+                CarrierConfigManager.Iwlan.KEY_MCC_MNCS_STRING_ARRAY, new String[] {"311-120"});
+        mTestBundle.putString(
+                CarrierConfigManager.Iwlan.KEY_EPDG_STATIC_ADDRESS_STRING, testEmptyAddress);
+
+        for (int i = 0; i < EpdgMethodYieldTracker.MIN_EMPTY_RUNS_TO_DEFER; i++) {
+            assertEquals(
+                    List.of(InetAddress.getByName(TEST_IP_ADDRESS_1)),
+                    getValidatedServerListWithDefaultParams(false /*isEmergency*/));
+        }
+    }
+
+    @Test
+    public void testDeferredMethodNotWaitedFor() throws Exception {
+        final String plmnAddress = "epdg.epc.mnc120.mcc311.pub.3gppnetwork.org";
+        deferStaticMethod(plmnAddress);
+
+        // The static method now never answers. Were it waited for, the selection would not
+        // complete before the static method times out.
+        final String testUnansweredAddress = "epdg.epc.mnc088.mcc888.pub.3gppnetwork.org";
+        mTestBundle.putString(
+                CarrierConfigManager.Iwlan.KEY_EPDG_STATIC_ADDRESS_STRING, testUnansweredAddress);
+
+        assertEquals(
+                List.of(InetAddress.getByName(TEST_IP_ADDRESS_1)),
+                getValidatedServerListWithDefaultParams(false /*isEmergency*/));
+    }
+
+    @Test
+    public void testDeferredMethodMergedAtConfiguredPriority() throws Exception {
+        final String plmnAddress = "epdg.epc.mnc120.mcc311.pub.3gppnetwork.org";
+        final String testStaticAddress = "epdg.epc.mnc088.mcc888.pub.3gppnetwork.org";
+        deferStaticMethod(plmnAddress);
+
+        // The static method is still deferred, but its answer arrives before the PLMN one, so it
+        // is listed first, as configured.
+        EpdgAddressCache.getInstance().clear();
+        mFakeDns.setAnswer(testStaticAddress, new String[] {TEST_IP_ADDRESS}, TYPE_A);
+        final List<InetAddress> plmnAnswer = List.of(InetAddress.getByName(TEST_IP_ADDRESS_1));
+        doAnswer(
+                        invocation -> {
+                            final Executor executor = invocation.getArgument(5);
+                            final DnsResolver.Callback<byte[]> callback =
+                                    invocation.getArgument(7);
+                            final byte[] answer =
+                                    buildAddressResponse(
+                                            plmnAddress,
+                                            invocation.getArgument(3),
+                                            0 /* rcode */,
+                                            300 /* ttlSec */,
+                                            plmnAnswer);
+                            new Handler(Looper.getMainLooper())
+                                    .postDelayed(
+                                            () ->
+                                                    executor.execute(
+                                                            () -> callback.onAnswer(answer, 0)),
+                                            300);
+                            return null;
+                        })
+                .when(mMockDnsResolver)
+                .rawQuery(
+                        any(),
+                        eq(plmnAddress),
+                        anyInt(),
+                        anyInt(),
+                        anyInt(),
+                        any(),
+                        any(),
+                        any());
+        mTestBundle.putString(
+                CarrierConfigManager.Iwlan.KEY_EPDG_STATIC_ADDRESS_STRING, testStaticAddress);
+
+        assertEquals(
+                List.of(
+                        InetAddress.getByName(TEST_IP_ADDRESS),
+                        InetAddress.getByName(TEST_IP_ADDRESS_1)),
+                getValidatedServerListWithDefaultParams(false /*isEmergency*/));
+    }
+
+    private void startSelection(
+            EpdgSelector epdgSelector, List<InetAddress> serverList, CountDownLatch latch) {
+        epdgSelector.getValidatedServerList(
+                1234,
+                EpdgSelector.PROTO_FILTER_IPV4,
+                EpdgSelector.IPV4_PREFERRED,
+                false /* isRoaming */,
+                false /* isEmergency */,
+                mMockNetwork,
+                new EpdgSelector.EpdgSelectorCallback() {
+                    @Override
+                    public void onServerListChanged(
+                            int transactionId, List<InetAddress> validIPList) {
+                        serverList.addAll(validIPList);
+                        latch.countDown();
+                    }
+
+                    @Override
+                    public void onError(int transactionId, IwlanError epdgSelectorError) {
+                        latch.countDown();
+                    }
+                });
+    }
+
+    @Test
+    public void testSlotsShareInFlightQueryAndCachedAnswer() throws Exception {
+        when(DnsResolver.getInstance()).thenReturn(mMockDnsResolver);
+        when(ErrorPolicyManager.getInstance(eq(mMockContext), anyInt()))
+                .thenReturn(mMockErrorPolicyManager);
+        EpdgSelector otherSelector = spy(new EpdgSelector(mMockContext, DEFAULT_SLOT_INDEX + 1));
+        EpdgSelector thirdSelector = spy(new EpdgSelector(mMockContext, DEFAULT_SLOT_INDEX + 2));
+        for (EpdgSelector epdgSelector : List.of(mEpdgSelector, otherSelector, thirdSelector)) {
+            doReturn(true).when(epdgSelector).hasIpv4Address(mMockNetwork);
+            doReturn(false).when(epdgSelector).hasIpv6Address(mMockNetwork);
+        }
+
+        final String testStaticAddress = "epdg.epc.mnc088.mcc888.pub.3gppnetwork.org";
+        mTestBundle.putIntArray(
+                CarrierConfigManager.Iwlan.KEY_EPDG_ADDRESS_PRIORITY_INT_ARRAY,
+                new int[] {CarrierConfigManager.Iwlan.EPDG_ADDRESS_STATIC});
+        mTestBundle.putString(
+                CarrierConfigManager.Iwlan.KEY_EPDG_STATIC_ADDRESS_STRING, testStaticAddress);
+
+        // The query is held until the selectors of both slots wait for it.
+        final CountDownLatch queryLatch = new CountDownLatch(1);
+        final List<Executor> executors = new ArrayList<>();
+        final List<DnsResolver.Callback<byte[]>> callbacks = new ArrayList<>();
+        doAnswer(
+                        invocation -> {
+                            executors.add(invocation.getArgument(5));
+                            callbacks.add(invocation.getArgument(7));
+                            queryLatch.countDown();
+                            return null;
+                        })
+                .when(mMockDnsResolver)
+                .rawQuery(
+                        any(),
+                        eq(testStaticAddress),
+                        anyInt(),
+                        anyInt(),
+                        anyInt(),
+                        any(),
+                        any(),
+                        any());
+
+        final List<InetAddress> serverList = new ArrayList<>();
+        final List<InetAddress> otherServerList = new ArrayList<>();
+        final CountDownLatch latch = new CountDownLatch(2);
+        startSelection(mEpdgSelector, serverList, latch);
+        startSelection(otherSelector, otherServerList, latch);
+        assertTrue(queryLatch.await(1, TimeUnit.SECONDS));
+        final EpdgDnsQueryCoalescer coalescer = EpdgDnsQueryCoalescer.getInstance();
+        for (int i = 0; i < 100 && coalescer.getNumSharedQueries() == 0; i++) {
+            Thread.sleep(10);
+        }
+        assertEquals(1, coalescer.getNumSharedQueries());
+
+        final List<InetAddress> answer = List.of(InetAddress.getByName(TEST_IP_ADDRESS));
+        final byte[] response =
+                buildAddressResponse(testStaticAddress, TYPE_A, 0 /* rcode */, 300, answer);
+        executors.get(0).execute(() -> callbacks.get(0).onAnswer(response, 0));
+        assertTrue(latch.await(1, TimeUnit.SECONDS));
+        assertEquals(answer, serverList);
+        assertEquals(answer, otherServerList);
+
+        // Only the selectors that looked up the answer plan to refresh it.
+        assertNotEquals(Long.MAX_VALUE, mEpdgSelector.getNextRefreshTime(mMockNetwork, 0));
+        assertNotEquals(Long.MAX_VALUE, otherSelector.getNextRefreshTime(mMockNetwork, 0));
+        assertEquals(Long.MAX_VALUE, thirdSelector.getNextRefreshTime(mMockNetwork, 0));
+
+        // A third slot is answered from the shared cache.
+        final List<InetAddress> thirdServerList = new ArrayList<>();
+        final CountDownLatch cachedLatch = new CountDownLatch(1);
+        startSelection(thirdSelector, thirdServerList, cachedLatch);
+        assertTrue(cachedLatch.await(1, TimeUnit.SECONDS));
+        assertEquals(answer, thirdServerList);
+        verify(mMockDnsResolver, times(1))
+                .rawQuery(
+                        any(),
+                        eq(testStaticAddress),
+                        anyInt(),
+                        anyInt(),
+                        anyInt(),
+                        any(),
+                        any(),
+                        any());
+        assertNotEquals(Long.MAX_VALUE, thirdSelector.getNextRefreshTime(mMockNetwork, 0));
+    }
+
     private void testPlmnResolutionMethod(boolean isEmergency) throws Exception {
         when(DnsResolver.getInstance()).thenReturn(mMockDnsResolver);
         doReturn(true).when(mEpdgSelector).hasIpv4Address(mMockNetwork);
@@ -323,6 +1251,36 @@ public class EpdgSelectorTest {
         }
     }
 
+    @Test
+    public void testResolutionPlanReusedUntilInputsChange() throws Exception {
+        when(DnsResolver.getInstance()).thenReturn(mMockDnsResolver);
+        doReturn(true).when(mEpdgSelector).hasIpv4Address(mMockNetwork);
+        doReturn(false).when(mEpdgSelector).hasIpv6Address(mMockNetwork);
+
+        mTestBundle.putIntArray(
+                CarrierConfigManager.Iwlan.KEY_EPDG_ADDRESS_PRIORITY_INT_ARRAY,
+                new int[] {CarrierConfigManager.Iwlan.EPDG_ADDRESS_PLMN});
+        mTestBundle.putStringArray(
+                CarrierConfigManager.Iwlan.KEY_MCC_MNCS_STRING_ARRAY, new String[] {"311-120"});
+        mFakeDns.setAnswer(
+                "epdg.epc.mnc120.mcc311.pub.3gppnetwork.org",
+                new String[] {TEST_IP_ADDRESS},
+                TYPE_A);
+
+        getValidatedServerListWithDefaultParams(false /*isEmergency*/);
+        ArrayList<InetAddress> testInetAddresses =
+                getValidatedServerListWithDefaultParams(false /*isEmergency*/);
+
+        assertEquals(List.of(InetAddress.getByName(TEST_IP_ADDRESS)), testInetAddresses);
+        assertEquals(1, mEpdgSelector.getNumCompiledPlans());
+
+        // A new registered PLMN compiles a new plan.
+        when(mMockTelephonyManager.getNetworkOperator()).thenReturn("311121");
+        getValidatedServerListWithDefaultParams(false /*isEmergency*/);
+
+        assertEquals(2, mEpdgSelector.getNumCompiledPlans());
+    }
+
     @Test
     public void testPlmnResolutionMethodWithDuplicatedImsiAndEhplmn() throws Exception {
         when(DnsResolver.getInstance()).thenReturn(mMockDnsResolver);
@@ -548,6 +1506,151 @@ public class EpdgSelectorTest {
         assertEquals(InetAddress.getByName(TEST_IP_ADDRESS), testInetAddresses.get(2));
     }
 
+    @Test
+    public void testVisitedCountryMethodOrdersNaptrTargets() throws Exception {
+        when(DnsResolver.getInstance()).thenReturn(mMockDnsResolver);
+        doReturn(true).when(mEpdgSelector).hasIpv4Address(mMockNetwork);
+        doReturn(true).when(mEpdgSelector).hasIpv6Address(mMockNetwork);
+
+        final String visitedCountryFqdn = "epdg.epc.mcc311.visited-country.pub.3gppnetwork.org";
+        final String otherPlmnFqdn = "epdg.epc.mnc480.mcc310.pub.3gppnetwork.org";
+        final String carrierConfigPlmnFqdn = "epdg.epc.mnc120.mcc311.pub.3gppnetwork.org";
+        final byte[] naptrResponse =
+                buildNaptrResponse(visitedCountryFqdn, otherPlmnFqdn, carrierConfigPlmnFqdn);
+        doAnswer(
+                        invocation -> {
+                            final Executor executor = invocation.getArgument(5);
+                            final DnsResolver.Callback<byte[]> callback = invocation.getArgument(7);
+                            executor.execute(() -> callback.onAnswer(naptrResponse, 0));
+                            return null;
+                        })
+                .when(mMockDnsResolver)
+                .rawQuery(
+                        any(),
+                        eq(visitedCountryFqdn),
+                        anyInt(),
+                        eq(NaptrDnsResolver.QUERY_TYPE_NAPTR),
+                        anyInt(),
+                        any(),
+                        any(),
+                        any());
+        mFakeDns.setAnswer(otherPlmnFqdn, new String[] {TEST_IP_ADDRESS_1}, TYPE_A);
+        mFakeDns.setAnswer(carrierConfigPlmnFqdn, new String[] {TEST_IP_ADDRESS_2}, TYPE_A);
+
+        mTestBundle.putIntArray(
+                CarrierConfigManager.Iwlan.KEY_EPDG_ADDRESS_PRIORITY_INT_ARRAY,
+                new int[] {CarrierConfigManager.Iwlan.EPDG_ADDRESS_VISITED_COUNTRY});
+        mTestBundle.putStringArray(
+                CarrierConfigManager.Iwlan.KEY_MCC_MNCS_STRING_ARRAY, new String[] {"311-120"});
+
+        final CountDownLatch latch = new CountDownLatch(1);
+        final List<InetAddress> testInetAddresses = new ArrayList<>();
+        mEpdgSelector.getValidatedServerList(
+                1234,
+                EpdgSelector.PROTO_FILTER_IPV4V6,
+                EpdgSelector.IPV4_PREFERRED,
+                true /* isRoaming */,
+                false /* isEmergency */,
+                mMockNetwork,
+                new EpdgSelector.EpdgSelectorCallback() {
+                    @Override
+                    public void onServerListChanged(
+                            int transactionId, List<InetAddress> validIPList) {
+                        testInetAddresses.addAll(validIPList);
+                        latch.countDown();
+                    }
+
+                    @Override
+                    public void onError(int transactionId, IwlanError epdgSelectorError) {
+                        latch.countDown();
+                    }
+                });
+        latch.await(1, TimeUnit.SECONDS);
+
+        // Both targets are resolved together, and the PLMN from the ePDG selection information
+        // is preferred as per TS 23.402 4.5.4.5.
+        assertEquals(
+                List.of(
+                        InetAddress.getByName(TEST_IP_ADDRESS_2),
+                        InetAddress.getByName(TEST_IP_ADDRESS_1)),
+                testInetAddresses);
+    }
+
+    /** Builds a NAPTR response that points to the given A record targets, in order. */
+    private static byte[] buildNaptrResponse(String domainName, String... targets)
+            throws IOException {
+        ByteArrayOutputStream packet = new ByteArrayOutputStream();
+        DataOutputStream out = new DataOutputStream(packet);
+        // Header: id, flags (standard response), 1 question, N answers.
+        out.writeShort(0x1234);
+        out.writeShort(0x8180);
+        out.writeShort(1);
+        out.writeShort(targets.length);
+        out.writeShort(0);
+        out.writeShort(0);
+        writeDnsName(out, domainName);
+        out.writeShort(NaptrDnsResolver.QUERY_TYPE_NAPTR);
+        out.writeShort(DnsResolver.CLASS_IN);
+        for (int i = 0; i < targets.length; i++) {
+            ByteArrayOutputStream rdata = new ByteArrayOutputStream();
+            DataOutputStream rdataOut = new DataOutputStream(rdata);
+            rdataOut.writeShort(100 /* order */);
+            rdataOut.writeShort(10 + i /* preference */);
+            writeCharacterString(rdataOut, "a");
+            writeCharacterString(rdataOut, "x-3gpp-epdg:x-s2b");
+            writeCharacterString(rdataOut, "");
+            writeDnsName(rdataOut, targets[i]);
+
+            writeDnsName(out, domainName);
+            out.writeShort(NaptrDnsResolver.QUERY_TYPE_NAPTR);
+            out.writeShort(DnsResolver.CLASS_IN);
+            out.writeInt(3600 /* ttl */);
+            out.writeShort(rdata.size());
+            out.write(rdata.toByteArray());
+        }
+        return packet.toByteArray();
+    }
+
+    /** Builds a response to an A or AAAA query, with a record for each address. */
+    private static byte[] buildAddressResponse(
+            String domainName, int queryType, int rcode, long ttlSec, List<InetAddress> addresses)
+            throws IOException {
+        ByteArrayOutputStream packet = new ByteArrayOutputStream();
+        DataOutputStream out = new DataOutputStream(packet);
+        // Header: id, flags (standard response), 1 question, N answers.
+        out.writeShort(0x1234);
+        out.writeShort(0x8180 | rcode);
+        out.writeShort(1);
+        out.writeShort(addresses.size());
+        out.writeShort(0);
+        out.writeShort(0);
+        writeDnsName(out, domainName);
+        out.writeShort(queryType);
+        out.writeShort(DnsResolver.CLASS_IN);
+        for (InetAddress address : addresses) {
+            writeDnsName(out, domainName);
+            out.writeShort(queryType);
+            out.writeShort(DnsResolver.CLASS_IN);
+            out.writeInt((int) ttlSec);
+            out.writeShort(address.getAddress().length);
+            out.write(address.getAddress());
+        }
+        return packet.toByteArray();
+    }
+
+    private static void writeDnsName(DataOutputStream out, String name) throws IOException {
+        for (String label : name.split("\\.")) {
+            writeCharacterString(out, label);
+        }
+        out.writeByte(0);
+    }
+
+    private static void writeCharacterString(DataOutputStream out, String value)
+            throws IOException {
+        out.writeByte(value.length());
+        out.writeBytes(value);
+    }
+
     private ArrayList<InetAddress> getValidatedServerListWithDefaultParams(boolean isEmergency)
             throws Exception {
         return getValidatedServerListWithIpPreference(
@@ -559,6 +1662,15 @@ public class EpdgSelectorTest {
             @EpdgSelector.EpdgAddressOrder int order,
             boolean isEmergency)
             throws Exception {
+        return getValidatedServerListWithTimeout(filter, order, isEmergency, 1 /* timeoutSec */);
+    }
+
+    private ArrayList<InetAddress> getValidatedServerListWithTimeout(
+            @EpdgSelector.ProtoFilter int filter,
+            @EpdgSelector.EpdgAddressOrder int order,
+            boolean isEmergency,
+            long timeoutSec)
+            throws Exception {
         ArrayList<InetAddress> testInetAddresses = new ArrayList<InetAddress>();
         final CountDownLatch latch = new CountDownLatch(1);
         IwlanError ret =
@@ -590,7 +1702,7 @@ public class EpdgSelectorTest {
                         });
 
         assertEquals(ret.getErrorType(), IwlanError.NO_ERROR);
-        latch.await(1, TimeUnit.SECONDS);
+        latch.await(timeoutSec, TimeUnit.SECONDS);
         return testInetAddresses;
     }
 
@@ -695,6 +1807,8 @@ public class EpdgSelectorTest {
 
         setAnswerForCellularMethod(isEmergency, 311, 120);
         setAnswerForCellularMethod(isEmergency, 300, 120);
+        doReturn(true).when(mEpdgSelector).hasIpv4Address(mMockNetwork);
+        doReturn(true).when(mEpdgSelector).hasIpv6Address(mMockNetwork);
 
         ArrayList<InetAddress> testInetAddresses =
                 getValidatedServerListWithDefaultParams(isEmergency);
@@ -936,19 +2050,24 @@ public class EpdgSelectorTest {
      * Fakes DNS responses.
      *
      * <p>Allows test methods to configure the IP addresses that will be resolved by
-     * Network#getAllByName and by DnsResolver#query.
+     * Network#getAllByName, by DnsResolver#query and by DnsResolver#rawQuery.
      */
     class FakeDns {
+        // The TTL of answers when a test does not set one.
+        static final long DEFAULT_TTL_SEC = 300;
+
         /** Data class to record the Dns entry. */
         class DnsEntry {
             final String mHostname;
             final int mType;
             final List<InetAddress> mAddresses;
+            final long mTtlSec;
 
-            DnsEntry(String host, int type, List<InetAddress> addr) {
+            DnsEntry(String host, int type, List<InetAddress> addr, long ttlSec) {
                 mHostname = host;
                 mType = type;
                 mAddresses = addr;
+                mTtlSec = ttlSec;
             }
             // Full match or partial match that target host contains the entry hostname to support
             // random private dns probe hostname.
@@ -973,10 +2092,26 @@ public class EpdgSelectorTest {
                     .orElse(List.of());
         }
 
+        /** Returns the TTL of the answer for a given name and type. */
+        private synchronized long getTtlSec(String hostname, int type) {
+            return mAnswers.stream()
+                    .filter(e -> e.matches(hostname, type))
+                    .map(answer -> answer.mTtlSec)
+                    .findFirst()
+                    .orElse(DEFAULT_TTL_SEC);
+        }
+
         /** Sets the answer for a given name and type. */
-        private synchronized void setAnswer(String hostname, String[] answer, int type)
+        private void setAnswer(String hostname, String[] answer, int type)
+                throws UnknownHostException {
+            setAnswer(hostname, answer, type, DEFAULT_TTL_SEC);
+        }
+
+        /** Sets the answer for a given name and type, with the TTL of its records. */
+        private synchronized void setAnswer(
+                String hostname, String[] answer, int type, long ttlSec)
                 throws UnknownHostException {
-            DnsEntry record = new DnsEntry(hostname, type, generateAnswer(answer));
+            DnsEntry record = new DnsEntry(hostname, type, generateAnswer(answer), ttlSec);
             // Remove the existing one.
             mAnswers.removeIf(entry -> entry.matches(hostname, type));
             // Add or replace a new record.
@@ -1041,6 +2176,44 @@ public class EpdgSelectorTest {
                             })
                     .when(mMockDnsResolver)
                     .query(any(), anyString(), anyInt(), anyInt(), any(), any(), any());
+
+            // DnsResolver.rawQuery(), which resolves A and AAAA records along with their TTL.
+            doAnswer(invocation -> mockRawQuery(invocation))
+                    .when(mMockDnsResolver)
+                    .rawQuery(
+                            any(),
+                            anyString(),
+                            anyInt(),
+                            anyInt(),
+                            anyInt(),
+                            any(),
+                            any(),
+                            any());
+        }
+
+        // Mocking A and AAAA queries on DnsResolver#rawQuery. Other types are not answered.
+        private Answer mockRawQuery(InvocationOnMock invocation) throws IOException {
+            String hostname = invocation.getArgument(1);
+            int type = invocation.getArgument(3);
+            Executor executor = invocation.getArgument(5);
+            DnsResolver.Callback<byte[]> callback = invocation.getArgument(7);
+            if (type != TYPE_A && type != TYPE_AAAA) {
+                return null;
+            }
+
+            List<InetAddress> answer = getAnswer(hostname, type);
+            if (answer.size() > 0) {
+                byte[] response =
+                        buildAddressResponse(
+                                hostname, type, 0 /* rcode */, getTtlSec(hostname, type), answer);
+                new Handler(Looper.getMainLooper())
+                        .post(
+                                () -> {
+                                    executor.execute(() -> callback.onAnswer(response, 0));
+                                });
+            }
+            // If no answers, do nothing, as for DnsResolver#query.
+            return null;
         }
 
         // Mocking queries on DnsResolver#query.
@@ -65,6 +65,7 @@ import android.net.ipsec.ike.exceptions.IkeProtocolException;
 import android.net.ipsec.ike.ike3gpp.Ike3gppBackoffTimer;
 import android.net.ipsec.ike.ike3gpp.Ike3gppData;
 import android.net.ipsec.ike.ike3gpp.Ike3gppExtension;
+import android.os.CancellationSignal;
 import android.os.PersistableBundle;
 import android.os.test.TestLooper;
 import android.telephony.CarrierConfigManager;
@@ -188,7 +189,8 @@ public class EpdgTunnelManagerTest {
                         anyBoolean(),
                         anyBoolean(),
                         any(Network.class),
-                        any(EpdgSelector.EpdgSelectorCallback.class)))
+                        any(EpdgSelector.EpdgSelectorCallback.class),
+                        any()))
                 .thenReturn(new IwlanError(IwlanError.NO_ERROR));
 
         // initialize carrier configuration
@@ -351,9 +353,43 @@ public class EpdgTunnelManagerTest {
                         eq(false),
                         eq(false),
                         eq(mMockDefaultNetwork),
+                        any(),
                         any());
     }
 
+    @Test
+    public void testCloseTunnelCancelsEpdgSelection() throws Exception {
+        TunnelSetupRequest TSR = getBasicTunnelSetupRequest(TEST_APN_NAME, ApnSetting.PROTOCOL_IP);
+        doReturn(true).when(mEpdgTunnelManager).canBringUpTunnel(eq(TEST_APN_NAME));
+        setupMockForGetConfig(new PersistableBundle());
+
+        mEpdgTunnelManager.bringUpTunnel(TSR, mMockIwlanTunnelCallback, mMockIwlanTunnelMetrics);
+        mTestLooper.dispatchAll();
+
+        ArgumentCaptor<CancellationSignal> signalCaptor =
+                ArgumentCaptor.forClass(CancellationSignal.class);
+        verify(mMockEpdgSelector)
+                .getValidatedServerList(
+                        anyInt(),
+                        anyInt(),
+                        anyInt(),
+                        eq(false),
+                        eq(false),
+                        eq(mMockDefaultNetwork),
+                        any(),
+                        signalCaptor.capture());
+        assertFalse(signalCaptor.getValue().isCanceled());
+
+        mEpdgTunnelManager.closeTunnel(
+                TEST_APN_NAME,
+                false /*forceClose*/,
+                mMockIwlanTunnelCallback,
+                mMockIwlanTunnelMetrics);
+        mTestLooper.dispatchAll();
+
+        assertTrue(signalCaptor.getValue().isCanceled());
+    }
+
     private void setupTunnelBringup(
             String apnName, List<InetAddress> epdgAddresses, int transactionId) throws Exception {
         setupMockForGetConfig(null);
@@ -874,6 +910,74 @@ public class EpdgTunnelManagerTest {
         verify(mMockIwlanTunnelCallback, times(1)).onClosed(eq(testApnName), eq(error));
     }
 
+    @Test
+    public void testPartialSelectionResultStartsBringUp() throws Exception {
+        InetAddress firstAddress = InetAddress.getByName("1.1.1.1");
+        InetAddress secondAddress = InetAddress.getByName("8.8.8.8");
+
+        setupMockForGetConfig(null);
+        doReturn(null)
+                .when(mMockIkeSessionCreator)
+                .createIkeSession(
+                        eq(mMockContext),
+                        any(IkeSessionParams.class),
+                        any(ChildSessionParams.class),
+                        any(Executor.class),
+                        any(IkeSessionCallback.class),
+                        any(ChildSessionCallback.class));
+        doReturn(true).when(mEpdgTunnelManager).canBringUpTunnel(eq(TEST_APN_NAME));
+        doReturn(0L)
+                .when(mEpdgTunnelManager)
+                .reportIwlanError(eq(TEST_APN_NAME), any(IwlanError.class));
+
+        boolean ret =
+                mEpdgTunnelManager.bringUpTunnel(
+                        getBasicTunnelSetupRequest(TEST_APN_NAME, ApnSetting.PROTOCOL_IP),
+                        mMockIwlanTunnelCallback,
+                        mMockIwlanTunnelMetrics);
+        assertTrue(ret);
+        mTestLooper.dispatchAll();
+
+        mEpdgTunnelManager.sendSelectionPartialResult(List.of(firstAddress), 1);
+        mTestLooper.dispatchAll();
+
+        EpdgTunnelManager.TmIkeSessionCallback ikeSessionCallback =
+                verifyCreateIkeSession(firstAddress);
+
+        // The complete result does not start a second bring-up.
+        mEpdgTunnelManager.sendSelectionRequestComplete(
+                List.of(firstAddress, secondAddress), new IwlanError(IwlanError.NO_ERROR), 1);
+        mTestLooper.dispatchAll();
+
+        verify(mMockIkeSessionCreator, times(1))
+                .createIkeSession(
+                        eq(mMockContext),
+                        any(IkeSessionParams.class),
+                        any(ChildSessionParams.class),
+                        any(Executor.class),
+                        any(IkeSessionCallback.class),
+                        any(ChildSessionCallback.class));
+
+        // A retry continues with the next candidate of the complete list.
+        ikeSessionCallback.onClosedWithException(
+                new IkeInternalException(new IOException("Retransmitting failure")));
+        mTestLooper.dispatchAll();
+
+        ret =
+                mEpdgTunnelManager.bringUpTunnel(
+                        getBasicTunnelSetupRequest(TEST_APN_NAME, ApnSetting.PROTOCOL_IP),
+                        mMockIwlanTunnelCallback,
+                        mMockIwlanTunnelMetrics);
+        assertTrue(ret);
+        mTestLooper.dispatchAll();
+
+        mEpdgTunnelManager.sendSelectionRequestComplete(
+                List.of(firstAddress, secondAddress), new IwlanError(IwlanError.NO_ERROR), 2);
+        mTestLooper.dispatchAll();
+
+        verifyCreateIkeSession(secondAddress);
+    }
+
     private EpdgTunnelManager.TmIkeSessionCallback verifyCreateIkeSession(InetAddress ip)
             throws Exception {
         ArgumentCaptor<IkeSessionParams> ikeSessionParamsCaptor =
@@ -1871,7 +1975,8 @@ public class EpdgTunnelManagerTest {
                         eq(isRoaming),
                         eq(isEmergency),
                         eq(mMockDefaultNetwork),
-                        any(EpdgSelector.EpdgSelectorCallback.class));
+                        any(EpdgSelector.EpdgSelectorCallback.class),
+                        any());
 
         mEpdgTunnelManager.sendSelectionRequestComplete(
                 EXPECTED_EPDG_ADDRESSES, new IwlanError(IwlanError.NO_ERROR), 1);
@@ -2101,6 +2206,7 @@ public class EpdgTunnelManagerTest {
                         eq(false),
                         eq(false),
                         eq(mMockDefaultNetwork),
+                        any(),
                         any());
     }
 
@@ -2129,6 +2235,7 @@ public class EpdgTunnelManagerTest {
                         eq(false),
                         eq(false),
                         eq(mMockDefaultNetwork),
+                        any(),
                         any());
     }
 
@@ -2157,6 +2264,7 @@ public class EpdgTunnelManagerTest {
                         eq(false),
                         eq(false),
                         eq(mMockDefaultNetwork),
+                        any(),
                         any());
     }
 
@@ -2189,6 +2297,7 @@ public class EpdgTunnelManagerTest {
                         eq(false),
                         eq(false),
                         eq(mMockDefaultNetwork),
+                        any(),
                         any());
     }
 
@@ -2220,6 +2329,7 @@ public class EpdgTunnelManagerTest {
                         eq(false),
                         eq(false),
                         eq(mMockDefaultNetwork),
+                        any(),
                         any());
         verify(mEpdgTunnelManager, times(1)).reportIwlanError(eq(TEST_APN_NAME), eq(error));
         verify(mMockIwlanTunnelCallback, times(1)).onClosed(eq(TEST_APN_NAME), eq(error));
@@ -2250,6 +2360,7 @@ public class EpdgTunnelManagerTest {
                         eq(false),
                         eq(false),
                         eq(mMockDefaultNetwork),
+                        any(),
                         any());
     }
 
@@ -2412,7 +2523,8 @@ public class EpdgTunnelManagerTest {
                         eq(false), /* isRoaming */
                         eq(false), /* isEmergency */
                         eq(newNetwork),
-                        any(EpdgSelector.EpdgSelectorCallback.class));
+                        any(EpdgSelector.EpdgSelectorCallback.class),
+                        any());
         IkeSessionParams ikeSessionParams =
                 ikeSessionArgumentCaptors.mIkeSessionParamsCaptor.getValue();
         assertEquals(ikeSessionParams.getNetwork(), newNetwork);
@@ -0,0 +1,253 @@
+/*
+ * Copyright 2024 The Android Open Source Project
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package com.google.android.iwlan.epdg;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertTrue;
+import static org.junit.Assume.assumeTrue;
+
+import android.net.ParseException;
+import android.os.Debug;
+import android.util.Log;
+
+import androidx.test.InstrumentationRegistry;
+
+import com.android.net.module.util.DnsPacketUtils.DnsRecordParser;
+
+import com.google.android.iwlan.epdg.NaptrDnsResolver.NaptrResponse.NaptrRecord;
+
+import org.json.JSONObject;
+import org.junit.Test;
+
+import java.io.ByteArrayOutputStream;
+import java.io.DataOutputStream;
+import java.io.File;
+import java.io.FileWriter;
+import java.io.IOException;
+import java.io.Writer;
+import java.nio.BufferUnderflowException;
+import java.nio.ByteBuffer;
+import java.nio.charset.StandardCharsets;
+
+/**
+ * Measures the decoding of NAPTR record data.
+ *
+ * <p>The current decoder is {@link NaptrRecord}, which decodes the flag and service on demand.
+ * The baseline decoder is a copy of the parser it replaced, which copied every field into its own
+ * array and built a string from it, including the empty regex. Both read only the record type and
+ * the replacement name, as ePDG selection does. Each writes one JSON object with the time and the
+ * bytes allocated per record to logcat. The full benchmark also writes them to
+ * naptr_decode_benchmark.jsonl in the files directory of the test app, and only runs when the
+ * instrumentation argument "naptr-decode-benchmark" is "true", for example with:
+ *
+ * <pre>
+ * atest IwlanTests:NaptrDecodeBenchmarkTest -- \
+ *     --module-arg IwlanTests:instrumentation-arg:naptr-decode-benchmark:=true
+ * </pre>
+ *
+ * <p>Allocations are the bytes allocated by the whole test process during the decoding.
+ */
+public class NaptrDecodeBenchmarkTest {
+    private static final String TAG = "NaptrDecodeBenchmark";
+    private static final String BENCHMARK_ARG = "naptr-decode-benchmark";
+    private static final String RESULT_FILE_NAME = "naptr_decode_benchmark.jsonl";
+    private static final int WARMUP_ITERATIONS = 1000;
+    private static final int ITERATIONS = 1000;
+    private static final int FULL_ITERATIONS = 200000;
+
+    private static final String SERVICE = "x-3gpp-epdg:x-s2b";
+    private static final String REPLACEMENT =
+            "_x-3gpp-epdg._sctp.epdg.epc.mnc120.mcc311.pub.3gppnetwork.org";
+
+    // Keeps the decoded values alive, so that the decoding is not optimized away.
+    private long mSink;
+
+    /** Decodes one record the way the benchmarked decoder does. */
+    private interface Decoder {
+        void decode(byte[] recordData);
+    }
+
+    private final Decoder mCurrentDecoder =
+            recordData -> {
+                NaptrRecord record = new NaptrRecord(recordData);
+                mSink += record.getTypeFromFlagString() + record.replacement.length();
+            };
+
+    private final Decoder mBaselineDecoder =
+            recordData -> {
+                BaselineNaptrRecord record = new BaselineNaptrRecord(recordData);
+                mSink += record.getTypeFromFlagString() + record.replacement.length();
+            };
+
+    /** The NAPTR record parser {@link NaptrRecord} replaced, kept as the reference. */
+    private static class BaselineNaptrRecord {
+        private static final int MAXNAMESIZE = 255;
+
+        public final int preference;
+        public final int order;
+        public final String flag;
+        public final String service;
+        public final String regex;
+        public final String replacement;
+
+        private String parseNextField(ByteBuffer buf) throws BufferUnderflowException {
+            final short size = buf.get();
+            // size can also be 0, for instance for the 'regex' field.
+            final byte[] field = new byte[size];
+            buf.get(field, 0, size);
+            return new String(field, StandardCharsets.UTF_8);
+        }
+
+        public int getTypeFromFlagString() {
+            switch (flag) {
+                case "S":
+                case "s":
+                    return NaptrDnsResolver.TYPE_SRV;
+                case "A":
+                case "a":
+                    return NaptrDnsResolver.TYPE_A;
+                default:
+                    throw new ParseException("Unsupported flag type: " + flag);
+            }
+        }
+
+        BaselineNaptrRecord(byte[] naptrRecordData) throws ParseException {
+            final ByteBuffer buf = ByteBuffer.wrap(naptrRecordData);
+            try {
+                order = Short.toUnsignedInt(buf.getShort());
+                preference = Short.toUnsignedInt(buf.getShort());
+                flag = parseNextField(buf);
+                service = parseNextField(buf);
+                regex = parseNextField(buf);
+                if (regex.length() != 0) {
+                    throw new ParseException("NAPTR: regex field expected to be empty!");
+                }
+                replacement =
+                        DnsRecordParser.parseName(buf, 0, /* isNameCompressionSupported */ true);
+                if (replacement == null) {
+                    throw new ParseException("NAPTR: replacement field not expected to be empty!");
+                }
+                if (replacement.length() > MAXNAMESIZE) {
+                    throw new ParseException(
+                            "Parse name fail, replacement name size is too long: "
+                                    + replacement.length());
+                }
+                if (buf.hasRemaining()) {
+                    throw new ParseException(
+                            "Parsing NAPTR record data failed: more bytes than expected!");
+                }
+            } catch (BufferUnderflowException e) {
+                throw new ParseException("Parsing NAPTR Record data failed with cause", e);
+            }
+        }
+    }
+
+    private static void writeCharacterString(DataOutputStream out, String value)
+            throws IOException {
+        byte[] bytes = value.getBytes(StandardCharsets.UTF_8);
+        out.writeByte(bytes.length);
+        out.write(bytes);
+    }
+
+    /** Returns the record data of an SRV NAPTR record as published for ePDG, RFC 2915. */
+    private static byte[] buildRecordData() throws IOException {
+        ByteArrayOutputStream bytes = new ByteArrayOutputStream();
+        DataOutputStream out = new DataOutputStream(bytes);
+        out.writeShort(10 /* order */);
+        out.writeShort(50 /* preference */);
+        writeCharacterString(out, "s");
+        writeCharacterString(out, SERVICE);
+        writeCharacterString(out, "" /* regex */);
+        for (String label : REPLACEMENT.split("\\.")) {
+            writeCharacterString(out, label);
+        }
+        out.writeByte(0);
+        out.flush();
+        return bytes.toByteArray();
+    }
+
+    private static long getAllocatedBytes() {
+        String bytes = Debug.getRuntimeStat("art.gc.bytes-allocated");
+        return (bytes != null) ? Long.parseLong(bytes) : -1;
+    }
+
+    private JSONObject measure(String name, Decoder decoder, byte[] recordData, int iterations)
+            throws Exception {
+        for (int i = 0; i < WARMUP_ITERATIONS; i++) {
+            decoder.decode(recordData);
+        }
+        long allocatedBytes = getAllocatedBytes();
+        long startTimeNanos = System.nanoTime();
+        for (int i = 0; i < iterations; i++) {
+            decoder.decode(recordData);
+        }
+        long elapsedNanos = System.nanoTime() - startTimeNanos;
+        allocatedBytes = getAllocatedBytes() - allocatedBytes;
+
+        JSONObject result = new JSONObject();
+        result.put("decoder", name);
+        result.put("iterations", iterations);
+        result.put("ns_per_record", elapsedNanos / iterations);
+        result.put("allocated_bytes_per_record", allocatedBytes / iterations);
+        Log.i(TAG, result.toString());
+        return result;
+    }
+
+    @Test
+    public void testDecodeMeasured() throws Exception {
+        byte[] recordData = buildRecordData();
+        NaptrRecord record = new NaptrRecord(recordData);
+        BaselineNaptrRecord baselineRecord = new BaselineNaptrRecord(recordData);
+        // Both decoders agree on the record.
+        assertEquals(NaptrDnsResolver.TYPE_SRV, record.getTypeFromFlagString());
+        assertEquals(baselineRecord.getTypeFromFlagString(), record.getTypeFromFlagString());
+        assertEquals(baselineRecord.flag, record.getFlag());
+        assertEquals(SERVICE, record.getService());
+        assertEquals(baselineRecord.service, record.getService());
+        assertEquals(REPLACEMENT, record.replacement);
+        assertEquals(baselineRecord.replacement, record.replacement);
+
+        JSONObject current = measure("current", mCurrentDecoder, recordData, ITERATIONS);
+        JSONObject baseline = measure("baseline", mBaselineDecoder, recordData, ITERATIONS);
+
+        assertTrue(current.getLong("ns_per_record") >= 0);
+        assertTrue(baseline.getLong("ns_per_record") >= 0);
+        assertTrue(mSink > 0);
+    }
+
+    @Test
+    public void testFullBenchmark() throws Exception {
+        assumeTrue(
+                Boolean.parseBoolean(
+                        InstrumentationRegistry.getArguments().getString(BENCHMARK_ARG)));
+        byte[] recordData = buildRecordData();
+
+        File filesDir = InstrumentationRegistry.getTargetContext().getFilesDir();
+        File resultFile = new File(filesDir, RESULT_FILE_NAME);
+        try (Writer writer = new FileWriter(resultFile)) {
+            for (JSONObject result :
+                    new JSONObject[] {
+                        measure("current", mCurrentDecoder, recordData, FULL_ITERATIONS),
+                        measure("baseline", mBaselineDecoder, recordData, FULL_ITERATIONS)
+                    }) {
+                writer.write(result.toString());
+                writer.write('\n');
+            }
+        }
+        Log.i(TAG, "Results written to " + resultFile);
+    }
+}
@@ -22,6 +22,7 @@ import static com.google.android.iwlan.epdg.NaptrDnsResolver.*;
 
 import static org.junit.Assert.assertEquals;
 import static org.junit.Assert.assertNotNull;
+import static org.junit.Assert.assertThrows;
 import static org.mockito.ArgumentMatchers.any;
 import static org.mockito.ArgumentMatchers.anyInt;
 import static org.mockito.Mockito.doAnswer;
@@ -33,6 +34,7 @@ import android.support.annotation.NonNull;
 import android.support.annotation.Nullable;
 import android.util.Log;
 
+import com.android.net.module.util.DnsPacket;
 import com.google.android.iwlan.epdg.NaptrDnsResolver.NaptrTarget;
 
 import org.junit.After;
@@ -44,6 +46,7 @@ import org.mockito.MockitoAnnotations;
 import org.mockito.MockitoSession;
 
 import java.net.UnknownHostException;
+import java.util.Arrays;
 import java.util.List;
 import java.util.concurrent.CompletableFuture;
 import java.util.concurrent.CompletionException;
@@ -73,6 +76,12 @@ public class NaptrDnsResolverTest {
         117, 109, 98, 105, 97, 3, 101, 100, 117, 0
     };
 
+    // The NAPTR record data of TEST_DOMAIN_NAME_NAPTR_RESPONSE.
+    private static final byte[] TEST_NAPTR_RECORD_DATA = {
+        0, 1, 0, 0, 1, 115, 7, 83, 73, 80, 43, 68, 50, 85, 0, 4, 95, 115, 105, 112, 4, 95, 117, 100,
+        112, 8, 99, 111, 108, 117, 109, 98, 105, 97, 3, 101, 100, 117, 0
+    };
+
     @Mock private Network mMockNetwork;
     @Mock private DnsResolver mMockDnsResolver;
 
@@ -195,4 +204,26 @@ public class NaptrDnsResolverTest {
         assertNotNull("Exception wasn't thrown!", exception);
         assertEquals(exception.code, DnsResolver.ERROR_PARSE);
     }
+
+    @Test
+    public void testNaptrRecordFieldsDecodedFromRecordData() {
+        NaptrResponse.NaptrRecord record = new NaptrResponse.NaptrRecord(TEST_NAPTR_RECORD_DATA);
+
+        assertEquals(1, record.order);
+        assertEquals(0, record.preference);
+        assertEquals(TYPE_SRV, record.getTypeFromFlagString());
+        assertEquals("s", record.getFlag());
+        assertEquals("SIP+D2U", record.getService());
+        assertEquals("_sip._udp.columbia.edu", record.replacement);
+    }
+
+    @Test
+    public void testTruncatedNaptrRecordFailsToParse() {
+        // Ends in the middle of the 'service' field.
+        byte[] truncatedRecordData = Arrays.copyOf(TEST_NAPTR_RECORD_DATA, 10);
+
+        assertThrows(
+                DnsPacket.ParseException.class,
+                () -> new NaptrResponse.NaptrRecord(truncatedRecordData));
+    }
 }
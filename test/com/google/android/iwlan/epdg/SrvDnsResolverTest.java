@@ -22,6 +22,7 @@ import static com.google.android.iwlan.epdg.SrvDnsResolver.*;
 
 import static org.junit.Assert.assertEquals;
 import static org.junit.Assert.assertNotNull;
+import static org.junit.Assert.assertTrue;
 import static org.mockito.ArgumentMatchers.any;
 import static org.mockito.ArgumentMatchers.anyInt;
 import static org.mockito.Mockito.doAnswer;
@@ -49,6 +50,7 @@ import java.net.InetAddress;
 import java.net.UnknownHostException;
 import java.util.Arrays;
 import java.util.List;
+import java.util.Random;
 import java.util.concurrent.CompletableFuture;
 import java.util.concurrent.CompletionException;
 import java.util.concurrent.ExecutionException;
@@ -139,6 +141,8 @@ public class SrvDnsResolverTest {
     @After
     public void cleanUp() throws Exception {
         mStaticMockSession.finishMocking();
+        SrvDnsResolver.setTargetResolutionTimeoutMs(
+                SrvDnsResolver.DEFAULT_TARGET_RESOLUTION_TIMEOUT_MS);
     }
 
     // Tests the case where the DNS server response includes both the SRV record and additionally,
@@ -286,4 +290,69 @@ public class SrvDnsResolverTest {
         assertNotNull("Exception wasn't thrown!", exception);
         assertEquals(exception.code, DnsResolver.ERROR_PARSE);
     }
+
+    // Tests that a target whose follow-up query never answers does not hold up the SRV query.
+    @Test
+    public void testUnansweredTargetQueryTimesOut() {
+        SrvDnsResolver.setTargetResolutionTimeoutMs(100);
+        doAnswer(
+                        invocation -> {
+                            Executor executor = invocation.getArgument(5);
+                            DnsResolver.Callback<byte[]> callback = invocation.getArgument(7);
+                            executor.execute(() -> callback.onAnswer(TEST_QUERY_SRV_RESPONSE, 0));
+                            return null;
+                        })
+                .when(mMockDnsResolver)
+                .rawQuery(
+                        any(),
+                        ArgumentMatchers.eq(TEST_QUERY),
+                        ArgumentMatchers.eq(DnsResolver.CLASS_IN),
+                        ArgumentMatchers.eq(QUERY_TYPE_SRV),
+                        anyInt(),
+                        any(),
+                        any(),
+                        any());
+
+        SrvDnsResolver.query(mMockNetwork, TEST_QUERY, Runnable::run, null, mSrvDnsCb);
+
+        Throwable error = null;
+        try {
+            mSrvDnsResult.join();
+        } catch (CompletionException e) {
+            error = e.getCause();
+        }
+        assertTrue(error instanceof UnknownHostException);
+    }
+
+    @Test
+    public void testOrderSrvRecordsByPriorityAndWeight() {
+        SrvResponse.SrvRecord lowPriority = new SrvResponse.SrvRecord(10, 0, 500, "low.test");
+        SrvResponse.SrvRecord weighted = new SrvResponse.SrvRecord(0, 5, 500, "weighted.test");
+        SrvResponse.SrvRecord zeroWeight = new SrvResponse.SrvRecord(0, 0, 500, "zero.test");
+        SrvResponse.SrvRecord unavailable = new SrvResponse.SrvRecord(0, 10, 500, ".");
+        List<SrvResponse.SrvRecord> records =
+                Arrays.asList(lowPriority, weighted, zeroWeight, unavailable);
+
+        // The highest running sum selects the record with weight, the lowest the record
+        // without, which the RFC places first.
+        assertEquals(
+                Arrays.asList(weighted, zeroWeight, lowPriority),
+                orderSrvRecords(records, new FixedRandom(true)));
+        assertEquals(
+                Arrays.asList(zeroWeight, weighted, lowPriority),
+                orderSrvRecords(records, new FixedRandom(false)));
+    }
+
+    private static class FixedRandom extends Random {
+        private final boolean mReturnsHighest;
+
+        FixedRandom(boolean returnsHighest) {
+            mReturnsHighest = returnsHighest;
+        }
+
+        @Override
+        public int nextInt(int bound) {
+            return mReturnsHighest ? bound - 1 : 0;
+        }
+    }
 }